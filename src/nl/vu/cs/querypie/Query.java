@@ -5,9 +5,8 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.util.ArrayList;
+import java.util.List;
 
 import nl.vu.cs.ajira.AjiraClient;
 import nl.vu.cs.ajira.actions.ActionConf;
@@ -18,6 +17,7 @@ import nl.vu.cs.ajira.actions.QueryInputLayer;
 import nl.vu.cs.ajira.actions.WriteToBucket;
 import nl.vu.cs.ajira.data.types.SimpleData;
 import nl.vu.cs.ajira.data.types.TBoolean;
+import nl.vu.cs.ajira.data.types.TLong;
 import nl.vu.cs.ajira.data.types.TString;
 import nl.vu.cs.ajira.data.types.Tuple;
 import nl.vu.cs.ajira.data.types.TupleFactory;
@@ -25,6 +25,7 @@ import nl.vu.cs.ajira.datalayer.dummy.DummyLayer;
 import nl.vu.cs.ajira.exceptions.JobFailedException;
 import nl.vu.cs.ajira.submissions.Job;
 import nl.vu.cs.ajira.submissions.JobProperties;
+import nl.vu.cs.querypie.dictionary.DictionaryClient;
 import nl.vu.cs.querypie.reasoner.CalculateClosure;
 import nl.vu.cs.querypie.reasoner.QSQBCAlgo;
 import nl.vu.cs.querypie.reasoner.ReasoningUtils;
@@ -50,48 +51,71 @@ public class Query {
 	boolean dictionary = false;
 	public boolean intermediateStats = false;
 	public String dictionaryHost;
-	Socket connection = null;
+	DictionaryClient connection = null;
 	String fileSparqlQuery = null;
 	String inputPattern = null;
 	String closurePath = null;
 	boolean closure = false;
+	String closureUpdate = null;
 	boolean rules = false;
 	boolean incomplete = false;
 	boolean qsq = false;
 
-	BufferedReader in;
-	PrintWriter out;
-
 	private String cluster;
 
+	private static long getId(SimpleData value) {
+		if (value instanceof RDFTerm) {
+			return ((RDFTerm) value).getValue();
+		} else if (value instanceof TLong) {
+			return ((TLong) value).getValue();
+		}
+		return Long.valueOf(value.toString());
+	}
+
+	private DictionaryClient getDictionary() throws IOException {
+		if (connection == null) {
+			connection = new DictionaryClient(dictionaryHost);
+		}
+		return connection;
+	}
+
 	public String[] getText(SimpleData[] row) {
-		String[] answer = new String[row.length];
-		try {
+		List<SimpleData[]> rows = new ArrayList<SimpleData[]>(1);
+		rows.add(row);
+		return getText(rows).get(0);
+	}
 
-			if (connection == null) {
-				connection = new Socket(dictionaryHost, 4444);
-				out = new PrintWriter(connection.getOutputStream(), true);
+	/**
+	 * Returns the text of the terms of the rows. All the terms are looked up
+	 * with one call to the dictionary server.
+	 */
+	public List<String[]> getText(List<SimpleData[]> rows) {
+		List<long[]> ids = new ArrayList<long[]>(rows.size());
+		for (SimpleData[] row : rows) {
+			long[] r = new long[row.length];
+			for (int i = 0; i < row.length; ++i) {
+				r[i] = getId(row[i]);
 			}
+			ids.add(r);
+		}
 
-			String request = "";
-			for (SimpleData value : row) {
-				request += " " + value.toString();
-			}
-			out.println(request.trim());
-			in = new BufferedReader(new InputStreamReader(
-					connection.getInputStream()));
-			for (int i = 0; i < row.length; ++i) {
-				answer[i] = in.readLine();
-				if (answer[i].length() > 20) {
-					answer[i] = "..."
-							+ answer[i].substring(answer[i].length() - 20,
-									answer[i].length());
+		try {
+			return getDictionary().getText(ids);
+		} catch (Exception e) {
+			log.error("Error in the lookup of the terms", e);
+			if (connection != null) {
+				try {
+					connection.close();
+				} catch (IOException e1) {
 				}
+				connection = null;
 			}
-		} catch (Exception e) {
+			List<String[]> output = new ArrayList<String[]>(rows.size());
+			for (SimpleData[] row : rows) {
+				output.add(new String[row.length]);
+			}
+			return output;
 		}
-
-		return answer;
 	}
 
 	public AjiraClient getQueryResults(String propertiesFile, String query,
@@ -120,9 +144,13 @@ public class Query {
 						new nl.vu.cs.ajira.actions.support.Query());
 				actions.add(c);
 
-				CalculateClosure.applyTo(null,
-						TupleFactory.newTuple(new TBoolean(incomplete)),
-						actions);
+				if (closureUpdate != null) {
+					CalculateClosure.applyTo(closureUpdate, incomplete, actions);
+				} else {
+					CalculateClosure.applyTo(null,
+							TupleFactory.newTuple(new TBoolean(incomplete)),
+							actions);
+				}
 			} else if (!sparql) {
 				// Parse the input tuple
 				String[] values = query.split(" ");
@@ -212,7 +240,8 @@ public class Query {
 			System.out
 					.println("Usage: [-d dictionaryHost --excludeExplicit "
 							+ "--nResults 50 --rules <File with rules> "
-							+ "--incomplete --intermediateStats --sparql <File with sparql query> --pattern <pattern>]");
+							+ "--incomplete --intermediateStats --sparql <File with sparql query> --pattern <pattern> "
+							+ "--closureUpdate <triples added with UpdateCache>]");
 			return;
 		}
 
@@ -259,6 +288,11 @@ public class Query {
 				closure = true;
 			}
 
+			if (args[i].equals("--closureUpdate")) {
+				closure = true;
+				closureUpdate = args[++i];
+			}
+
 			if (args[i].equals("--closurePath")) {
 				closurePath = args[++i];
 			}
@@ -331,26 +365,36 @@ public class Query {
 	}
 
 	public void processTuples(ArrayList<Tuple> tuples) {
-		SimpleData[] row = null;
-
 		try {
+			List<SimpleData[]> rows = new ArrayList<SimpleData[]>();
 			while (tuples.size() > 0 && displayedResults++ < nDisplayResults) {
 				Tuple tuple = tuples.remove(tuples.size() - 1);
-				if (row == null) {
-					row = new SimpleData[tuple.getNElements()];
-				}
+				SimpleData[] row = new SimpleData[tuple.getNElements()];
 				for (int i = 0; i < row.length; ++i) {
 					row[i] = tuple.get(i);
 				}
+				rows.add(row);
+			}
 
-				if (dictionary) {
-					String[] values = getText(row);
+			if (dictionary) {
+				// Look up the terms of all the rows at once
+				List<String[]> values = getText(rows);
+				for (int j = 0; j < rows.size(); ++j) {
+					SimpleData[] row = rows.get(j);
 					String line = "";
 					for (int i = 0; i < row.length; ++i) {
-						line += values[i] + "(" + row[i].toString() + ") ";
+						String text = values.get(j)[i];
+						if (text == null) {
+							// Unknown id (or the lookup failed)
+							line += row[i].toString() + " ";
+						} else {
+							line += text + "(" + row[i].toString() + ") ";
+						}
 					}
 					System.out.println(line.trim());
-				} else {
+				}
+			} else {
+				for (SimpleData[] row : rows) {
 					String line = "";
 					for (SimpleData el : row) {
 						line += el.toString() + " ";
@@ -5,6 +5,7 @@ import nl.vu.cs.ajira.datalayer.InputLayer;
 import nl.vu.cs.ajira.utils.Configuration;
 import nl.vu.cs.ajira.utils.Consts;
 import nl.vu.cs.querypie.storage.disk.JavaGATFilesInterface;
+import nl.vu.cs.querypie.storage.disk.BlockCache;
 import nl.vu.cs.querypie.storage.disk.PlainTripleFile;
 import nl.vu.cs.querypie.storage.disk.RDFStorage;
 
@@ -64,6 +65,10 @@ public class QueryPIE {
 				conf.set(RDFStorage.LOCAL_CACHE_LOCATION, args[++i]);
 			}
 
+			if (args[i].equals("--local-cache-size")) {
+				conf.setInt(BlockCache.SIZE, Integer.valueOf(args[++i]));
+			}
+
 			if (args[i].equals("--clean-cache")) {
 				conf.setBoolean(RDFStorage.CLEAN_CACHE, true);
 			}
@@ -79,6 +84,14 @@ public class QueryPIE {
 			if (args[i].equals("--dict")) {
 				conf.set(RDFStorage.DICT_DIR, args[++i]);
 			}
+
+			if (args[i].equals("--no-statistics")) {
+				conf.setBoolean(RDFStorage.BUILD_STATISTICS, false);
+			}
+
+			if (args[i].equals("--index-file-impl")) {
+				conf.set("indexFileImpl", args[++i]);
+			}
 		}
 	}
 
@@ -87,8 +100,8 @@ public class QueryPIE {
 		Ajira arch = new Ajira(true);
 
 		Configuration conf = arch.getConfiguration();
-		parseArgs(args, conf);
 		conf.set("indexFileImpl", PlainTripleFile.class.getName());
+		parseArgs(args, conf);
 		InputLayer.setDefaultInputLayerClass(RDFStorage.class, conf);
 
 		if (useGAT) {
@@ -0,0 +1,160 @@
+package nl.vu.cs.querypie.dictionary;
+
+import ibis.util.ThreadPool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client of DictionaryServer. The ids are sent in batches, and the batches of
+ * a call are written by another thread while the responses are read, so that
+ * the requests overlap.
+ */
+public class DictionaryClient {
+
+    public static final int BATCH = 4096;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public DictionaryClient(String host) throws IOException {
+	this(host, DictionaryServer.PORT);
+    }
+
+    public DictionaryClient(String host, int port) throws IOException {
+	socket = new Socket(host, port);
+	socket.setTcpNoDelay(true);
+	in = new DataInputStream(new BufferedInputStream(
+		socket.getInputStream()));
+	out = new DataOutputStream(new BufferedOutputStream(
+		socket.getOutputStream()));
+    }
+
+    private void send(long[] ids, int start, int end) throws IOException {
+	out.writeInt(end - start);
+	for (int i = start; i < end; ++i) {
+	    out.writeLong(ids[i]);
+	}
+    }
+
+    private void receive(String[] text, int start, int end)
+	    throws IOException {
+	int n = in.readInt();
+	if (n != end - start) {
+	    throw new IOException("Expected " + (end - start)
+		    + " terms, received " + n);
+	}
+	byte[] buffer = new byte[256];
+	for (int i = start; i < end; ++i) {
+	    int len = in.readInt();
+	    if (len >= 0) {
+		if (buffer.length < len) {
+		    buffer = new byte[len];
+		}
+		in.readFully(buffer, 0, len);
+		text[i] = new String(buffer, 0, len, DictionaryServer.UTF8);
+	    }
+	}
+    }
+
+    /**
+     * Returns the text of the ids (null for the unknown ones).
+     */
+    public synchronized String[] getText(final long... ids)
+	    throws IOException {
+	String[] text = new String[ids.length];
+	if (ids.length <= BATCH) {
+	    send(ids, 0, ids.length);
+	    out.flush();
+	    receive(text, 0, ids.length);
+	    return text;
+	}
+
+	// Write the batches while the responses are read
+	final IOException[] error = new IOException[1];
+	final boolean[] sent = new boolean[1];
+	ThreadPool.createNew(new Runnable() {
+	    @Override
+	    public void run() {
+		try {
+		    for (int i = 0; i < ids.length; i += BATCH) {
+			send(ids, i, Math.min(ids.length, i + BATCH));
+			out.flush();
+		    }
+		} catch (IOException e) {
+		    error[0] = e;
+		    try {
+			socket.close();
+		    } catch (IOException e1) {
+		    }
+		}
+		synchronized (sent) {
+		    sent[0] = true;
+		    sent.notify();
+		}
+	    }
+	}, "Dictionary client");
+
+	try {
+	    for (int i = 0; i < ids.length; i += BATCH) {
+		receive(text, i, Math.min(ids.length, i + BATCH));
+	    }
+	} catch (IOException e) {
+	    // Unblock the writer
+	    socket.close();
+	    throw e;
+	} finally {
+	    synchronized (sent) {
+		while (!sent[0]) {
+		    try {
+			sent.wait();
+		    } catch (InterruptedException e) {
+		    }
+		}
+	    }
+	}
+	if (error[0] != null) {
+	    throw error[0];
+	}
+	return text;
+    }
+
+    /**
+     * Returns the text of the rows, looked up with as few batches as
+     * possible.
+     */
+    public List<String[]> getText(List<long[]> rows) throws IOException {
+	int size = 0;
+	for (long[] row : rows) {
+	    size += row.length;
+	}
+	long[] ids = new long[size];
+	int i = 0;
+	for (long[] row : rows) {
+	    System.arraycopy(row, 0, ids, i, row.length);
+	    i += row.length;
+	}
+
+	String[] text = getText(ids);
+	List<String[]> output = new ArrayList<String[]>(rows.size());
+	i = 0;
+	for (long[] row : rows) {
+	    String[] t = new String[row.length];
+	    System.arraycopy(text, i, t, 0, row.length);
+	    i += row.length;
+	    output.add(t);
+	}
+	return output;
+    }
+
+    public void close() throws IOException {
+	socket.close();
+    }
+}
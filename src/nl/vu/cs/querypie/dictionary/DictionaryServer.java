@@ -0,0 +1,313 @@
+package nl.vu.cs.querypie.dictionary;
+
+import ibis.util.ThreadPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the text of the terms to many clients at the same time. A single
+ * thread accepts the connections and moves the bytes with non-blocking
+ * channels, while a pool of workers decodes the terms.
+ *
+ * A request is a batch of ids: an int with the number of ids followed by the
+ * ids (longs). The response contains the same number of terms: for each of
+ * them an int with the length of the UTF-8 text (-1 if the id is unknown)
+ * followed by the text. Clients can send many requests without waiting: the
+ * responses are sent in the same order. Large batches are split between the
+ * workers.
+ */
+public class DictionaryServer implements Runnable {
+
+    static final Logger log = LoggerFactory.getLogger(DictionaryServer.class);
+
+    public static final int PORT = 4444;
+    public static final int MAX_BATCH = 1 << 20;
+    // Ids decoded by a worker in one task
+    static final int CHUNK = 1024;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final OnDiskDictionary dictionary;
+    private final int port;
+    private final int nWorkers;
+
+    private final BlockingQueue<Task> tasks = new LinkedBlockingQueue<Task>();
+    private final ConcurrentLinkedQueue<Connection> completed = new ConcurrentLinkedQueue<Connection>();
+    private Selector selector;
+
+    private static final class Connection {
+	final SocketChannel channel;
+	ByteBuffer in = ByteBuffer.allocate(8192);
+	long nextRequest = 0;
+	long nextResponse = 0;
+	// Responses that are ready, but follow one that is not
+	final Map<Long, ByteBuffer> ready = new HashMap<Long, ByteBuffer>();
+	final LinkedList<ByteBuffer> out = new LinkedList<ByteBuffer>();
+
+	Connection(SocketChannel channel) {
+	    this.channel = channel;
+	}
+
+	synchronized void complete(long seq, ByteBuffer response) {
+	    ready.put(seq, response);
+	    ByteBuffer b;
+	    while ((b = ready.remove(nextResponse)) != null) {
+		out.add(b);
+		nextResponse++;
+	    }
+	}
+
+	synchronized boolean hasOutput() {
+	    return !out.isEmpty();
+	}
+    }
+
+    private static final class Request {
+	final Connection connection;
+	final long seq;
+	final long[] ids;
+	final byte[][] text;
+	final AtomicInteger pending;
+
+	Request(Connection connection, long seq, long[] ids) {
+	    this.connection = connection;
+	    this.seq = seq;
+	    this.ids = ids;
+	    this.text = new byte[ids.length][];
+	    this.pending = new AtomicInteger((ids.length + CHUNK - 1) / CHUNK);
+	}
+
+	ByteBuffer encode() {
+	    int size = 4;
+	    for (byte[] t : text) {
+		size += 4 + (t == null ? 0 : t.length);
+	    }
+	    ByteBuffer b = ByteBuffer.allocate(size);
+	    b.putInt(text.length);
+	    for (byte[] t : text) {
+		if (t == null) {
+		    b.putInt(-1);
+		} else {
+		    b.putInt(t.length);
+		    b.put(t);
+		}
+	    }
+	    b.flip();
+	    return b;
+	}
+    }
+
+    private static final class Task {
+	final Request request;
+	final int start, end;
+
+	Task(Request request, int start, int end) {
+	    this.request = request;
+	    this.start = start;
+	    this.end = end;
+	}
+    }
+
+    public DictionaryServer(OnDiskDictionary dictionary, int port,
+	    int nWorkers) {
+	this.dictionary = dictionary;
+	this.port = port;
+	this.nWorkers = nWorkers;
+    }
+
+    private void work() {
+	while (true) {
+	    Task task;
+	    try {
+		task = tasks.take();
+	    } catch (InterruptedException e) {
+		return;
+	    }
+
+	    Request r = task.request;
+	    long[] ids = new long[task.end - task.start];
+	    System.arraycopy(r.ids, task.start, ids, 0, ids.length);
+	    String[] text = dictionary.getText(ids);
+	    for (int i = 0; i < text.length; ++i) {
+		if (text[i] != null) {
+		    r.text[task.start + i] = text[i].getBytes(UTF8);
+		}
+	    }
+
+	    if (r.pending.decrementAndGet() == 0) {
+		r.connection.complete(r.seq, r.encode());
+		completed.add(r.connection);
+		selector.wakeup();
+	    }
+	}
+    }
+
+    private void submit(Connection c, long[] ids) {
+	Request r = new Request(c, c.nextRequest++, ids);
+	if (ids.length == 0) {
+	    c.complete(r.seq, r.encode());
+	    return;
+	}
+	for (int i = 0; i < ids.length; i += CHUNK) {
+	    tasks.add(new Task(r, i, Math.min(ids.length, i + CHUNK)));
+	}
+    }
+
+    /**
+     * Parses the complete requests in the input buffer of the connection.
+     */
+    private void parse(Connection c) throws IOException {
+	ByteBuffer in = c.in;
+	in.flip();
+	while (in.remaining() >= 4) {
+	    int n = in.getInt(in.position());
+	    if (n < 0 || n > MAX_BATCH) {
+		throw new IOException("Invalid batch size " + n);
+	    }
+	    int size = 4 + n * 8;
+	    if (in.remaining() < size) {
+		if (in.capacity() < size) {
+		    ByteBuffer b = ByteBuffer.allocate(size);
+		    b.put(in);
+		    c.in = b;
+		    return;
+		}
+		break;
+	    }
+	    in.getInt();
+	    long[] ids = new long[n];
+	    for (int i = 0; i < n; ++i) {
+		ids[i] = in.getLong();
+	    }
+	    submit(c, ids);
+	}
+	in.compact();
+    }
+
+    private void close(SelectionKey key) {
+	key.cancel();
+	try {
+	    key.channel().close();
+	} catch (IOException e) {
+	}
+    }
+
+    private void write(SelectionKey key, Connection c) throws IOException {
+	synchronized (c) {
+	    while (!c.out.isEmpty()) {
+		ByteBuffer b = c.out.getFirst();
+		c.channel.write(b);
+		if (b.hasRemaining()) {
+		    break;
+		}
+		c.out.removeFirst();
+	    }
+	    key.interestOps(c.out.isEmpty() ? SelectionKey.OP_READ
+		    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+    }
+
+    @Override
+    public void run() {
+	ServerSocketChannel server = null;
+	try {
+	    selector = Selector.open();
+	    server = ServerSocketChannel.open();
+	    server.socket().bind(new InetSocketAddress(port));
+	    server.configureBlocking(false);
+	    server.register(selector, SelectionKey.OP_ACCEPT);
+
+	    for (int i = 0; i < nWorkers; ++i) {
+		ThreadPool.createNew(new Runnable() {
+		    @Override
+		    public void run() {
+			work();
+		    }
+		}, "Dictionary worker " + i);
+	    }
+	    log.info("Dictionary server listening on port " + port);
+
+	    while (true) {
+		selector.select();
+
+		// Responses completed by the workers
+		Connection done;
+		while ((done = completed.poll()) != null) {
+		    SelectionKey key = done.channel.keyFor(selector);
+		    if (key != null && key.isValid()) {
+			write(key, done);
+		    }
+		}
+
+		Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+		while (itr.hasNext()) {
+		    SelectionKey key = itr.next();
+		    itr.remove();
+		    if (!key.isValid()) {
+			continue;
+		    }
+		    try {
+			if (key.isAcceptable()) {
+			    SocketChannel channel = server.accept();
+			    if (channel != null) {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				channel.register(selector, SelectionKey.OP_READ,
+					new Connection(channel));
+			    }
+			    continue;
+			}
+
+			Connection c = (Connection) key.attachment();
+			if (key.isReadable()) {
+			    if (c.channel.read(c.in) == -1) {
+				close(key);
+				continue;
+			    }
+			    parse(c);
+			    if (c.hasOutput()) {
+				write(key, c);
+			    }
+			}
+			if (key.isValid() && key.isWritable()) {
+			    write(key, c);
+			}
+		    } catch (IOException e) {
+			log.warn("Closing the connection", e);
+			close(key);
+		    }
+		}
+	    }
+	} catch (IOException e) {
+	    log.error("Error in the dictionary server", e);
+	} finally {
+	    try {
+		if (server != null) {
+		    server.close();
+		}
+		if (selector != null) {
+		    selector.close();
+		}
+	    } catch (IOException e) {
+	    }
+	}
+    }
+}
@@ -1,5 +1,7 @@
 package nl.vu.cs.querypie.dictionary;
 
+import ibis.util.ThreadPool;
+
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
@@ -8,110 +10,317 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.vu.cs.querypie.utils.LoserTree;
 
+/**
+ * Sorts index.data on the hashes into index_sorted.data with an external
+ * merge sort. The entries (hash, offset, size) are read in batches that fit
+ * in the memory budget, every batch is split between the threads, which sort
+ * their part and write it in a run, and the runs are merged with a loser tree.
+ * The sort is stable, like the sort of the whole array that was used before,
+ * therefore the output does not change.
+ */
 public class DictionarySorter {
-	
-	private static class Index implements Comparable<Index> { 
-		long hash;
-		long offset;
-		int size;
-		
+
+	private static final int ENTRY_SIZE = 8 + 8 + 4;
+	// Bytes per entry in memory: the entry and the buffer of the merge sort
+	private static final int ENTRY_MEMORY = 2 * ENTRY_SIZE;
+	// Below this size the ranges are sorted by insertion
+	private static final int INSERTION_SORT = 32;
+	private static final int MIN_BUFFER = 4096;
+
+	public static final long DEFAULT_MEMORY = 256L << 20;
+
+	private static void insertionSort(long[] hash, long[] offset, int[] size,
+			int start, int end) {
+		for (int i = start + 1; i < end; ++i) {
+			long h = hash[i];
+			long o = offset[i];
+			int s = size[i];
+			int j = i - 1;
+			while (j >= start && hash[j] > h) {
+				hash[j + 1] = hash[j];
+				offset[j + 1] = offset[j];
+				size[j + 1] = size[j];
+				j--;
+			}
+			hash[j + 1] = h;
+			offset[j + 1] = o;
+			size[j + 1] = s;
+		}
+	}
+
+	/**
+	 * Stable merge sort of the entries in [start, end), using the same range
+	 * of the t* arrays as buffer.
+	 */
+	private static void mergeSort(long[] hash, long[] offset, int[] size,
+			long[] thash, long[] toffset, int[] tsize, int start, int end) {
+		if (end - start <= INSERTION_SORT) {
+			insertionSort(hash, offset, size, start, end);
+			return;
+		}
+		int mid = (start + end) >>> 1;
+		mergeSort(hash, offset, size, thash, toffset, tsize, start, mid);
+		mergeSort(hash, offset, size, thash, toffset, tsize, mid, end);
+		if (hash[mid - 1] <= hash[mid]) {
+			return;
+		}
+
+		System.arraycopy(hash, start, thash, start, end - start);
+		System.arraycopy(offset, start, toffset, start, end - start);
+		System.arraycopy(size, start, tsize, start, end - start);
+		int i = start, j = mid, k = start;
+		while (i < mid && j < end) {
+			// On equal hashes the first half wins
+			int src = thash[j] < thash[i] ? j++ : i++;
+			hash[k] = thash[src];
+			offset[k] = toffset[src];
+			size[k++] = tsize[src];
+		}
+		while (i < mid) {
+			hash[k] = thash[i];
+			offset[k] = toffset[i];
+			size[k++] = tsize[i++];
+		}
+		while (j < end) {
+			hash[k] = thash[j];
+			offset[k] = toffset[j];
+			size[k++] = tsize[j++];
+		}
+	}
+
+	private static void writeRun(File file, long[] hash, long[] offset,
+			int[] size, int start, int end) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			for (int i = start; i < end; ++i) {
+				out.writeLong(hash[i]);
+				out.writeLong(offset[i]);
+				out.writeInt(size[i]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Sorts the slices of the batch in parallel and writes every slice in a
+	 * run.
+	 */
+	private static void sortBatch(final long[] hash, final long[] offset,
+			final int[] size, final long[] thash, final long[] toffset,
+			final int[] tsize, int n, int nThreads, final List<File> runs,
+			String dir) throws IOException {
+		int slices = Math.max(1, Math.min(nThreads, n / INSERTION_SORT));
+		final File[] files = new File[slices];
+		final IOException[] errors = new IOException[slices];
+		final int[] pending = new int[] { slices };
+		for (int i = 0; i < slices; ++i) {
+			final int start = (int) ((long) n * i / slices);
+			final int end = (int) ((long) n * (i + 1) / slices);
+			final int slice = i;
+			files[i] = new File(dir, "index.data.run" + (runs.size() + i));
+			ThreadPool.createNew(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						mergeSort(hash, offset, size, thash, toffset, tsize,
+								start, end);
+						writeRun(files[slice], hash, offset, size, start, end);
+					} catch (IOException e) {
+						errors[slice] = e;
+					} finally {
+						synchronized (pending) {
+							pending[0]--;
+							pending.notify();
+						}
+					}
+				}
+			}, "Dictionary sorter " + i);
+		}
+
+		synchronized (pending) {
+			while (pending[0] > 0) {
+				try {
+					pending.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+		for (int i = 0; i < slices; ++i) {
+			runs.add(files[i]);
+			if (errors[i] != null) {
+				throw errors[i];
+			}
+		}
+	}
+
+	private static final class Merger extends LoserTree {
+		final DataInputStream[] in;
+		final long[] hash;
+		final long[] offset;
+		final int[] size;
+		final long[] remaining;
+		final boolean[] done;
+
+		Merger(List<File> runs, int bufferSize) throws IOException {
+			super(runs.size());
+			int k = runs.size();
+			in = new DataInputStream[k];
+			hash = new long[k];
+			offset = new long[k];
+			size = new int[k];
+			remaining = new long[k];
+			done = new boolean[k];
+			for (int i = 0; i < k; ++i) {
+				remaining[i] = runs.get(i).length() / ENTRY_SIZE;
+				in[i] = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(runs.get(i)), bufferSize));
+				next(i);
+			}
+			init();
+		}
+
+		void next(int run) throws IOException {
+			if (remaining[run]-- == 0) {
+				done[run] = true;
+				in[run].close();
+				return;
+			}
+			hash[run] = in[run].readLong();
+			offset[run] = in[run].readLong();
+			size[run] = in[run].readInt();
+		}
+
 		@Override
-		public int compareTo(Index o) {
-		
-			if (hash < o.hash) { 
-				return -1;
+		protected boolean less(int a, int b) {
+			if (done[a]) {
+				return false;
 			}
-			
-			if (hash > o.hash) { 
-				return 1;
+			if (done[b]) {
+				return true;
+			}
+			// On equal hashes the earlier run wins, to keep the sort stable
+			return hash[a] < hash[b] || (hash[a] == hash[b] && a < b);
+		}
+
+		void close() throws IOException {
+			for (int i = 0; i < in.length; ++i) {
+				if (!done[i]) {
+					in[i].close();
+				}
 			}
-			
-			return 0;
 		}
 	}
-	
-	private static void sort(String dir) throws IOException { 
+
+	public static void sort(String dir, long memory, int nThreads)
+			throws IOException {
 
 		File f = new File(dir + File.separator + "index.data");
-		
-		long count = f.length() / (8+8+4);
-		
+
+		long count = f.length() / ENTRY_SIZE;
+
 		System.out.println("File contains " + count + " entries");
-		
-		System.out.println("Creating array[" + count + "]");
-		
-		Index [] data = new Index[(int)count];
-		
-		System.out.println("Reading data");
-		
+
+		int batch = (int) Math.max(INSERTION_SORT,
+				Math.min(count, Math.min(memory / ENTRY_MEMORY,
+						Integer.MAX_VALUE - 8)));
+		System.out.println("Sorting runs of " + batch + " entries with "
+				+ nThreads + " threads");
+
 		long start = System.currentTimeMillis();
-		
-		DataInputStream in = new DataInputStream(
-				new BufferedInputStream(
-						new FileInputStream(f)));
-
-		for (int i=0;i<count;i++) { 
-	
-			Index tmp = new Index();
-			tmp.hash = in.readLong();
-			tmp.offset = in.readLong();
-			tmp.size = in.readInt();
-			
-			data[i] = tmp;
-			
-			if (i % 1000000 == 0) { 
-				System.out.println("Read " + i);
+
+		List<File> runs = new ArrayList<File>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(f)));
+		try {
+			long[] hash = new long[batch];
+			long[] offset = new long[batch];
+			int[] size = new int[batch];
+			long[] thash = new long[batch];
+			long[] toffset = new long[batch];
+			int[] tsize = new int[batch];
+
+			long read = 0;
+			while (read < count) {
+				int n = (int) Math.min(batch, count - read);
+				for (int i = 0; i < n; i++) {
+					hash[i] = in.readLong();
+					offset[i] = in.readLong();
+					size[i] = in.readInt();
+				}
+				read += n;
+				sortBatch(hash, offset, size, thash, toffset, tsize, n,
+						nThreads, runs, dir);
+				System.out.println("Sorted " + read + " entries");
 			}
-			
+		} finally {
+			in.close();
 		}
-		
-		in.close();
 
 		long end = System.currentTimeMillis();
-		
-		System.out.println("Read " + count + " entries " + (end-start));
-		
-		System.out.println("Sorting");
+		System.out.println("Written " + runs.size() + " runs in "
+				+ (end - start) + " ms " + throughput(count, end - start));
+
+		System.out.println("Merging");
 
 		start = System.currentTimeMillis();
-		
-		Arrays.sort(data);
-		
-		end = System.currentTimeMillis();
-		
-		System.out.println("Done sorting " + (end-start));
-		
-		System.out.println("Writing");
-		
-		start = System.currentTimeMillis();
-		
-		DataOutputStream out = new DataOutputStream(
-				new BufferedOutputStream(
-				new FileOutputStream(dir + File.separator + "index_sorted.data")));
-
-		for (int i=0;i<count;i++) { 
-	
-			Index tmp = data[i];
-			
-			out.writeLong(tmp.hash);
-			out.writeLong(tmp.offset);
-			out.writeInt(tmp.size);
-		}
-		
-		out.close();
-		
+
+		int bufferSize = (int) Math.max(MIN_BUFFER,
+				Math.min(1 << 20, memory / Math.max(1, runs.size() + 1)));
+		Merger merger = new Merger(runs, bufferSize);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(dir + File.separator
+						+ "index_sorted.data"), bufferSize));
+		try {
+			for (long i = 0; i < count; i++) {
+				int r = merger.top();
+				out.writeLong(merger.hash[r]);
+				out.writeLong(merger.offset[r]);
+				out.writeInt(merger.size[r]);
+				merger.next(r);
+				merger.replay();
+			}
+		} finally {
+			out.close();
+			merger.close();
+			for (File run : runs) {
+				run.delete();
+			}
+		}
+
 		end = System.currentTimeMillis();
-		
-		System.out.println("Done " + (end-start));
+
+		System.out.println("Done merging in " + (end - start) + " ms "
+				+ throughput(count, end - start));
+	}
+
+	private static String throughput(long count, long ms) {
+		double s = Math.max(ms, 1) / 1000.0;
+		return String.format("(%.0f entries/s, %.1f MB/s)", count / s, count
+				* ENTRY_SIZE / s / (1 << 20));
 	}
 
 	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out
+					.println("Usage: DictionarySorter <dir> [memory (MB)] [threads]");
+			return;
+		}
+		long memory = args.length > 1 ? Long.valueOf(args[1]) << 20
+				: DEFAULT_MEMORY;
+		int nThreads = args.length > 2 ? Integer.valueOf(args[2]) : Runtime
+				.getRuntime().availableProcessors();
 
-		// Load the dictionary and serve requests
-		System.out.println("Loading dictionary ...");
-		sort(args[0]);
-		System.out.println("done ...");
+		System.out.println("Sorting dictionary ...");
+		long start = System.currentTimeMillis();
+		sort(args[0], memory, nThreads);
+		System.out.println("done in " + (System.currentTimeMillis() - start)
+				+ " ms");
 	}
 }
@@ -0,0 +1,290 @@
+package nl.vu.cs.querypie.dictionary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dictionary stored in three columns that are memory mapped when it is opened:
+ * the sorted ids, the offsets of the strings (one more than the ids) and the
+ * heap with the strings, stored in the order of the ids. The ids are hashes,
+ * therefore they are found with an interpolation search. The strings are
+ * decoded directly from the mapped heap.
+ *
+ * The buffers are read only with absolute positions, so the dictionary can be
+ * used by concurrent readers.
+ *
+ * The columns are created from index_sorted.data and text.data with
+ * "MappedDictionary dictDir".
+ */
+public class MappedDictionary {
+
+    static final Logger log = LoggerFactory.getLogger(MappedDictionary.class);
+
+    public static final String IDS_FILE = "ids.map";
+    public static final String OFFSETS_FILE = "offsets.map";
+    public static final String STRINGS_FILE = "strings.map";
+
+    // A mapped buffer cannot be larger than 2GB
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    // Steps of interpolation before falling back to bisection
+    private static final int MAX_INTERPOLATIONS = 16;
+
+    private static final Charset charset = Charset.defaultCharset();
+
+    private static final ThreadLocal<CharsetDecoder> decoders = new ThreadLocal<CharsetDecoder>() {
+	@Override
+	protected CharsetDecoder initialValue() {
+	    return charset.newDecoder()
+		    .onMalformedInput(CodingErrorAction.REPLACE)
+		    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+    };
+
+    private final ByteBuffer[] ids;
+    private final ByteBuffer[] offsets;
+    private final ByteBuffer[] strings;
+    private final long count;
+
+    public MappedDictionary(String dir) throws IOException {
+	ids = map(new File(dir, IDS_FILE));
+	offsets = map(new File(dir, OFFSETS_FILE));
+	strings = map(new File(dir, STRINGS_FILE));
+	count = size(ids) / 8;
+	if (size(offsets) != (count + 1) * 8) {
+	    throw new IOException("The columns of the dictionary in " + dir
+		    + " do not match");
+	}
+    }
+
+    public static boolean exists(String dir) {
+	return new File(dir, IDS_FILE).exists()
+		&& new File(dir, OFFSETS_FILE).exists()
+		&& new File(dir, STRINGS_FILE).exists();
+    }
+
+    static ByteBuffer[] map(File file) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    FileChannel channel = raf.getChannel();
+	    long size = channel.size();
+	    ByteBuffer[] segments = new ByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+	    for (int i = 0; i < segments.length; ++i) {
+		long start = (long) i << SEGMENT_BITS;
+		segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+			Math.min(SEGMENT_SIZE, size - start));
+	    }
+	    return segments;
+	} finally {
+	    // The mapping stays valid
+	    raf.close();
+	}
+    }
+
+    static long size(ByteBuffer[] segments) {
+	if (segments.length == 0) {
+	    return 0;
+	}
+	return ((long) (segments.length - 1) << SEGMENT_BITS)
+		+ segments[segments.length - 1].capacity();
+    }
+
+    // The segments are a multiple of 8 bytes, so a long is never split
+    static long getLong(ByteBuffer[] segments, long index) {
+	long pos = index << 3;
+	return segments[(int) (pos >>> SEGMENT_BITS)]
+		.getLong((int) (pos & SEGMENT_MASK));
+    }
+
+    static void get(ByteBuffer[] segments, long pos, byte[] dst,
+	    int len) {
+	for (int i = 0; i < len; ++i, ++pos) {
+	    dst[i] = segments[(int) (pos >>> SEGMENT_BITS)]
+		    .get((int) (pos & SEGMENT_MASK));
+	}
+    }
+
+    public long size() {
+	return count;
+    }
+
+    public long getId(long index) {
+	return getLong(ids, index);
+    }
+
+    /**
+     * Returns the position of the id, or -1 if it is not in the dictionary.
+     */
+    public long indexOf(long id) {
+	return search(ids, 3, count, id);
+    }
+
+    /**
+     * Interpolation search of a key among count sorted records of 1 << shift
+     * bytes, which start with the key. Returns the position of one record
+     * with the key, or -1.
+     */
+    static long search(ByteBuffer[] segments, int shift, long count, long key) {
+	long lo = 0;
+	long hi = count - 1;
+	int steps = 0;
+	while (lo <= hi) {
+	    long vlo = getKey(segments, shift, lo);
+	    long vhi = getKey(segments, shift, hi);
+	    if (key < vlo || key > vhi) {
+		return -1;
+	    }
+
+	    long mid;
+	    if (vlo == vhi) {
+		mid = lo;
+	    } else if (steps++ < MAX_INTERPOLATIONS) {
+		double fraction = ((double) key - (double) vlo)
+			/ ((double) vhi - (double) vlo);
+		mid = lo + (long) (fraction * (hi - lo));
+		if (mid < lo) {
+		    mid = lo;
+		} else if (mid > hi) {
+		    mid = hi;
+		}
+	    } else {
+		mid = (lo + hi) >>> 1;
+	    }
+
+	    long v = getKey(segments, shift, mid);
+	    if (v == key) {
+		return mid;
+	    } else if (v < key) {
+		lo = mid + 1;
+	    } else {
+		hi = mid - 1;
+	    }
+	}
+	return -1;
+    }
+
+    static long getKey(ByteBuffer[] segments, int shift, long index) {
+	return getLong(segments, (index << shift) >>> 3);
+    }
+
+    /**
+     * Returns the text of the string at the position, decoded from the heap.
+     */
+    public String getString(long index) throws CharacterCodingException {
+	long start = getLong(offsets, index);
+	long end = getLong(offsets, index + 1);
+	if (start == end) {
+	    return "";
+	}
+	int segment = (int) (start >>> SEGMENT_BITS);
+	if (segment == (int) ((end - 1) >>> SEGMENT_BITS)) {
+	    ByteBuffer b = strings[segment].duplicate();
+	    int pos = (int) (start & SEGMENT_MASK);
+	    b.limit(pos + (int) (end - start));
+	    b.position(pos);
+	    return decoders.get().decode(b).toString();
+	} else {
+	    // The string is split between two segments
+	    byte[] b = new byte[(int) (end - start)];
+	    get(strings, start, b, b.length);
+	    return new String(b, charset);
+	}
+    }
+
+    /**
+     * Returns the text of the id, or null if it is not in the dictionary.
+     */
+    public String get(long id) throws CharacterCodingException {
+	long index = indexOf(id);
+	return index == -1 ? null : getString(index);
+    }
+
+    /**
+     * Creates the columns from the sorted index and the text of the
+     * dictionary in dir.
+     */
+    public static void convert(String dir) throws IOException {
+	File index = new File(dir, "index_sorted.data");
+	long count = index.length() / (8 + 8 + 4);
+	log.info("Converting " + count + " entries ...");
+	long start = System.currentTimeMillis();
+
+	ByteBuffer[] text = map(new File(dir, "text.data"));
+	DataInputStream in = new DataInputStream(new BufferedInputStream(
+		new FileInputStream(index)));
+	DataOutputStream outIds = new DataOutputStream(
+		new BufferedOutputStream(new FileOutputStream(new File(dir,
+			IDS_FILE))));
+	DataOutputStream outOffsets = new DataOutputStream(
+		new BufferedOutputStream(new FileOutputStream(new File(dir,
+			OFFSETS_FILE))));
+	BufferedOutputStream outStrings = new BufferedOutputStream(
+		new FileOutputStream(new File(dir, STRINGS_FILE)));
+	try {
+	    long offset = 0;
+	    long previous = 0;
+	    byte[] buffer = new byte[1024];
+	    for (long i = 0; i < count; i++) {
+		long id = in.readLong();
+		long off = in.readLong();
+		int len = in.readInt();
+		if (i > 0 && id <= previous) {
+		    if (id == previous) {
+			continue;
+		    }
+		    throw new IOException("The index is not sorted at entry "
+			    + i);
+		}
+		previous = id;
+
+		if (buffer.length < len) {
+		    buffer = new byte[len];
+		}
+		get(text, off, buffer, len);
+		outStrings.write(buffer, 0, len);
+
+		outIds.writeLong(id);
+		outOffsets.writeLong(offset);
+		offset += len;
+
+		if (i % 10000000 == 0) {
+		    log.info("Converted " + i);
+		}
+	    }
+	    outOffsets.writeLong(offset);
+	} finally {
+	    in.close();
+	    outIds.close();
+	    outOffsets.close();
+	    outStrings.close();
+	}
+
+	log.info("Done in " + (System.currentTimeMillis() - start));
+    }
+
+    public static void main(String[] args) throws IOException {
+	if (args.length != 1) {
+	    System.out.println("Usage: MappedDictionary <dictionary dir>");
+	    return;
+	}
+	convert(args[0]);
+    }
+}
@@ -0,0 +1,305 @@
+package nl.vu.cs.querypie.dictionary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index from the text of the terms to their ids. It is a table of records
+ * (hash of the text, id, offset and length of the text in text.data) sorted
+ * by hash, which is memory mapped and searched by interpolation. The text of
+ * the candidates is compared with the term, so collisions of the hashes do
+ * not return wrong ids. The recent lookups are kept in an LRU cache.
+ *
+ * The index is built from index_sorted.data and text.data with
+ * "TermIndex dictDir".
+ */
+public class TermIndex {
+
+    static final Logger log = LoggerFactory.getLogger(TermIndex.class);
+
+    public static final String INDEX_FILE = "terms.map";
+    public static final int CACHE_SIZE = 65536;
+    // Records sorted in memory before they are written in a run
+    public static final int RUN_SIZE = 1 << 22;
+
+    private static final int SHIFT = 5; // Records of 4 longs
+    private static final long NOT_FOUND = Long.MIN_VALUE;
+
+    private static final Charset charset = Charset.defaultCharset();
+
+    private final ByteBuffer[] index;
+    private final ByteBuffer[] text;
+    private final long count;
+
+    private final Map<String, Long> cache = new LinkedHashMap<String, Long>(
+	    1024, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+	    return size() > CACHE_SIZE;
+	}
+    };
+
+    public TermIndex(String dir) throws IOException {
+	index = MappedDictionary.map(new File(dir, INDEX_FILE));
+	text = MappedDictionary.map(new File(dir, "text.data"));
+	count = MappedDictionary.size(index) >>> SHIFT;
+    }
+
+    public static boolean exists(String dir) {
+	return new File(dir, INDEX_FILE).exists();
+    }
+
+    /**
+     * 64-bit FNV-1a, followed by the finalizer of MurmurHash3 so that the
+     * hashes are uniform enough for the interpolation search.
+     */
+    static long hash(byte[] b, int len) {
+	long h = 0xcbf29ce484222325L;
+	for (int i = 0; i < len; ++i) {
+	    h ^= b[i] & 0xff;
+	    h *= 0x100000001b3L;
+	}
+	h ^= h >>> 33;
+	h *= 0xff51afd7ed558ccdL;
+	h ^= h >>> 33;
+	h *= 0xc4ceb9fe1a85ec53L;
+	h ^= h >>> 33;
+	return h;
+    }
+
+    private boolean equals(long record, byte[] term) {
+	long pos = record << 2;
+	if (MappedDictionary.getLong(index, pos + 3) != term.length) {
+	    return false;
+	}
+	long offset = MappedDictionary.getLong(index, pos + 2);
+	byte[] b = new byte[term.length];
+	MappedDictionary.get(text, offset, b, b.length);
+	for (int i = 0; i < b.length; ++i) {
+	    if (b[i] != term[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private long search(String term) {
+	byte[] b = term.getBytes(charset);
+	long h = hash(b, b.length);
+	long r = MappedDictionary.search(index, SHIFT, count, h);
+	if (r == -1) {
+	    return NOT_FOUND;
+	}
+
+	// Check all the records with the same hash
+	while (r > 0 && MappedDictionary.getKey(index, SHIFT, r - 1) == h) {
+	    r--;
+	}
+	for (; r < count && MappedDictionary.getKey(index, SHIFT, r) == h; ++r) {
+	    if (equals(r, b)) {
+		return MappedDictionary.getLong(index, (r << 2) + 1);
+	    }
+	}
+	return NOT_FOUND;
+    }
+
+    /**
+     * Returns the id of the term (e.g. <http://...>), or null if it is not in
+     * the dictionary.
+     */
+    public Long getId(String term) {
+	Long id;
+	synchronized (cache) {
+	    id = cache.get(term);
+	}
+	if (id == null) {
+	    id = search(term);
+	    synchronized (cache) {
+		cache.put(term, id);
+	    }
+	}
+	return id == NOT_FOUND ? null : id;
+    }
+
+    private static void swap(long[] records, int i, int j) {
+	for (int k = 0; k < 4; ++k) {
+	    long t = records[i * 4 + k];
+	    records[i * 4 + k] = records[j * 4 + k];
+	    records[j * 4 + k] = t;
+	}
+    }
+
+    // Quicksort of the records on the hash
+    private static void sort(long[] records, int lo, int hi) {
+	while (hi - lo > 0) {
+	    long pivot = records[((lo + hi) >>> 1) * 4];
+	    int i = lo, j = hi;
+	    while (i <= j) {
+		while (records[i * 4] < pivot) {
+		    i++;
+		}
+		while (records[j * 4] > pivot) {
+		    j--;
+		}
+		if (i <= j) {
+		    swap(records, i++, j--);
+		}
+	    }
+	    // Recurse on the smaller part
+	    if (j - lo < hi - i) {
+		sort(records, lo, j);
+		lo = i;
+	    } else {
+		sort(records, i, hi);
+		hi = j;
+	    }
+	}
+    }
+
+    private static File writeRun(String dir, long[] records, int n, int id)
+	    throws IOException {
+	sort(records, 0, n - 1);
+	File file = new File(dir, INDEX_FILE + ".run" + id);
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+		new FileOutputStream(file)));
+	try {
+	    for (int i = 0; i < n * 4; ++i) {
+		out.writeLong(records[i]);
+	    }
+	} finally {
+	    out.close();
+	}
+	return file;
+    }
+
+    private static final class Run implements Comparable<Run> {
+	final DataInputStream in;
+	final long[] record = new long[4];
+
+	Run(File file) throws IOException {
+	    in = new DataInputStream(new BufferedInputStream(
+		    new FileInputStream(file)));
+	}
+
+	boolean next() throws IOException {
+	    try {
+		for (int i = 0; i < 4; ++i) {
+		    record[i] = in.readLong();
+		}
+		return true;
+	    } catch (EOFException e) {
+		in.close();
+		return false;
+	    }
+	}
+
+	@Override
+	public int compareTo(Run o) {
+	    return record[0] < o.record[0] ? -1
+		    : (record[0] > o.record[0] ? 1 : 0);
+	}
+    }
+
+    /**
+     * Builds the index of the dictionary in dir. The records are sorted in
+     * runs of RUN_SIZE, which are then merged.
+     */
+    public static void build(String dir) throws IOException {
+	File f = new File(dir, "index_sorted.data");
+	long n = f.length() / (8 + 8 + 4);
+	log.info("Indexing " + n + " terms ...");
+	long start = System.currentTimeMillis();
+
+	ByteBuffer[] text = MappedDictionary.map(new File(dir, "text.data"));
+	DataInputStream in = new DataInputStream(new BufferedInputStream(
+		new FileInputStream(f)));
+	List<File> runs = new ArrayList<File>();
+	try {
+	    long[] records = new long[(int) Math.min(n, RUN_SIZE) * 4];
+	    byte[] buffer = new byte[1024];
+	    int size = 0;
+	    for (long i = 0; i < n; ++i) {
+		long id = in.readLong();
+		long offset = in.readLong();
+		int len = in.readInt();
+		if (buffer.length < len) {
+		    buffer = new byte[len];
+		}
+		MappedDictionary.get(text, offset, buffer, len);
+
+		records[size * 4] = hash(buffer, len);
+		records[size * 4 + 1] = id;
+		records[size * 4 + 2] = offset;
+		records[size * 4 + 3] = len;
+		if (++size == RUN_SIZE) {
+		    runs.add(writeRun(dir, records, size, runs.size()));
+		    size = 0;
+		}
+	    }
+	    if (size > 0) {
+		runs.add(writeRun(dir, records, size, runs.size()));
+	    }
+	} finally {
+	    in.close();
+	}
+	log.info("Sorted " + runs.size() + " runs in "
+		+ (System.currentTimeMillis() - start));
+
+	// Merge the runs
+	PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1,
+		runs.size()));
+	for (File run : runs) {
+	    Run r = new Run(run);
+	    if (r.next()) {
+		queue.add(r);
+	    }
+	}
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+		new FileOutputStream(new File(dir, INDEX_FILE))));
+	try {
+	    while (!queue.isEmpty()) {
+		Run r = queue.poll();
+		for (int i = 0; i < 4; ++i) {
+		    out.writeLong(r.record[i]);
+		}
+		if (r.next()) {
+		    queue.add(r);
+		}
+	    }
+	} finally {
+	    out.close();
+	}
+	for (File run : runs) {
+	    run.delete();
+	}
+
+	log.info("Done in " + (System.currentTimeMillis() - start));
+    }
+
+    public static void main(String[] args) throws IOException {
+	if (args.length != 1) {
+	    System.out.println("Usage: TermIndex <dictionary dir>");
+	    return;
+	}
+	build(args[0]);
+    }
+}
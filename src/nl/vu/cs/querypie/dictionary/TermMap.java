@@ -0,0 +1,41 @@
+package nl.vu.cs.querypie.dictionary;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only map from the text of the terms to their ids. The terms in the
+ * fixed map (the cache of URLs and the schema terms) are returned first, the
+ * others are looked up in the index of the dictionary. Only the fixed terms
+ * are enumerated.
+ */
+public class TermMap extends AbstractMap<String, Long> {
+
+    private final Map<String, Long> fixed;
+    private final TermIndex index;
+
+    public TermMap(Map<String, Long> fixed, TermIndex index) {
+	this.fixed = fixed;
+	this.index = index;
+    }
+
+    @Override
+    public Long get(Object key) {
+	Long id = fixed.get(key);
+	if (id == null && key instanceof String) {
+	    id = index.getId((String) key);
+	}
+	return id;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+	return get(key) != null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Long>> entrySet() {
+	return fixed.entrySet();
+    }
+}
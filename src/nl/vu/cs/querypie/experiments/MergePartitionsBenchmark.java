@@ -0,0 +1,156 @@
+package nl.vu.cs.querypie.experiments;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import nl.vu.cs.querypie.storage.disk.BlockTripleFile;
+import nl.vu.cs.querypie.storage.disk.MergePartitions;
+import nl.vu.cs.querypie.storage.disk.TripleFile;
+
+/**
+ * Measures MergePartitions on 64 to 512 partitions of random sorted triples,
+ * against a merge with a TreeSet of the streams as it was done before. The
+ * partitions are written with BlockTripleFile in a temporary directory, so
+ * that the decoding of the files costs little compared to the merge.
+ *
+ * Usage: MergePartitionsBenchmark [triples per partition] [iterations]
+ */
+public class MergePartitionsBenchmark {
+
+	private static class Stream {
+		final TripleFile file;
+		final int id;
+		final long[] head = new long[3];
+
+		Stream(TripleFile file, int id) {
+			this.file = file;
+			this.id = id;
+		}
+
+		boolean next() {
+			if (!file.next()) {
+				file.close();
+				return false;
+			}
+			head[0] = file.getFirstTerm();
+			head[1] = file.getSecondTerm();
+			head[2] = file.getThirdTerm();
+			return true;
+		}
+	}
+
+	private static final Comparator<Stream> comparator = new Comparator<Stream>() {
+		@Override
+		public int compare(Stream o1, Stream o2) {
+			for (int i = 0; i < 3; ++i) {
+				if (o1.head[i] != o2.head[i]) {
+					return o1.head[i] < o2.head[i] ? -1 : 1;
+				}
+			}
+			return o1.id - o2.id;
+		}
+	};
+
+	private static long treeSetMerge(TripleFile[] files) {
+		TreeSet<Stream> set = new TreeSet<Stream>(comparator);
+		for (int i = 0; i < files.length; ++i) {
+			Stream s = new Stream(files[i], i);
+			files[i].open();
+			if (s.next()) {
+				set.add(s);
+			}
+		}
+		long sum = 0;
+		Stream s;
+		while ((s = set.pollFirst()) != null) {
+			sum = sum * 31 + s.head[0] + s.head[1] + s.head[2];
+			if (s.next()) {
+				set.add(s);
+			}
+		}
+		return sum;
+	}
+
+	private static long loserTreeMerge(TripleFile[] files) {
+		MergePartitions merge = new MergePartitions();
+		merge.init(0, files.length, 1, files, false, null);
+		long sum = 0;
+		while (merge.hasNext()) {
+			long[] t = merge.next();
+			sum = sum * 31 + t[0] + t[1] + t[2];
+		}
+		return sum;
+	}
+
+	private static TripleFile[] write(File dir, int k, int triples, Random r) {
+		TripleFile[] files = new TripleFile[k];
+		long[][] t = new long[triples][3];
+		for (int i = 0; i < k; ++i) {
+			for (long[] triple : t) {
+				triple[0] = r.nextInt(1 << 20);
+				triple[1] = r.nextInt(64);
+				triple[2] = r.nextLong();
+			}
+			Arrays.sort(t, new Comparator<long[]>() {
+				@Override
+				public int compare(long[] o1, long[] o2) {
+					for (int j = 0; j < 3; ++j) {
+						if (o1[j] != o2[j]) {
+							return o1[j] < o2[j] ? -1 : 1;
+						}
+					}
+					return 0;
+				}
+			});
+			files[i] = new BlockTripleFile(new File(dir, String.format(
+					"part-%05d_0", i)).getPath());
+			files[i].openToWrite();
+			for (long[] triple : t) {
+				files[i].write(triple[0], triple[1], triple[2]);
+			}
+			files[i].close();
+		}
+		return files;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int triples = args.length > 0 ? Integer.valueOf(args[0]) : 20000;
+		int iterations = args.length > 1 ? Integer.valueOf(args[1]) : 3;
+
+		Random r = new Random(0);
+		for (int k = 64; k <= 512; k *= 2) {
+			File dir = File.createTempFile("partitions", "");
+			dir.delete();
+			dir.mkdirs();
+			TripleFile[] files = write(dir, k, triples, r);
+			long total = (long) k * triples;
+
+			long best1 = Long.MAX_VALUE, best2 = Long.MAX_VALUE;
+			for (int i = 0; i < iterations; ++i) {
+				long time = System.nanoTime();
+				long sum1 = treeSetMerge(files);
+				best1 = Math.min(best1, System.nanoTime() - time);
+
+				time = System.nanoTime();
+				long sum2 = loserTreeMerge(files.clone());
+				best2 = Math.min(best2, System.nanoTime() - time);
+
+				if (sum1 != sum2) {
+					System.out.println(k + " streams: the merges differ");
+				}
+			}
+			System.out.println(String.format(
+					"%d streams, %d triples: TreeSet %.1f Mtriples/s, "
+							+ "loser tree %.1f Mtriples/s", k, total, total
+							/ (best1 / 1e3), total / (best2 / 1e3)));
+
+			for (TripleFile f : files) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+}
@@ -1,26 +1,42 @@
 package nl.vu.cs.querypie.experiments;
 
-import nl.vu.cs.ajira.data.types.TLong;
-import nl.vu.cs.querypie.Query;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.vu.cs.querypie.dictionary.DictionaryClient;
 
 public class QueryDict {
 
     public static void main(String[] args) throws Exception {
 	if (args.length == 0 || args[0].equals("--help")) {
-	    System.out.println("Usage: term [-d dictionaryHost]");
+	    System.out.println("Usage: term [term ...] [-d dictionaryHost]");
 	    return;
 	}
 
-	String term = args[0];
-	Query q = new Query();
-	q.dictionaryHost = "localhost";
+	String host = "localhost";
+	List<Long> terms = new ArrayList<Long>();
+	for (int i = 0; i < args.length; ++i) {
+	    if (args[i].equals("-d")) {
+		host = args[++i];
+	    } else {
+		terms.add(Long.valueOf(args[i]));
+	    }
+	}
+
+	long[] req = new long[terms.size()];
+	for (int i = 0; i < req.length; ++i) {
+	    req[i] = terms.get(i);
+	}
 
-	TLong[] req = new TLong[1];
-	req[0] = new TLong();
-	req[0].setValue(Long.valueOf(term));
-	String[] res = q.getText(req);
-	for (String r : res) {
-	    System.out.println(r);
+	// All the terms are sent in one batch
+	DictionaryClient client = new DictionaryClient(host);
+	try {
+	    String[] res = client.getText(req);
+	    for (String r : res) {
+		System.out.println(r);
+	    }
+	} finally {
+	    client.close();
 	}
     }
 }
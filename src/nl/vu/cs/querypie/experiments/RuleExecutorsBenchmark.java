@@ -0,0 +1,128 @@
+package nl.vu.cs.querypie.experiments;
+
+import nl.vu.cs.ajira.actions.ActionOutput;
+import nl.vu.cs.ajira.actions.ActionSequence;
+import nl.vu.cs.ajira.data.types.SimpleData;
+import nl.vu.cs.ajira.data.types.Tuple;
+import nl.vu.cs.ajira.utils.Configuration;
+import nl.vu.cs.querypie.reasoner.Ruleset;
+import nl.vu.cs.querypie.reasoner.rules.Rule1;
+import nl.vu.cs.querypie.reasoner.rules.Rule2;
+import nl.vu.cs.querypie.reasoner.rules.Rule3;
+import nl.vu.cs.querypie.reasoner.rules.Rule4;
+import nl.vu.cs.querypie.reasoner.rules.executors.CompiledRule;
+import nl.vu.cs.querypie.reasoner.rules.executors.RuleExecutor1;
+import nl.vu.cs.querypie.storage.Schema;
+import nl.vu.cs.querypie.storage.disk.FilesInterface;
+import nl.vu.cs.querypie.storage.disk.PlainTripleFile;
+
+/**
+ * Compares the compiled executors of the rules with the interpreter. Every
+ * rule without generic patterns is compiled and executed with its most general
+ * head, as during the computation of the closure, and the derivations are
+ * counted. The rules with generic patterns are not compiled, and are only
+ * listed.
+ *
+ * Run it with -Drules.list=<ruleset file> on the output of the closure (for
+ * example LUBM).
+ */
+public class RuleExecutorsBenchmark {
+
+	private static class CountOutput implements ActionOutput {
+		long count;
+
+		@Override
+		public void output(SimpleData... data) throws Exception {
+			count++;
+		}
+
+		@Override
+		public void output(Tuple tuple) throws Exception {
+			count++;
+		}
+
+		@Override
+		public void branch(ActionSequence actions) throws Exception {
+		}
+
+		@Override
+		public ActionOutput split(int reconnectAt, ActionSequence actions)
+				throws Exception {
+			return this;
+		}
+	}
+
+	private static long run(Rule1 rule, CompiledRule compiled, int iterations,
+			CountOutput output) throws Exception {
+		RuleExecutor1 executor = new RuleExecutor1();
+		executor.init(rule, compiled, rule.HEAD.p[0].getValue(),
+				rule.HEAD.p[1].getValue(), rule.HEAD.p[2].getValue());
+		long time = System.nanoTime();
+		for (int i = 0; i < iterations; ++i) {
+			executor.process(null, null, output);
+		}
+		return System.nanoTime() - time;
+	}
+
+	private static void benchmark(Rule1 rule, CompiledRule compiled,
+			int iterations) throws Exception {
+		if (compiled == null) {
+			System.out.println("Rule " + rule.type + "-" + rule.id
+					+ ": not compiled");
+			return;
+		}
+
+		// Warm up both paths
+		CountOutput interpreted = new CountOutput();
+		CountOutput specialized = new CountOutput();
+		run(rule, null, iterations, interpreted);
+		run(rule, compiled, iterations, specialized);
+
+		interpreted.count = specialized.count = 0;
+		long t1 = run(rule, null, iterations, interpreted);
+		long t2 = run(rule, compiled, iterations, specialized);
+		System.out.println("Rule " + rule.type + "-" + rule.id + ": "
+				+ (interpreted.count / iterations) + " derivations, interpreted "
+				+ (t1 / 1000000) + " ms, compiled " + (t2 / 1000000)
+				+ " ms"
+				+ (interpreted.count != specialized.count ? " (MISMATCH)"
+						: ""));
+	}
+
+	private static void interpreted(Rule1 rule) {
+		System.out.println("Rule " + rule.type + "-" + rule.id
+				+ ": generic patterns, interpreted");
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0 || args[0].equals("--help")) {
+			System.out.println("Usage: kbDir [iterations]");
+			return;
+		}
+
+		int iterations = args.length > 1 ? Integer.valueOf(args[1]) : 100;
+
+		Configuration conf = new Configuration();
+		conf.set("indexFileImpl", PlainTripleFile.class.getName());
+		Schema.getInstance().init(conf, args[0] + "/closure",
+				new FilesInterface());
+
+		Ruleset ruleset = Ruleset.getInstance();
+		for (Rule1 rule : ruleset.getAllActiveFirstTypeRules()) {
+			benchmark(rule, CompiledRule.compile(rule), iterations);
+		}
+		for (Rule4 rule : ruleset.getAllActiveFourthTypeRules()) {
+			if (rule.GENERICS_STRATS == null) {
+				benchmark(rule, CompiledRule.compile(rule), iterations);
+			} else {
+				interpreted(rule);
+			}
+		}
+		for (Rule2 rule : ruleset.getAllActiveSecondTypeRules()) {
+			interpreted(rule);
+		}
+		for (Rule3 rule : ruleset.getAllActiveThirdTypeRules()) {
+			interpreted(rule);
+		}
+	}
+}
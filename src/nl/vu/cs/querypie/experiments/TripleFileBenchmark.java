@@ -0,0 +1,120 @@
+package nl.vu.cs.querypie.experiments;
+
+import java.io.File;
+import java.util.Random;
+
+import nl.vu.cs.querypie.storage.disk.BlockTripleFile;
+import nl.vu.cs.querypie.storage.disk.PlainTripleFile;
+import nl.vu.cs.querypie.storage.disk.TripleFile;
+
+/**
+ * Compares the read throughput of PlainTripleFile and BlockTripleFile. The
+ * triples are read from the given plain file, or generated sorted with the
+ * given number of triples, and written in both formats in a temporary
+ * directory. Every file is then read a few times and the best time is
+ * reported.
+ *
+ * Usage: TripleFileBenchmark (<plain triple file> | -n <triples>) [iterations]
+ */
+public class TripleFileBenchmark {
+
+	private static long read(TripleFile file) {
+		long sum = 0;
+		file.open();
+		while (file.next()) {
+			sum += file.getFirstTerm() ^ file.getSecondTerm()
+					^ file.getThirdTerm();
+		}
+		file.close();
+		return sum;
+	}
+
+	private static void benchmark(String name, TripleFile file, long triples,
+			int iterations, long expected) {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < iterations; ++i) {
+			long time = System.nanoTime();
+			long sum = read(file);
+			time = System.nanoTime() - time;
+			if (sum != expected) {
+				System.out.println(name + ": wrong content");
+				return;
+			}
+			best = Math.min(best, time);
+		}
+		double s = best / 1e9;
+		System.out.println(String.format(
+				"%s: %d bytes, %.0f ms, %.1f Mtriples/s", name,
+				new File(file.getPath()).length(), best / 1e6, triples / s
+						/ 1e6));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out
+					.println("Usage: TripleFileBenchmark (<plain triple file> | -n <triples>) [iterations]");
+			return;
+		}
+
+		File dir = File.createTempFile("triples", "");
+		dir.delete();
+		dir.mkdirs();
+		PlainTripleFile plain = new PlainTripleFile(new File(dir, "plain")
+				.getPath());
+		BlockTripleFile block = new BlockTripleFile(new File(dir, "block")
+				.getPath());
+		plain.openToWrite();
+		block.openToWrite();
+
+		int next = 1;
+		long triples = 0;
+		long expected = 0;
+		if (args[0].equals("-n")) {
+			// Sorted triples with few distinct subjects and predicates
+			long n = Long.valueOf(args[1]);
+			Random r = new Random(0);
+			long s = 0, p = 0, o = 0;
+			for (long i = 0; i < n; ++i) {
+				if (r.nextInt(10) == 0) {
+					s += 1 + r.nextInt(1000);
+					p = r.nextInt(50);
+					o = r.nextInt(1000000);
+				} else if (r.nextInt(4) == 0) {
+					p += 1 + r.nextInt(5);
+					o = r.nextInt(1000000);
+				} else {
+					o += 1 + r.nextInt(100000);
+				}
+				plain.write(s, p, o);
+				block.write(s, p, o);
+				expected += s ^ p ^ o;
+				triples++;
+			}
+			next = 2;
+		} else {
+			PlainTripleFile input = new PlainTripleFile(args[0]);
+			input.open();
+			while (input.next()) {
+				long s = input.getFirstTerm();
+				long p = input.getSecondTerm();
+				long o = input.getThirdTerm();
+				plain.write(s, p, o);
+				block.write(s, p, o);
+				expected += s ^ p ^ o;
+				triples++;
+			}
+			input.close();
+		}
+		plain.close();
+		block.close();
+		int iterations = args.length > next ? Integer.valueOf(args[next]) : 5;
+
+		System.out.println(triples + " triples");
+		benchmark("PlainTripleFile", plain, triples, iterations, expected);
+		benchmark("BlockTripleFile", block, triples, iterations, expected);
+
+		plain.delete();
+		block.delete();
+		dir.delete();
+	}
+}
@@ -0,0 +1,88 @@
+package nl.vu.cs.querypie.joins;
+
+import java.util.Arrays;
+
+/**
+ * Set of rows of longs, without boxing. The rows are copied one after the
+ * other in a single array, and an open addressing table with linear probing
+ * stores the index of the rows.
+ */
+public class RowSet {
+	private final int sizeRow;
+
+	private long[] rows;
+	private int nrows;
+	private int[] table;
+	private int mask;
+
+	public RowSet(int sizeRow) {
+		this.sizeRow = sizeRow;
+		rows = new long[sizeRow * 16];
+		table = new int[32];
+		Arrays.fill(table, -1);
+		mask = table.length - 1;
+	}
+
+	private int hash(long[] row, int offset) {
+		long h = 1;
+		for (int i = 0; i < sizeRow; ++i) {
+			h = h * 31 + row[offset + i];
+		}
+		h *= 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private boolean equals(long[] row, int idx) {
+		int offset = idx * sizeRow;
+		for (int i = 0; i < sizeRow; ++i) {
+			if (rows[offset + i] != row[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rehash() {
+		table = new int[table.length * 2];
+		Arrays.fill(table, -1);
+		mask = table.length - 1;
+		for (int idx = 0; idx < nrows; ++idx) {
+			int slot = hash(rows, idx * sizeRow) & mask;
+			while (table[slot] != -1) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = idx;
+		}
+	}
+
+	/**
+	 * Adds the row to the set.
+	 *
+	 * @return false if the row was already in the set.
+	 */
+	public boolean add(long[] row) {
+		int slot = hash(row, 0) & mask;
+		while (table[slot] != -1) {
+			if (equals(row, table[slot])) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		if ((nrows + 1) * sizeRow > rows.length) {
+			rows = Arrays.copyOf(rows, rows.length * 2);
+		}
+		System.arraycopy(row, 0, rows, nrows * sizeRow, sizeRow);
+		table[slot] = nrows++;
+
+		// Keep the load factor below 0.5
+		if (nrows * 2 > table.length) {
+			rehash();
+		}
+		return true;
+	}
+
+	public int size() {
+		return nrows;
+	}
+}
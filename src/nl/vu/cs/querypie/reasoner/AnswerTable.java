@@ -0,0 +1,150 @@
+package nl.vu.cs.querypie.reasoner;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nl.vu.cs.querypie.storage.RDFTerm;
+import nl.vu.cs.querypie.storage.memory.InMemoryTripleContainer;
+import nl.vu.cs.querypie.storage.memory.Triple;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Table of the complete answers of the queries evaluated with QSQ, shared by
+ * all the submissions. When the evaluation of a root query reaches its
+ * fixpoint, its answers are published here, and the submissions that ask the
+ * same query afterwards reuse them, also as a subgoal inside their own tree,
+ * instead of computing them again. A submission that asks the query while
+ * another one is still evaluating it does not wait: it evaluates the query
+ * itself.
+ *
+ * The answers of the inner subgoals of a tree are not published, because
+ * QSQ cuts the subgoals that are equal to one of their ancestors, and their
+ * answers can therefore be incomplete until the root query is complete.
+ *
+ * Only the queries whose terms do not refer to sets of a submission are
+ * tabled, and the answers are valid as long as the ruleset is not reloaded.
+ */
+public class AnswerTable {
+
+	static final Logger log = LoggerFactory.getLogger(AnswerTable.class);
+
+	public static final int MAX_SUBGOALS = 1024;
+
+	private static final AnswerTable table = new AnswerTable();
+
+	public static AnswerTable getInstance() {
+		return table;
+	}
+
+	public static final class Subgoal {
+		private final int version;
+		private final long[] answers;
+
+		Subgoal(int version, long[] answers) {
+			this.version = version;
+			this.answers = answers;
+		}
+
+		/**
+		 * @return the answers as a sequence of triples.
+		 */
+		public long[] getAnswers() {
+			return answers;
+		}
+	}
+
+	private static final class Key {
+		final long s, p, o;
+
+		Key(long s, long p, long o) {
+			this.s = s;
+			this.p = p;
+			this.o = o;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = (s * 31 + p) * 31 + o;
+			return (int) (h ^ (h >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) obj;
+			return s == k.s && p == k.p && o == k.o;
+		}
+	}
+
+	private final Map<Key, Subgoal> subgoals = new LinkedHashMap<Key, Subgoal>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Subgoal> eldest) {
+			return size() > MAX_SUBGOALS;
+		}
+	};
+
+	private AnswerTable() {
+	}
+
+	private static Key getKey(long s, long p, long o) {
+		if (s <= RDFTerm.THRESHOLD_VARIABLE || p <= RDFTerm.THRESHOLD_VARIABLE
+				|| o <= RDFTerm.THRESHOLD_VARIABLE) {
+			return null;
+		}
+		return new Key(s, p, o);
+	}
+
+	/**
+	 * Returns the subgoal if its answers are in the table, otherwise null.
+	 */
+	public synchronized Subgoal get(long s, long p, long o) {
+		Key key = getKey(s, p, o);
+		if (key == null) {
+			return null;
+		}
+		Subgoal goal = subgoals.get(key);
+		if (goal != null && goal.version != Ruleset.getInstance().getVersion()) {
+			subgoals.remove(key);
+			goal = null;
+		}
+		return goal;
+	}
+
+	/**
+	 * Stores the complete answers of the query. If the answers are already in
+	 * the table, because another submission has evaluated the same query in
+	 * the meantime, they are replaced.
+	 */
+	public void publish(long s, long p, long o, InMemoryTripleContainer answers) {
+		Key key = getKey(s, p, o);
+		if (key == null) {
+			return;
+		}
+
+		long[] triples = new long[answers == null ? 0 : answers.size() * 3];
+		if (answers != null) {
+			int i = 0;
+			for (Triple t : answers.getTripleSet()) {
+				triples[i++] = t.subject;
+				triples[i++] = t.predicate;
+				triples[i++] = t.object;
+			}
+		}
+		Subgoal goal = new Subgoal(Ruleset.getInstance().getVersion(), triples);
+		synchronized (this) {
+			subgoals.put(key, goal);
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("Subgoal " + s + " " + p + " " + o + " is complete: "
+					+ (triples.length / 3) + " answers");
+		}
+	}
+}
@@ -1,16 +1,20 @@
 package nl.vu.cs.querypie.reasoner;
 
+import ibis.util.ThreadPool;
+
 import java.io.File;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import nl.vu.cs.ajira.Context;
 import nl.vu.cs.ajira.actions.Action;
 import nl.vu.cs.ajira.actions.ActionConf;
 import nl.vu.cs.ajira.actions.ActionContext;
@@ -26,13 +30,20 @@ import nl.vu.cs.ajira.data.types.Tuple;
 import nl.vu.cs.ajira.data.types.TupleFactory;
 import nl.vu.cs.ajira.datalayer.InputLayer;
 import nl.vu.cs.ajira.exceptions.ActionNotConfiguredException;
+import nl.vu.cs.ajira.submissions.Job;
+import nl.vu.cs.ajira.submissions.JobProperties;
+import nl.vu.cs.ajira.submissions.Submission;
+import nl.vu.cs.ajira.submissions.SubmissionRegistry;
+import nl.vu.cs.ajira.utils.Consts;
 import nl.vu.cs.ajira.utils.Lock;
 import nl.vu.cs.querypie.storage.RDFTerm;
 import nl.vu.cs.querypie.storage.Schema;
 import nl.vu.cs.querypie.storage.SchemaTerms;
 import nl.vu.cs.querypie.storage.disk.RDFStorage;
 import nl.vu.cs.querypie.storage.disk.TripleFile;
+import nl.vu.cs.querypie.storage.memory.ConcurrentTripleSet;
 import nl.vu.cs.querypie.storage.memory.InMemoryTripleContainer;
+import nl.vu.cs.querypie.storage.memory.ListStore;
 import nl.vu.cs.querypie.storage.memory.MultiValue;
 import nl.vu.cs.querypie.storage.memory.SortedCollectionTuples;
 import nl.vu.cs.querypie.storage.memory.Triple;
@@ -41,22 +52,34 @@ import nl.vu.cs.querypie.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Calculates the closure of the precomputed patterns as a stratified
+ * fixpoint. The triples derived during an iteration become visible only when
+ * the rules are reloaded at the end of the iteration, so all the patterns of
+ * an iteration are independent: each of them is evaluated in its own
+ * submission, and the submissions run concurrently. The derivations are
+ * merged in parallel, and only the changes of the iteration are shipped to
+ * the other nodes.
+ */
 public class CalculateClosure extends Action {
 
-	public static final int I_CURRENT_QUERY = 0;
-	public static final int B_NEW_DERIVED = 1;
-	public static final int I_CURRENT_ITERATION = 2;
-	public static final int B_WRITE_TO_DISK = 3;
-	public static final int B_INCOMPLETE = 4;
+	public static final int B_WRITE_TO_DISK = 0;
+	public static final int B_INCOMPLETE = 1;
+	public static final int S_UPDATE = 2;
+
+	/**
+	 * Number of patterns that are evaluated at the same time (by default, the
+	 * number of processors).
+	 */
+	public static final String THREADS = "closure.threads";
+
+	private static final String DERIVATION = "closureDerivation-";
 
 	@Override
 	public void registerActionParameters(ActionConf conf) {
-		conf.registerParameter(I_CURRENT_QUERY, "I_CURRENT_QUERY", 0, true);
-		conf.registerParameter(B_NEW_DERIVED, "B_NEW_DERIVED", false, true);
-		conf.registerParameter(I_CURRENT_ITERATION, "I_CURRENT_ITERATION", 0,
-				true);
 		conf.registerParameter(B_WRITE_TO_DISK, "B_WRITE_TO_DISK", false, true);
 		conf.registerParameter(B_INCOMPLETE, "B_INCOMPLETE", false, true);
+		conf.registerParameter(S_UPDATE, "S_UPDATE", null, false);
 	}
 
 	public static final class IncreaseLock extends Action {
@@ -81,6 +104,7 @@ public class CalculateClosure extends Action {
 	public static final class ReloadRules extends Action {
 
 		public static final int S_FILE = 0;
+		public static final int I_NODE = 1;
 
 		@Override
 		protected void registerActionParameters(ActionConf conf) {
@@ -90,6 +114,7 @@ public class CalculateClosure extends Action {
 			}
 
 			conf.registerParameter(S_FILE, "S_FILE", null, false);
+			conf.registerParameter(I_NODE, "I_NODE", -1, false);
 		}
 
 		@SuppressWarnings("unchecked")
@@ -107,201 +132,511 @@ public class CalculateClosure extends Action {
 			RDFStorage storage = (RDFStorage) context.getContext()
 					.getInputLayer(InputLayer.DEFAULT_LAYER);
 
-			storage.schema2
-					.setCacheSinglePatterns((Map<String, long[]>) context
-							.getObjectFromCache("cache1"));
-			storage.schema2
-					.setCacheLists((Map<String, Map<Long, List<Long>>>) context
-							.getObjectFromCache("cache2"));
-			storage.setClosureTriples((InMemoryTripleContainer) context
-					.getObjectFromCache("all_der"));
+			// Apply what has changed in the last iteration, unless this is
+			// the node that calculated it.
+			if (context.getMyNodeId() != getParamInt(I_NODE)) {
+				Map<String, long[]> cache1 = (Map<String, long[]>) context
+						.getObjectFromCache("cache1");
+				if (cache1 != null) {
+					for (Map.Entry<String, long[]> e : cache1.entrySet()) {
+						storage.schema2.updateCacheSinglePatterns(e.getKey(),
+								e.getValue());
+					}
+				}
+				Map<String, ListStore> cache2 = (Map<String, ListStore>) context
+						.getObjectFromCache("cache2");
+				if (cache2 != null) {
+					for (Map.Entry<String, ListStore> e : cache2.entrySet()) {
+						storage.schema2.updateCacheLists(e.getKey(),
+								e.getValue());
+					}
+				}
+				InMemoryTripleContainer delta = (InMemoryTripleContainer) context
+						.getObjectFromCache("all_der");
+				if (delta != null && delta.size() > 0) {
+					InMemoryTripleContainer closure = storage
+							.getClosureTriples();
+					if (closure == null) {
+						closure = new InMemoryTripleContainer(true);
+						storage.setClosureTriples(closure);
+					}
+					closure.addAll(delta);
+					closure.index();
+				}
+			}
 
 			Ruleset.getInstance().loadRules(false);
 		}
 	}
 
+	/**
+	 * Last action of the submission of a pattern: copies the derived triples
+	 * in the set of the pattern, which is in the cache of the submission of
+	 * the closure.
+	 */
+	public static final class CollectDerivation extends Action {
+
+		public static final int I_SUBMISSION = 0;
+		public static final int S_KEY = 1;
+
+		private ConcurrentTripleSet derivation;
+
+		@Override
+		protected void registerActionParameters(ActionConf conf) {
+			conf.registerParameter(I_SUBMISSION, "I_SUBMISSION", 0, true);
+			conf.registerParameter(S_KEY, "S_KEY", null, true);
+		}
+
+		@Override
+		public void startProcess(ActionContext context) throws Exception {
+			derivation = (ConcurrentTripleSet) context
+					.getContext()
+					.getSubmissionCache()
+					.getObjectFromCache(getParamInt(I_SUBMISSION),
+							getParamString(S_KEY));
+		}
+
+		@Override
+		public void process(Tuple tuple, ActionContext context,
+				ActionOutput actionOutput) throws Exception {
+			derivation.add(((RDFTerm) tuple.get(0)).getValue(),
+					((RDFTerm) tuple.get(1)).getValue(),
+					((RDFTerm) tuple.get(2)).getValue());
+		}
+
+		@Override
+		public void stopProcess(ActionContext context, ActionOutput actionOutput)
+				throws Exception {
+			derivation = null;
+		}
+	}
+
+	/**
+	 * Triples derived for a precomputed pattern during the current iteration.
+	 */
+	private static final class PendingDerivation {
+		final Pattern query;
+		final ConcurrentTripleSet derived;
+		final boolean firstIteration;
+		final boolean writeToDisk;
+
+		SortedCollectionTuples existingTriples;
+		ConcurrentTripleSet newTriples;
+
+		PendingDerivation(Pattern query, ConcurrentTripleSet derived,
+				boolean firstIteration, boolean writeToDisk) {
+			this.query = query;
+			this.derived = derived;
+			this.firstIteration = firstIteration;
+			this.writeToDisk = writeToDisk;
+		}
+
+		/**
+		 * Calculates the derived triples that are not yet in the pattern. It
+		 * only reads existingTriples, so that it can run in parallel with the
+		 * other patterns.
+		 */
+		void calculateNewTriples() {
+			boolean isEquivalent = query.isEquivalent();
+			boolean singleValue = query.getPositionVars().length == 1;
+			MultiValue doubleValue = new MultiValue(new long[2]);
+			newTriples = new ConcurrentTripleSet();
+
+			if (isEquivalent && firstIteration && existingTriples != null) {
+				// Go through all the explicit triples and materialize also
+				// the inverse
+				for (int i = 0; i < existingTriples.size(); ++i) {
+					existingTriples.get(doubleValue, i);
+					// Invert it
+					long box = doubleValue.values[0];
+					doubleValue.values[0] = doubleValue.values[1];
+					doubleValue.values[1] = box;
+
+					if (!existingTriples.contains(doubleValue)) {
+						newTriples.add(doubleValue.values[0],
+								query.p[1].getValue(), doubleValue.values[1]);
+					}
+				}
+			}
+
+			long[] triples = derived.toArray();
+			for (int i = 0; i < triples.length; i += 3) {
+				long s = triples[i];
+				long p = triples[i + 1];
+				long o = triples[i + 2];
+				boolean isNew;
+				if (singleValue) {
+					isNew = existingTriples == null
+							|| !existingTriples.contains(s);
+				} else {
+					doubleValue.values[0] = s;
+					doubleValue.values[1] = o;
+					isNew = existingTriples == null
+							|| !existingTriples.contains(doubleValue);
+				}
+
+				// Add it to the triples to write. If equivalent add an
+				// additional triple
+				if (isNew && newTriples.add(s, p, o) && isEquivalent) {
+					newTriples.add(o, p, s);
+				}
+			}
+		}
+	}
+
 	static final Logger log = LoggerFactory.getLogger(CalculateClosure.class);
 
-	RDFTerm[] triple = { new RDFTerm(), new RDFTerm(), new RDFTerm() };
 	Schema schema;
 
-	Pattern[] queries;
-	int current_query;
-	int current_iteration;
-	boolean new_derived;
 	boolean writeToDisk;
 	boolean incomplete;
+	String update;
 
-	boolean buildListsPhase;
-	boolean closurePhase;
-
-	Set<Triple> firstTriples;
-	int previousSizeFirstTriples;
-	Set<Triple> restTriples;
-	int previousSizeRestTriples;
-
-	InMemoryTripleContainer to_write = new InMemoryTripleContainer();
-	InMemoryTripleContainer all_derivation;
-
-	public static ActionSequence applyTo(int cq, boolean nd, int ci,
-			boolean wd, boolean ic, ActionSequence actions)
+	public static ActionSequence applyTo(boolean wd, boolean ic,
+			String update, ActionSequence actions)
 			throws ActionNotConfiguredException {
 		ActionConf c = ActionFactory.getActionConf(CalculateClosure.class);
-		c.setParamInt(I_CURRENT_QUERY, cq);
-		c.setParamBoolean(B_NEW_DERIVED, nd);
-		c.setParamInt(I_CURRENT_ITERATION, ci);
 		c.setParamBoolean(B_WRITE_TO_DISK, wd);
 		c.setParamBoolean(B_INCOMPLETE, ic);
+		if (update != null) {
+			c.setParamString(S_UPDATE, update);
+		}
 		actions.add(c);
 		return actions;
 	}
 
+	/**
+	 * Maintains the closure after the triples in the file update (the input
+	 * of UpdateCache) have been added to the indices. Only the precomputed
+	 * patterns that the new triples can affect are recalculated. The new
+	 * triples of the patterns are appended to the closure directory as
+	 * update-N files, and the caches of the schema are updated in place.
+	 */
+	public static ActionSequence applyTo(String update, boolean incomplete,
+			ActionSequence chain) throws ActionNotConfiguredException {
+		return applyTo(true, incomplete, update, chain);
+	}
+
 	public static ActionSequence applyTo(ActionContext context, Tuple tuple,
 			ActionSequence chain) throws ActionNotConfiguredException {
 		boolean incomplete = false;
 		if (tuple != null && tuple.getNElements() > 0) {
 			incomplete = ((TBoolean) tuple.get(0)).getValue();
 		}
-		ActionConf c = ActionFactory.getActionConf(CalculateClosure.class);
-		c.setParamInt(I_CURRENT_QUERY, -1);
-		c.setParamBoolean(B_NEW_DERIVED, false);
-		c.setParamInt(I_CURRENT_ITERATION, 0);
-		c.setParamBoolean(B_WRITE_TO_DISK, false);
-		c.setParamBoolean(B_INCOMPLETE, incomplete);
-		chain.add(c);
-		return chain;
+		return applyTo(false, incomplete, null, chain);
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public void startProcess(ActionContext context) throws Exception {
-		// Read the list of queries from either conf or a configuration file
-		queries = (Pattern[]) context.getObjectFromCache("list_queries");
-		if (queries == null) {
-			// Read the list from a configuration file
-			queries = Ruleset.getInstance().getPrecomputedPatterns();
-			Pattern[] q = new Pattern[queries.length + 2];
-			System.arraycopy(queries, 0, q, 0, queries.length);
-
-			// Add the first and next patterns to the list of queries
-			Pattern p_first = new Pattern();
-			p_first.setEquivalent(false);
-			p_first.setLocation(null);
-			p_first.p[0].setValue(Schema.ALL_RESOURCES);
-			p_first.p[1].setValue(SchemaTerms.RDF_FIRST);
-			p_first.p[2].setValue(Schema.ALL_RESOURCES);
-			q[q.length - 2] = p_first;
-
-			Pattern p_rest = new Pattern();
-			p_rest.setEquivalent(false);
-			p_rest.setLocation(null);
-			p_rest.p[0].setValue(Schema.ALL_RESOURCES);
-			p_rest.p[1].setValue(SchemaTerms.RDF_REST);
-			p_rest.p[2].setValue(Schema.ALL_RESOURCES);
-			q[q.length - 1] = p_rest;
-			queries = q;
-
-			context.putObjectInCache("list_queries", queries);
-		}
-
-		// Process the parameters
-		current_query = getParamInt(I_CURRENT_QUERY);
-		new_derived = getParamBoolean(B_NEW_DERIVED);
-		current_iteration = getParamInt(I_CURRENT_ITERATION);
 		writeToDisk = getParamBoolean(B_WRITE_TO_DISK);
 		incomplete = getParamBoolean(B_INCOMPLETE);
-		to_write.clear();
+		update = getParamString(S_UPDATE);
 
 		RDFStorage input = (RDFStorage) context.getContext().getInputLayer(
 				InputLayer.DEFAULT_LAYER);
 		schema = input.schema2;
+	}
 
-		if (current_query == -1) {
-			closurePhase = false;
-			buildListsPhase = false;
-			firstTriples = new HashSet<Triple>();
-			context.putObjectInCache("firstTriples", firstTriples);
-			restTriples = new HashSet<Triple>();
-			context.putObjectInCache("restTriples", restTriples);
+	@Override
+	public void process(Tuple inputTuple, ActionContext context,
+			ActionOutput output) throws Exception {
+	}
 
-		} else {
-			if (current_query < queries.length - 2) {
-				buildListsPhase = false;
-				closurePhase = true;
-			} else {
-				buildListsPhase = true;
-				closurePhase = false;
-
-				firstTriples = (Set<Triple>) context
-						.getObjectFromCache("firstTriples");
-				previousSizeFirstTriples = firstTriples.size();
-				restTriples = (Set<Triple>) context
-						.getObjectFromCache("restTriples");
-				previousSizeRestTriples = restTriples.size();
+	/**
+	 * Returns the precomputed patterns, followed by the patterns of the
+	 * lists.
+	 */
+	private static Pattern[] getQueries() {
+		// Read the list from a configuration file
+		Pattern[] queries = Ruleset.getInstance().getPrecomputedPatterns();
+		Pattern[] q = new Pattern[queries.length + 2];
+		System.arraycopy(queries, 0, q, 0, queries.length);
+
+		// Add the first and next patterns to the list of queries
+		Pattern p_first = new Pattern();
+		p_first.setEquivalent(false);
+		p_first.setLocation(null);
+		p_first.p[0].setValue(Schema.ALL_RESOURCES);
+		p_first.p[1].setValue(SchemaTerms.RDF_FIRST);
+		p_first.p[2].setValue(Schema.ALL_RESOURCES);
+		q[q.length - 2] = p_first;
+
+		Pattern p_rest = new Pattern();
+		p_rest.setEquivalent(false);
+		p_rest.setLocation(null);
+		p_rest.p[0].setValue(Schema.ALL_RESOURCES);
+		p_rest.p[1].setValue(SchemaTerms.RDF_REST);
+		p_rest.p[2].setValue(Schema.ALL_RESOURCES);
+		q[q.length - 1] = p_rest;
+		return q;
+	}
+
+	/**
+	 * Evaluates the queries, each in its own submission. Up to THREADS
+	 * submissions run at the same time.
+	 *
+	 * @return the triples derived for every query.
+	 */
+	private ConcurrentTripleSet[] evaluateQueries(ActionContext context,
+			final Pattern[] queries) throws Exception {
+		final ConcurrentTripleSet[] results = new ConcurrentTripleSet[queries.length];
+		for (int i = 0; i < queries.length; ++i) {
+			results[i] = new ConcurrentTripleSet();
+			context.putObjectInCache(DERIVATION + i, results[i]);
+		}
+
+		final Context global = context.getContext();
+		final int submission = context.getSubmissionId();
+		final JobProperties properties = context.getJobProperties();
+		final Map<String, Long> counters = new HashMap<String, Long>();
+		int nThreads = global.getConfiguration().getInt(THREADS,
+				Runtime.getRuntime().availableProcessors());
+		final int[] next = { 0 };
+		final int[] running = { Math.max(1,
+				Math.min(nThreads, queries.length)) };
+		final Exception[] error = { null };
+		for (int i = running[0]; i > 0; --i) {
+			ThreadPool.createNew(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							int q;
+							synchronized (next) {
+								if (next[0] == queries.length
+										|| error[0] != null) {
+									break;
+								}
+								q = next[0]++;
+							}
+							evaluateQuery(global, submission, properties,
+									queries[q], DERIVATION + q, counters);
+						}
+					} catch (Exception e) {
+						log.error("Error", e);
+						synchronized (next) {
+							error[0] = e;
+						}
+					} finally {
+						synchronized (running) {
+							running[0]--;
+							running.notify();
+						}
+					}
+				}
+			}, "Closure query");
+		}
+		synchronized (running) {
+			while (running[0] > 0) {
+				running.wait();
 			}
+		}
 
+		for (int i = 0; i < queries.length; ++i) {
+			context.putObjectInCache(DERIVATION + i, null);
+		}
+		if (error[0] != null) {
+			throw error[0];
 		}
+		for (Map.Entry<String, Long> e : counters.entrySet()) {
+			context.incrCounter(e.getKey(), e.getValue());
+		}
+		return results;
 	}
 
-	@Override
-	public void process(Tuple inputTuple, ActionContext context,
-			ActionOutput output) throws Exception {
-		if (closurePhase) { // Add the triple to a tmp container.
-			// if (inputTuple.getNElements() > 3) { // Only inferred triples
-			to_write.addTriple((RDFTerm) inputTuple.get(0),
-					(RDFTerm) inputTuple.get(1), (RDFTerm) inputTuple.get(2),
-					null);
-			// }
-		} else if (buildListsPhase) {
-			// Copy the triples into first of rest containers
-			Triple t = new Triple();
-			t.subject = ((RDFTerm) inputTuple.get(0)).getValue();
-			t.predicate = ((RDFTerm) inputTuple.get(1)).getValue();
-			t.object = ((RDFTerm) inputTuple.get(2)).getValue();
-			if (current_query != queries.length - 1) {
-				// Copy into the first container
-				firstTriples.add(t);
-			} else {
-				// Copy into the rest container
-				restTriples.add(t);
+	/**
+	 * Evaluates the query in a new submission, so that the tree and the
+	 * intermediate triples of RuleBCAlgo are not shared with the other
+	 * queries, and waits until it is finished.
+	 */
+	private static void evaluateQuery(Context global, int submission,
+			JobProperties properties, Pattern query, String key,
+			Map<String, Long> counters) throws Exception {
+		ActionSequence actions = new ActionSequence();
+		RDFTerm[] terms = query.p;
+		RuleBCAlgo.applyTo(terms[0], terms[1], terms[2], isListQuery(query),
+				actions);
+
+		ActionConf c = ActionFactory.getActionConf(CollectToNode.class);
+		c.setParamStringArray(CollectToNode.SA_TUPLE_FIELDS,
+				RDFTerm.class.getName(), RDFTerm.class.getName(),
+				RDFTerm.class.getName());
+		actions.add(c);
+
+		c = ActionFactory.getActionConf(CollectDerivation.class);
+		c.setParamInt(CollectDerivation.I_SUBMISSION, submission);
+		c.setParamString(CollectDerivation.S_KEY, key);
+		actions.add(c);
+
+		Job job = new Job();
+		job.setProperties(properties);
+		job.setActions(actions);
+		SubmissionRegistry registry = global.getSubmissionsRegistry();
+		Submission sub = registry.waitForCompletion(global, job);
+		registry.getStatistics(sub);
+		registry.releaseSubmission(sub);
+		if (!sub.getState().equals(Consts.STATE_FINISHED)) {
+			throw new Exception("The query " + query + " has failed",
+					sub.getException());
+		}
+
+		if (sub.getCounters() != null) {
+			synchronized (counters) {
+				for (Map.Entry<String, Long> e : sub.getCounters().entrySet()) {
+					Long v = counters.get(e.getKey());
+					counters.put(e.getKey(), v == null ? e.getValue() : v
+							+ e.getValue());
+				}
 			}
 		}
 	}
 
 	private void writeTriplesOnDisk(ActionContext context, Pattern query,
-			Collection<Triple> newTriples) throws IllegalArgumentException,
+			long[] newTriples) throws IllegalArgumentException,
 			InstantiationException, IllegalAccessException,
 			InvocationTargetException {
-		if (newTriples.size() > 0) {
-			TripleFile file = null;
-			for (Triple triple : newTriples) {
-				if (file == null) {
-					Constructor<? extends TripleFile> constr = Utils
-							.getTripleFileImplementation(context.getContext()
-									.getConfiguration());
-					// Determine file name
-					String dir = context.getContext().getConfiguration()
-							.get("input.schemaDir")
-							+ File.separator + query.getLocation();
-					int i = 0;
-					String outputFile = dir + File.separator + "update-" + i;
-					while (new File(outputFile).exists()) {
-						i++;
-						outputFile = dir + File.separator + "update-" + i;
-					}
-					file = constr.newInstance(outputFile);
-					file.openToWrite();
-				}
-				file.write(triple.subject, triple.predicate, triple.object);
+		if (newTriples.length > 0) {
+			Constructor<? extends TripleFile> constr = Utils
+					.getTripleFileImplementation(context.getContext()
+							.getConfiguration());
+			// Determine file name
+			String dir = context.getContext().getConfiguration()
+					.get("input.schemaDir")
+					+ File.separator + query.getLocation();
+			int i = 0;
+			String outputFile = dir + File.separator + "update-" + i;
+			while (new File(outputFile).exists()) {
+				i++;
+				outputFile = dir + File.separator + "update-" + i;
 			}
-			if (file != null) {
-				file.close();
+			TripleFile file = constr.newInstance(outputFile);
+			file.openToWrite();
+			for (int j = 0; j < newTriples.length; j += 3) {
+				file.write(newTriples[j], newTriples[j + 1], newTriples[j + 2]);
 			}
+			file.close();
 		}
 	}
 
-	private void reloadRulesOnOtherNodes(ActionOutput output, String newList)
+	private static boolean isListQuery(Pattern query) {
+		return query.getLocation() == null;
+	}
+
+	private long[] readUpdate(ActionContext context) throws Exception {
+		// UpdateCache reads a copy of the triples for every index
+		String file = update;
+		if (!new File(file).exists()) {
+			file = update + ".spo";
+		}
+		TripleFile f = Utils.getTripleFileImplementation(
+				context.getContext().getConfiguration()).newInstance(file);
+		long[] triples = new long[3 * 1024];
+		int n = 0;
+		f.open();
+		while (f.next()) {
+			if (n == triples.length) {
+				triples = Arrays.copyOf(triples, n * 2);
+			}
+			triples[n++] = f.getFirstTerm();
+			triples[n++] = f.getSecondTerm();
+			triples[n++] = f.getThirdTerm();
+		}
+		f.close();
+		return Arrays.copyOf(triples, n);
+	}
+
+	/**
+	 * Reads the triples of the update and returns the queries whose results
+	 * they might change. The new triples that match a precomputed pattern are
+	 * added directly to the derivation of the pattern in pending, since the
+	 * queries of the closure do not return the explicit triples.
+	 */
+	private Pattern[] getAffectedQueries(ActionContext context,
+			Pattern[] queries, Map<String, PendingDerivation> pending)
 			throws Exception {
+		long[] triples = readUpdate(context);
+		Pattern[] affected = Ruleset.getInstance().getAffectedPatterns(
+				triples, queries);
+
+		// The lists are rebuilt if the triples of a list or of a list head
+		// might change
+		boolean lists = false;
+		List<Pattern> output = new ArrayList<Pattern>();
+		for (Pattern p : affected) {
+			if (isListQuery(p)) {
+				lists = true;
+			} else {
+				output.add(p);
+				if (p.p[2].getName() != null
+						&& p.p[2].getName().equals("listhead")) {
+					lists = true;
+				}
+			}
+		}
+		if (lists) {
+			for (Pattern p : queries) {
+				if (isListQuery(p)) {
+					output.add(p);
+				}
+			}
+		}
+
+		for (Pattern p : output) {
+			if (isListQuery(p)) {
+				continue;
+			}
+			long s = p.p[0].getValue();
+			long pr = p.p[1].getValue();
+			long o = p.p[2].getValue();
+			ConcurrentTripleSet explicit = new ConcurrentTripleSet();
+			for (int i = 0; i < triples.length; i += 3) {
+				if ((s < 0 || s == triples[i])
+						&& (pr < 0 || pr == triples[i + 1])
+						&& (o < 0 || o == triples[i + 2])) {
+					explicit.add(triples[i], triples[i + 1], triples[i + 2]);
+				}
+			}
+			if (explicit.size() > 0) {
+				pending.put(p.getSignature(), new PendingDerivation(p,
+						explicit, false, writeToDisk));
+			}
+		}
+
+		log.info("The update contains " + (triples.length / 3)
+				+ " triples: " + output.size() + " of " + queries.length
+				+ " queries of the closure must be recalculated");
+		return output.toArray(new Pattern[output.size()]);
+	}
+
+	/**
+	 * Loads the ruleset in the file newList (or the current one, if null) on
+	 * all the nodes.
+	 */
+	private void reloadRules(ActionOutput output, String newList,
+			ActionContext context) throws Exception {
+		if (context.getNumberNodes() > 1) {
+			final Lock lock = new Lock();
+			context.putObjectInCache("closureLock", lock);
+			reloadRulesOnOtherNodes(output, newList, context);
+			// Wait until it is finished
+			synchronized (lock) {
+				// while (lock.getCount() != context.getNumberNodes())
+				// Not correct, I think, because the lock is only
+				// incremented after the CollectToNode,
+				// so only once. --Ceriel
+				while (lock.getCount() != 1)
+					lock.wait();
+			}
+		} else {
+			if (newList != null) {
+				Ruleset.getInstance().parseRulesetFile(newList);
+			}
+			Ruleset.getInstance().loadRules(false);
+		}
+	}
+
+	private void reloadRulesOnOtherNodes(ActionOutput output, String newList,
+			ActionContext context) throws Exception {
 
 		if (log.isDebugEnabled()) {
 			log.debug("reloadRulesOnOtherNodes");
@@ -321,6 +656,7 @@ public class CalculateClosure extends Action {
 		// Action which reloads the rules and sends nothing
 		c = ActionFactory.getActionConf(ReloadRules.class);
 		c.setParamString(ReloadRules.S_FILE, newList);
+		c.setParamInt(ReloadRules.I_NODE, context.getMyNodeId());
 		sequence.add(c);
 
 		// CollectToNode
@@ -338,8 +674,20 @@ public class CalculateClosure extends Action {
 	@Override
 	public void stopProcess(ActionContext context, ActionOutput output)
 			throws Exception {
+		long start = System.currentTimeMillis();
+
+		if (update != null
+				&& System.getProperty(Ruleset.RULES_FILE_AFTER_CLOSURE) != null) {
+			// The maintenance needs the complete ruleset
+			reloadRules(output, System.getProperty(Ruleset.RULES_FILE),
+					context);
+		}
+		Map<String, PendingDerivation> pending = new LinkedHashMap<String, PendingDerivation>();
+		Pattern[] queries = getQueries();
+		if (update != null) {
+			queries = getAffectedQueries(context, queries, pending);
+		}
 
-		RuleBCAlgo.cleanup(context);
 		RDFStorage input = (RDFStorage) context.getContext().getInputLayer(
 				InputLayer.DEFAULT_LAYER);
 		InMemoryTripleContainer all_derivation = input.getClosureTriples();
@@ -348,206 +696,67 @@ public class CalculateClosure extends Action {
 			input.setClosureTriples(all_derivation);
 		}
 
-		// Update the new_derivation flag
-		if (closurePhase) {
-			boolean areNewTriples = false;
-			if (to_write.size() > 0
-					|| (current_iteration == 0 && queries[current_query]
-							.isEquivalent())) {
-
-				// Process the new triples also checking the equivalent
-				/***** CHECKS *****/
-				boolean isEquivalent = queries[current_query].isEquivalent();
-				int[] pos_vars = queries[current_query].getPositionVars();
-				if (isEquivalent
-						&& (pos_vars.length != 2 || pos_vars[0] != 0 || pos_vars[1] != 2)) {
-					throw new Exception("Not supported");
-				}
-
-				// Write these triples into the corresponding closure
-				// directory.
-				SortedCollectionTuples existingTriples = schema
-						.getVarsPrecomputedPattern(queries[current_query]);
-
-				boolean singleValue = pos_vars.length == 1;
-				MultiValue doubleValue = new MultiValue(new long[2]);
-				Set<Triple> newTriples = new HashSet<Triple>();
-
-				if (isEquivalent && current_iteration == 0
-						&& existingTriples != null) {
-					// Go through all the explicit triples and materialize also
-					// the inverse
-					for (int i = 0; i < existingTriples.size(); ++i) {
-						existingTriples.get(doubleValue, i);
-						// Invert it
-						long box = doubleValue.values[0];
-						doubleValue.values[0] = doubleValue.values[1];
-						doubleValue.values[1] = box;
-
-						if (!existingTriples.contains(doubleValue)) {
-							Triple swapped_t = new Triple();
-							swapped_t.subject = doubleValue.values[0];
-							swapped_t.predicate = queries[current_query].p[1]
-									.getValue();
-							swapped_t.object = doubleValue.values[1];
-							newTriples.add(swapped_t);
-						}
-					}
-				}
-
-				for (Triple t : to_write.getTripleSet()) {
-					boolean isNew;
-					if (singleValue) {
-						isNew = existingTriples == null
-								|| !existingTriples.contains(t.subject);
+		Set<Triple> firstTriples = new HashSet<Triple>();
+		Set<Triple> restTriples = new HashSet<Triple>();
+		int iteration = 0;
+		boolean newDerived;
+		do {
+			// The queries of an iteration form a stratum: they are all
+			// evaluated concurrently
+			ConcurrentTripleSet[] results = evaluateQueries(context, queries);
+
+			// When the closure is maintained, the inverse of the existing
+			// equivalences is already materialized.
+			boolean firstIteration = iteration == 0 && update == null;
+			boolean newLists = false;
+			for (int i = 0; i < queries.length; ++i) {
+				Pattern query = queries[i];
+				if (isListQuery(query)) {
+					// Copy the triples into first of rest containers
+					if (query.p[1].getValue() == SchemaTerms.RDF_FIRST) {
+						newLists |= results[i].addTo(firstTriples) > 0;
 					} else {
-						doubleValue.values[0] = t.subject;
-						doubleValue.values[1] = t.object;
-						isNew = existingTriples == null
-								|| !existingTriples.contains(doubleValue);
+						newLists |= results[i].addTo(restTriples) > 0;
 					}
+				} else if (results[i].size() > 0
+						|| (firstIteration && query.isEquivalent())) {
 
-					// Add it to the triples to write. If equivalent add an
-					// additional triple
-					if (isNew && newTriples.add(t) && isEquivalent) {
-						Triple swapped_t = new Triple();
-						swapped_t.subject = t.object;
-						swapped_t.predicate = t.predicate;
-						swapped_t.object = t.subject;
-						newTriples.add(swapped_t);
-					}
-				}
-				to_write.clear();
-				areNewTriples = newTriples.size() > 0;
-				if (areNewTriples) {
-					// Replace the triples in the cache of the schema
-					long[] et = schema.readTriples(queries[current_query]);
-					long[] newSize;
-					int i;
-					if (et != null) {
-						newSize = new long[et.length + newTriples.size() * 3];
-						i = et.length;
-						System.arraycopy(et, 0, newSize, 0, et.length);
-					} else {
-						newSize = new long[newTriples.size() * 3];
-						i = 0;
-					}
-
-					for (Triple t : newTriples) {
-						newSize[i++] = t.subject;
-						newSize[i++] = t.predicate;
-						newSize[i++] = t.object;
-
-						// Add the triple also to all_derivation
-						all_derivation.addTriple(t, null);
+					/***** CHECKS *****/
+					int[] pos_vars = query.getPositionVars();
+					if (query.isEquivalent()
+							&& (pos_vars.length != 2 || pos_vars[0] != 0 || pos_vars[1] != 2)) {
+						throw new Exception("Not supported");
 					}
 
-					// Update the values in the single pattern cache
-					schema.updateCacheSinglePatterns(
-							queries[current_query].getSignature(), newSize);
-
-					if (writeToDisk) {
-						writeTriplesOnDisk(context, queries[current_query],
-								newTriples);
+					String signature = query.getSignature();
+					PendingDerivation d = pending.get(signature);
+					if (d == null) {
+						pending.put(signature, new PendingDerivation(query,
+								results[i], firstIteration, writeToDisk));
+					} else {
+						d.derived.addAll(results[i]);
 					}
-
-					log.debug("Query " + queries[current_query]
-							+ " has derived " + newTriples.size()
-							+ " new triples ");
-
 				}
-
 			}
-			new_derived |= areNewTriples;
-
-		} else if (buildListsPhase) {
-
-			// If we have derived more first or rest triples, then we should
-			// repeat a cycle.
-			boolean newLists = firstTriples.size() != previousSizeFirstTriples
-					|| restTriples.size() != previousSizeRestTriples;
-			new_derived |= newLists;
-
-			// (Re)generate the lists
-			if (current_query == queries.length - 1 && newLists) {
-				// First determine how many schema patterns use lists.
-				List<Pattern> patternsWithQueries = new ArrayList<Pattern>();
-				for (Pattern p : queries) {
-					if (p.p[2].getName() != null
-							&& p.p[2].getName().equals("listhead")) {
-						patternsWithQueries.add(p);
-					}
-				}
 
-				// Create a map for the first and rest triples
-				Map<Long, Collection<Long>> mFirstTriples = new HashMap<Long, Collection<Long>>();
-				for (Triple t : firstTriples) {
-					Collection<Long> col = mFirstTriples.get(t.subject);
-					if (col == null) {
-						col = new ArrayList<Long>();
-						mFirstTriples.put(t.subject, col);
-					}
-					col.add(t.object);
-				}
-				Map<Long, Collection<Long>> mRestTriples = new HashMap<Long, Collection<Long>>();
-				for (Triple t : restTriples) {
-					Collection<Long> col = mRestTriples.get(t.subject);
-					if (col == null) {
-						col = new ArrayList<Long>();
-						mRestTriples.put(t.subject, col);
-					}
-					col.add(t.object);
-				}
+			InMemoryTripleContainer delta = new InMemoryTripleContainer();
+			Map<String, long[]> changedPatterns = mergeDerivations(context,
+					pending, all_derivation, delta);
+			pending.clear();
 
-				// For each of them, retrieve the possible values and
-				// construct the list
-				MultiValue v = new MultiValue(new long[2]);
-				for (Pattern p : patternsWithQueries) {
-					if (p.getPositionVars().length != 2) {
-						throw new Exception("Not supported");
-					}
-					SortedCollectionTuples values = schema
-							.getVarsPrecomputedPattern(p);
-					if (values != null) {
-						Map<Long, List<Long>> map = new HashMap<Long, List<Long>>();
-						for (int i = 0; i < values.size(); ++i) {
-							values.get(v, i);
-							// Get the object
-							List<List<Long>> lists = getList(v.values[1],
-									mFirstTriples, mRestTriples, null);
-							if (lists != null) {
-								if (lists.size() > 1) {
-									throw new Exception("Not supported");
-								} else if (lists.size() == 1) {
-									// Add it to the map
-									map.put(v.values[1], lists.get(0));
-								}
-							}
-						}
-
-						// Replace the map in the cacheLists of the schema
-						schema.updateCacheLists(p.getLocation() + "-list", map);
-
-						if (writeToDisk) {
-							throw new Exception("not (yet) implemented");
-						}
-					}
-				}
+			// If we have derived more first or rest triples, then the lists
+			// are regenerated and we should repeat a cycle.
+			Map<String, ListStore> changedLists = new HashMap<String, ListStore>();
+			if (newLists) {
+				buildLists(queries, firstTriples, restTriples, changedLists);
 			}
-		}
 
-		if (current_query == queries.length - 1) {
-			log.debug("Finished iteration " + current_iteration
-					+ ": new_derived=" + new_derived);
+			newDerived = changedPatterns.size() > 0 || newLists;
+			log.debug("Finished iteration " + iteration + ": new_derived="
+					+ newDerived);
 
 			// I finished a cycle. Should I do another one?
-			if (new_derived) {
-				new_derived = false;
-
-				// Cleanup memory
-				context.cleanup();
-				// This clears all finished buckets of a submission.
-
+			if (newDerived) {
 				// Reindex the triples
 				log.debug("Indexing the derivation ...");
 				long time = System.currentTimeMillis();
@@ -558,145 +767,190 @@ public class CalculateClosure extends Action {
 				log.debug("Reloading the rules ...");
 				time = System.currentTimeMillis();
 				if (context.getNumberNodes() > 1) {
-					// Broadcast everything
-					Map<String, long[]> cache1 = schema
-							.getCacheSinglePatterns();
-					Map<String, Map<Long, List<Long>>> cache2 = schema
-							.getCacheLists();
-					context.putObjectInCache("cache1", cache1);
-					context.putObjectInCache("cache2", cache2);
-					context.putObjectInCache("all_der", all_derivation);
+					// Broadcast only what has changed in this iteration
+					context.putObjectInCache("cache1", changedPatterns);
+					context.putObjectInCache("cache2", changedLists);
+					context.putObjectInCache("all_der", delta);
 					long timeBroadcast = System.currentTimeMillis();
 					context.broadcastCacheObjects("cache1", "cache2", "all_der");
 					log.debug("Time to broadcast partial derivation="
 							+ (System.currentTimeMillis() - timeBroadcast));
 
 					// Reload the rules
-					final Lock lock = new Lock();
-					context.putObjectInCache("closureLock", lock);
-					reloadRulesOnOtherNodes(output, null);
-					// Wait until it is finished
-					synchronized (lock) {
-						// while (lock.getCount() != context.getNumberNodes())
-						// Not correct, I think, because the lock is only
-						// incremented after the CollectToNode,
-						// so only once. --Ceriel
-						while (lock.getCount() != 1)
-							lock.wait();
-					}
+					reloadRules(output, null, context);
+					context.putObjectInCache("cache1", null);
+					context.putObjectInCache("cache2", null);
+					context.putObjectInCache("all_der", null);
+					context.broadcastCacheObjects("cache1", "cache2", "all_der");
 				} else {
 					// Reload the rules
 					Ruleset.getInstance().loadRules(false);
 				}
 				log.debug("Finished reloading the rules :"
 						+ (System.currentTimeMillis() - time));
+				iteration++;
+			}
+		} while (newDerived);
+
+		// If there is a new ruleset then we must reload it.
+		final String newList = System
+				.getProperty(Ruleset.RULES_FILE_AFTER_CLOSURE);
+		if (newList != null) {
+			log.debug("Load new ruleset: " + newList);
+			reloadRules(output, newList, context);
+		}
 
-				// Repeat the cycle
-				current_query = 0;
-				current_iteration++;
+		long time = System.currentTimeMillis() - start;
+		log.info("Closure computed in " + time + " ms (" + (iteration + 1)
+				+ " iterations)");
+		context.incrCounter("closure time (ms)", time);
 
-			} else {
+		// Save the closure for the next startup
+		input.writeClosureSnapshot();
+		schema = null;
+	}
 
-				// If there is a new ruleset then we must reload it.
-				final String newList = System
-						.getProperty(Ruleset.RULES_FILE_AFTER_CLOSURE);
-				if (newList != null) {
-					log.debug("Load new ruleset: " + newList);
-					if (context.getNumberNodes() > 1) {
-
-						// Reload the rules
-						final Lock lock = new Lock();
-						context.putObjectInCache("closureLock", lock);
-						reloadRulesOnOtherNodes(output, newList);
-						// Wait until it is finished
-						synchronized (lock) {
-							// while (lock.getCount() !=
-							// context.getNumberNodes())
-							// Not correct, I think, because the lock is only
-							// incremented after the CollectToNode,
-							// so only once. --Ceriel
-							while (lock.getCount() != 1)
-								lock.wait();
-						}
-					} else {
-						Ruleset.getInstance().parseRulesetFile(newList);
-						Ruleset.getInstance().loadRules(false);
-						// QueryPIE.ENABLE_COMPLETENESS = !incomplete;
-					}
+	/**
+	 * (Re)generates the lists of the patterns that use lists from the first
+	 * and rest triples.
+	 */
+	private void buildLists(Pattern[] queries, Set<Triple> firstTriples,
+			Set<Triple> restTriples, Map<String, ListStore> changedLists)
+			throws Exception {
+		// First determine how many schema patterns use lists.
+		List<Pattern> patternsWithQueries = new ArrayList<Pattern>();
+		for (Pattern p : queries) {
+			if (p.p[2].getName() != null
+					&& p.p[2].getName().equals("listhead")) {
+				patternsWithQueries.add(p);
+			}
+		}
+
+		// Index the first and rest triples
+		ListStore.Links links = new ListStore.Links(firstTriples, restTriples);
+
+		// For each of them, retrieve the possible values and
+		// construct the list
+		MultiValue v = new MultiValue(new long[2]);
+		for (Pattern p : patternsWithQueries) {
+			if (p.getPositionVars().length != 2) {
+				throw new Exception("Not supported");
+			}
+			SortedCollectionTuples values = schema.getVarsPrecomputedPattern(p);
+			if (values != null) {
+				ListStore.Builder builder = new ListStore.Builder();
+				for (int i = 0; i < values.size(); ++i) {
+					values.get(v, i);
+					// Get the object
+					builder.addList(v.values[1], links);
 				}
+				ListStore lists = builder.build();
+
+				// Replace the lists in the cacheLists of the schema
+				String location = p.getLocation() + "-list";
+				schema.updateCacheLists(location, lists);
+				changedLists.put(location, lists);
 
 				if (writeToDisk) {
-					throw new Exception("not (yet) implemented!");
+					schema.writeList(location, lists);
 				}
-				return;
 			}
 		}
+	}
 
-		ActionSequence newChain = new ActionSequence();
-
-		// ***** LAUNCH THE NEXT QUERY *****
-		RDFTerm[] terms = queries[current_query + 1].p;
-
-		RuleBCAlgo.applyTo(terms[0], terms[1], terms[2],
-				current_query >= queries.length - 3, newChain);
+	/**
+	 * Adds the triples derived during the iteration to the precomputed
+	 * patterns and to all_derivation. The new triples are calculated in
+	 * parallel, one thread per pattern, while the caches of the schema are
+	 * only accessed from this thread.
+	 *
+	 * @return the patterns that have changed, with their new content.
+	 */
+	private Map<String, long[]> mergeDerivations(ActionContext context,
+			Map<String, PendingDerivation> pending,
+			InMemoryTripleContainer all_derivation,
+			InMemoryTripleContainer delta) throws Exception {
+		Map<String, long[]> changed = new HashMap<String, long[]>();
+		if (pending.size() == 0) {
+			return changed;
+		}
 
-		ActionConf c = ActionFactory.getActionConf(CollectToNode.class);
-		c.setParamStringArray(CollectToNode.SA_TUPLE_FIELDS,
-				RDFTerm.class.getName(), RDFTerm.class.getName(),
-				RDFTerm.class.getName());
-		newChain.add(c);
+		final PendingDerivation[] derivations = pending.values().toArray(
+				new PendingDerivation[pending.size()]);
+		for (PendingDerivation d : derivations) {
+			d.existingTriples = schema.getVarsPrecomputedPattern(d.query);
+		}
 
-		CalculateClosure.applyTo(current_query + 1, new_derived,
-				current_iteration, false, incomplete, newChain);
+		final int[] remaining = { derivations.length };
+		final Exception[] error = { null };
+		for (final PendingDerivation d : derivations) {
+			ThreadPool.createNew(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						d.calculateNewTriples();
+					} catch (Exception e) {
+						log.error("Error", e);
+						synchronized (remaining) {
+							error[0] = e;
+						}
+					} finally {
+						synchronized (remaining) {
+							remaining[0]--;
+							remaining.notify();
+						}
+					}
+				}
+			}, "Merge closure " + d.query);
+		}
+		synchronized (remaining) {
+			while (remaining[0] != 0) {
+				remaining.wait();
+			}
+			if (error[0] != null) {
+				throw error[0];
+			}
+		}
 
-		schema = null;
-		queries = null;
-		firstTriples = null;
-		restTriples = null;
-		all_derivation = null;
+		for (PendingDerivation d : derivations) {
+			long[] newTriples = d.newTriples.toArray();
+			if (newTriples.length == 0) {
+				continue;
+			}
 
-		output.branch(newChain);
-	}
+			// Replace the triples in the cache of the schema
+			long[] et = schema.readTriples(d.query);
+			long[] newSize;
+			if (et != null) {
+				newSize = Arrays.copyOf(et, et.length + newTriples.length);
+				System.arraycopy(newTriples, 0, newSize, et.length,
+						newTriples.length);
+			} else {
+				newSize = newTriples;
+			}
 
-	private List<List<Long>> getList(long head,
-			Map<Long, Collection<Long>> firstTriples,
-			Map<Long, Collection<Long>> restTriples, List<Long> existingList)
-			throws Exception {
+			for (int i = 0; i < newTriples.length; i += 3) {
+				// Add the triple also to all_derivation
+				Triple t = new Triple();
+				t.subject = newTriples[i];
+				t.predicate = newTriples[i + 1];
+				t.object = newTriples[i + 2];
+				all_derivation.addTriple(t, null);
+				delta.addTriple(t, null);
+			}
 
-		if (firstTriples.containsKey(head)) {
-			ArrayList<List<Long>> lists = new ArrayList<List<Long>>();
+			// Update the values in the single pattern cache
+			String signature = d.query.getSignature();
+			schema.updateCacheSinglePatterns(signature, newSize);
+			changed.put(signature, newSize);
 
-			Collection<Long> values = firstTriples.get(head);
-			for (long value : values) {
-				// Create a new list
-				List<Long> newList = new ArrayList<Long>();
-				if (existingList != null) {
-					newList.addAll(existingList);
-				}
-				newList.add(value);
-				// Get the rest
-				if (restTriples.containsKey(head)) {
-					Collection<Long> rests = restTriples.get(head);
-					for (long rest : rests) {
-						if (rest == SchemaTerms.RDF_NIL) { // List is finished
-							lists.add(newList);
-						} else {
-							Collection<List<Long>> l = getList(rest,
-									firstTriples, restTriples, newList);
-							if (l != null) {
-								lists.addAll(l);
-							} else {
-								log.warn("No firstTriple found for " + head);
-							}
-						}
-					}
-				} else {
-					log.warn("No rest value found");
-				}
+			if (d.writeToDisk) {
+				writeTriplesOnDisk(context, d.query, newTriples);
 			}
 
-			return lists;
+			log.debug("Query " + d.query + " has derived "
+					+ (newTriples.length / 3) + " new triples ");
 		}
-		return null;
+		return changed;
 	}
 }
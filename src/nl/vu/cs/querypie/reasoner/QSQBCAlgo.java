@@ -8,6 +8,7 @@ import nl.vu.cs.ajira.actions.ActionOutput;
 import nl.vu.cs.ajira.actions.ActionSequence;
 import nl.vu.cs.ajira.actions.CollectToNode;
 import nl.vu.cs.ajira.actions.QueryInputLayer;
+import nl.vu.cs.ajira.data.types.TBoolean;
 import nl.vu.cs.ajira.data.types.TInt;
 import nl.vu.cs.ajira.data.types.Tuple;
 import nl.vu.cs.ajira.data.types.TupleFactory;
@@ -16,8 +17,13 @@ import nl.vu.cs.ajira.exceptions.ActionNotConfiguredException;
 import nl.vu.cs.querypie.reasoning.expand.QSQEvaluateQuery;
 import nl.vu.cs.querypie.storage.RDFTerm;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class QSQBCAlgo extends Action {
 
+	static final Logger log = LoggerFactory.getLogger(QSQBCAlgo.class);
+
 	public static final String TREE_ID = "tree";
 
 	public static final void applyTo(RDFTerm v1, RDFTerm v2, RDFTerm v3,
@@ -50,6 +56,25 @@ public class QSQBCAlgo extends Action {
 		long v1 = ((RDFTerm) tuple.get(0)).getValue();
 		long v2 = ((RDFTerm) tuple.get(1)).getValue();
 		long v3 = ((RDFTerm) tuple.get(2)).getValue();
+
+		// Is the query already computed by this or another submission?
+		AnswerTable.Subgoal goal = AnswerTable.getInstance().get(v1, v2, v3);
+		if (goal != null) {
+			long[] answers = goal.getAnswers();
+			context.incrCounter("qsq tabled subgoals", 1);
+			RDFTerm s = new RDFTerm();
+			RDFTerm p = new RDFTerm();
+			RDFTerm o = new RDFTerm();
+			TBoolean derived = new TBoolean(false);
+			for (int i = 0; i < answers.length; i += 3) {
+				s.setValue(answers[i]);
+				p.setValue(answers[i + 1]);
+				o.setValue(answers[i + 2]);
+				actionOutput.output(s, p, o, derived);
+			}
+			return;
+		}
+
 		ActionSequence actions = new ActionSequence();
 		QSQEvaluateQuery.evaluateRootQuery(actions, v1, v2, v3, context);
 		actionOutput.branch(actions);
@@ -58,10 +58,21 @@ public class ReasoningUtils {
 			int currentPattern, QueryNode head, int refToMemory,
 			ActionContext context, long list_head, int list_id,
 			boolean recursive, boolean cacheInput) throws Exception {
+		generate_new_chain(output, rule, stratg_id, group_to_single_node,
+				rawTuple, currentPattern, head, refToMemory, context,
+				list_head, list_id, recursive, cacheInput, false);
+	}
+
+	public static final void generate_new_chain(ActionOutput output, Rule rule,
+			int stratg_id, boolean group_to_single_node, QueryNode rawTuple,
+			int currentPattern, QueryNode head, int refToMemory,
+			ActionContext context, long list_head, int list_id,
+			boolean recursive, boolean cacheInput, boolean delta)
+			throws Exception {
 		ActionSequence newChain = new ActionSequence();
 		generate_new_chain(newChain, rule, stratg_id, group_to_single_node,
 				rawTuple, currentPattern, head, refToMemory, context,
-				list_head, list_id, recursive, cacheInput);
+				list_head, list_id, recursive, cacheInput, delta);
 		output.branch(newChain);
 	}
 
@@ -71,6 +82,21 @@ public class ReasoningUtils {
 			int refToMemory, ActionContext context, long list_head,
 			int list_id, boolean recursive, boolean cacheInput)
 			throws Exception {
+		generate_new_chain(newChain, rule, stratg_id, group_to_single_node,
+				rawTuple, currentPattern, head, refToMemory, context,
+				list_head, list_id, recursive, cacheInput, false);
+	}
+
+	/**
+	 * If delta is true, the pattern is read only from the triples inferred in
+	 * the last round of RuleBCAlgo (see RDFStorage.getIterator).
+	 */
+	public static final void generate_new_chain(ActionSequence newChain,
+			Rule rule, int stratg_id, boolean group_to_single_node,
+			QueryNode rawTuple, int currentPattern, QueryNode head,
+			int refToMemory, ActionContext context, long list_head,
+			int list_id, boolean recursive, boolean cacheInput, boolean delta)
+			throws Exception {
 		// Read from the dummy layer
 		if (rawTuple.s == Schema.SCHEMA_SUBSET || recursive) {
 
@@ -85,15 +111,19 @@ public class ReasoningUtils {
 									new TInt(rawTuple.getId()))));
 			newChain.add(c);
 		} else { // Read from the default layer
-			ReasoningUtils.getResultsQuery(newChain, TupleFactory.newTuple(
-					new RDFTerm(rawTuple.s), new RDFTerm(rawTuple.p),
-					new RDFTerm(rawTuple.o)), false);
+			ReasoningUtils.getResultsQuery(newChain, delta ? TupleFactory
+					.newTuple(new RDFTerm(rawTuple.s), new RDFTerm(rawTuple.p),
+							new RDFTerm(rawTuple.o), new TBoolean(true))
+					: TupleFactory.newTuple(new RDFTerm(rawTuple.s),
+							new RDFTerm(rawTuple.p), new RDFTerm(rawTuple.o)),
+					false);
 			newChain.add(ActionFactory.getActionConf(SetAsExplicit.class));
 		}
 
 		if (recursive && rawTuple.s != Schema.SCHEMA_SUBSET) {
 			ActionConf c = ActionFactory.getActionConf(ExpandQuery.class);
 			c.setParamBoolean(ExpandQuery.B_EXPLICIT, true);
+			c.setParamBoolean(ExpandQuery.B_DELTA, delta);
 			newChain.add(c);
 		}
 
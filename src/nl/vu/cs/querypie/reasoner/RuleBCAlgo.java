@@ -33,6 +33,13 @@ public class RuleBCAlgo extends Action {
 	public static final int L_FIELD2 = 1;
 	public static final int L_FIELD3 = 2;
 	public static final int B_EXPLICIT = 3;
+	public static final int I_ROUND = 4;
+
+	/**
+	 * Inferred triples that were new in the previous round. The rounds after
+	 * the first read only these triples through the linear parts of the tree.
+	 */
+	public static final String DELTA = "deltaIntermediateTuples";
 
 	@Override
 	public void registerActionParameters(ActionConf conf) {
@@ -40,15 +47,23 @@ public class RuleBCAlgo extends Action {
 		conf.registerParameter(L_FIELD2, "L_FIELD2", 0, true);
 		conf.registerParameter(L_FIELD3, "L_FIELD3", 0, true);
 		conf.registerParameter(B_EXPLICIT, "B_EXPLICIT", false, false);
+		conf.registerParameter(I_ROUND, "I_ROUND", 0, false);
 	}
 
 	private RDFTerm[] triple = new RDFTerm[3];
 	private InMemoryTripleContainer outputContainer = null;
 	private boolean explicit;
+	private int round;
 
 	public static void applyTo(RDFTerm v1, RDFTerm v2, RDFTerm v3,
 			boolean explicit, ActionSequence actions)
 			throws ActionNotConfiguredException {
+		applyTo(v1, v2, v3, explicit, 0, actions);
+	}
+
+	public static void applyTo(RDFTerm v1, RDFTerm v2, RDFTerm v3,
+			boolean explicit, int round, ActionSequence actions)
+			throws ActionNotConfiguredException {
 
 		ActionConf c = ActionFactory.getActionConf(QueryInputLayer.class);
 		c.setParamString(QueryInputLayer.S_INPUTLAYER,
@@ -61,6 +76,7 @@ public class RuleBCAlgo extends Action {
 
 		c = ActionFactory.getActionConf(ExpandQuery.class);
 		c.setParamBoolean(ExpandQuery.B_EXPLICIT, explicit);
+		c.setParamBoolean(ExpandQuery.B_DELTA, round > 0);
 		actions.add(c);
 
 		c = ActionFactory.getActionConf(CollectToNode.class);
@@ -77,12 +93,14 @@ public class RuleBCAlgo extends Action {
 		c.setParamLong(L_FIELD2, v2.getValue());
 		c.setParamLong(L_FIELD3, v3.getValue());
 		c.setParamBoolean(B_EXPLICIT, explicit);
+		c.setParamInt(I_ROUND, round);
 		actions.add(c);
 	}
 
 	@Override
 	public void startProcess(ActionContext context) throws Exception {
 		explicit = getParamBoolean(B_EXPLICIT);
+		round = getParamInt(I_ROUND);
 		outputContainer = (InMemoryTripleContainer) context
 				.getObjectFromCache("outputSoFar");
 		if (outputContainer == null) {
@@ -186,19 +204,29 @@ public class RuleBCAlgo extends Action {
 		InMemoryTripleContainer triples = collectedTriples[0];
 		InMemoryTripleContainer explicitTriples = collectedTriples[1];
 
-		if (triples != null)
+		if (triples != null) {
 			context.incrCounter("total results", triples.size());
+			context.incrCounter("BC round " + round + " delta", triples.size());
+		}
 
 		// Check whether I need to relaunch the query
 		if (triples != null && triples.size() > 0) {
+			// Copy the new triples before they are merged in the input of the
+			// next round (the container itself might become the input).
+			InMemoryTripleContainer delta = new InMemoryTripleContainer();
+			delta.addAll(triples);
+			delta.index();
+			context.putObjectInCache(DELTA, delta);
+
 			calculateIntermediateTriplesForNextRound(context, triples,
 					explicitTriples);
+			context.broadcastCacheObjects(DELTA);
 
 			/***** Repeat reasoning *****/
 			ActionSequence seq = new ActionSequence();
 			RuleBCAlgo.applyTo(new RDFTerm(getParamLong(L_FIELD1)),
 					new RDFTerm(getParamLong(L_FIELD2)), new RDFTerm(
-							getParamLong(L_FIELD3)), explicit, seq);
+							getParamLong(L_FIELD3)), explicit, round + 1, seq);
 			output.branch(seq);
 		} else {
 			if (explicitTriples != null)
@@ -213,8 +241,9 @@ public class RuleBCAlgo extends Action {
 		context.putObjectInCache("inputIntermediateTuples", null);
 		context.putObjectInCache("outputSoFar", null);
 		context.putObjectInCache("explicitIntermediateTuples", null);
+		context.putObjectInCache(DELTA, null);
 		context.broadcastCacheObjects("tree", "intermediateTuples",
 				"inputIntermediateTuples", "explicitIntermediateTuples",
-				"outputSoFar");
+				"outputSoFar", DELTA);
 	}
 }
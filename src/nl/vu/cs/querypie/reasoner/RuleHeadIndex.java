@@ -0,0 +1,89 @@
+package nl.vu.cs.querypie.reasoner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.vu.cs.querypie.reasoner.rules.Rule;
+
+/**
+ * Index on the heads of the rules. For every position of the head, it maps
+ * each constant to the rules that have either that constant or a variable in
+ * that position. The rules keep the order of the ruleset, so that the
+ * expansion does not change. The candidates must still be checked with the
+ * complete head.
+ */
+public class RuleHeadIndex<R extends Rule> {
+
+	private final R[] all;
+	private final R[][] wildcards;
+	private final List<Map<Long, R[]>> constants;
+
+	@SuppressWarnings("unchecked")
+	public RuleHeadIndex(R[] rules) {
+		all = rules;
+		wildcards = (R[][]) new Rule[3][];
+		constants = new ArrayList<Map<Long, R[]>>(3);
+		R[] empty = Arrays.copyOf(rules, 0);
+
+		for (int i = 0; i < 3; ++i) {
+			// Rules with a variable in this position
+			List<R> w = new ArrayList<R>();
+			Map<Long, List<R>> c = new HashMap<Long, List<R>>();
+			for (R rule : rules) {
+				long v = rule.HEAD.p[i].getValue();
+				if (v < 0) {
+					w.add(rule);
+				} else if (!c.containsKey(v)) {
+					c.put(v, new ArrayList<R>());
+				}
+			}
+
+			// Merge them with the rules with a constant
+			Map<Long, R[]> m = new HashMap<Long, R[]>();
+			for (Map.Entry<Long, List<R>> e : c.entrySet()) {
+				List<R> list = e.getValue();
+				for (R rule : rules) {
+					long v = rule.HEAD.p[i].getValue();
+					if (v < 0 || v == e.getKey()) {
+						list.add(rule);
+					}
+				}
+				m.put(e.getKey(), list.toArray(empty));
+			}
+			wildcards[i] = w.toArray(empty);
+			constants.add(m);
+		}
+	}
+
+	private R[] get(int pos, long v) {
+		R[] rules = constants.get(pos).get(v);
+		return rules != null ? rules : wildcards[pos];
+	}
+
+	/**
+	 * Returns the rules whose head might unify with the query. Only the
+	 * constants of the query are used to filter the rules.
+	 */
+	public R[] getCandidates(long s, long p, long o) {
+		R[] output = all;
+		if (p >= 0) {
+			output = get(1, p);
+		}
+		if (o >= 0) {
+			R[] c = get(2, o);
+			if (c.length < output.length) {
+				output = c;
+			}
+		}
+		if (s >= 0) {
+			R[] c = get(0, s);
+			if (c.length < output.length) {
+				output = c;
+			}
+		}
+		return output;
+	}
+}
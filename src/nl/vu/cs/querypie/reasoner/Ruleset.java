@@ -5,6 +5,8 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -13,7 +15,11 @@ import nl.vu.cs.querypie.reasoner.rules.Rule1;
 import nl.vu.cs.querypie.reasoner.rules.Rule2;
 import nl.vu.cs.querypie.reasoner.rules.Rule3;
 import nl.vu.cs.querypie.reasoner.rules.Rule4;
+import nl.vu.cs.querypie.reasoner.rules.executors.CompiledRule;
 import nl.vu.cs.querypie.storage.Schema;
+import nl.vu.cs.querypie.storage.SchemaTerms;
+import nl.vu.cs.querypie.storage.memory.TupleSet;
+import nl.vu.cs.querypie.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +28,7 @@ public class Ruleset {
 
 	static final public String RULES_FILE = "rules.list";
 	static final public String RULES_FILE_AFTER_CLOSURE = "rules.list_after_closure";
+	static final public String COMPILE_RULES = "rules.compile";
 
 	static final Logger log = LoggerFactory.getLogger(Ruleset.class);
 
@@ -43,9 +50,21 @@ public class Ruleset {
 	private Rule2[] arules2;
 	private Rule3[] arules3;
 	private Rule4[] arules4;
+
+	private RuleHeadIndex<Rule1> index1;
+	private RuleHeadIndex<Rule2> index2;
+	private RuleHeadIndex<Rule3> index3;
+	private RuleHeadIndex<Rule4> index4;
+
+	// Compiled executors of the rules without generic patterns (or null).
+	// Compilation is off unless -Drules.compile=true is set
+	private CompiledRule[] compiled1;
+	private CompiledRule[] compiled4;
 	
 	private boolean qsq = false;
 
+	private int version = 0;
+
 	private List<Rule1> activeInactiveRules;
 
 	public void parseRulesetFile(String rulesFile) throws IOException {
@@ -210,6 +229,16 @@ public class Ruleset {
 
 		activeInactiveRules = new ArrayList<Rule1>();
 
+		// Read the precomputed patterns of all the rules in parallel
+		List<Pattern> precomputed = new ArrayList<Pattern>();
+		for (int i = 0; i < types.length; ++i) {
+			if (sec_precomps[i] != null && sec_locations[i] != null) {
+				Collections.addAll(precomputed,
+						Rule1.parse_patterns(sec_precomps[i], sec_locations[i]));
+			}
+		}
+		Schema.getInstance().loadPatterns(precomputed);
+
 		for (int i = 0; i < types.length; ++i) {
 			long time = System.currentTimeMillis();
 
@@ -262,12 +291,44 @@ public class Ruleset {
 		arules2 = rules2.toArray(new Rule2[rules2.size()]);
 		arules3 = rules3.toArray(new Rule3[rules3.size()]);
 		arules4 = rules4.toArray(new Rule4[rules4.size()]);
+		index1 = new RuleHeadIndex<Rule1>(arules1);
+		index2 = new RuleHeadIndex<Rule2>(arules2);
+		index3 = new RuleHeadIndex<Rule3>(arules3);
+		index4 = new RuleHeadIndex<Rule4>(arules4);
+		compileRules();
+		version++;
 
 		log.info("Finished loading the ruleset. Memtotal: "
 				+ Runtime.getRuntime().totalMemory() + " free mem: "
 				+ Runtime.getRuntime().freeMemory());
 	}
 
+	private void compileRules() {
+		compiled1 = new CompiledRule[rules1.size()];
+		compiled4 = new CompiledRule[rules4.size()];
+		if (!"true".equals(System.getProperty(COMPILE_RULES))) {
+			return;
+		}
+
+		int n = 0;
+		for (int i = 0; i < compiled1.length; ++i) {
+			compiled1[i] = CompiledRule.compile(rules1.get(i));
+			if (compiled1[i] != null) {
+				n++;
+			}
+		}
+		for (int i = 0; i < compiled4.length; ++i) {
+			Rule4 rule = rules4.get(i);
+			if (rule.GENERICS_STRATS == null) {
+				compiled4[i] = CompiledRule.compile(rule);
+				if (compiled4[i] != null) {
+					n++;
+				}
+			}
+		}
+		log.debug("Compiled " + n + " rules");
+	}
+
 	private Ruleset() {
 		try {
 			parseRulesetFile(System.getProperty(RULES_FILE));
@@ -289,6 +350,13 @@ public class Ruleset {
 		return ruleset;
 	}
 
+	/**
+	 * Returns a number that changes every time the rules are (re)loaded.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
 	public Rule1[] getAllActiveFirstTypeRules() {
 		return arules1;
 	}
@@ -305,10 +373,42 @@ public class Ruleset {
 		return arules4;
 	}
 
+	/**
+	 * The following methods return only the active rules whose head might
+	 * unify with the pattern (see RuleHeadIndex).
+	 */
+	public Rule1[] getActiveFirstTypeRules(long s, long p, long o) {
+		return index1.getCandidates(s, p, o);
+	}
+
+	public Rule2[] getActiveSecondTypeRules(long s, long p, long o) {
+		return index2.getCandidates(s, p, o);
+	}
+
+	public Rule3[] getActiveThirdTypeRules(long s, long p, long o) {
+		return index3.getCandidates(s, p, o);
+	}
+
+	public Rule4[] getActiveFourthTypeRules(long s, long p, long o) {
+		return index4.getCandidates(s, p, o);
+	}
+
 	public Rule1 getRuleFirstType(int index) {
 		return rules1.get(index);
 	}
 
+	/**
+	 * Returns the compiled executor of the rule, or null if the rule must be
+	 * interpreted.
+	 */
+	public CompiledRule getCompiledRuleFirstType(int index) {
+		return compiled1[index];
+	}
+
+	public CompiledRule getCompiledRuleFourthType(int index) {
+		return compiled4[index];
+	}
+
 	public Rule2 getRuleSecondType(int index) {
 		return rules2.get(index);
 	}
@@ -321,6 +421,183 @@ public class Ruleset {
 		return rules4.get(index);
 	}
 
+	/**
+	 * Returns true if the pattern unifies with the other one. Where the
+	 * pattern has a variable and the other one a constant, the constant must
+	 * be among the allowed values of the variable (if they are known).
+	 */
+	private static boolean unify(Pattern p, Collection<Long>[] allowed,
+			Pattern other) {
+		for (int i = 0; i < 3; ++i) {
+			long v1 = p.p[i].getValue();
+			long v2 = other.p[i].getValue();
+			if (v2 >= 0) {
+				if (v1 >= 0 ? v1 != v2 : allowed != null
+						&& allowed[i] != null && !allowed[i].contains(v2)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean matchesAny(Pattern p, Collection<Long>[] allowed,
+			long[] triples) {
+		Pattern t = new Pattern();
+		for (int i = 0; i < triples.length; i += 3) {
+			t.p[0].setValue(triples[i]);
+			t.p[1].setValue(triples[i + 1]);
+			t.p[2].setValue(triples[i + 2]);
+			if (unify(p, allowed, t)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Pattern[] parsePatterns(String[] patterns) {
+		if (patterns == null) {
+			return new Pattern[0];
+		}
+		Pattern[] output = new Pattern[patterns.length];
+		for (int i = 0; i < patterns.length; ++i) {
+			output[i] = Utils.parsePattern(patterns[i]);
+		}
+		return output;
+	}
+
+	/**
+	 * Returns the values that the variables of the pattern can take in the
+	 * rule, given the current precomputed tuples. Null means no restriction.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Collection<Long>[] getAllowedValues(Rule1 rule,
+			Pattern[] precomps, Pattern p) throws Exception {
+		Collection<Long>[] allowed = new Collection[3];
+		for (int i = 0; i < 3; ++i) {
+			String name = p.p[i].getName();
+			if (name == null) {
+				continue;
+			}
+			boolean bound = false;
+			for (Pattern precomp : precomps) {
+				bound |= precomp.getAllVars().contains(name);
+			}
+			if (!bound) {
+				continue;
+			}
+			TupleSet tuples = rule.precomputed_tuples;
+			if (tuples == null || tuples.size() == 0) {
+				// The rule cannot fire
+				allowed[i] = Collections.emptySet();
+			} else if (tuples.getNameBindings().contains(name)) {
+				allowed[i] = tuples.getAllValues(name, true);
+			}
+		}
+		return allowed;
+	}
+
+	/**
+	 * Returns the patterns among candidates whose content might change when
+	 * the triples are added to the input, i.e. the patterns that match one of
+	 * the triples or the head of a rule that can fire because of them
+	 * (transitively).
+	 *
+	 * A rule can fire with new bindings for its precomputed patterns if one of
+	 * them is affected. Otherwise, its variables can only take the values of
+	 * the current precomputed tuples, and the rule fires only if one of its
+	 * generic patterns is affected. Repeated variables are not checked, so the
+	 * result can contain more patterns than necessary.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public Pattern[] getAffectedPatterns(long[] triples, Pattern[] candidates)
+			throws Exception {
+		int n = types.length;
+		Pattern[] heads = new Pattern[n];
+		Pattern[][] precomps = new Pattern[n][];
+		Pattern[][] generics = new Pattern[n][];
+		Collection<Long>[][] headAllowed = new Collection[n][];
+		Collection<Long>[][][] genericsAllowed = new Collection[n][][];
+		for (int i = 0; i < n; ++i) {
+			Rule1 rule = activeInactiveRules.get(i);
+			heads[i] = rule.HEAD;
+			precomps[i] = parsePatterns(sec_precomps[i]);
+			generics[i] = parsePatterns(sec_generics[i]);
+			headAllowed[i] = getAllowedValues(rule, precomps[i], heads[i]);
+			genericsAllowed[i] = new Collection[generics[i].length][];
+			for (int j = 0; j < generics[i].length; ++j) {
+				genericsAllowed[i][j] = getAllowedValues(rule, precomps[i],
+						generics[i][j]);
+			}
+		}
+
+		Pattern first = Utils.parsePattern("?s " + SchemaTerms.RDF_FIRST
+				+ " ?o");
+		Pattern rest = Utils.parsePattern("?s " + SchemaTerms.RDF_REST + " ?o");
+		boolean lists = matchesAny(first, null, triples)
+				|| matchesAny(rest, null, triples);
+
+		boolean[] unlocked = new boolean[n];
+		boolean[] fired = new boolean[n];
+		boolean changed = true;
+		boolean firstPass = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i < n; ++i) {
+				if (unlocked[i]) {
+					continue;
+				}
+
+				// Are the precomputed patterns affected?
+				boolean u = types[i] == 4 && lists;
+				for (int j = 0; j < precomps[i].length && !u; ++j) {
+					u = firstPass && matchesAny(precomps[i][j], null, triples);
+					for (int m = 0; m < n && !u; ++m) {
+						u = fired[m]
+								&& unify(heads[m], unlocked[m] ? null
+										: headAllowed[m], precomps[i][j]);
+					}
+				}
+
+				// Are the generic patterns affected?
+				boolean f = u || fired[i];
+				for (int j = 0; j < generics[i].length && !f; ++j) {
+					f = firstPass
+							&& matchesAny(generics[i][j], genericsAllowed[i][j],
+									triples);
+					for (int m = 0; m < n && !f; ++m) {
+						f = fired[m]
+								&& unify(generics[i][j], genericsAllowed[i][j],
+										heads[m]);
+					}
+				}
+
+				if (u != unlocked[i] || f != fired[i]) {
+					unlocked[i] = u;
+					fired[i] = f;
+					changed = true;
+					lists |= unify(heads[i], u ? null : headAllowed[i], first)
+							|| unify(heads[i], u ? null : headAllowed[i], rest);
+				}
+			}
+			firstPass = false;
+		}
+
+		List<Pattern> output = new ArrayList<Pattern>();
+		for (Pattern c : candidates) {
+			boolean affected = matchesAny(c, null, triples);
+			for (int i = 0; i < n && !affected; ++i) {
+				affected = fired[i]
+						&& unify(heads[i], unlocked[i] ? null : headAllowed[i],
+								c);
+			}
+			if (affected) {
+				output.add(c);
+			}
+		}
+		return output.toArray(new Pattern[output.size()]);
+	}
+
 	public Pattern[] getPrecomputedPatterns() {
 		Set<Pattern> listPatterns = new HashSet<Pattern>();
 
@@ -0,0 +1,381 @@
+package nl.vu.cs.querypie.reasoner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.vu.cs.querypie.storage.Schema;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runtime statistics of the strategies of the rules with more than one way to
+ * evaluate the generic patterns. Every execution of a step of a strategy (the
+ * evaluation of one of its generic patterns) is recorded with the tuples it
+ * read and derived, its time and the chains it branched. The cost of a step
+ * is an exponentially weighted moving average, kept separately for every
+ * combination of bound positions of the head, since the best order of the
+ * patterns depends on them. The cost of a strategy is the sum of the costs of
+ * its steps, each weighted by the number of times it runs for one execution
+ * of the first step.
+ *
+ * The expansion keeps the static choice until it has enough samples, then
+ * picks the cheapest strategy and, once in a while, tries another one. When
+ * the recorded costs change the cheapest strategy of a rule, the generation
+ * changes, so that the expansions that used the previous one are not reused.
+ *
+ * The statistics of a rule are identified by its signature (see
+ * Rule2.getSignature), so they remain valid when the ruleset is reloaded or
+ * the rules are moved in the file. If the system property
+ * rules.strategy_stats is set, the statistics are read from that file at
+ * startup and written back at shutdown.
+ */
+public class StrategyStats {
+
+	static final Logger log = LoggerFactory.getLogger(StrategyStats.class);
+
+	static final public String STATS_FILE = "rules.strategy_stats";
+
+	private static final String HEADER = "# strategy step boundMask samples inputs outputs time(ns) branches cost(ns) rule";
+
+	/** Weight of the last sample in the moving average */
+	public static final double ALPHA = 0.2;
+	/** Samples of a strategy before its cost is trusted */
+	public static final int MIN_SAMPLES = 3;
+	/** Probability of trying another strategy */
+	public static final double EXPLORATION = 0.05;
+	/** Cost (ns) of branching a new chain */
+	public static final long BRANCH_COST = 1000000;
+
+	private static final StrategyStats stats = new StrategyStats();
+
+	public static StrategyStats getInstance() {
+		return stats;
+	}
+
+	public static final class Entry {
+		public final String rule;
+		public final int strategy;
+		public final int step;
+		public final int boundMask;
+
+		long samples;
+		long inputs;
+		long outputs;
+		long time;
+		long branches;
+		double cost;
+
+		Entry(String rule, int strategy, int step, int boundMask) {
+			this.rule = rule;
+			this.strategy = strategy;
+			this.step = step;
+			this.boundMask = boundMask;
+		}
+
+		public synchronized long getSamples() {
+			return samples;
+		}
+
+		public synchronized long getInputs() {
+			return inputs;
+		}
+
+		public synchronized long getOutputs() {
+			return outputs;
+		}
+
+		/** Total time (ns) */
+		public synchronized long getTime() {
+			return time;
+		}
+
+		public synchronized long getBranches() {
+			return branches;
+		}
+
+		/** Moving average of the cost (ns) of one execution */
+		public synchronized double getCost() {
+			return cost;
+		}
+
+		synchronized void add(long inputs, long outputs, long time,
+				long branches) {
+			double c = time + branches * BRANCH_COST;
+			cost = samples == 0 ? c : ALPHA * c + (1 - ALPHA) * cost;
+			samples++;
+			this.inputs += inputs;
+			this.outputs += outputs;
+			this.time += time;
+			this.branches += branches;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return strategy + " " + step + " " + boundMask + " " + samples
+					+ " " + inputs
+					+ " " + outputs + " " + time + " " + branches + " " + cost
+					+ " " + rule;
+		}
+	}
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final Random random = new Random();
+	private final AtomicInteger generation = new AtomicInteger();
+	private final AtomicInteger explorations = new AtomicInteger();
+	private final Map<String, Integer> best = new HashMap<String, Integer>();
+	// Number of strategies that have samples, by rule and bound positions
+	private final Map<String, Integer> nStrategies = new HashMap<String, Integer>();
+
+	private StrategyStats() {
+		final String file = System.getProperty(STATS_FILE);
+		if (file != null) {
+			try {
+				load(file);
+			} catch (Exception e) {
+				log.warn("Cannot read the statistics from " + file, e);
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					try {
+						save(file);
+					} catch (Exception e) {
+						log.warn("Cannot write the statistics to " + file, e);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Positions of the head that are bound (bit i for the position i).
+	 */
+	public static int getBoundMask(long s, long p, long o) {
+		return (s != Schema.ALL_RESOURCES ? 1 : 0)
+				| (p != Schema.ALL_RESOURCES ? 2 : 0)
+				| (o != Schema.ALL_RESOURCES ? 4 : 0);
+	}
+
+	private static String getKey(String rule, int boundMask) {
+		return boundMask + "-" + rule;
+	}
+
+	private synchronized Entry getEntry(String rule, int strategy, int step,
+			int boundMask, boolean create) {
+		String key = strategy + "-" + step + "-" + getKey(rule, boundMask);
+		Entry e = entries.get(key);
+		if (e == null && create) {
+			e = new Entry(rule, strategy, step, boundMask);
+			entries.put(key, e);
+			if (step == 0) {
+				String k = getKey(rule, boundMask);
+				Integer n = nStrategies.get(k);
+				if (n == null || n <= strategy) {
+					nStrategies.put(k, strategy + 1);
+				}
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Returns the cost of one execution of the strategy, or -1 if its first
+	 * step does not have enough samples.
+	 */
+	private double getCost(String rule, int strategy, int boundMask) {
+		Entry first = getEntry(rule, strategy, 0, boundMask, false);
+		long samples = first == null ? 0 : first.getSamples();
+		if (samples < MIN_SAMPLES) {
+			return -1;
+		}
+		double cost = first.getCost();
+		for (int step = 1;; ++step) {
+			Entry e = getEntry(rule, strategy, step, boundMask, false);
+			if (e == null) {
+				return cost;
+			}
+			cost += e.getCost() * e.getSamples() / samples;
+		}
+	}
+
+	/**
+	 * Returns the cheapest strategy among nStrategies, or -1 if none has
+	 * enough samples.
+	 */
+	private int getCheapest(String rule, int nStrategies, int boundMask) {
+		int strategy = -1;
+		double min = Double.MAX_VALUE;
+		for (int i = 0; i < nStrategies; ++i) {
+			double cost = getCost(rule, i, boundMask);
+			if (cost >= 0 && cost < min) {
+				min = cost;
+				strategy = i;
+			}
+		}
+		return strategy;
+	}
+
+	/**
+	 * Remembers the preferred strategy, and changes the generation if it is
+	 * not the previous one.
+	 */
+	private void setBest(String rule, int boundMask, int strategy) {
+		String key = getKey(rule, boundMask);
+		synchronized (best) {
+			Integer previous = best.put(key, strategy);
+			if (previous != null && previous != strategy) {
+				generation.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Records one execution of a step of the strategy of the rule with the
+	 * given signature.
+	 */
+	public void record(String rule, int strategy, int step, int boundMask,
+			long inputs, long outputs, long time, long branches) {
+		getEntry(rule, strategy, step, boundMask, true).add(inputs, outputs,
+				time, branches);
+
+		// The new cost may change the cheapest strategy
+		int n;
+		synchronized (this) {
+			Integer v = nStrategies.get(getKey(rule, boundMask));
+			n = v == null ? 0 : v;
+		}
+		int cheapest = getCheapest(rule, n, boundMask);
+		if (cheapest != -1) {
+			setBest(rule, boundMask, cheapest);
+		}
+	}
+
+	/**
+	 * Returns the strategy to use among nStrategies. staticChoice is the
+	 * strategy chosen on the structure of the patterns, and it is kept until
+	 * the statistics say otherwise.
+	 */
+	public int choose(String rule, int nStrategies, int boundMask,
+			int staticChoice) {
+		if (getCost(rule, staticChoice, boundMask) < 0) {
+			return staticChoice;
+		}
+
+		// Once in a while, try the strategy with fewest samples
+		boolean explore;
+		synchronized (random) {
+			explore = random.nextDouble() < EXPLORATION;
+		}
+		if (explore) {
+			int strategy = staticChoice;
+			long min = Long.MAX_VALUE;
+			for (int i = 0; i < nStrategies; ++i) {
+				Entry o = getEntry(rule, i, 0, boundMask, false);
+				long samples = o == null ? 0 : o.getSamples();
+				if (samples < min) {
+					min = samples;
+					strategy = i;
+				}
+			}
+			explorations.incrementAndGet();
+			return strategy;
+		}
+
+		// The static choice has enough samples, so there is a cheapest one
+		int strategy = getCheapest(rule, nStrategies, boundMask);
+		setBest(rule, boundMask, strategy);
+		return strategy;
+	}
+
+	/**
+	 * Changes every time the preferred strategy of a rule changes.
+	 */
+	public int getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Number of choices that were made to explore another strategy.
+	 */
+	public int getExplorations() {
+		return explorations.get();
+	}
+
+	public synchronized List<Entry> getEntries() {
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		nStrategies.clear();
+		synchronized (best) {
+			best.clear();
+		}
+		generation.incrementAndGet();
+	}
+
+	public synchronized void load(String file) throws IOException {
+		if (!new File(file).exists()) {
+			return;
+		}
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line = reader.readLine();
+			if (line == null || !line.equals(HEADER)) {
+				// Written by an older version, without the steps
+				log.warn("Ignoring the statistics in the old format of "
+						+ file);
+				return;
+			}
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] f = line.split(" ", 10);
+				Entry e = getEntry(f[9], Integer.valueOf(f[0]),
+						Integer.valueOf(f[1]), Integer.valueOf(f[2]), true);
+				e.samples = Long.valueOf(f[3]);
+				e.inputs = Long.valueOf(f[4]);
+				e.outputs = Long.valueOf(f[5]);
+				e.time = Long.valueOf(f[6]);
+				e.branches = Long.valueOf(f[7]);
+				e.cost = Double.valueOf(f[8]);
+			}
+		} finally {
+			reader.close();
+		}
+		log.info("Loaded the statistics of " + entries.size()
+				+ " steps of strategies from " + file);
+	}
+
+	public synchronized void save(String file) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try {
+			writer.print(this);
+		} finally {
+			writer.close();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder b = new StringBuilder();
+		b.append(HEADER).append('\n');
+		for (Entry e : entries.values()) {
+			b.append(e).append('\n');
+		}
+		return b.toString();
+	}
+}
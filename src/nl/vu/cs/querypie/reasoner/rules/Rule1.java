@@ -93,7 +93,8 @@ public class Rule1 extends Rule {
 	}
     }
 
-    protected Pattern[] parse_patterns(String[] patterns, String[] locations) {
+    public static Pattern[] parse_patterns(String[] patterns,
+	    String[] locations) {
 	Pattern[] default_gen = new Pattern[patterns.length];
 	for (int i = 0; i < patterns.length; ++i) {
 	    default_gen[i] = Utils.parsePattern(patterns[i]);
@@ -23,6 +23,8 @@ public class Rule2 extends Rule1 {
 
     public GenericVars[] GENERICS_STRATS;
 
+    private String signature = null;
+
     static public class GenericVars {
 	public Pattern[] patterns;
 	public Mapping[][] pos_shared_vars_precomp_generics;
@@ -513,6 +515,25 @@ public class Rule2 extends Rule1 {
 	return lists;
     }
 
+    /**
+     * Returns the head, the precomputed patterns and the order of the generic
+     * patterns in every strategy. Unlike the id, it does not depend on the
+     * position of the rule in the ruleset, so the statistics of the
+     * strategies (see StrategyStats) can be kept across reloads.
+     */
+    public String getSignature() {
+	if (signature == null) {
+	    String s = HEAD + ":-" + Arrays.toString(PRECOMPS);
+	    if (GENERICS_STRATS != null) {
+		for (GenericVars g : GENERICS_STRATS) {
+		    s += "," + Arrays.toString(g.patterns);
+		}
+	    }
+	    signature = s;
+	}
+	return signature;
+    }
+
     public String toString() {
 	return HEAD
 		+ ":-"
@@ -4,7 +4,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import nl.vu.cs.querypie.reasoner.Pattern;
@@ -12,6 +11,7 @@ import nl.vu.cs.querypie.reasoning.expand.QueryNode;
 import nl.vu.cs.querypie.storage.RDFTerm;
 import nl.vu.cs.querypie.storage.Schema;
 import nl.vu.cs.querypie.storage.memory.CollectionTuples;
+import nl.vu.cs.querypie.storage.memory.ListStore;
 import nl.vu.cs.querypie.storage.memory.Mapping;
 import nl.vu.cs.querypie.storage.memory.MultiValue;
 import nl.vu.cs.querypie.storage.memory.TupleMap;
@@ -26,7 +26,7 @@ public class Rule4 extends Rule3 {
 
 	// Datastructures between the list and the head
 	public int pos_head_list_in_precomps;
-	public Map<Long, List<Long>> all_lists;
+	public ListStore all_lists;
 	public Mapping[] last_generic_first_list_mapping;
 
 	public Pattern[] LIST_PATTERNS;
@@ -83,7 +83,7 @@ public class Rule4 extends Rule3 {
 
 		// Join the precomp. patterns against the list
 		precomputed_tuples = precomputed_tuples.filter(
-				pos_head_list_in_precomps, all_lists.keySet());
+				pos_head_list_in_precomps, all_lists.getHeads());
 		if (precomputed_tuples.size() == 0) {
 			isActive = false;
 			return;
@@ -143,8 +143,8 @@ public class Rule4 extends Rule3 {
 			}
 
 			MultiValue k1 = new MultiValue(new long[1]);
-			for (Map.Entry<Long, List<Long>> entry : all_lists.entrySet()) {
-				k1.values[0] = entry.getKey();
+			for (int l = 0; l < all_lists.size(); ++l) {
+				k1.values[0] = all_lists.getHead(l);
 				CollectionTuples tuples = map.get(k1);
 				if (tuples != null) {
 					for (int j = tuples.getStart(); j < tuples.getEnd(); j += tuples
@@ -152,8 +152,9 @@ public class Rule4 extends Rule3 {
 						long[] original_tuple = new long[tuples.getSizeTuple()];
 						System.arraycopy(tuples.getRawValues(), j,
 								original_tuple, 0, tuples.getSizeTuple());
-						for (long el : entry.getValue()) {
-							original_tuple[pos_head] = el;
+						for (int e = 0; e < all_lists.getLength(l); ++e) {
+							original_tuple[pos_head] = all_lists.getElement(
+									l, e);
 							precomputed_tuples2.addTuple(original_tuple);
 						}
 					}
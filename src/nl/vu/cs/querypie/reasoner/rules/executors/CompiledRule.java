@@ -0,0 +1,240 @@
+package nl.vu.cs.querypie.reasoner.rules.executors;
+
+import java.util.Collection;
+
+import nl.vu.cs.ajira.actions.ActionContext;
+import nl.vu.cs.ajira.actions.ActionOutput;
+import nl.vu.cs.querypie.reasoner.rules.Rule1;
+import nl.vu.cs.querypie.storage.RDFTerm;
+import nl.vu.cs.querypie.storage.Schema;
+import nl.vu.cs.querypie.storage.memory.CollectionTuples;
+import nl.vu.cs.querypie.storage.memory.MultiValue;
+import nl.vu.cs.querypie.storage.memory.SortedCollectionTuples;
+import nl.vu.cs.querypie.storage.memory.TupleMap;
+import nl.vu.cs.querypie.storage.memory.TupleSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor of a rule whose body contains only precomputed patterns,
+ * specialized when the ruleset is loaded. The positions of the variables that
+ * the head shares with the precomputed tuples are fixed, and the structures
+ * that RuleExecutor1 looks up in the TupleSet for every tuple (the values, the
+ * pairs and the bindings in both directions) are resolved once.
+ *
+ * The compiled executors are shared by all the actions, therefore the state of
+ * the execution stays in the RuleExecutor1 that calls them.
+ *
+ * Only the rules of type 1, and of type 4 without generic patterns, with one or
+ * two variables in the head are compiled. The rules with generic patterns are
+ * always interpreted by RuleExecutor2 and RuleExecutor3. Compilation is
+ * disabled by default (see Ruleset.COMPILE_RULES), since
+ * RuleExecutorsBenchmark does not show a difference with the interpreter.
+ */
+public abstract class CompiledRule {
+
+	static final Logger log = LoggerFactory.getLogger(CompiledRule.class);
+
+	/**
+	 * Returns the compiled executor of the rule, or null if the rule must be
+	 * interpreted.
+	 */
+	public static CompiledRule compile(Rule1 rule) {
+		if (rule.precomputed_tuples == null
+				|| rule.precomputed_patterns_head == null) {
+			return null;
+		}
+		try {
+			switch (rule.precomputed_patterns_head.length) {
+			case 1:
+				return new OneVariable(rule);
+			case 2:
+				return new TwoVariables(rule);
+			default:
+				return null;
+			}
+		} catch (Exception e) {
+			log.warn("Rule " + rule.id
+					+ " cannot be compiled. It will be interpreted", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Outputs the instantiations of the head that are compatible with
+	 * instantiated_head. The variables are written in triple.
+	 */
+	public abstract void execute(RuleExecutor1 executor,
+			RDFTerm[] instantiated_head, RDFTerm[] triple, ActionOutput output,
+			ActionContext context) throws Exception;
+
+	private static final class OneVariable extends CompiledRule {
+		private final int head;
+		private final Collection<Long> values;
+
+		OneVariable(Rule1 rule) throws Exception {
+			head = rule.precomputed_patterns_head[0].pos2;
+			values = rule.precomputed_tuples.getAllValues(
+					rule.precomputed_patterns_head[0].pos1, true);
+		}
+
+		@Override
+		public void execute(RuleExecutor1 executor,
+				RDFTerm[] instantiated_head, RDFTerm[] triple,
+				ActionOutput output, ActionContext context) throws Exception {
+			long term = instantiated_head[head].getValue();
+			if (term == Schema.ALL_RESOURCES) {
+				for (long value : values) {
+					triple[head].setValue(value);
+					executor.outputTuple(triple, output);
+				}
+			} else if (term >= 0) {
+				if (values.contains(term)) {
+					executor.outputTuple(triple, output);
+				}
+			} else {
+				Collection<Long> col = Schema.getInstance().getSubset(term,
+						context);
+				for (long value : col) {
+					if (values.contains(value)) {
+						triple[head].setValue(value);
+						executor.outputTuple(triple, output);
+					}
+				}
+			}
+		}
+	}
+
+	private static final class TwoVariables extends CompiledRule {
+		private final int head1, head2;
+		private final TupleSet tuples;
+		private final int[] pos;
+		private final int[] pos1, pos2;
+
+		// Resolved at the first use, since not all the rules are executed
+		private volatile SortedCollectionTuples pairs;
+		private volatile TupleMap from1;
+		private volatile TupleMap from2;
+		private volatile boolean from1Resolved, from2Resolved;
+
+		TwoVariables(Rule1 rule) {
+			head1 = rule.precomputed_patterns_head[0].pos2;
+			head2 = rule.precomputed_patterns_head[1].pos2;
+			tuples = rule.precomputed_tuples;
+			pos1 = new int[] { rule.precomputed_patterns_head[0].pos1 };
+			pos2 = new int[] { rule.precomputed_patterns_head[1].pos1 };
+			pos = new int[] { pos1[0], pos2[0] };
+		}
+
+		private SortedCollectionTuples getPairs() throws Exception {
+			SortedCollectionTuples p = pairs;
+			if (p == null) {
+				p = pairs = tuples.getAllValues(pos);
+			}
+			return p;
+		}
+
+		private TupleMap getFrom1() {
+			if (!from1Resolved) {
+				from1 = tuples.getBindingsFromBindings(pos1, pos2, true);
+				from1Resolved = true;
+			}
+			return from1;
+		}
+
+		private TupleMap getFrom2() {
+			if (!from2Resolved) {
+				from2 = tuples.getBindingsFromBindings(pos2, pos1, true);
+				from2Resolved = true;
+			}
+			return from2;
+		}
+
+		/**
+		 * The value of one variable is given. Output the values of the other
+		 * one that are in the set (or all of them).
+		 */
+		private void join(RuleExecutor1 executor, TupleMap map, long value,
+				int head, long other, int headOther, RDFTerm[] triple,
+				ActionOutput output, ActionContext context) throws Exception {
+			if (map == null) {
+				return;
+			}
+			executor.k1.values[0] = value;
+			CollectionTuples col = map.get(executor.k1);
+			if (col == null) {
+				return;
+			}
+			triple[head].setValue(value);
+			long[] rawValues = col.getRawValues();
+			if (other == Schema.ALL_RESOURCES) {
+				for (int y = col.getStart(); y < col.getEnd(); ++y) {
+					triple[headOther].setValue(rawValues[y]);
+					executor.outputTuple(triple, output);
+				}
+			} else {
+				Collection<Long> set = Schema.getInstance().getSubset(other,
+						context);
+				if (set != null) {
+					for (int y = col.getStart(); y < col.getEnd(); ++y) {
+						long v = rawValues[y];
+						if (set.contains(v)) {
+							triple[headOther].setValue(v);
+							executor.outputTuple(triple, output);
+						}
+					}
+				}
+			}
+		}
+
+		@Override
+		public void execute(RuleExecutor1 executor,
+				RDFTerm[] instantiated_head, RDFTerm[] triple,
+				ActionOutput output, ActionContext context) throws Exception {
+			long value1 = instantiated_head[head1].getValue();
+			long value2 = instantiated_head[head2].getValue();
+
+			if (value1 >= 0 && value2 >= 0) {
+				MultiValue k2 = executor.k2;
+				k2.values[0] = value1;
+				k2.values[1] = value2;
+				if (getPairs().contains(k2)) {
+					triple[head1].setValue(value1);
+					triple[head2].setValue(value2);
+					executor.outputTuple(triple, output);
+				}
+			} else if (value1 >= 0) {
+				join(executor, getFrom1(), value1, head1, value2, head2,
+						triple, output, context);
+			} else if (value2 >= 0) {
+				join(executor, getFrom2(), value2, head2, value1, head1,
+						triple, output, context);
+			} else {
+				// Both are either -1 or a subset
+				Collection<Long> filter = null;
+				int filterPos = 0;
+				if (value1 != Schema.ALL_RESOURCES
+						&& value2 == Schema.ALL_RESOURCES) {
+					filter = Schema.getInstance().getSubset(value1, context);
+				} else if (value1 == Schema.ALL_RESOURCES
+						&& value2 != Schema.ALL_RESOURCES) {
+					filter = Schema.getInstance().getSubset(value2, context);
+					filterPos = 1;
+				}
+
+				SortedCollectionTuples values = getPairs();
+				MultiValue value = new MultiValue(new long[2]);
+				for (int i = 0; i < values.size(); ++i) {
+					values.get(value, i);
+					if (filter == null
+							|| filter.contains(value.values[filterPos])) {
+						triple[head1].setValue(value.values[0]);
+						triple[head2].setValue(value.values[1]);
+						executor.outputTuple(triple, output);
+					}
+				}
+			}
+		}
+	}
+}
@@ -50,6 +50,9 @@ public class RuleExecutor1 extends Action {
 	// Contains the details of the rule
 	private Rule1 ruleDef;
 
+	// Specialized executor of the rule. If null the rule is interpreted
+	protected CompiledRule compiled;
+
 	// Used to filter eventual duplicates
 	private boolean isHeadPrecomp;
 	private int[] pos_var_head;
@@ -59,6 +62,9 @@ public class RuleExecutor1 extends Action {
 	protected MultiValue k1 = new MultiValue(new long[1]);
 	protected MultiValue k2 = new MultiValue(new long[2]);
 
+	// Number of derived triples
+	protected long n_outputs;
+
 	public RuleExecutor1() {
 		inferredTriple[0] = triple[0];
 		inferredTriple[1] = triple[1];
@@ -79,13 +85,28 @@ public class RuleExecutor1 extends Action {
 	@Override
 	public void startProcess(ActionContext context) throws Exception {
 
-		ruleDef = ruleset.getRuleFirstType(getParamInt(I_RULEDEF));
+		int id = getParamInt(I_RULEDEF);
+		init(ruleset.getRuleFirstType(id),
+				ruleset.getCompiledRuleFirstType(id), getParamLong(L_FIELD1),
+				getParamLong(L_FIELD2), getParamLong(L_FIELD3));
+	}
+
+	/**
+	 * Prepares the execution of the rule for the instantiated head (s, p, o).
+	 * If compiled is null, the rule is interpreted.
+	 */
+	public void init(Rule1 ruleDef, CompiledRule compiled, long s, long p,
+			long o) {
+		this.ruleDef = ruleDef;
+		this.compiled = compiled;
 
 		check_head_is_precomputed(ruleDef);
 
 		// Instantiate the output
+		instantiated_head[0].setValue(s);
+		instantiated_head[1].setValue(p);
+		instantiated_head[2].setValue(o);
 		for (int i = 0; i < 3; ++i) {
-			instantiated_head[i].setValue(getParamLong(i));
 			triple[i].setValue(ruleDef.HEAD.p[i].getValue());
 		}
 	}
@@ -102,6 +123,7 @@ public class RuleExecutor1 extends Action {
 		}
 		tuple.set(inferredTriple);
 		output.output(tuple);
+		n_outputs++;
 	}
 
 	protected void process_precomputed(Rule1 ruleDef, Tuple inputTuple,
@@ -225,7 +247,7 @@ public class RuleExecutor1 extends Action {
 										.getEnd(); ++y) {
 									long value = rawValues[y];
 									if (set.contains(value)) {
-										triple[ruleDef.precomputed_patterns_head[1].pos2]
+										triple[ruleDef.precomputed_patterns_head[0].pos2]
 												.setValue(value);
 										outputTuple(triple, output);
 									}
@@ -296,8 +318,11 @@ public class RuleExecutor1 extends Action {
 	@Override
 	public void process(Tuple inputTuple, ActionContext context,
 			ActionOutput output) throws Exception {
-		process_precomputed(ruleDef, inputTuple, output, context);
-
+		if (compiled != null) {
+			compiled.execute(this, instantiated_head, triple, output, context);
+		} else {
+			process_precomputed(ruleDef, inputTuple, output, context);
+		}
 	}
 
 	@Override
@@ -305,5 +330,6 @@ public class RuleExecutor1 extends Action {
 			throws Exception {
 		explicitHeadValues = null;
 		isHeadPrecomp = false;
+		compiled = null;
 	}
 }
@@ -14,6 +14,7 @@ import nl.vu.cs.ajira.data.types.Tuple;
 import nl.vu.cs.querypie.reasoner.Pattern;
 import nl.vu.cs.querypie.reasoner.ReasoningUtils;
 import nl.vu.cs.querypie.reasoner.Ruleset;
+import nl.vu.cs.querypie.reasoner.StrategyStats;
 import nl.vu.cs.querypie.reasoner.rules.Rule;
 import nl.vu.cs.querypie.reasoner.rules.Rule1;
 import nl.vu.cs.querypie.reasoner.rules.Rule2.GenericVars;
@@ -74,6 +75,12 @@ public class RuleExecutor3 extends RuleExecutor2 {
 	private boolean do_in_memory_join;
 	private List<long[]> second_generic_pattern;
 
+	// Statistics of the strategy, if the rule has more than one
+	private boolean record_stats;
+	private long stats_start;
+	private long stats_inputs;
+	private long stats_branches;
+
 	protected void parse_current_state(Rule1 rule, GenericVars g,
 			boolean force_store_in_memory, boolean join_in_memory,
 			ActionContext context) {
@@ -170,6 +177,12 @@ public class RuleExecutor3 extends RuleExecutor2 {
 		g = ruleDef.GENERICS_STRATS[strag_id];
 		parse_current_state(g, context);
 
+		record_stats = ruleDef.GENERICS_STRATS.length > 1;
+		if (record_stats) {
+			stats_start = System.nanoTime();
+			stats_inputs = stats_branches = n_outputs = 0;
+		}
+
 		if (last_generic_pattern && !do_in_memory_join) {
 			prepareForJoin(ruleDef, actual_precomputed_tuples, g,
 					instantiated_head, false, context);
@@ -219,6 +232,7 @@ public class RuleExecutor3 extends RuleExecutor2 {
 	@Override
 	public void process(Tuple inputTuple, ActionContext context,
 			ActionOutput output) throws Exception {
+		stats_inputs++;
 		if (!last_generic_pattern) { // Execution rules types 2 and 3.
 			processGenericsIntermediate(inputTuple);
 		} else {
@@ -254,6 +268,18 @@ public class RuleExecutor3 extends RuleExecutor2 {
 			generate_chain_for_next_step(ruleDef, context, output);
 		}
 
+		if (record_stats) {
+			StrategyStats.getInstance().record(
+					ruleDef.getSignature(),
+					strag_id,
+					current_generic_pattern_pos,
+					StrategyStats.getBoundMask(instantiated_head[0].getValue(),
+							instantiated_head[1].getValue(),
+							instantiated_head[2].getValue()), stats_inputs,
+					n_outputs, System.nanoTime() - stats_start, stats_branches);
+			record_stats = false;
+		}
+
 		second_generic_pattern = null;
 		actual_precomputed_tuples = null;
 		mapping_generic_actual_tuples = null;
@@ -359,11 +385,13 @@ public class RuleExecutor3 extends RuleExecutor2 {
 					q = newQuery;
 
 					if (!Ruleset.getInstance().getQSQEvaluation()) {
+						stats_branches++;
 						ReasoningUtils.generate_new_chain(output, rule,
 								strag_id, true, newQuery, next_pos,
 								(QueryNode) q.parent.parent, id, context, -1,
 								-1, true, true);
 					} else {
+						stats_branches++;
 						ActionSequence newChain = new ActionSequence();
 						QSQEvaluateQuery.applyRule(newChain, t,
 								(QueryNode) q.parent.parent, rule, true,
@@ -383,6 +411,7 @@ public class RuleExecutor3 extends RuleExecutor2 {
 				newQuery.sibling = q.sibling;
 				q.sibling = newQuery;
 				q = newQuery;
+				stats_branches++;
 				if (!Ruleset.getInstance().getQSQEvaluation()) {
 					ReasoningUtils.generate_new_chain(output, rule, strag_id, true,
 							newQuery, next_pos, (QueryNode) q.parent.parent, id,
@@ -19,6 +19,7 @@ import nl.vu.cs.querypie.reasoning.expand.TreeExpander;
 import nl.vu.cs.querypie.storage.RDFTerm;
 import nl.vu.cs.querypie.storage.memory.CacheCollectionValues;
 import nl.vu.cs.querypie.storage.memory.CollectionTuples;
+import nl.vu.cs.querypie.storage.memory.ListStore;
 import nl.vu.cs.querypie.storage.memory.Mapping;
 import nl.vu.cs.querypie.storage.memory.TupleSet;
 
@@ -73,6 +74,8 @@ public class RuleExecutor4 extends RuleExecutor3 {
 			if (ruleDef.GENERICS_STRATS == null) {
 				// Same as rule type 1
 				check_head_is_precomputed(ruleDef);
+				compiled = ruleset
+						.getCompiledRuleFourthType(getParamInt(I_RULEDEF));
 				do_join = true;
 			} else {
 				strag_id = getParamInt(I_STRAG_ID);
@@ -88,19 +91,21 @@ public class RuleExecutor4 extends RuleExecutor3 {
 			}
 		} else {
 			// I am processing a list block.
-			List<Long> elements = ruleDef.all_lists.get(list_head);
+			ListStore lists = ruleDef.all_lists;
+			int list_index = lists.indexOf(list_head);
 			int pos = getParamInt(I_PATTERN_POS);
 			current_generic_pattern_pos = pos;
 			boolean last_el_in_list = pos == ruleDef.LIST_PATTERNS.length - 1;
 
-			if (last_el_in_list && list_current == elements.size() - 1) {
+			if (last_el_in_list
+					&& list_current == lists.getLength(list_index) - 1) {
 				do_join = true;
 			}
 
 			// Parse the object to store the results in memory
 			ruleDef.substituteListNameValueInPattern(
 					ruleDef.LIST_PATTERNS[pos], support_p.p, list_current,
-					elements.get(list_current));
+					lists.getElement(list_index, list_current));
 
 			// Retrieve the current bindings
 			if (ruleDef.GENERICS_STRATS != null || pos != 0
@@ -307,7 +312,12 @@ public class RuleExecutor4 extends RuleExecutor3 {
 			ActionOutput output) throws Exception {
 		if (list_current == -1) {
 			if (ruleDef.GENERICS_STRATS == null) {
-				process_precomputed(ruleDef, inputTuple, output, context);
+				if (compiled != null) {
+					compiled.execute(this, instantiated_head, triple, output,
+							context);
+				} else {
+					process_precomputed(ruleDef, inputTuple, output, context);
+				}
 			} else {
 				super.process(inputTuple, context, output);
 			}
@@ -362,7 +372,8 @@ public class RuleExecutor4 extends RuleExecutor3 {
 
 					for (long list_head : heads) {
 						// Read the first element of the list
-						List<Long> elements = ruleDef.all_lists.get(list_head);
+						ListStore lists = ruleDef.all_lists;
+						int list_index = lists.indexOf(list_head);
 
 						QueryNode newQuery = t.newQuery(q.parent);
 						newQuery.s = support_p.p[0].getValue();
@@ -374,7 +385,7 @@ public class RuleExecutor4 extends RuleExecutor3 {
 
 						ruleDef.substituteListNameValueInPattern(
 								ruleDef.LIST_PATTERNS[0], newQuery, 0,
-								elements.get(0));
+								lists.getElement(list_index, 0));
 
 						TreeExpander.unify((QueryNode) newQuery.parent.parent,
 								newQuery, ruleDef.lshared_var_firsthead[0]);
@@ -397,7 +408,8 @@ public class RuleExecutor4 extends RuleExecutor3 {
 
 				}
 			} else {
-				List<Long> elements = ruleDef.all_lists.get(list_head);
+				ListStore lists = ruleDef.all_lists;
+				int list_index = lists.indexOf(list_head);
 				if (current_generic_pattern_pos < ruleDef.LIST_PATTERNS.length - 1) {
 
 					// Simply increase the counter
@@ -444,14 +456,15 @@ public class RuleExecutor4 extends RuleExecutor3 {
 
 					ruleDef.substituteListNameValueInPattern(
 							ruleDef.LIST_PATTERNS[current_generic_pattern_pos + 1],
-							newQuery, list_current, elements.get(list_current));
+							newQuery, list_current,
+							lists.getElement(list_index, list_current));
 
 					if (list_current == 0)
 						TreeExpander
 								.unify(parent,
 										newQuery,
 										ruleDef.lshared_var_firsthead[current_generic_pattern_pos + 1]);
-					else if (list_current == elements.size() - 1) {
+					else if (list_current == lists.getLength(list_index) - 1) {
 						TreeExpander
 								.unify(parent,
 										newQuery,
@@ -528,9 +541,10 @@ public class RuleExecutor4 extends RuleExecutor3 {
 
 					ruleDef.substituteListNameValueInPattern(
 							ruleDef.LIST_PATTERNS[0], newQuery,
-							list_current + 1, elements.get(list_current + 1));
+							list_current + 1,
+							lists.getElement(list_index, list_current + 1));
 
-					if (list_current == elements.size() - 1) {
+					if (list_current == lists.getLength(list_index) - 1) {
 						TreeExpander.unify(parent, newQuery,
 								ruleDef.lshared_var_lasthead[0]);
 					} else {
@@ -6,8 +6,10 @@ import nl.vu.cs.ajira.actions.ActionContext;
 import nl.vu.cs.ajira.actions.ActionFactory;
 import nl.vu.cs.ajira.actions.ActionOutput;
 import nl.vu.cs.ajira.actions.ActionSequence;
+import nl.vu.cs.ajira.data.types.TBoolean;
 import nl.vu.cs.ajira.data.types.TInt;
 import nl.vu.cs.ajira.data.types.Tuple;
+import nl.vu.cs.ajira.data.types.TupleFactory;
 import nl.vu.cs.querypie.reasoner.ReasoningUtils;
 import nl.vu.cs.querypie.reasoner.SetAsExplicit;
 import nl.vu.cs.querypie.storage.RDFTerm;
@@ -18,11 +20,13 @@ public class ExpandQuery extends Action {
 	public static final int B_ALLOWRECURSION = 1;
 	public static final int B_CACHEINPUT = 2;
 	public static final int B_ONLY_FIRST_AND_SECOND_RULES = 3;
+	public static final int B_DELTA = 4;
 
 	private boolean explicit;
 	private boolean recursive;
 	private boolean cacheInput;
 	private boolean onlyFirstSecond;
+	private boolean delta;
 
 	@Override
 	protected void registerActionParameters(ActionConf conf) {
@@ -32,6 +36,7 @@ public class ExpandQuery extends Action {
 		conf.registerParameter(B_CACHEINPUT, "B_CACHEINPUT", true, false);
 		conf.registerParameter(B_ONLY_FIRST_AND_SECOND_RULES,
 				"B_ONLY_FIRST_AND_SECOND_RULES", false, false);
+		conf.registerParameter(B_DELTA, "B_DELTA", false, false);
 	}
 
 	@Override
@@ -40,19 +45,27 @@ public class ExpandQuery extends Action {
 		recursive = getParamBoolean(B_ALLOWRECURSION);
 		cacheInput = getParamBoolean(B_CACHEINPUT);
 		onlyFirstSecond = getParamBoolean(B_ONLY_FIRST_AND_SECOND_RULES);
+		delta = getParamBoolean(B_DELTA);
+	}
+
+	/**
+	 * Returns true if the query is reached only through rules with a single
+	 * generic pattern. Then the derivations that do not use the triples of the
+	 * last round were already produced in the previous rounds.
+	 */
+	private static boolean isLinear(QueryNode q) {
+		for (Node n = q.parent; n != null; n = n.parent) {
+			if (n instanceof RuleNode && ((RuleNode) n).rule.type > 2) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	@Override
 	public void process(Tuple tuple, ActionContext context,
 			ActionOutput actionOutput) throws Exception {
 
-		if (explicit) {
-			ActionSequence actions = new ActionSequence();
-			ReasoningUtils.getResultsQuery(actions, tuple, false);
-			actions.add(ActionFactory.getActionConf(SetAsExplicit.class));
-			actionOutput.branch(actions);
-		}
-
 		// Get the query in input and expand it.
 		int queryId = ((TInt) tuple.get(3)).getValue();
 
@@ -72,6 +85,19 @@ public class ExpandQuery extends Action {
 			q = t.getQuery(queryId);
 		}
 
+		if (explicit) {
+			ActionSequence actions = new ActionSequence();
+			if (delta && isLinear(q)) {
+				ReasoningUtils.getResultsQuery(actions, TupleFactory.newTuple(
+						tuple.get(0), tuple.get(1), tuple.get(2), new TBoolean(
+								true)), false);
+			} else {
+				ReasoningUtils.getResultsQuery(actions, tuple, false);
+			}
+			actions.add(ActionFactory.getActionConf(SetAsExplicit.class));
+			actionOutput.branch(actions);
+		}
+
 		TreeExpander.expandQuery(context, q, t,
 				onlyFirstSecond ? TreeExpander.ONLY_FIRST_SECOND
 						: TreeExpander.ALL);
@@ -86,7 +112,7 @@ public class ExpandQuery extends Action {
 								|| ruleNode.rule.type == 4, qn,
 						ruleNode.current_pattern, q, ruleNode.ref_memory,
 						context, qn.list_head, qn.list_id,
-						recursive, cacheInput);
+						recursive, cacheInput, delta && isLinear(qn));
 				qn = (QueryNode) qn.sibling;
 			}
 
@@ -0,0 +1,176 @@
+package nl.vu.cs.querypie.reasoning.expand;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.vu.cs.querypie.reasoner.rules.Rule;
+import nl.vu.cs.querypie.storage.RDFTerm;
+
+/**
+ * Remembers the rules and the child queries that TreeExpander produces for a
+ * query, so that the same query can be expanded again without checking all
+ * the rules. The expansion depends on the values of the constants (they are
+ * used to look up the precomputed bindings), therefore the key contains the
+ * terms of the query. Queries that contain sets of a submission (ids below
+ * RDFTerm.THRESHOLD_VARIABLE) are not memoized, and neither are expansions
+ * that create such sets.
+ *
+ * The entries are invalidated when the ruleset is (re)loaded, and when the
+ * statistics change the preferred strategy of a rule (StrategyStats).
+ */
+final class ExpansionMemo {
+
+	static final int MAX_ENTRIES = 4096;
+
+	private static final class Key {
+		final long s, p, o;
+		final int typeRules;
+
+		Key(long s, long p, long o, int typeRules) {
+			this.s = s;
+			this.p = p;
+			this.o = o;
+			this.typeRules = typeRules;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = s * 31 + p;
+			h = h * 31 + o;
+			h = h * 31 + typeRules;
+			return (int) (h ^ (h >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) obj;
+			return s == k.s && p == k.p && o == k.o && typeRules == k.typeRules;
+		}
+	}
+
+	static final class RuleTemplate {
+		final Rule rule;
+		final int strag_id;
+		final boolean single_node;
+		// s, p, o, list_head, list_id of every child query
+		final long[] queries;
+
+		RuleTemplate(Rule rule, int strag_id, boolean single_node,
+				long[] queries) {
+			this.rule = rule;
+			this.strag_id = strag_id;
+			this.single_node = single_node;
+			this.queries = queries;
+		}
+
+		RuleNode instantiate(QueryNode head, Tree tree) {
+			RuleNode output = tree.newRule(head, rule);
+			output.strag_id = strag_id;
+			output.single_node = single_node;
+
+			QueryNode lastQuery = null;
+			for (int i = 0; i < queries.length; i += 5) {
+				QueryNode query = tree.newQuery(output);
+				query.s = queries[i];
+				query.p = queries[i + 1];
+				query.o = queries[i + 2];
+				query.list_head = queries[i + 3];
+				query.list_id = (int) queries[i + 4];
+				if (lastQuery == null) {
+					output.child = query;
+				} else {
+					lastQuery.sibling = query;
+				}
+				lastQuery = query;
+			}
+			return output;
+		}
+	}
+
+	private static final class Entry {
+		final int version;
+		final int generation;
+		final RuleTemplate[] rules;
+
+		Entry(int version, int generation, RuleTemplate[] rules) {
+			this.version = version;
+			this.generation = generation;
+			this.rules = rules;
+		}
+	}
+
+	private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private static boolean isStable(long t) {
+		return t > RDFTerm.THRESHOLD_VARIABLE;
+	}
+
+	/**
+	 * Returns the key of the query, or null if its expansion cannot be reused.
+	 */
+	static Object getKey(QueryNode query, int typeRules) {
+		if (!isStable(query.s) || !isStable(query.p) || !isStable(query.o)) {
+			return null;
+		}
+		return new Key(query.s, query.p, query.o, typeRules);
+	}
+
+	synchronized RuleTemplate[] get(Object key, int version, int generation) {
+		Entry e = entries.get(key);
+		if (e == null) {
+			return null;
+		}
+		if (e.version != version || e.generation != generation) {
+			entries.clear();
+			return null;
+		}
+		return e.rules;
+	}
+
+	/**
+	 * Records the rules that were added to the query, i.e. the children that
+	 * precede existingRules.
+	 */
+	void put(Object key, int version, int generation, QueryNode query,
+			RuleNode existingRules) {
+		List<RuleTemplate> rules = new ArrayList<RuleTemplate>();
+		for (RuleNode r = (RuleNode) query.child; r != existingRules; r = (RuleNode) r.sibling) {
+			long[] queries = new long[5];
+			int n = 0;
+			for (QueryNode q = (QueryNode) r.child; q != null; q = (QueryNode) q.sibling) {
+				if (!isStable(q.s) || !isStable(q.p) || !isStable(q.o)) {
+					return;
+				}
+				if (n + 5 > queries.length) {
+					queries = Arrays.copyOf(queries, queries.length * 2);
+				}
+				queries[n++] = q.s;
+				queries[n++] = q.p;
+				queries[n++] = q.o;
+				queries[n++] = q.list_head;
+				queries[n++] = q.list_id;
+			}
+			rules.add(new RuleTemplate(r.rule, r.strag_id, r.single_node,
+					Arrays.copyOf(queries, n)));
+		}
+
+		synchronized (this) {
+			entries.put((Key) key, new Entry(version, generation, rules
+					.toArray(new RuleTemplate[rules.size()])));
+		}
+	}
+}
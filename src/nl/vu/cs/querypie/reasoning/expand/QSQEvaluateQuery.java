@@ -14,6 +14,7 @@ import nl.vu.cs.ajira.data.types.TInt;
 import nl.vu.cs.ajira.data.types.Tuple;
 import nl.vu.cs.ajira.data.types.TupleFactory;
 import nl.vu.cs.ajira.datalayer.dummy.DummyLayer;
+import nl.vu.cs.querypie.reasoner.AnswerTable;
 import nl.vu.cs.querypie.reasoner.QSQBCAlgo;
 import nl.vu.cs.querypie.reasoner.ReasoningUtils;
 import nl.vu.cs.querypie.reasoner.SetAsExplicit;
@@ -22,8 +23,10 @@ import nl.vu.cs.querypie.reasoner.rules.executors.RuleExecutor1;
 import nl.vu.cs.querypie.reasoner.rules.executors.RuleExecutor3;
 import nl.vu.cs.querypie.reasoner.rules.executors.RuleExecutor4;
 import nl.vu.cs.querypie.storage.RDFTerm;
+import nl.vu.cs.querypie.storage.ResultBudget;
 import nl.vu.cs.querypie.storage.Schema;
 import nl.vu.cs.querypie.storage.memory.InMemoryTripleContainer;
+import nl.vu.cs.querypie.storage.memory.Triple;
 
 public class QSQEvaluateQuery extends Action {
 
@@ -75,34 +78,73 @@ public class QSQEvaluateQuery extends Action {
 			evaluateQuery(actions, t, t.getQuery(id), false, context);
 			actionOutput.branch(actions);
 		} else {
+			if (outputContainer == null) {
+				outputContainer = (InMemoryTripleContainer) context
+						.getObjectFromCache("qsq-" + id);
+			}
 			context.putObjectInCache("qsq-" + id, null);
 			Tree t = (Tree) context.getObjectFromCache(QSQBCAlgo.TREE_ID);
 			QueryNode q = t.getQuery(id);
 			q.setComputed();
 
-			// Copy the data to the intermediate container used by RDFStorage
-			if (outputContainer == null) {
-				outputContainer = (InMemoryTripleContainer) context
-						.getObjectFromCache("qsq-" + id);
-			}
-			if (outputContainer != null && outputContainer.size() > 0) {
-				InMemoryTripleContainer intermediateTriples = (InMemoryTripleContainer) context
-						.getObjectFromCache("inputIntermediateTuples");
-				if (intermediateTriples == null) {
-					intermediateTriples = outputContainer;
-					context.putObjectInCache("inputIntermediateTuples",
-							intermediateTriples);
-				} else {
-					intermediateTriples.addAll(outputContainer);
-				}
-				// add the query
-				intermediateTriples.addQuery(q.s, q.p, q.o, context, null);
-				intermediateTriples.index();
+			// The answers of the root query are complete: share them, unless
+			// the query stops at LIMIT, which leaves them incomplete
+			if (q.parent == null
+					&& context.getObjectFromCache(ResultBudget.ID) == null) {
+				AnswerTable.getInstance().publish(q.s, q.p, q.o,
+						outputContainer);
 			}
+
+			addToIntermediateTriples(context, q, outputContainer);
 		}
 		outputContainer = null;
 	}
 
+	/**
+	 * Copies the answers of the query to the intermediate container used by
+	 * RDFStorage, which will use them to answer the query.
+	 */
+	private static void addToIntermediateTriples(ActionContext context,
+			QueryNode q, InMemoryTripleContainer answers) {
+		if (answers != null && answers.size() > 0) {
+			InMemoryTripleContainer intermediateTriples = (InMemoryTripleContainer) context
+					.getObjectFromCache("inputIntermediateTuples");
+			if (intermediateTriples == null) {
+				intermediateTriples = answers;
+				context.putObjectInCache("inputIntermediateTuples",
+						intermediateTriples);
+			} else {
+				intermediateTriples.addAll(answers);
+			}
+			// add the query
+			intermediateTriples.addQuery(q.s, q.p, q.o, context, null);
+			intermediateTriples.index();
+		}
+	}
+
+	/**
+	 * If the subgoal has already been evaluated as the root query of another
+	 * tree, reuse its answers.
+	 */
+	private static void useTabledAnswers(QueryNode q, ActionContext context) {
+		AnswerTable.Subgoal goal = AnswerTable.getInstance().get(q.s, q.p,
+				q.o);
+		if (goal != null) {
+			long[] answers = goal.getAnswers();
+			InMemoryTripleContainer container = new InMemoryTripleContainer();
+			for (int i = 0; i < answers.length; i += 3) {
+				Triple triple = new Triple();
+				triple.subject = answers[i];
+				triple.predicate = answers[i + 1];
+				triple.object = answers[i + 2];
+				container.addTriple(triple, null);
+			}
+			addToIntermediateTriples(context, q, container);
+			q.setComputed();
+			context.incrCounter("qsq tabled subgoals", 1);
+		}
+	}
+
 	public static final void evaluateRootQuery(ActionSequence actions, long v1,
 			long v2, long v3, ActionContext context) throws Exception {
 
@@ -119,6 +161,10 @@ public class QSQEvaluateQuery extends Action {
 			QueryNode q, boolean explicit, ActionContext context)
 			throws Exception {
 
+		if (q.parent != null && !q.isComputed(context)) {
+			useTabledAnswers(q, context);
+		}
+
 		// 1- Expand the query
 		if (!q.isExpanded() && !q.isComputed(context)) {
 			TreeExpander.expandQuery(context, q, t, TreeExpander.ALL);
@@ -69,28 +69,34 @@ public class QueryNode extends Node {
 		}
 	}
 
+	/**
+	 * Same as RDFTerm.equals(). The terms are allocated only if v is a set of
+	 * the submission.
+	 */
+	private static boolean termEquals(long v, long a, ActionContext context) {
+		if (a == v) {
+			return true;
+		} else if (a != -1 && v == -1) {
+			return true;
+		} else if (v <= RDFTerm.THRESHOLD_VARIABLE) {
+			RDFTerm term = new RDFTerm(v);
+			return term.equals(new RDFTerm(a), context);
+		}
+		return false;
+	}
+
 	public boolean equalsInAncestors(ActionContext context) {
 		QueryNode parent = null;
 		if (this.parent != null) {
 			parent = (QueryNode) this.parent.parent; // skip rule node
 		}
 
-		RDFTerm ts = new RDFTerm(s);
-		RDFTerm parentTerm = new RDFTerm();
-
 		while (parent != null) {
 			// Check whether the query is the same
-			parentTerm.setValue(parent.s);
-			if (parentTerm.equals(ts, context)) {
-				parentTerm.setValue(parent.p);
-				RDFTerm tp = new RDFTerm(p);
-				if (parentTerm.equals(tp, context)) {
-					parentTerm.setValue(parent.o);
-					RDFTerm to = new RDFTerm(o);
-					if (parentTerm.equals(to, context)) {
-						return true;
-					}
-				}
+			if (termEquals(parent.s, s, context)
+					&& termEquals(parent.p, p, context)
+					&& termEquals(parent.o, o, context)) {
+				return true;
 			}
 
 			if (parent.parent != null) {
@@ -1,14 +1,18 @@
 package nl.vu.cs.querypie.reasoning.expand;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import nl.vu.cs.ajira.actions.ActionContext;
 import nl.vu.cs.querypie.reasoner.rules.Rule;
+import nl.vu.cs.querypie.storage.Schema;
 
 public class Tree {
 	private ArrayList<QueryNode> queries = new ArrayList<QueryNode>();
 	private ArrayList<RuleNode> rules = new ArrayList<RuleNode>();
-	private ArrayList<QueryNode> computedQueries = new ArrayList<QueryNode>();
 
 	public QueryNode newRoot() {
 		QueryNode q = new QueryNode(null, queries.size(), this);
@@ -40,20 +44,148 @@ public class Tree {
 		return queries.size();
 	}
 
+	/**
+	 * Index of the computed queries. The key is the triple where the terms
+	 * that are sets are replaced by SET. If a query contains a set, the
+	 * containment must be verified on the actual sets; otherwise the key alone
+	 * decides it.
+	 */
+	private static final long SET = Long.MIN_VALUE;
+
+	private static final class Key {
+		final long s, p, o;
+
+		Key(long s, long p, long o) {
+			this.s = s;
+			this.p = p;
+			this.o = o;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = (s * 31 + p) * 31 + o;
+			return (int) (h ^ (h >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			Key k = (Key) obj;
+			return s == k.s && p == k.p && o == k.o;
+		}
+	}
+
+	private final Map<Key, List<QueryNode>> computedIndex = new HashMap<Key, List<QueryNode>>();
+	private final Map<Long, Long> fingerprints = new HashMap<Long, Long>();
+
+	private static long encode(long t) {
+		return t >= 0 || t == Schema.ALL_RESOURCES ? t : SET;
+	}
+
+	/**
+	 * The terms of a computed query that can contain the term t (see
+	 * QueryNode.isContainedIn).
+	 */
+	@SuppressWarnings("unchecked")
+	private static long[] options(long t, ActionContext context) {
+		if (t >= 0) {
+			return new long[] { t, Schema.ALL_RESOURCES, SET };
+		} else if (t == Schema.ALL_RESOURCES) {
+			return new long[] { t };
+		} else {
+			Set<Long> set = (Set<Long>) context.getObjectFromCache(t);
+			if (set != null && set.size() == 1) {
+				return new long[] { Schema.ALL_RESOURCES, SET,
+						set.iterator().next() };
+			}
+			return new long[] { Schema.ALL_RESOURCES, SET };
+		}
+	}
+
+	/**
+	 * Returns a hash of the content of the set, so that two different sets are
+	 * compared only if their fingerprints match. Sets are not modified after
+	 * they are created, so the fingerprint is calculated once.
+	 */
+	@SuppressWarnings("unchecked")
+	private long getFingerprint(long id, ActionContext context) {
+		synchronized (fingerprints) {
+			Long f = fingerprints.get(id);
+			if (f != null) {
+				return f;
+			}
+		}
+		Set<Long> set = (Set<Long>) context.getObjectFromCache(id);
+		long f = 0;
+		if (set != null) {
+			for (long v : set) {
+				v *= 0x9E3779B97F4A7C15L;
+				f += v ^ (v >>> 29);
+			}
+			f = f * 31 + set.size();
+		}
+		synchronized (fingerprints) {
+			fingerprints.put(id, f);
+		}
+		return f;
+	}
+
+	private boolean sameFingerprint(long t1, long t2, ActionContext context) {
+		if (t1 == t2 || encode(t1) != SET || encode(t2) != SET) {
+			return true;
+		}
+		return getFingerprint(t1, context) == getFingerprint(t2, context);
+	}
+
 	public boolean isComputed(final QueryNode query, final ActionContext context) {
-		QueryNode[] n;
+		long[] os = options(query.s, context);
+		long[] op = options(query.p, context);
+		long[] oo = options(query.o, context);
+
+		List<QueryNode> candidates = null;
 		synchronized (this) {
-			n = computedQueries.toArray(new QueryNode[computedQueries.size()]);
+			if (computedIndex.size() == 0) {
+				return false;
+			}
+			for (long s : os) {
+				for (long p : op) {
+					for (long o : oo) {
+						List<QueryNode> l = computedIndex.get(new Key(s, p, o));
+						if (l == null) {
+							continue;
+						}
+						if (s != SET && p != SET && o != SET) {
+							// No sets in the computed queries: the key matches
+							return true;
+						}
+						if (candidates == null) {
+							candidates = new ArrayList<QueryNode>();
+						}
+						candidates.addAll(l);
+					}
+				}
+			}
 		}
-		for (QueryNode completedQuery : n) {
-			if (query.isContainedIn(completedQuery, context)) {
-				return true;
+
+		if (candidates != null) {
+			for (QueryNode completedQuery : candidates) {
+				if (sameFingerprint(query.s, completedQuery.s, context)
+						&& sameFingerprint(query.p, completedQuery.p, context)
+						&& sameFingerprint(query.o, completedQuery.o, context)
+						&& query.isContainedIn(completedQuery, context)) {
+					return true;
+				}
 			}
 		}
 		return false;
 	}
 
 	public synchronized void addToComputed(QueryNode query) {
-		computedQueries.add(query);
+		Key key = new Key(encode(query.s), encode(query.p), encode(query.o));
+		List<QueryNode> l = computedIndex.get(key);
+		if (l == null) {
+			l = new ArrayList<QueryNode>(1);
+			computedIndex.put(key, l);
+		}
+		l.add(query);
 	}
 }
@@ -2,12 +2,12 @@ package nl.vu.cs.querypie.reasoning.expand;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
 import java.util.TreeSet;
 
 import nl.vu.cs.ajira.actions.ActionContext;
 import nl.vu.cs.querypie.reasoner.Pattern;
 import nl.vu.cs.querypie.reasoner.Ruleset;
+import nl.vu.cs.querypie.reasoner.StrategyStats;
 import nl.vu.cs.querypie.reasoner.rules.Rule1;
 import nl.vu.cs.querypie.reasoner.rules.Rule2;
 import nl.vu.cs.querypie.reasoner.rules.Rule2.GenericVars;
@@ -16,6 +16,7 @@ import nl.vu.cs.querypie.reasoner.rules.Rule4;
 import nl.vu.cs.querypie.storage.RDFTerm;
 import nl.vu.cs.querypie.storage.Schema;
 import nl.vu.cs.querypie.storage.memory.CollectionTuples;
+import nl.vu.cs.querypie.storage.memory.ListStore;
 import nl.vu.cs.querypie.storage.memory.Mapping;
 import nl.vu.cs.querypie.storage.memory.MultiValue;
 
@@ -23,11 +24,14 @@ public class TreeExpander {
 
 	private static final Schema schema = Schema.getInstance();
 	private static final Ruleset ruleset = Ruleset.getInstance();
+	private static final StrategyStats stats = StrategyStats.getInstance();
 
 	public static final int ONLY_FIRST_SECOND = 0;
 	public static final int ONLY_THIRD_FOURTH = 1;
 	public static final int ALL = 2;
 
+	private static final ExpansionMemo memo = new ExpansionMemo();
+
 	public static final void expandQuery(ActionContext context,
 			QueryNode query, Tree tree, int typeRules) throws Exception {
 		// Check whether the subject has a special flag
@@ -41,11 +45,38 @@ public class TreeExpander {
 
 		RuleNode existingRules = (RuleNode) query.child;
 		RuleNode lastRule = null;
+
+		// Reuse a previous expansion of the same query
+		int version = ruleset.getVersion();
+		int generation = stats.getGeneration();
+		int explorations = stats.getExplorations();
+		Object key = ExpansionMemo.getKey(query, typeRules);
+		if (key != null) {
+			ExpansionMemo.RuleTemplate[] rules = memo.get(key, version,
+					generation);
+			if (rules != null) {
+				for (ExpansionMemo.RuleTemplate rule : rules) {
+					RuleNode c = rule.instantiate(query, tree);
+					if (lastRule == null) {
+						query.child = c;
+					} else {
+						lastRule.sibling = c;
+					}
+					lastRule = c;
+				}
+				if (lastRule != null) {
+					lastRule.sibling = existingRules;
+				}
+				return;
+			}
+		}
+
 		MultiValue k1 = new MultiValue(new long[1]);
 		MultiValue k2 = new MultiValue(new long[2]);
 
 		if (typeRules != ONLY_THIRD_FOURTH) {
-			for (Rule1 rule : ruleset.getAllActiveFirstTypeRules()) {
+			for (Rule1 rule : ruleset.getActiveFirstTypeRules(query.s,
+					query.p, query.o)) {
 				if (!checkHead(rule, query, context)) {
 					continue;
 				}
@@ -59,7 +90,8 @@ public class TreeExpander {
 				lastRule = c;
 			}
 
-			for (Rule2 rule : ruleset.getAllActiveSecondTypeRules()) {
+			for (Rule2 rule : ruleset.getActiveSecondTypeRules(query.s,
+					query.p, query.o)) {
 				if (!checkHead(rule, query, context)) {
 					continue;
 				}
@@ -78,7 +110,8 @@ public class TreeExpander {
 		}
 
 		if (typeRules != ONLY_FIRST_SECOND) {
-			for (Rule3 rule : ruleset.getAllActiveThirdTypeRules()) {
+			for (Rule3 rule : ruleset.getActiveThirdTypeRules(query.s,
+					query.p, query.o)) {
 				if (!checkHead(rule, query, context)) {
 					continue;
 				}
@@ -95,7 +128,8 @@ public class TreeExpander {
 				}
 			}
 
-			for (Rule4 rule : ruleset.getAllActiveFourthTypeRules()) {
+			for (Rule4 rule : ruleset.getActiveFourthTypeRules(query.s,
+					query.p, query.o)) {
 				if (!checkHead(rule, query, context)) {
 					continue;
 				}
@@ -125,6 +159,11 @@ public class TreeExpander {
 		if (lastRule != null) {
 			lastRule.sibling = existingRules;
 		}
+
+		// Do not remember the strategies that were chosen to explore
+		if (key != null && explorations == stats.getExplorations()) {
+			memo.put(key, version, generation, query, existingRules);
+		}
 	}
 
 	private static final RuleNode applyRuleFirstType(Rule1 rule,
@@ -268,30 +307,24 @@ public class TreeExpander {
 						.getTerm(rule.precomputed_patterns_head[0].pos2) == Schema.ALL_RESOURCES);
 
 		// Get the possible lists that is possible to follow.
-		Collection<Long> list_heads = null;
+		ListStore lists = rule.all_lists;
 		if (firstOption) {
-			list_heads = rule.all_lists.keySet();
-
 			QueryNode lastQuery = null;
-			for (long list_head : list_heads) {
-				List<Long> list = rule.all_lists.get(list_head);
-				if (list != null) {
+			for (int list = 0; list < lists.size(); ++list) {
+				QueryNode query = tree.newQuery(output);
+				query.list_head = lists.getHead(list);
+				query.list_id = 0;
 
-					QueryNode query = tree.newQuery(output);
-					query.list_head = list_head;
-					query.list_id = 0;
+				rule.substituteListNameValueInPattern(rule.LIST_PATTERNS[0],
+						query, 0, lists.getElement(list, 0));
+				unify(head, query, rule.lshared_var_firsthead[0]);
 
-					rule.substituteListNameValueInPattern(
-							rule.LIST_PATTERNS[0], query, 0, list.get(0));
-					unify(head, query, rule.lshared_var_firsthead[0]);
-
-					if (lastQuery == null) {
-						output.child = query;
-					} else {
-						lastQuery.sibling = query;
-					}
-					lastQuery = query;
+				if (lastQuery == null) {
+					output.child = query;
+				} else {
+					lastQuery.sibling = query;
 				}
+				lastQuery = query;
 			}
 
 		} else {
@@ -303,14 +336,15 @@ public class TreeExpander {
 				QueryNode lastQuery = null;
 				for (int i = col.getStart(); i < col.getEnd(); ++i) {
 					long list_head = col.getRawValues()[i];
-					List<Long> list = rule.all_lists.get(list_head);
-					if (list != null) {
+					int list = lists.indexOf(list_head);
+					if (list != -1) {
 						QueryNode query = tree.newQuery(output);
 						query.list_head = list_head;
 						query.list_id = 0;
 
 						rule.substituteListNameValueInPattern(
-								rule.LIST_PATTERNS[0], query, 0, list.get(0));
+								rule.LIST_PATTERNS[0], query, 0,
+								lists.getElement(list, 0));
 						unify(head, query, rule.lshared_var_firsthead[0]);
 
 						if (lastQuery == null) {
@@ -333,6 +367,12 @@ public class TreeExpander {
 		// First determine what is the best strategy to execute the patterns
 		// given a instantiated HEAD
 		int strategy = calculate_best_strategy(generics, head);
+		if (rule.type == 3 && generics.length > 1) {
+			strategy = stats.choose(((Rule2) rule).getSignature(),
+					generics.length,
+					StrategyStats.getBoundMask(head.s, head.p, head.o),
+					strategy);
+		}
 		GenericVars g = generics[strategy];
 		return applyRuleWithGenerics(rule, strategy, g, g.patterns[0], -1, -1,
 				head, context, k1, k2, tree);
@@ -1,5 +1,6 @@
 package nl.vu.cs.querypie.sparql;
 
+import ibis.util.ThreadPool;
 import nl.vu.cs.ajira.actions.Action;
 import nl.vu.cs.ajira.actions.ActionConf;
 import nl.vu.cs.ajira.actions.ActionContext;
@@ -7,66 +8,148 @@ import nl.vu.cs.ajira.actions.ActionOutput;
 import nl.vu.cs.ajira.data.types.TInt;
 import nl.vu.cs.ajira.data.types.TLong;
 import nl.vu.cs.ajira.data.types.Tuple;
+import nl.vu.cs.ajira.data.types.TupleFactory;
+import nl.vu.cs.ajira.datalayer.InputLayer;
+import nl.vu.cs.ajira.datalayer.TupleIterator;
 import nl.vu.cs.ajira.utils.Lock;
+import nl.vu.cs.querypie.QueryPIE;
+import nl.vu.cs.querypie.storage.RDFTerm;
 import nl.vu.cs.querypie.storage.TripleIterator;
+import nl.vu.cs.querypie.storage.disk.RDFStorage;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Estimates the cardinality of a batch of patterns. The action is executed on
+ * all the nodes (the input is the broadcast query of the RDFStorage), where
+ * every node estimates all the patterns on its partition concurrently and
+ * outputs the pair <id pattern, estimation>. After a CollectToNode, the same
+ * action in "sum" mode adds the partial estimations and stores the vector of
+ * results in the cache under ESTIMATES.
+ */
 public class EstimateCardinality extends Action {
 
+	static final Logger log = LoggerFactory
+			.getLogger(EstimateCardinality.class);
+
 	public static String LOCK = "estimationLock";
+	public static String ESTIMATES = "estimates";
 
-	public static int I_IDQUERY = 0;
+	public static int LA_PATTERNS = 0;
 	public static int B_SUMVALUES = 1;
 
 	private boolean sumMode;
-	private int id;
-	private long count;
-	private boolean sumModeEmitted;
+	private long[] patterns;
+	private long[] counts;
 
 	@Override
 	protected void registerActionParameters(ActionConf conf) {
-		conf.registerParameter(I_IDQUERY, "I_IDQUERY", null, true);
+		conf.registerParameter(LA_PATTERNS, "LA_PATTERNS", null, true);
 		conf.registerParameter(B_SUMVALUES, "B_SUMVALUES", false, false);
 	}
 
 	@Override
 	public void startProcess(ActionContext context) throws Exception {
 		sumMode = getParamBoolean(B_SUMVALUES);
-		id = getParamInt(I_IDQUERY);
-		count = 0;
-		sumModeEmitted = false;
+		patterns = getParamLongArray(LA_PATTERNS);
+		counts = new long[patterns.length / 3];
+	}
+
+	private long estimatePattern(int id, RDFStorage storage,
+			ActionContext context) throws Exception {
+		Tuple query = TupleFactory.newTuple(new RDFTerm(patterns[id * 3]),
+				new RDFTerm(patterns[id * 3 + 1]), new RDFTerm(
+						patterns[id * 3 + 2]));
+		TupleIterator itr = storage.getIterator(query, context);
+		if (itr == null) {
+			return 0;
+		}
+		try {
+			// The estimation is only possible after the first record is read
+			if (itr.nextTuple()) {
+				TripleIterator titr = (TripleIterator) itr;
+				long card = titr.estimateRecords();
+				titr.stopReading();
+				return card;
+			}
+			return 0;
+		} finally {
+			storage.releaseIterator(itr, context);
+		}
 	}
 
 	@Override
 	public void process(Tuple tuple, ActionContext context,
-			ActionOutput actionOutput) throws Exception {
-		if (!sumMode) {
-			// Ask the iterator to do an estimation
-			TripleIterator itr = (TripleIterator) context.getInputIterator();
-			long card = itr.estimateRecords();
-			actionOutput.output(new TInt(id), new TLong(card));
-			itr.stopReading();
-			sumModeEmitted = true;
-		} else {
-			count += ((TLong) tuple.get(1)).getValue();
-			if (count > Integer.MAX_VALUE) {
-				count = Integer.MAX_VALUE;
+			final ActionOutput actionOutput) throws Exception {
+		if (sumMode) {
+			int id = ((TInt) tuple.get(0)).getValue();
+			counts[id] += ((TLong) tuple.get(1)).getValue();
+			if (counts[id] > Integer.MAX_VALUE) {
+				counts[id] = Integer.MAX_VALUE;
 			}
+			return;
 		}
 
+		// Estimate all the patterns on the local partition
+		final ActionContext c = context;
+		final RDFStorage storage = (RDFStorage) context.getContext()
+				.getInputLayer(InputLayer.DEFAULT_LAYER);
+		final int[] nextPattern = new int[1];
+		final int[] activeThreads = new int[1];
+		int nthreads = Math.min(QueryPIE.PARALLEL_JOIN_THREADS, counts.length);
+		activeThreads[0] = nthreads;
+		for (int i = 0; i < nthreads; ++i) {
+			ThreadPool.createNew(new Runnable() {
+				@Override
+				public void run() {
+					for (;;) {
+						int id;
+						synchronized (nextPattern) {
+							id = nextPattern[0]++;
+						}
+						if (id >= counts.length) {
+							break;
+						}
+						try {
+							counts[id] = estimatePattern(id, storage, c);
+						} catch (Exception e) {
+							log.error("Error estimating pattern " + id, e);
+							// Unknown cost: do not put it first
+							counts[id] = Integer.MAX_VALUE;
+						}
+					}
+					synchronized (activeThreads) {
+						activeThreads[0]--;
+						activeThreads.notify();
+					}
+				}
+			}, "Estimate cardinality");
+		}
+		synchronized (activeThreads) {
+			while (activeThreads[0] != 0) {
+				activeThreads.wait();
+			}
+		}
+
+		TInt id = new TInt();
+		TLong card = new TLong();
+		for (int i = 0; i < counts.length; ++i) {
+			id.setValue(i);
+			card.setValue(counts[i]);
+			actionOutput.output(id, card);
+		}
 	}
 
 	@Override
 	public void stopProcess(ActionContext context, ActionOutput actionOutput)
 			throws Exception {
-		if (!sumModeEmitted && !sumMode) {
-			actionOutput.output(new TInt(id), new TLong(0));
-		}
-		
 		if (sumMode) {
-			context.putObjectInCache("estimate-" + id, count);
+			context.putObjectInCache(ESTIMATES, counts);
 			Lock lock = (Lock) context.getObjectFromCache(LOCK);
 			lock.increase();
 		}
-
+		patterns = null;
+		counts = null;
 	}
 }
@@ -0,0 +1,56 @@
+package nl.vu.cs.querypie.sparql;
+
+import nl.vu.cs.ajira.actions.Action;
+import nl.vu.cs.ajira.actions.ActionConf;
+import nl.vu.cs.ajira.actions.ActionContext;
+import nl.vu.cs.ajira.actions.ActionOutput;
+import nl.vu.cs.ajira.data.types.Tuple;
+import nl.vu.cs.querypie.storage.RDFTerm;
+
+/**
+ * Forwards only the tuples that satisfy all the conditions. The conditions are
+ * triples &lt;left, operator, right&gt; (see SolutionModifiers) where the
+ * operands are either constants or -(position + 1) of a field of the tuple.
+ */
+public class FilterTuples extends Action {
+
+	public static final int LA_CONDITIONS = 0;
+
+	private long[] conditions;
+
+	@Override
+	protected void registerActionParameters(ActionConf conf) {
+		conf.registerParameter(LA_CONDITIONS, "LA_CONDITIONS", null, true);
+	}
+
+	@Override
+	public void startProcess(ActionContext context) throws Exception {
+		conditions = getParamLongArray(LA_CONDITIONS);
+	}
+
+	private static long getValue(Tuple tuple, long operand) {
+		if (operand < 0) {
+			return ((RDFTerm) tuple.get((int) (-operand - 1))).getValue();
+		}
+		return operand;
+	}
+
+	@Override
+	public void process(Tuple tuple, ActionContext context,
+			ActionOutput actionOutput) throws Exception {
+		for (int i = 0; i < conditions.length; i += 3) {
+			boolean equal = getValue(tuple, conditions[i]) == getValue(tuple,
+					conditions[i + 2]);
+			if (equal != (conditions[i + 1] == SolutionModifiers.EQ)) {
+				return;
+			}
+		}
+		actionOutput.output(tuple);
+	}
+
+	@Override
+	public void stopProcess(ActionContext context, ActionOutput actionOutput)
+			throws Exception {
+		conditions = null;
+	}
+}
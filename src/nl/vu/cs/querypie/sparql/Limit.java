@@ -0,0 +1,53 @@
+package nl.vu.cs.querypie.sparql;
+
+import nl.vu.cs.ajira.actions.Action;
+import nl.vu.cs.ajira.actions.ActionConf;
+import nl.vu.cs.ajira.actions.ActionContext;
+import nl.vu.cs.ajira.actions.ActionOutput;
+import nl.vu.cs.ajira.data.types.Tuple;
+import nl.vu.cs.querypie.storage.ResultBudget;
+
+/**
+ * Forwards only the rows between OFFSET and OFFSET + LIMIT. When the last row
+ * is forwarded, the iterators that are still reading for the query are
+ * stopped.
+ */
+public class Limit extends Action {
+
+	public static final int L_OFFSET = 0;
+	public static final int L_LIMIT = 1;
+
+	private ResultBudget budget;
+
+	@Override
+	protected void registerActionParameters(ActionConf conf) {
+		conf.registerParameter(L_OFFSET, "L_OFFSET", 0L, false);
+		conf.registerParameter(L_LIMIT, "L_LIMIT", -1L, false);
+	}
+
+	@Override
+	public void startProcess(ActionContext context) throws Exception {
+		synchronized (Limit.class) {
+			budget = (ResultBudget) context.getObjectFromCache(ResultBudget.ID);
+			if (budget == null) {
+				budget = new ResultBudget(getParamLong(L_OFFSET),
+						getParamLong(L_LIMIT));
+				context.putObjectInCache(ResultBudget.ID, budget);
+			}
+		}
+	}
+
+	@Override
+	public void process(Tuple tuple, ActionContext context,
+			ActionOutput actionOutput) throws Exception {
+		if (budget.accept()) {
+			actionOutput.output(tuple);
+		}
+	}
+
+	@Override
+	public void stopProcess(ActionContext context, ActionOutput actionOutput)
+			throws Exception {
+		budget = null;
+	}
+}
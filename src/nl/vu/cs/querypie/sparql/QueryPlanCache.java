@@ -0,0 +1,364 @@
+package nl.vu.cs.querypie.sparql;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of query plans, keyed on the shape of the SPARQL query. The shape is
+ * the text of the query where all the constants in the body are replaced by
+ * placeholder variables (PARAM_PREFIX + n). The plan contains the patterns of
+ * the query in which the constants are referred by position, and the join
+ * order chosen by the optimizer the first time the shape was executed. A plan
+ * is valid only as long as the ruleset and the statistics do not change.
+ */
+public class QueryPlanCache {
+
+	static final Logger log = LoggerFactory.getLogger(QueryPlanCache.class);
+
+	public static final String PARAM_PREFIX = "__param";
+	public static final String CURRENT_PLAN = "queryPlan";
+	public static final int MAX_PLANS = 1024;
+
+	private static final Pattern prefixDecl = Pattern.compile(
+			"PREFIX\\s+([^\\s:]*):\\s*<([^>]*)>", Pattern.CASE_INSENSITIVE);
+	private static final Pattern baseDecl = Pattern.compile("BASE\\s*<",
+			Pattern.CASE_INSENSITIVE);
+
+	public static class Plan {
+		/**
+		 * The serialized patterns. Constants are already resolved, variables
+		 * are negative, while the value of the positions that contain a
+		 * parameter is undefined.
+		 */
+		final long[] patterns;
+
+		/** For every position, the index of the parameter or -1 */
+		final int[] params;
+
+		/** The values of OFFSET and LIMIT (-1 if there is no limit) */
+		long offset = 0;
+		long limit = -1;
+
+		/**
+		 * The filters, distinct and order of the query. The constants of the
+		 * filters that are parameters are in filterParams, like for the
+		 * patterns.
+		 */
+		SolutionModifiers modifiers;
+		int[] filterParams;
+
+		final int rulesVersion;
+		private int statsVersion;
+
+		/** The order of the patterns chosen by the optimizer */
+		private int[] order;
+
+		Plan(long[] patterns, int[] params, int rulesVersion, int statsVersion) {
+			this.patterns = patterns;
+			this.params = params;
+			this.rulesVersion = rulesVersion;
+			this.statsVersion = statsVersion;
+		}
+
+		/**
+		 * Substitutes the values of the parameters in the patterns.
+		 *
+		 * @return the serialized patterns, or null if some parameter is not in
+		 *         the dictionary.
+		 */
+		public long[] instantiate(List<String> values, Map<String, Long> dict) {
+			long[] output = patterns.clone();
+			for (int i = 0; i < params.length; ++i) {
+				if (params[i] != -1) {
+					Long v = dict.get(values.get(params[i]));
+					if (v == null) {
+						log.warn("Value not found in the cache: "
+								+ values.get(params[i]));
+						return null;
+					}
+					output[i] = v;
+				}
+			}
+			return output;
+		}
+
+		/**
+		 * Substitutes the values of the parameters in the filters. The
+		 * constants that are not in the dictionary never match.
+		 */
+		public SolutionModifiers instantiateModifiers(List<String> values,
+				Map<String, Long> dict) {
+			if (modifiers == null) {
+				return null;
+			}
+			long[] filters = modifiers.filters.clone();
+			for (int i = 0; i < filterParams.length; ++i) {
+				if (filterParams[i] != -1) {
+					Long v = dict.get(values.get(filterParams[i]));
+					filters[i] = v == null ? SolutionModifiers.UNKNOWN : v;
+				}
+			}
+			return new SolutionModifiers(filters, modifiers.distinct,
+					modifiers.order, modifiers.projection);
+		}
+
+		public synchronized int[] getOrder() {
+			return order;
+		}
+
+		/**
+		 * Sets the order chosen by the optimizer. The statistics may have been
+		 * loaded during the optimization, therefore the plan is bound to the
+		 * statistics that were used.
+		 */
+		public synchronized void setOrder(int[] order, int statsVersion) {
+			this.order = order;
+			this.statsVersion = statsVersion;
+		}
+
+		synchronized boolean isValid(int rulesVersion, int statsVersion) {
+			return this.rulesVersion == rulesVersion
+					&& this.statsVersion == statsVersion;
+		}
+	}
+
+	private static final QueryPlanCache instance = new QueryPlanCache();
+
+	private final Map<String, Plan> plans = new LinkedHashMap<String, Plan>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Plan> eldest) {
+			return size() > MAX_PLANS;
+		}
+	};
+
+	private QueryPlanCache() {
+	}
+
+	public static QueryPlanCache getInstance() {
+		return instance;
+	}
+
+	public synchronized Plan get(String shape, int rulesVersion,
+			int statsVersion) {
+		Plan plan = plans.get(shape);
+		if (plan != null && !plan.isValid(rulesVersion, statsVersion)) {
+			plans.remove(shape);
+			plan = null;
+		}
+		return plan;
+	}
+
+	public synchronized void put(String shape, Plan plan) {
+		plans.put(shape, plan);
+	}
+
+	public synchronized void clear() {
+		plans.clear();
+	}
+
+	private static boolean isNameChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '-'
+				|| c == '.';
+	}
+
+	private static int skipString(String q, int i) {
+		char quote = q.charAt(i);
+		if (q.startsWith("" + quote + quote + quote, i)) {
+			int end = q.indexOf("" + quote + quote + quote, i + 3);
+			return end == -1 ? -1 : end + 3;
+		}
+		for (int j = i + 1; j < q.length(); ++j) {
+			char c = q.charAt(j);
+			if (c == '\\') {
+				j++;
+			} else if (c == quote) {
+				return j + 1;
+			}
+		}
+		return -1;
+	}
+
+	private static String unescape(String s) {
+		if (s.indexOf('\\') == -1) {
+			return s;
+		}
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '\\' && i + 1 < s.length()) {
+				c = s.charAt(++i);
+				switch (c) {
+				case 't':
+					c = '\t';
+					break;
+				case 'n':
+					c = '\n';
+					break;
+				case 'r':
+					c = '\r';
+					break;
+				}
+			}
+			b.append(c);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Calculates the shape of the query and collects the constants in its
+	 * body, in the form used by the dictionary (&lt;uri&gt; or "literal").
+	 *
+	 * @return the shape or null if the query cannot be parameterized.
+	 */
+	public static String normalize(String query, String base,
+			List<String> values) {
+		int bodyStart = query.indexOf('{');
+		if (bodyStart == -1) {
+			return null;
+		}
+
+		// Read the prefixes
+		String prologue = query.substring(0, bodyStart);
+		if (baseDecl.matcher(prologue).find()) {
+			return null;
+		}
+		Map<String, String> prefixes = new LinkedHashMap<String, String>();
+		Matcher m = prefixDecl.matcher(prologue);
+		while (m.find()) {
+			prefixes.put(m.group(1), m.group(2));
+		}
+
+		StringBuilder shape = new StringBuilder();
+		shape.append(prologue.trim().replaceAll("\\s+", " "));
+
+		// Only the constants between the braces are parameters. What follows
+		// the body (LIMIT, OFFSET, ...) is part of the shape.
+		int i = bodyStart;
+		int depth = 0;
+		boolean space = true;
+		while (i < query.length()) {
+			if (depth == 0 && i > bodyStart) {
+				String rest = query.substring(i).trim();
+				if (rest.length() > 0) {
+					shape.append(' ').append(rest.replaceAll("\\s+", " "));
+				}
+				break;
+			}
+
+			char c = query.charAt(i);
+			String value = null;
+			int end = i + 1;
+
+			if (Character.isWhitespace(c)) {
+				space = true;
+				i++;
+				continue;
+			} else if (c == '#') {
+				end = query.indexOf('\n', i);
+				i = end == -1 ? query.length() : end;
+				continue;
+			} else if (c == '{') {
+				depth++;
+			} else if (c == '}') {
+				depth--;
+			} else if (c == '?' || c == '$') {
+				while (end < query.length() && isNameChar(query.charAt(end))) {
+					end++;
+				}
+			} else if (c == '<') {
+				int close = query.indexOf('>', i);
+				String iri = close == -1 ? null : query.substring(i + 1, close);
+				if (iri != null && !iri.matches(".*[\\s<\"{}|^`\\\\].*")) {
+					if (iri.indexOf(':') == -1) {
+						iri = base + iri;
+					}
+					value = "<" + iri + ">";
+					end = close + 1;
+				}
+			} else if (c == '"' || c == '\'') {
+				end = skipString(query, i);
+				if (end == -1) {
+					return null;
+				}
+				int len = query.startsWith("" + c + c + c, i) ? 3 : 1;
+				value = "\""
+						+ unescape(query.substring(i + len, end - len)) + "\"";
+				// Skip language or datatype
+				if (end < query.length() && query.charAt(end) == '@') {
+					end++;
+					while (end < query.length()
+							&& (Character.isLetterOrDigit(query.charAt(end)) || query
+									.charAt(end) == '-')) {
+						end++;
+					}
+				} else if (query.startsWith("^^", end)) {
+					end += 2;
+					if (end < query.length() && query.charAt(end) == '<') {
+						end = query.indexOf('>', end) + 1;
+						if (end == 0) {
+							return null;
+						}
+					} else {
+						while (end < query.length()
+								&& (isNameChar(query.charAt(end)) || query
+										.charAt(end) == ':')) {
+							end++;
+						}
+					}
+				}
+			} else if (Character.isDigit(c)) {
+				while (end < query.length()
+						&& (Character.isLetterOrDigit(query.charAt(end)) || query
+								.charAt(end) == '.')) {
+					end++;
+				}
+				if (query.charAt(end - 1) == '.') {
+					// The dot terminates the pattern
+					end--;
+				}
+				value = "\"" + query.substring(i, end) + "\"";
+			} else if (Character.isLetter(c) || c == ':' || c == '_') {
+				while (end < query.length()
+						&& (isNameChar(query.charAt(end)) || query.charAt(end) == ':')) {
+					end++;
+				}
+				String token = query.substring(i, end);
+				if (token.endsWith(".")) {
+					end--;
+					token = token.substring(0, token.length() - 1);
+				}
+				int colon = token.indexOf(':');
+				if (colon != -1 && !token.startsWith("_:")) {
+					String ns = prefixes.get(token.substring(0, colon));
+					if (ns == null) {
+						return null;
+					}
+					value = "<" + ns + token.substring(colon + 1) + ">";
+				}
+			}
+
+			if (space) {
+				shape.append(' ');
+				space = false;
+			}
+			if (value != null) {
+				shape.append('?').append(PARAM_PREFIX).append(values.size());
+				values.add(value);
+			} else {
+				shape.append(query, i, end);
+			}
+			i = end;
+		}
+
+		return shape.toString();
+	}
+}
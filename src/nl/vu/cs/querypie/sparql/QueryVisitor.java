@@ -1,14 +1,54 @@
 package nl.vu.cs.querypie.sparql;
 
+import java.util.ArrayList;
 import java.util.List;
 
+import org.openrdf.query.algebra.And;
+import org.openrdf.query.algebra.Compare;
+import org.openrdf.query.algebra.Distinct;
+import org.openrdf.query.algebra.Filter;
 import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.Not;
+import org.openrdf.query.algebra.Order;
+import org.openrdf.query.algebra.OrderElem;
+import org.openrdf.query.algebra.Projection;
+import org.openrdf.query.algebra.ProjectionElem;
+import org.openrdf.query.algebra.SameTerm;
+import org.openrdf.query.algebra.Slice;
 import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.ValueExpr;
 import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class QueryVisitor extends QueryModelVisitorBase<RuntimeException> {
 
+	static final Logger log = LoggerFactory.getLogger(QueryVisitor.class);
+
+	/**
+	 * A comparison between two terms, which can be evaluated on the ids of
+	 * the terms.
+	 */
+	static final class Condition {
+		ValueExpr left;
+		ValueExpr right;
+		boolean equal;
+
+		Condition(ValueExpr left, ValueExpr right, boolean equal) {
+			this.left = left;
+			this.right = right;
+			this.equal = equal;
+		}
+	}
+
 	List<StatementPattern> list = null;
+	long offset = 0;
+	long limit = -1;
+	boolean distinct = false;
+	List<Condition> conditions = new ArrayList<Condition>();
+	List<OrderElem> order = new ArrayList<OrderElem>();
+	// The names of the selected variables, or null for all of them
+	List<String> projection = null;
 
 	public QueryVisitor(List<StatementPattern> list) {
 		this.list = list;
@@ -20,6 +60,71 @@ public class QueryVisitor extends QueryModelVisitorBase<RuntimeException> {
 		op.getRightArg().visit(this);
 	}
 
+	@Override
+	public void meet(Slice op) {
+		if (op.hasOffset()) {
+			offset = op.getOffset();
+		}
+		if (op.hasLimit()) {
+			limit = op.getLimit();
+		}
+		op.getArg().visit(this);
+	}
+
+	@Override
+	public void meet(Projection op) {
+		if (projection == null) {
+			projection = new ArrayList<String>();
+			for (ProjectionElem elem : op.getProjectionElemList()
+					.getElements()) {
+				projection.add(elem.getSourceName());
+			}
+		}
+		op.getArg().visit(this);
+	}
+
+	@Override
+	public void meet(Distinct op) {
+		distinct = true;
+		op.getArg().visit(this);
+	}
+
+	@Override
+	public void meet(Order op) {
+		order.addAll(op.getElements());
+		op.getArg().visit(this);
+	}
+
+	@Override
+	public void meet(Filter op) {
+		addCondition(op.getCondition());
+		op.getArg().visit(this);
+	}
+
+	private void addCondition(ValueExpr expr) {
+		if (expr instanceof And) {
+			addCondition(((And) expr).getLeftArg());
+			addCondition(((And) expr).getRightArg());
+		} else if (expr instanceof SameTerm) {
+			SameTerm op = (SameTerm) expr;
+			conditions.add(new Condition(op.getLeftArg(), op.getRightArg(),
+					true));
+		} else if (expr instanceof Not
+				&& ((Not) expr).getArg() instanceof SameTerm) {
+			SameTerm op = (SameTerm) ((Not) expr).getArg();
+			conditions.add(new Condition(op.getLeftArg(), op.getRightArg(),
+					false));
+		} else if (expr instanceof Compare
+				&& (((Compare) expr).getOperator() == Compare.CompareOp.EQ || ((Compare) expr)
+						.getOperator() == Compare.CompareOp.NE)) {
+			Compare op = (Compare) expr;
+			conditions.add(new Condition(op.getLeftArg(), op.getRightArg(),
+					op.getOperator() == Compare.CompareOp.EQ));
+		} else {
+			log.warn("Filter not supported, it will be ignored: " + expr);
+		}
+	}
+
 	@Override
 	public void meet(StatementPattern sp) {
 		list.add(sp);
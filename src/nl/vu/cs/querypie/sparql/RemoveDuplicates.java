@@ -0,0 +1,52 @@
+package nl.vu.cs.querypie.sparql;
+
+import nl.vu.cs.ajira.actions.Action;
+import nl.vu.cs.ajira.actions.ActionConf;
+import nl.vu.cs.ajira.actions.ActionContext;
+import nl.vu.cs.ajira.actions.ActionOutput;
+import nl.vu.cs.ajira.data.types.Tuple;
+import nl.vu.cs.querypie.joins.RowSet;
+import nl.vu.cs.querypie.storage.RDFTerm;
+
+/**
+ * Forwards only the first occurrence of every tuple (SPARQL DISTINCT). The
+ * tuples are streamed, so that the following actions can stop as soon as
+ * they have enough results.
+ */
+public class RemoveDuplicates extends Action {
+
+	public static final int I_SIZEROW = 0;
+
+	private RowSet set;
+	private long[] row;
+
+	@Override
+	protected void registerActionParameters(ActionConf conf) {
+		conf.registerParameter(I_SIZEROW, "I_SIZEROW", null, true);
+	}
+
+	@Override
+	public void startProcess(ActionContext context) throws Exception {
+		int sizeRow = getParamInt(I_SIZEROW);
+		set = new RowSet(sizeRow);
+		row = new long[sizeRow];
+	}
+
+	@Override
+	public void process(Tuple tuple, ActionContext context,
+			ActionOutput actionOutput) throws Exception {
+		for (int i = 0; i < row.length; ++i) {
+			row[i] = ((RDFTerm) tuple.get(i)).getValue();
+		}
+		if (set.add(row)) {
+			actionOutput.output(tuple);
+		}
+	}
+
+	@Override
+	public void stopProcess(ActionContext context, ActionOutput actionOutput)
+			throws Exception {
+		set = null;
+		row = null;
+	}
+}
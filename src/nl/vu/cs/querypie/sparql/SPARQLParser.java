@@ -12,11 +12,17 @@ import nl.vu.cs.ajira.data.types.TLong;
 import nl.vu.cs.ajira.data.types.TString;
 import nl.vu.cs.ajira.data.types.Tuple;
 import nl.vu.cs.ajira.datalayer.InputLayer;
+import nl.vu.cs.querypie.reasoner.Ruleset;
+import nl.vu.cs.querypie.storage.ResultBudget;
 import nl.vu.cs.querypie.storage.disk.RDFStorage;
 
+import org.openrdf.model.Value;
 import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.query.algebra.OrderElem;
 import org.openrdf.query.algebra.StatementPattern;
 import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.ValueConstant;
+import org.openrdf.query.algebra.ValueExpr;
 import org.openrdf.query.algebra.Var;
 import org.openrdf.query.parser.ParsedQuery;
 import org.slf4j.Logger;
@@ -26,94 +32,287 @@ public class SPARQLParser extends Action {
 
     static final Logger log = LoggerFactory.getLogger(SPARQLParser.class);
 
-    @Override
-    public void process(Tuple inputTuple, ActionContext context,
-	    ActionOutput output) throws Exception {
-	try {
-	    TString tquery = (TString) inputTuple.get(0);
-	    String query = tquery.getValue();
-	    org.openrdf.query.parser.sparql.SPARQLParser parser = new org.openrdf.query.parser.sparql.SPARQLParser();
-	    ParsedQuery q = parser.parseQuery(query, "http://www.vu.nl/");
-
-            if (log.isDebugEnabled()) {
-                log.debug("ParsedQuery = " + q);
-            }   
-
-	    TupleExpr expr = q.getTupleExpr();
-            if (log.isDebugEnabled()) {
-                log.debug("TupleExpr = " + expr);
-            }
-
-	    List<StatementPattern> list = new ArrayList<StatementPattern>();
-	    expr.visit(new QueryVisitor(list));
-
-	    // Replace URIs with the numbers from the dictionary table
-	    Map<String, Long> map = ((RDFStorage) context.getContext()
-		    .getInputLayer(InputLayer.DEFAULT_LAYER)).getCacheURLs();
-
-	    for (StatementPattern sp : list) {
-		// log.debug("SP: " + sp);
-		for (Var var : sp.getVarList()) {
-		    if (var.getValue() != null) {
-			String value = var.getValue().stringValue();
-			if (var.getValue() instanceof LiteralImpl) {
-			    value = "\"" + value + "\"";
-			} else {
-			    value = "<" + value + ">";
-			}
-			if (map.containsKey(value)) {
-			    var.setValue(new SesameValue(map.get(value)));
-			} else {
-			    log.warn("Value not found in the cache: " + value);
-			}
-		    }
+    public static final String BASE_URI = "http://www.vu.nl/";
+
+    static QueryVisitor parse(String query) throws Exception {
+	org.openrdf.query.parser.sparql.SPARQLParser parser = new org.openrdf.query.parser.sparql.SPARQLParser();
+	ParsedQuery q = parser.parseQuery(query, BASE_URI);
+
+        if (log.isDebugEnabled()) {
+            log.debug("ParsedQuery = " + q);
+        }
+
+	TupleExpr expr = q.getTupleExpr();
+        if (log.isDebugEnabled()) {
+            log.debug("TupleExpr = " + expr);
+        }
+
+	QueryVisitor visitor = new QueryVisitor(
+		new ArrayList<StatementPattern>());
+	expr.visit(visitor);
+	return visitor;
+    }
+
+    private static String getKey(Value v) {
+	String value = v.stringValue();
+	if (v instanceof LiteralImpl) {
+	    return "\"" + value + "\"";
+	} else {
+	    return "<" + value + ">";
+	}
+    }
+
+    /**
+     * Translates an operand of a filter.
+     *
+     * @return the id of the variable or of the constant, or null if the
+     *         variable does not appear in the patterns.
+     */
+    private static Long getOperand(ValueExpr expr, Map<String, Long> vars,
+	    Map<String, Long> map, int[] params, int pos) {
+	Value value = null;
+	if (expr instanceof ValueConstant) {
+	    value = ((ValueConstant) expr).getValue();
+	} else if (expr instanceof Var) {
+	    Var var = (Var) expr;
+	    if (var.getValue() != null) {
+		value = var.getValue();
+	    } else if (params != null
+		    && var.getName().startsWith(QueryPlanCache.PARAM_PREFIX)) {
+		params[pos] = Integer.valueOf(var.getName().substring(
+			QueryPlanCache.PARAM_PREFIX.length()));
+		return SolutionModifiers.UNKNOWN;
+	    } else {
+		return vars.get(var.getName());
+	    }
+	} else {
+	    return null;
+	}
+	Long id = map.get(getKey(value));
+	return id == null ? SolutionModifiers.UNKNOWN : id;
+    }
+
+    /**
+     * Translates the filters, distinct and order of the query in terms of
+     * ids. If params is not null, it is filled with the positions of the
+     * placeholders in the filters.
+     */
+    static SolutionModifiers getModifiers(QueryVisitor visitor,
+	    Map<String, Long> vars, Map<String, Long> map, List<Integer> params) {
+	List<Long> filters = new ArrayList<Long>();
+	int[] p = new int[3];
+	for (QueryVisitor.Condition cond : visitor.conditions) {
+	    p[0] = p[2] = -1;
+	    Long left = getOperand(cond.left, vars, map, p, 0);
+	    Long right = getOperand(cond.right, vars, map, p, 2);
+	    if (left == null || right == null) {
+		log.warn("Filter on variables not in the patterns is ignored");
+		continue;
+	    }
+	    filters.add(left);
+	    filters.add(cond.equal ? SolutionModifiers.EQ
+		    : SolutionModifiers.NE);
+	    filters.add(right);
+	    if (params != null) {
+		params.add(p[0]);
+		params.add(-1);
+		params.add(p[2]);
+	    }
+	}
+
+	List<Long> order = new ArrayList<Long>();
+	for (OrderElem elem : visitor.order) {
+	    Long var = null;
+	    if (elem.getExpr() instanceof Var) {
+		var = vars.get(((Var) elem.getExpr()).getName());
+	    }
+	    if (var == null) {
+		log.warn("ORDER BY supports only the variables of the patterns: "
+			+ elem.getExpr());
+		continue;
+	    }
+	    order.add(var);
+	    order.add(elem.isAscending() ? 1L : 0L);
+	}
+
+	long[] f = new long[filters.size()];
+	for (int i = 0; i < f.length; ++i) {
+	    f[i] = filters.get(i);
+	}
+	long[] o = new long[order.size()];
+	for (int i = 0; i < o.length; ++i) {
+	    o[i] = order.get(i);
+	}
+
+	List<Long> projection = new ArrayList<Long>();
+	if (visitor.projection != null) {
+	    for (String name : visitor.projection) {
+		Long var = vars.get(name);
+		if (var == null) {
+		    log.warn("Projected variable not in the patterns: " + name);
+		} else if (!projection.contains(var)) {
+		    projection.add(var);
 		}
 	    }
+	}
+	long[] pr = new long[projection.size()];
+	for (int i = 0; i < pr.length; ++i) {
+	    pr[i] = projection.get(i);
+	}
+	return new SolutionModifiers(f, visitor.distinct, o, pr);
+    }
+
+    /**
+     * Parses the shape of the query and stores the plan in the cache. The
+     * positions of the placeholders are recorded in the plan, while the other
+     * constants are resolved only once.
+     *
+     * @return the plan, or null if the shape cannot be reused.
+     */
+    private static QueryPlanCache.Plan newPlan(String shape,
+	    Map<String, Long> map, int rulesVersion, int statsVersion)
+	    throws Exception {
+	QueryVisitor visitor = parse(shape);
+	List<StatementPattern> list = visitor.list;
 
-	    // // Serialize the list of patterns in a list of triples
-	    long counter = -100;
-	    Map<String, Long> maps = new HashMap<String, Long>();
-	    long[] serializedJoin = new long[list.size() * 3];
-	    int i = 0;
-	    for (StatementPattern s : list) {
-		Var var = s.getSubjectVar();
+	long counter = -100;
+	Map<String, Long> maps = new HashMap<String, Long>();
+	long[] serializedJoin = new long[list.size() * 3];
+	int[] params = new int[list.size() * 3];
+	int i = 0;
+	for (StatementPattern s : list) {
+	    Var[] vars = { s.getSubjectVar(), s.getPredicateVar(),
+		    s.getObjectVar() };
+	    for (Var var : vars) {
+		params[i] = -1;
 		if (var.getValue() != null) {
-		    serializedJoin[i * 3] = ((SesameValue) var.getValue()).value;
+		    Long value = map.get(getKey(var.getValue()));
+		    if (value == null) {
+			return null;
+		    }
+		    serializedJoin[i] = value;
+		} else if (var.getName().startsWith(QueryPlanCache.PARAM_PREFIX)) {
+		    params[i] = Integer.valueOf(var.getName().substring(
+			    QueryPlanCache.PARAM_PREFIX.length()));
 		} else {
 		    if (!maps.containsKey(var.getName())) {
 			maps.put(var.getName(), --counter);
 		    }
-		    serializedJoin[i * 3] = maps.get(var.getName());
+		    serializedJoin[i] = maps.get(var.getName());
 		}
+		++i;
+	    }
+	}
 
-		var = s.getPredicateVar();
-		if (var.getValue() != null) {
-		    serializedJoin[i * 3 + 1] = ((SesameValue) var.getValue()).value;
-		} else {
-		    if (!maps.containsKey(var.getName())) {
-			maps.put(var.getName(), --counter);
-		    }
-		    serializedJoin[i * 3 + 1] = maps.get(var.getName());
+	QueryPlanCache.Plan plan = new QueryPlanCache.Plan(serializedJoin,
+		params, rulesVersion, statsVersion);
+	plan.offset = visitor.offset;
+	plan.limit = visitor.limit;
+	List<Integer> filterParams = new ArrayList<Integer>();
+	plan.modifiers = getModifiers(visitor, maps, map, filterParams);
+	plan.filterParams = new int[filterParams.size()];
+	for (i = 0; i < plan.filterParams.length; ++i) {
+	    plan.filterParams[i] = filterParams.get(i);
+	}
+	QueryPlanCache.getInstance().put(shape, plan);
+	return plan;
+    }
+
+    /**
+     * Translates the query using the cached plan of its shape.
+     *
+     * @return the serialized join, or null if the query could not be
+     *         prepared.
+     */
+    private static long[] prepare(String query, RDFStorage storage,
+	    ActionContext context) {
+	List<String> values = new ArrayList<String>();
+	String shape = QueryPlanCache.normalize(query, BASE_URI, values);
+	if (shape == null) {
+	    return null;
+	}
+
+	try {
+	    int rulesVersion = Ruleset.getInstance().getVersion();
+	    int statsVersion = storage.getStatistics().getVersion();
+	    QueryPlanCache.Plan plan = QueryPlanCache.getInstance().get(shape,
+		    rulesVersion, statsVersion);
+	    if (plan == null) {
+		plan = newPlan(shape, storage.getCacheURLs(), rulesVersion,
+			statsVersion);
+		if (plan == null) {
+		    return null;
 		}
+	    } else if (log.isDebugEnabled()) {
+		log.debug("Reuse the plan of shape " + shape);
+	    }
 
-		var = s.getObjectVar();
-		if (var.getValue() != null) {
-		    serializedJoin[i * 3 + 2] = ((SesameValue) var.getValue()).value;
-		} else {
-		    if (!maps.containsKey(var.getName())) {
-			maps.put(var.getName(), --counter);
-		    }
-		    serializedJoin[i * 3 + 2] = maps.get(var.getName());
+	    long[] serializedJoin = plan.instantiate(values,
+		    storage.getCacheURLs());
+	    if (serializedJoin != null) {
+		context.putObjectInCache(QueryPlanCache.CURRENT_PLAN, plan);
+		setBudget(plan.offset, plan.limit, context);
+		setModifiers(plan.instantiateModifiers(values,
+			storage.getCacheURLs()), context);
+	    }
+	    return serializedJoin;
+	} catch (Exception e) {
+	    // Some constructs cannot be parameterized (e.g. functions in
+	    // the filters). Use the original query.
+	    log.debug("Shape " + shape + " cannot be prepared", e);
+	    return null;
+	}
+    }
+
+    /**
+     * If the query has a LIMIT or an OFFSET, the budget of rows is stored in
+     * the cache, so that the iterators opened for the query can be stopped
+     * once it is satisfied.
+     */
+    private static void setBudget(long offset, long limit,
+	    ActionContext context) {
+	if (offset > 0 || limit >= 0) {
+	    context.putObjectInCache(ResultBudget.ID, new ResultBudget(offset,
+		    limit));
+	}
+    }
+
+    private static void setModifiers(SolutionModifiers modifiers,
+	    ActionContext context) {
+	if (modifiers != null && !modifiers.isEmpty()) {
+	    context.putObjectInCache(SolutionModifiers.ID, modifiers);
+	}
+    }
+
+    @Override
+    public void process(Tuple inputTuple, ActionContext context,
+	    ActionOutput output) throws Exception {
+	try {
+	    TString tquery = (TString) inputTuple.get(0);
+	    String query = tquery.getValue();
+	    RDFStorage storage = (RDFStorage) context.getContext()
+		    .getInputLayer(InputLayer.DEFAULT_LAYER);
+
+	    long[] serializedJoin = prepare(query, storage, context);
+	    if (serializedJoin == null) {
+		QueryVisitor visitor = parse(query);
+		Map<String, Long> vars = new HashMap<String, Long>();
+		serializedJoin = serialize(visitor.list, storage.getCacheURLs(),
+			vars);
+		setBudget(visitor.offset, visitor.limit, context);
+		setModifiers(getModifiers(visitor, vars, storage.getCacheURLs(),
+			null), context);
+	    }
+
+	    if (log.isInfoEnabled()) {
+		for (int i = 0; i < serializedJoin.length; i += 3) {
+		    log.info("line: " + serializedJoin[i] + ", " + serializedJoin[i + 1] + ", " + serializedJoin[i + 2]);
 		}
-                if (log.isInfoEnabled()) {
-                    log.info("line: " + serializedJoin[i * 3] + ", " + serializedJoin[i * 3 + 1] + ", " + serializedJoin[i * 3 + 2]);
-                }
-		++i;
 	    }
 
 	    // Output the list of triples
-	    TLong[] serializedList = new TLong[list.size() * 3];
-	    for (i = 0; i < serializedJoin.length; ++i) {
+	    TLong[] serializedList = new TLong[serializedJoin.length];
+	    for (int i = 0; i < serializedJoin.length; ++i) {
 		serializedList[i] = new TLong();
 		serializedList[i].setValue(serializedJoin[i]);
 	    }
@@ -124,4 +323,60 @@ public class SPARQLParser extends Action {
 	    log.error("Error", e);
 	}
     }
+
+    static long[] serialize(List<StatementPattern> list,
+	    Map<String, Long> map, Map<String, Long> maps) {
+	// Replace URIs with the numbers from the dictionary table
+	for (StatementPattern sp : list) {
+	    // log.debug("SP: " + sp);
+	    for (Var var : sp.getVarList()) {
+		if (var.getValue() != null) {
+		    String value = getKey(var.getValue());
+		    if (map.containsKey(value)) {
+			var.setValue(new SesameValue(map.get(value)));
+		    } else {
+			log.warn("Value not found in the cache: " + value);
+		    }
+		}
+	    }
+	}
+
+	// // Serialize the list of patterns in a list of triples
+	long counter = -100;
+	long[] serializedJoin = new long[list.size() * 3];
+	int i = 0;
+	for (StatementPattern s : list) {
+	    Var var = s.getSubjectVar();
+	    if (var.getValue() != null) {
+		serializedJoin[i * 3] = ((SesameValue) var.getValue()).value;
+	    } else {
+		if (!maps.containsKey(var.getName())) {
+		    maps.put(var.getName(), --counter);
+		}
+		serializedJoin[i * 3] = maps.get(var.getName());
+	    }
+
+	    var = s.getPredicateVar();
+	    if (var.getValue() != null) {
+		serializedJoin[i * 3 + 1] = ((SesameValue) var.getValue()).value;
+	    } else {
+		if (!maps.containsKey(var.getName())) {
+		    maps.put(var.getName(), --counter);
+		}
+		serializedJoin[i * 3 + 1] = maps.get(var.getName());
+	    }
+
+	    var = s.getObjectVar();
+	    if (var.getValue() != null) {
+		serializedJoin[i * 3 + 2] = ((SesameValue) var.getValue()).value;
+	    } else {
+		if (!maps.containsKey(var.getName())) {
+		    maps.put(var.getName(), --counter);
+		}
+		serializedJoin[i * 3 + 2] = maps.get(var.getName());
+	    }
+	    ++i;
+	}
+	return serializedJoin;
+    }
 }
@@ -9,16 +9,20 @@ import nl.vu.cs.ajira.data.types.Tuple;
 public class SPARQLPrintOutput extends Action {
 
 	private TString line = new TString();
+	private StringBuilder builder = new StringBuilder();
 
 	@Override
 	public void process(Tuple tuple, ActionContext context,
 			ActionOutput actionOutput) throws Exception {
 		// create the line
-		String l = "";
+		builder.setLength(0);
 		for (int i = 0; i < tuple.getNElements(); ++i) {
-			l += tuple.get(i) + " ";
+			if (i > 0) {
+				builder.append(' ');
+			}
+			builder.append(tuple.get(i));
 		}
-		line.setValue(l.trim());
+		line.setValue(builder.toString());
 		actionOutput.output(line);
 	}
 
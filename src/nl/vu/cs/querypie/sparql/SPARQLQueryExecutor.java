@@ -2,6 +2,9 @@ package nl.vu.cs.querypie.sparql;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import nl.vu.cs.ajira.actions.Action;
 import nl.vu.cs.ajira.actions.ActionConf;
@@ -11,6 +14,8 @@ import nl.vu.cs.ajira.actions.ActionOutput;
 import nl.vu.cs.ajira.actions.ActionSequence;
 import nl.vu.cs.ajira.actions.CollectToNode;
 import nl.vu.cs.ajira.data.types.Tuple;
+import nl.vu.cs.ajira.datalayer.InputLayer;
+import nl.vu.cs.ajira.exceptions.ActionNotConfiguredException;
 import nl.vu.cs.querypie.joins.HashJoin;
 import nl.vu.cs.querypie.joins.Table;
 import nl.vu.cs.querypie.reasoner.IncrRuleBCAlgo;
@@ -18,21 +23,41 @@ import nl.vu.cs.querypie.reasoner.QSQBCAlgo;
 import nl.vu.cs.querypie.reasoner.RuleBCAlgo;
 import nl.vu.cs.querypie.reasoning.expand.ExpandTree;
 import nl.vu.cs.querypie.storage.RDFTerm;
+import nl.vu.cs.querypie.storage.ResultBudget;
 import nl.vu.cs.querypie.storage.Schema;
+import nl.vu.cs.querypie.storage.disk.RDFStorage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class SPARQLQueryExecutor extends Action {
 
+	static final Logger log = LoggerFactory
+			.getLogger(SPARQLQueryExecutor.class);
+
 	public static final int LA_NAMEREST = 0;
 	public static final int LA_NAMEEXIST = 1;
 	public static final int LA_NAMESETS = 2;
 	public static final int IA_POSSETS = 3;
 	public static final int B_QSQ = 4;
+	public static final int L_OFFSET = 5;
+	public static final int L_LIMIT = 6;
+	public static final int LA_FILTERS = 7;
+	public static final int B_DISTINCT = 8;
+	public static final int LA_ORDER = 9;
+	public static final int LA_PROJECTION = 10;
 
 	private long[] existingTable;
 	private long[] remainingPatterns;
 	private long[] nameSets;
 	private int[] posSets;
 	private boolean qsq;
+	private long offset;
+	private long limit;
+	private long[] filters;
+	private boolean distinct;
+	private long[] order;
+	private long[] projection;
 
 	@Override
 	protected void registerActionParameters(ActionConf conf) {
@@ -41,6 +66,12 @@ public class SPARQLQueryExecutor extends Action {
 		conf.registerParameter(LA_NAMESETS, "LA_NAMESETS", null, false);
 		conf.registerParameter(IA_POSSETS, "IA_POSSETS", null, false);
 		conf.registerParameter(B_QSQ, "B_QSQ", null, true);
+		conf.registerParameter(L_OFFSET, "L_OFFSET", 0L, false);
+		conf.registerParameter(L_LIMIT, "L_LIMIT", -1L, false);
+		conf.registerParameter(LA_FILTERS, "LA_FILTERS", null, false);
+		conf.registerParameter(B_DISTINCT, "B_DISTINCT", false, false);
+		conf.registerParameter(LA_ORDER, "LA_ORDER", null, false);
+		conf.registerParameter(LA_PROJECTION, "LA_PROJECTION", null, false);
 	}
 
 	@Override
@@ -50,6 +81,12 @@ public class SPARQLQueryExecutor extends Action {
 		nameSets = getParamLongArray(LA_NAMESETS);
 		posSets = getParamIntArray(IA_POSSETS);
 		qsq = getParamBoolean(B_QSQ);
+		offset = getParamLong(L_OFFSET);
+		limit = getParamLong(L_LIMIT);
+		filters = getParamLongArray(LA_FILTERS);
+		distinct = getParamBoolean(B_DISTINCT);
+		order = getParamLongArray(LA_ORDER);
+		projection = getParamLongArray(LA_PROJECTION);
 	}
 
 	@Override
@@ -71,6 +108,34 @@ public class SPARQLQueryExecutor extends Action {
 			return;
 		}
 
+		// The first iteration reads the LIMIT, FILTER, DISTINCT and ORDER BY
+		// set by the parser
+		if (existingTable == null) {
+			ResultBudget budget = (ResultBudget) context
+					.getObjectFromCache(ResultBudget.ID);
+			if (budget != null) {
+				offset = budget.getOffset();
+				limit = budget.getLimit();
+			}
+			SolutionModifiers modifiers = (SolutionModifiers) context
+					.getObjectFromCache(SolutionModifiers.ID);
+			if (modifiers != null) {
+				filters = modifiers.filters;
+				distinct = modifiers.distinct;
+				order = modifiers.order;
+				projection = modifiers.projection;
+				pushDownFilters(context);
+			}
+			if (order != null && order.length > 0
+					&& !((RDFStorage) context.getContext().getInputLayer(
+							InputLayer.DEFAULT_LAYER)).hasDictionary()) {
+				// The ids are hashes: without the text of the terms the
+				// order would be arbitrary
+				throw new Exception("ORDER BY needs the dictionary of the "
+						+ "terms (" + RDFStorage.DICT_DIR + ")");
+			}
+		}
+
 		/***** PREPARE THE PATTERN TO READ *****/
 		int nvars = 0;
 		ActionSequence newChain = new ActionSequence();
@@ -153,6 +218,11 @@ public class SPARQLQueryExecutor extends Action {
 			newChain.add(c);
 		}
 
+		/***** FILTER AS SOON AS THE VARIABLES ARE BOUND *****/
+		if (filters != null && filters.length > 0) {
+			applyFilters(newChain);
+		}
+
 		if (remainingPatterns != null && remainingPatterns.length > 3) {
 			/***** CALCULATE A NUMBER OF ACCEPTABLE VALUES FOR THE NEXT JOIN *****/
 			int[][] nextJoins = calculateJoinsAndPositionsToCopy(existingTable,
@@ -181,17 +251,220 @@ public class SPARQLQueryExecutor extends Action {
 			c.setParamLongArray(LA_NAMESETS, nameSets);
 			c.setParamIntArray(IA_POSSETS, nextJoins[1]);
 			c.setParamBoolean(B_QSQ, qsq);
+			c.setParamLong(L_OFFSET, offset);
+			c.setParamLong(L_LIMIT, limit);
+			if (filters != null) {
+				c.setParamLongArray(LA_FILTERS, filters);
+			}
+			c.setParamBoolean(B_DISTINCT, distinct);
+			if (order != null) {
+				c.setParamLongArray(LA_ORDER, order);
+			}
+			if (projection != null) {
+				c.setParamLongArray(LA_PROJECTION, projection);
+			}
 			newChain.add(c);
 
 		} else {
 			// Nothing left to do. Let the final tuples being processed by the
-			// next action.
+			// next action, stopping as soon as we have enough of them.
+			if (filters != null && filters.length > 0) {
+				log.warn("Some filters could not be evaluated");
+			}
+			if (order != null && order.length > 0) {
+				// Sort the whole rows, so that the order can be on variables
+				// that are not selected
+				List<Integer> pos = new ArrayList<Integer>();
+				List<Integer> ascending = new ArrayList<Integer>();
+				for (int i = 0; i < order.length; i += 2) {
+					int p = getPosition(order[i]);
+					if (p == -1) {
+						log.warn("ORDER BY on a variable that is not in the "
+								+ "patterns is ignored");
+					} else {
+						pos.add(p);
+						ascending.add((int) order[i + 1]);
+					}
+				}
+				if (pos.size() > 0) {
+					c = ActionFactory.getActionConf(SortTuples.class);
+					c.setParamIntArray(SortTuples.IA_POS, toArray(pos));
+					c.setParamIntArray(SortTuples.IA_ASCENDING,
+							toArray(ascending));
+					c.setParamInt(SortTuples.I_SIZEROW, sizeOutputTuples);
+					newChain.add(c);
+				}
+			}
+			if (distinct) {
+				// DISTINCT applies to the selected variables only.
+				// RemoveDuplicates keeps the first row of every group, so the
+				// order is preserved.
+				int[] pos = getProjectedPositions(existingTable, projection);
+				if (pos != null) {
+					c = ActionFactory.getActionConf(Project.class);
+					c.setParamIntArray(Project.IA_POS, pos);
+					newChain.add(c);
+					long[] projected = new long[pos.length];
+					for (int i = 0; i < pos.length; ++i) {
+						projected[i] = existingTable[pos[i]];
+					}
+					existingTable = projected;
+					sizeOutputTuples = pos.length;
+				}
+				c = ActionFactory.getActionConf(RemoveDuplicates.class);
+				c.setParamInt(RemoveDuplicates.I_SIZEROW, sizeOutputTuples);
+				newChain.add(c);
+			}
+			if (offset > 0 || limit >= 0) {
+				c = ActionFactory.getActionConf(Limit.class);
+				c.setParamLong(Limit.L_OFFSET, offset);
+				c.setParamLong(Limit.L_LIMIT, limit);
+				newChain.add(c);
+			}
 		}
 
 		actionOutput.branch(newChain);
 	}
 
-	private final int[] calculatePosVariables(long[] tuple) {
+	private static int[] toArray(List<Integer> list) {
+		int[] a = new int[list.size()];
+		for (int i = 0; i < a.length; ++i) {
+			a[i] = list.get(i);
+		}
+		return a;
+	}
+
+	/**
+	 * Returns the positions of the selected variables in the table, or null
+	 * if all the variables are selected in the same order.
+	 */
+	static int[] getProjectedPositions(long[] table, long[] projection) {
+		if (projection == null || projection.length == 0) {
+			return null;
+		}
+		int[] pos = new int[projection.length];
+		boolean identity = pos.length == table.length;
+		for (int i = 0; i < pos.length; ++i) {
+			pos[i] = -1;
+			for (int j = 0; j < table.length; ++j) {
+				if (table[j] == projection[i]) {
+					pos[i] = j;
+					break;
+				}
+			}
+			if (pos[i] == -1) {
+				return null;
+			}
+			identity &= pos[i] == i;
+		}
+		return identity ? null : pos;
+	}
+
+	private final int getPosition(long var) {
+		for (int i = 0; i < existingTable.length; ++i) {
+			if (existingTable[i] == var) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Restricts the scan of the first pattern with the constants of the
+	 * equality filters, storing them in sets like the values of a join.
+	 */
+	private void pushDownFilters(ActionContext context) throws Exception {
+		if (filters == null || nameSets != null) {
+			return;
+		}
+		List<Long> names = new ArrayList<Long>();
+		List<Integer> positions = new ArrayList<Integer>();
+		for (int i = 0; i < filters.length; i += 3) {
+			if (filters[i + 1] != SolutionModifiers.EQ) {
+				continue;
+			}
+			long var = filters[i];
+			long value = filters[i + 2];
+			if (var >= 0) {
+				var = filters[i + 2];
+				value = filters[i];
+			}
+			if (var >= 0 || value < 0) {
+				continue;
+			}
+			for (int m = 0; m < 3; ++m) {
+				if (remainingPatterns[m] == var && !positions.contains(m)) {
+					long name = ((long) (context.getNewBucketID() * -1)) << 16;
+					Set<Long> set = new TreeSet<Long>();
+					set.add(value);
+					context.putObjectInCache(name, set);
+					context.broadcastCacheObjects(name);
+					names.add(name);
+					positions.add(m);
+					break;
+				}
+			}
+		}
+
+		if (names.size() > 0) {
+			nameSets = new long[names.size()];
+			posSets = new int[names.size()];
+			for (int i = 0; i < nameSets.length; ++i) {
+				nameSets[i] = names.get(i);
+				posSets[i] = positions.get(i);
+			}
+		}
+	}
+
+	/**
+	 * Adds a filter on the conditions whose variables are in the table. The
+	 * other conditions are kept for the next patterns.
+	 */
+	private void applyFilters(ActionSequence chain)
+			throws ActionNotConfiguredException {
+		List<Long> conditions = new ArrayList<Long>();
+		List<Long> remaining = new ArrayList<Long>();
+		for (int i = 0; i < filters.length; i += 3) {
+			long left = filters[i];
+			long right = filters[i + 2];
+			boolean bound = true;
+			if (left < 0) {
+				left = -(getPosition(left) + 1);
+				bound = left != 0;
+			}
+			if (right < 0) {
+				right = -(getPosition(right) + 1);
+				bound &= right != 0;
+			}
+			if (!bound) {
+				// Not all the variables are bound yet
+				remaining.add(filters[i]);
+				remaining.add(filters[i + 1]);
+				remaining.add(filters[i + 2]);
+			} else {
+				conditions.add(left);
+				conditions.add(filters[i + 1]);
+				conditions.add(right);
+			}
+		}
+
+		filters = new long[remaining.size()];
+		for (int i = 0; i < filters.length; ++i) {
+			filters[i] = remaining.get(i);
+		}
+
+		if (conditions.size() > 0) {
+			long[] c = new long[conditions.size()];
+			for (int i = 0; i < c.length; ++i) {
+				c[i] = conditions.get(i);
+			}
+			ActionConf conf = ActionFactory.getActionConf(FilterTuples.class);
+			conf.setParamLongArray(FilterTuples.LA_CONDITIONS, c);
+			chain.add(conf);
+		}
+	}
+
+	static int[] calculatePosVariables(long[] tuple) {
 		ArrayList<Integer> positions = new ArrayList<Integer>();
 		for (int i = 0; i < tuple.length; ++i) {
 			if (tuple[i] < 0)
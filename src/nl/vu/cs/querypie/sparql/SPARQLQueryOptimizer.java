@@ -15,15 +15,19 @@ import nl.vu.cs.ajira.actions.ActionFactory;
 import nl.vu.cs.ajira.actions.ActionOutput;
 import nl.vu.cs.ajira.actions.ActionSequence;
 import nl.vu.cs.ajira.actions.CollectToNode;
+import nl.vu.cs.ajira.actions.QueryInputLayer;
 import nl.vu.cs.ajira.data.types.TInt;
 import nl.vu.cs.ajira.data.types.TLong;
 import nl.vu.cs.ajira.data.types.Tuple;
 import nl.vu.cs.ajira.data.types.TupleFactory;
-import nl.vu.cs.querypie.reasoner.ReasoningUtils;
+import nl.vu.cs.ajira.datalayer.InputLayer;
 import nl.vu.cs.querypie.reasoning.expand.QueryNode;
 import nl.vu.cs.querypie.reasoning.expand.Tree;
 import nl.vu.cs.querypie.reasoning.expand.TreeExpander;
 import nl.vu.cs.querypie.storage.RDFTerm;
+import nl.vu.cs.querypie.storage.Schema;
+import nl.vu.cs.querypie.storage.disk.RDFStorage;
+import nl.vu.cs.querypie.storage.disk.StatisticsCatalog;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +40,7 @@ public class SPARQLQueryOptimizer extends Action {
 		long[] names = new long[3];
 		long[] values = new long[3];
 		int nconstants = 0;
+		int index;
 		public long explicitEstimate = -1;
 		public long implicitEstimate = -1;
 
@@ -89,7 +94,16 @@ public class SPARQLQueryOptimizer extends Action {
 				log.debug("serializedJoin: " + Arrays.toString(serializedJoin));
 			}
 
-			optimizeQuery(serializedJoin, output, context);
+			// The plan of the query was prepared by the parser
+			QueryPlanCache.Plan plan = (QueryPlanCache.Plan) context
+					.getObjectFromCache(QueryPlanCache.CURRENT_PLAN);
+			context.putObjectInCache(QueryPlanCache.CURRENT_PLAN, null);
+
+			long time = System.currentTimeMillis();
+			optimizeQuery(serializedJoin, plan, output, context);
+			time = System.currentTimeMillis() - time;
+			context.incrCounter("Optimizer time (ms)", time);
+			log.info("Query optimized in " + time + " ms");
 
 			if (log.isDebugEnabled()) {
 				log.debug("Optimized serializedJoin: "
@@ -112,6 +126,7 @@ public class SPARQLQueryOptimizer extends Action {
 		ArrayList<Query> list = new ArrayList<Query>();
 		for (int i = 0; i < query.length; i += 3) {
 			Query q = new Query();
+			q.index = i / 3;
 			for (int j = 0; j < 3; ++j) {
 				q.names[j] = query[i + j];
 				if (q.names[j] >= 0) {
@@ -158,129 +173,149 @@ public class SPARQLQueryOptimizer extends Action {
 
 	private static final long[] estimateCardinality(List<long[]> queries,
 			ActionOutput actionOutput, ActionContext context) throws Exception {
-		final nl.vu.cs.ajira.utils.Lock lock = new nl.vu.cs.ajira.utils.Lock();
-		context.putObjectInCache(EstimateCardinality.LOCK, lock);
+		long[] output = new long[queries.size()];
 
+		// First try to estimate the cardinality with the statistics of the
+		// indexes. Only the patterns that cannot be estimated in this way are
+		// sent to the nodes.
+		StatisticsCatalog catalog = ((RDFStorage) context.getContext()
+				.getInputLayer(InputLayer.DEFAULT_LAYER)).getStatistics();
+		List<Integer> remaining = new ArrayList<Integer>();
 		for (int i = 0; i < queries.size(); ++i) {
 			long[] q = queries.get(i);
-			ActionSequence actions = new ActionSequence();
-
-			ReasoningUtils.getResultsQuery(actions, TupleFactory.newTuple(
-					new RDFTerm(q[0]), new RDFTerm(q[1]), new RDFTerm(q[2])),
-					false);
-
-			ActionConf c = ActionFactory
-					.getActionConf(EstimateCardinality.class);
-			c.setParamInt(EstimateCardinality.I_IDQUERY, i);
-			actions.add(c);
-
-			c = ActionFactory.getActionConf(CollectToNode.class);
-			c.setParamStringArray(CollectToNode.SA_TUPLE_FIELDS,
-					TInt.class.getName(), TLong.class.getName());
-			actions.add(c);
-
-			c = ActionFactory.getActionConf(EstimateCardinality.class);
-			c.setParamInt(EstimateCardinality.I_IDQUERY, i);
-			c.setParamBoolean(EstimateCardinality.B_SUMVALUES, true);
-			actions.add(c);
+			output[i] = catalog.estimate(q[0], q[1], q[2]);
+			if (output[i] == -1) {
+				remaining.add(i);
+			}
+		}
+		if (remaining.size() == 0) {
+			return output;
+		}
 
-			actionOutput.branch(actions);
+		// Estimate all the remaining patterns with a single job
+		long[] patterns = new long[remaining.size() * 3];
+		for (int i = 0; i < remaining.size(); ++i) {
+			long[] q = queries.get(remaining.get(i));
+			patterns[i * 3] = q[0];
+			patterns[i * 3 + 1] = q[1];
+			patterns[i * 3 + 2] = q[2];
 		}
 
-		// Wait until all estimations are completed
+		final nl.vu.cs.ajira.utils.Lock lock = new nl.vu.cs.ajira.utils.Lock();
+		context.putObjectInCache(EstimateCardinality.LOCK, lock);
+
+		ActionSequence actions = new ActionSequence();
+		ActionConf c = ActionFactory.getActionConf(QueryInputLayer.class);
+		c.setParamString(QueryInputLayer.S_INPUTLAYER,
+				RDFStorage.class.getName());
+		c.setParamWritable(
+				QueryInputLayer.W_QUERY,
+				new nl.vu.cs.ajira.actions.support.Query(TupleFactory.newTuple(
+						new RDFTerm(Schema.CLOSURE_BROADCASTFLAG), new RDFTerm(
+								0), new RDFTerm(0), new TInt(0))));
+		actions.add(c);
+
+		c = ActionFactory.getActionConf(EstimateCardinality.class);
+		c.setParamLongArray(EstimateCardinality.LA_PATTERNS, patterns);
+		actions.add(c);
+
+		c = ActionFactory.getActionConf(CollectToNode.class);
+		c.setParamStringArray(CollectToNode.SA_TUPLE_FIELDS,
+				TInt.class.getName(), TLong.class.getName());
+		actions.add(c);
+
+		c = ActionFactory.getActionConf(EstimateCardinality.class);
+		c.setParamLongArray(EstimateCardinality.LA_PATTERNS, patterns);
+		c.setParamBoolean(EstimateCardinality.B_SUMVALUES, true);
+		actions.add(c);
+
+		actionOutput.branch(actions);
+
+		// Wait until the estimation is completed
 		synchronized (lock) {
-			while (lock.getCount() != queries.size()) {
+			while (lock.getCount() != 1) {
 				lock.wait();
 			}
 		}
 
-		// Now in the cache there are estimation for all the queries...
-		long[] output = new long[queries.size()];
-		for (int i = 0; i < queries.size(); ++i) {
-			output[i] = (Long) context.getObjectFromCache("estimate-" + i);
+		long[] estimates = (long[]) context
+				.getObjectFromCache(EstimateCardinality.ESTIMATES);
+		for (int i = 0; i < remaining.size(); ++i) {
+			output[remaining.get(i)] = estimates[i];
 		}
 		return output;
 	}
 
-	public static final void estimateImplicitCardinality(
-			ArrayList<Query> queries, int maxLevels, ActionOutput actionOutput,
+	private static final List<long[]> expandQuery(Query q, int maxLevels,
 			ActionContext context) throws Exception {
-		final nl.vu.cs.ajira.utils.Lock lock = new nl.vu.cs.ajira.utils.Lock();
-		context.putObjectInCache(EstimateCardinality.LOCK, lock);
-
-		for (int i = 0; i < queries.size(); ++i) {
-			Query q = queries.get(i);
-
-			Tree tree = new Tree();
-			QueryNode query = tree.newQuery(null);
-			query.s = q.values[0];
-			query.p = q.values[1];
-			query.o = q.values[2];
-
-			int currentLevel = 0;
-			while (currentLevel < maxLevels) {
-				for (int j = tree.getNQueries() - 1; j >= 0; j--) {
-					QueryNode queryTree = tree.getQuery(j);
-					if (queryTree.height == currentLevel * 2) {
-						TreeExpander.expandQuery(context, queryTree, tree,
-								TreeExpander.ALL);
-					} else {
-						// Since the tree is created breadth-first, I can stop
-						// when I finished the level
-						break;
-					}
-				}
-				currentLevel++;
-			}
-
-			if (log.isDebugEnabled())
-				log.debug("Estimating the cardinality of pattern " + query.s
-						+ " " + query.p + " " + query.o + " has generated "
-						+ (tree.getNQueries() - 1) + " queries");
-
-			// Estimate the cardinality of these queries
-			List<long[]> queriesToEstimate = new ArrayList<long[]>();
-			for (int j = 1; j < tree.getNQueries(); ++j) {
+		Tree tree = new Tree();
+		QueryNode query = tree.newQuery(null);
+		query.s = q.values[0];
+		query.p = q.values[1];
+		query.o = q.values[2];
+
+		int currentLevel = 0;
+		while (currentLevel < maxLevels) {
+			for (int j = tree.getNQueries() - 1; j >= 0; j--) {
 				QueryNode queryTree = tree.getQuery(j);
-				long[] queryToEstimate = new long[3];
-				queryToEstimate[0] = queryTree.getTerm(0);
-				queryToEstimate[1] = queryTree.getTerm(1);
-				queryToEstimate[2] = queryTree.getTerm(2);
-				queriesToEstimate.add(queryToEstimate);
-			}
-
-			q.implicitEstimate = 0;
-			if (queriesToEstimate.size() > 0) {
-				long[] estimates = estimateCardinality(queriesToEstimate,
-						actionOutput, context);
-				for (long estimate : estimates) {
-					q.implicitEstimate += estimate;
+				if (queryTree.height == currentLevel * 2) {
+					TreeExpander.expandQuery(context, queryTree, tree,
+							TreeExpander.ALL);
+				} else {
+					// Since the tree is created breadth-first, I can stop
+					// when I finished the level
+					break;
 				}
 			}
+			currentLevel++;
 		}
-	}
 
-	public static final void estimateExplicitCardinality(
-			ArrayList<Query> queries, ActionOutput actionOutput,
-			ActionContext context) throws Exception {
-		final nl.vu.cs.ajira.utils.Lock lock = new nl.vu.cs.ajira.utils.Lock();
-		context.putObjectInCache(EstimateCardinality.LOCK, lock);
+		if (log.isDebugEnabled())
+			log.debug("Estimating the cardinality of pattern " + query.s + " "
+					+ query.p + " " + query.o + " has generated "
+					+ (tree.getNQueries() - 1) + " queries");
+
+		List<long[]> queriesToEstimate = new ArrayList<long[]>();
+		for (int j = 1; j < tree.getNQueries(); ++j) {
+			QueryNode queryTree = tree.getQuery(j);
+			long[] queryToEstimate = new long[3];
+			queryToEstimate[0] = queryTree.getTerm(0);
+			queryToEstimate[1] = queryTree.getTerm(1);
+			queryToEstimate[2] = queryTree.getTerm(2);
+			queriesToEstimate.add(queryToEstimate);
+		}
+		return queriesToEstimate;
+	}
 
+	/**
+	 * Estimates both the explicit and the implicit cardinality of the
+	 * patterns. The patterns and all the queries obtained by expanding them
+	 * up to maxLevels are estimated in one batch.
+	 */
+	public static final void estimateCardinality(ArrayList<Query> queries,
+			int maxLevels, ActionOutput actionOutput, ActionContext context)
+			throws Exception {
 		List<long[]> rawQueries = new ArrayList<long[]>();
+		for (Query q : queries) {
+			rawQueries.add(Arrays.copyOf(q.values, 3));
+		}
+		int[] firstImplicit = new int[queries.size() + 1];
 		for (int i = 0; i < queries.size(); ++i) {
-			Query q = queries.get(i);
-			long[] query = Arrays.copyOf(q.values, 3);
-			rawQueries.add(query);
+			firstImplicit[i] = rawQueries.size();
+			rawQueries.addAll(expandQuery(queries.get(i), maxLevels, context));
 		}
+		firstImplicit[queries.size()] = rawQueries.size();
 
 		long[] card = estimateCardinality(rawQueries, actionOutput, context);
 
-		// Now in the cache there are estimation for all the queries...
-		for (int i = 0; i < card.length; ++i) {
+		for (int i = 0; i < queries.size(); ++i) {
 			Query q = queries.get(i);
 			q.explicitEstimate = card[i];
+			q.implicitEstimate = 0;
+			for (int j = firstImplicit[i]; j < firstImplicit[i + 1]; ++j) {
+				q.implicitEstimate += card[j];
+			}
 		}
-
 	}
 
 	public static final void rearrangeQueriesByNumberJoins(
@@ -314,24 +349,45 @@ public class SPARQLQueryOptimizer extends Action {
 
 	}
 
-	private void optimizeQuery(long[] query, ActionOutput output,
-			ActionContext context) throws Exception {
+	private void optimizeQuery(long[] query, QueryPlanCache.Plan plan,
+			ActionOutput output, ActionContext context) throws Exception {
 
 		// First I sort the queries according to the number of constants.
 		ArrayList<Query> queries = parseQueries(query);
 
-		// Estimate the cardinality of the queries
-		estimateExplicitCardinality(queries, output, context);
-
-		// Rearrange them considering the cardinality with reasoning
-		estimateImplicitCardinality(queries, maxLevels, output, context);
-
-		// Sort them by cardinality and nconstants
-		sortQueriesByCardinalityAndNConstants(queries);
-
-		// Construct the order making sure that there is always one or more
-		// variable to join
-		rearrangeQueriesByNumberJoins(queries);
+		int[] order = plan != null ? plan.getOrder() : null;
+		if (order != null) {
+			// Reuse the order calculated for the same shape
+			ArrayList<Query> sorted = new ArrayList<Query>(queries.size());
+			for (int idx : order) {
+				sorted.add(queries.get(idx));
+			}
+			queries = sorted;
+			if (log.isDebugEnabled()) {
+				log.debug("Reuse the order " + Arrays.toString(order));
+			}
+		} else {
+			// Estimate the cardinality of the queries, with and without
+			// reasoning
+			estimateCardinality(queries, maxLevels, output, context);
+
+			// Sort them by cardinality and nconstants
+			sortQueriesByCardinalityAndNConstants(queries);
+
+			// Construct the order making sure that there is always one or more
+			// variable to join
+			rearrangeQueriesByNumberJoins(queries);
+
+			if (plan != null) {
+				order = new int[queries.size()];
+				for (int i = 0; i < order.length; ++i) {
+					order[i] = queries.get(i).index;
+				}
+				plan.setOrder(order, ((RDFStorage) context.getContext()
+						.getInputLayer(InputLayer.DEFAULT_LAYER))
+						.getStatistics().getVersion());
+			}
+		}
 
 		// Serialize it into an array
 		int i = 0;
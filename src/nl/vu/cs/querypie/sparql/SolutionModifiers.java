@@ -0,0 +1,39 @@
+package nl.vu.cs.querypie.sparql;
+
+/**
+ * The FILTER, DISTINCT and ORDER BY clauses of a query, translated in terms of
+ * ids. The parser stores them in the cache of the submission, and the
+ * executor adds the corresponding actions to the chain.
+ *
+ * The filters are serialized as triples &lt;left, operator, right&gt; where
+ * the operands are either variables (negative) or constants. The order is
+ * serialized as pairs &lt;variable, 1 if ascending or 0&gt;. The projection
+ * contains the selected variables, on which DISTINCT is evaluated.
+ */
+public class SolutionModifiers {
+
+	public static final String ID = "solutionModifiers";
+
+	public static final long EQ = 0;
+	public static final long NE = 1;
+
+	/** Constant that is not in the dictionary, and never matches any term */
+	public static final long UNKNOWN = Long.MAX_VALUE;
+
+	long[] filters;
+	boolean distinct;
+	long[] order;
+	long[] projection;
+
+	public SolutionModifiers(long[] filters, boolean distinct, long[] order,
+			long[] projection) {
+		this.filters = filters;
+		this.distinct = distinct;
+		this.order = order;
+		this.projection = projection;
+	}
+
+	public boolean isEmpty() {
+		return filters.length == 0 && !distinct && order.length == 0;
+	}
+}
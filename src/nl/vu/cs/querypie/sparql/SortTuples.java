@@ -0,0 +1,404 @@
+package nl.vu.cs.querypie.sparql;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+import nl.vu.cs.ajira.actions.Action;
+import nl.vu.cs.ajira.actions.ActionConf;
+import nl.vu.cs.ajira.actions.ActionContext;
+import nl.vu.cs.ajira.actions.ActionOutput;
+import nl.vu.cs.ajira.data.types.Tuple;
+import nl.vu.cs.ajira.datalayer.InputLayer;
+import nl.vu.cs.querypie.storage.RDFTerm;
+import nl.vu.cs.querypie.storage.disk.RDFStorage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts the tuples on some of their fields (SPARQL ORDER BY). The ids are
+ * hashes, so the fields are compared by the text of their terms, which is
+ * read from the dictionary when a tuple is added. The tuples are buffered in
+ * memory until the buffer is full, then the buffer is sorted and written to a
+ * temporary file with the text of the keys. At the end, the sorted runs are
+ * merged.
+ *
+ * The terms are ordered as in SPARQL: the terms without text first, then the
+ * blank nodes, the IRIs and the literals. Two numeric literals are compared
+ * by value, the other terms by their text.
+ */
+public class SortTuples extends Action {
+
+	static final Logger log = LoggerFactory.getLogger(SortTuples.class);
+
+	public static final int IA_POS = 0;
+	public static final int IA_ASCENDING = 1;
+	public static final int I_SIZEROW = 2;
+	public static final int L_MEMORY = 3;
+
+	public static final long DEFAULT_MEMORY = 64 * 1024 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String XSD = "http://www.w3.org/2001/XMLSchema#";
+	private static final Set<String> NUMERIC_TYPES = new TreeSet<String>(
+			Arrays.asList("integer", "decimal", "float", "double", "int",
+					"long", "short", "byte", "nonNegativeInteger",
+					"positiveInteger", "nonPositiveInteger", "negativeInteger",
+					"unsignedLong", "unsignedInt", "unsignedShort",
+					"unsignedByte"));
+
+	private static class Run {
+		final File file;
+		final DataInputStream in;
+		final long[] row;
+		final String[] keys;
+
+		Run(File file, int sizeRow, int nKeys) throws IOException {
+			this.file = file;
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 64 * 1024));
+			row = new long[sizeRow];
+			keys = new String[nKeys];
+		}
+
+		boolean next() throws IOException {
+			try {
+				for (int i = 0; i < row.length; ++i) {
+					row[i] = in.readLong();
+				}
+			} catch (EOFException e) {
+				return false;
+			}
+			for (int i = 0; i < keys.length; ++i) {
+				int length = in.readInt();
+				if (length == -1) {
+					keys[i] = null;
+				} else {
+					byte[] b = new byte[length];
+					in.readFully(b);
+					keys[i] = new String(b, UTF8);
+				}
+			}
+			return true;
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+			file.delete();
+		}
+	}
+
+	private int[] pos;
+	private int[] ascending;
+	private int sizeRow;
+	private long memory;
+	private int maxRows;
+	private RDFStorage storage;
+
+	private long[] buffer;
+	private String[] keys;
+	private long[] keyIds;
+	private int nrows;
+	private long used;
+	private List<File> runs;
+
+	@Override
+	protected void registerActionParameters(ActionConf conf) {
+		conf.registerParameter(IA_POS, "IA_POS", null, true);
+		conf.registerParameter(IA_ASCENDING, "IA_ASCENDING", null, true);
+		conf.registerParameter(I_SIZEROW, "I_SIZEROW", null, true);
+		conf.registerParameter(L_MEMORY, "L_MEMORY", DEFAULT_MEMORY, false);
+	}
+
+	@Override
+	public void startProcess(ActionContext context) throws Exception {
+		pos = getParamIntArray(IA_POS);
+		ascending = getParamIntArray(IA_ASCENDING);
+		sizeRow = getParamInt(I_SIZEROW);
+		memory = getParamLong(L_MEMORY);
+		maxRows = Integer.MAX_VALUE / Math.max(sizeRow, pos.length) - 1;
+		storage = (RDFStorage) context.getContext().getInputLayer(
+				InputLayer.DEFAULT_LAYER);
+		if (!storage.hasDictionary()) {
+			throw new Exception("ORDER BY needs the dictionary of the terms ("
+					+ RDFStorage.DICT_DIR + ")");
+		}
+		buffer = new long[1024 * sizeRow];
+		keys = new String[1024 * pos.length];
+		keyIds = new long[pos.length];
+		nrows = 0;
+		used = 0;
+		runs = new ArrayList<File>();
+	}
+
+	private static int kind(String term) {
+		if (term.startsWith("_:")) {
+			return 0;
+		} else if (term.startsWith("\"")) {
+			return 2;
+		}
+		return 1;
+	}
+
+	/**
+	 * Returns the value of a numeric literal, or null if the term is not a
+	 * numeric literal.
+	 */
+	private static Double getNumber(String literal) {
+		int end = literal.lastIndexOf("\"^^<" + XSD);
+		if (end <= 0 || !literal.endsWith(">")) {
+			return null;
+		}
+		String type = literal.substring(end + 4 + XSD.length(),
+				literal.length() - 1);
+		if (!NUMERIC_TYPES.contains(type)) {
+			return null;
+		}
+		try {
+			return Double.valueOf(literal.substring(1, end).trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Compares the text of two terms in the order of SPARQL. Null is a term
+	 * without text and comes first.
+	 */
+	static int compareTerms(String t1, String t2) {
+		if (t1 == null || t2 == null) {
+			return t1 == t2 ? 0 : (t1 == null ? -1 : 1);
+		}
+		int k1 = kind(t1), k2 = kind(t2);
+		if (k1 != k2) {
+			return k1 < k2 ? -1 : 1;
+		}
+		if (k1 == 2) {
+			Double n1 = getNumber(t1);
+			Double n2 = getNumber(t2);
+			if (n1 != null && n2 != null) {
+				int c = n1.compareTo(n2);
+				if (c != 0) {
+					return c;
+				}
+			}
+		}
+		return t1.compareTo(t2);
+	}
+
+	private int compare(long[] a, String[] keysA, int rowA, long[] b,
+			String[] keysB, int rowB) {
+		for (int i = 0; i < pos.length; ++i) {
+			int c = compareTerms(keysA[rowA * pos.length + i], keysB[rowB
+					* pos.length + i]);
+			if (c == 0) {
+				// Same text: the ids keep the order deterministic
+				long v1 = a[rowA * sizeRow + pos[i]];
+				long v2 = b[rowB * sizeRow + pos[i]];
+				c = v1 == v2 ? 0 : (v1 < v2 ? -1 : 1);
+			}
+			if (c != 0) {
+				return ascending[i] == 1 ? c : -c;
+			}
+		}
+		return 0;
+	}
+
+	private int compare(int row1, int row2) {
+		return compare(buffer, keys, row1, buffer, keys, row2);
+	}
+
+	private void sort(int[] idx, int lo, int hi) {
+		while (hi - lo > 16) {
+			int p = idx[(lo + hi) >>> 1];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (compare(idx[i], p) < 0) {
+					i++;
+				}
+				while (compare(idx[j], p) > 0) {
+					j--;
+				}
+				if (i <= j) {
+					int t = idx[i];
+					idx[i++] = idx[j];
+					idx[j--] = t;
+				}
+			}
+			// Recur on the smaller half
+			if (j - lo < hi - i) {
+				sort(idx, lo, j);
+				lo = i;
+			} else {
+				sort(idx, i, hi);
+				hi = j;
+			}
+		}
+		for (int i = lo + 1; i <= hi; ++i) {
+			int v = idx[i];
+			int j = i - 1;
+			while (j >= lo && compare(idx[j], v) > 0) {
+				idx[j + 1] = idx[j];
+				j--;
+			}
+			idx[j + 1] = v;
+		}
+	}
+
+	private int[] sortBuffer() {
+		int[] idx = new int[nrows];
+		for (int i = 0; i < nrows; ++i) {
+			idx[i] = i;
+		}
+		sort(idx, 0, nrows - 1);
+		return idx;
+	}
+
+	private void spill() throws IOException {
+		int[] idx = sortBuffer();
+		File file = File.createTempFile("querypie-sort", ".run");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 64 * 1024));
+		try {
+			for (int i : idx) {
+				int offset = i * sizeRow;
+				for (int j = 0; j < sizeRow; ++j) {
+					out.writeLong(buffer[offset + j]);
+				}
+				offset = i * pos.length;
+				for (int j = 0; j < pos.length; ++j) {
+					String key = keys[offset + j];
+					if (key == null) {
+						out.writeInt(-1);
+					} else {
+						byte[] b = key.getBytes(UTF8);
+						out.writeInt(b.length);
+						out.write(b);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		runs.add(file);
+		Arrays.fill(keys, 0, nrows * pos.length, null);
+		nrows = 0;
+		used = 0;
+	}
+
+	@Override
+	public void process(Tuple tuple, ActionContext context,
+			ActionOutput actionOutput) throws Exception {
+		if (nrows > 0 && (nrows == maxRows || used >= memory)) {
+			spill();
+		}
+		int offset = nrows * sizeRow;
+		if (offset == buffer.length) {
+			int capacity = (int) Math.min(nrows * 2L, maxRows);
+			buffer = Arrays.copyOf(buffer, capacity * sizeRow);
+			keys = Arrays.copyOf(keys, capacity * pos.length);
+		}
+		for (int i = 0; i < sizeRow; ++i) {
+			buffer[offset + i] = ((RDFTerm) tuple.get(i)).getValue();
+		}
+		used += 8 * sizeRow;
+
+		for (int i = 0; i < pos.length; ++i) {
+			keyIds[i] = buffer[offset + pos[i]];
+		}
+		String[] text = storage.getText(keyIds);
+		offset = nrows * pos.length;
+		for (int i = 0; i < pos.length; ++i) {
+			keys[offset + i] = text[i];
+			if (text[i] != null) {
+				used += 48 + 2 * text[i].length();
+			}
+		}
+		nrows++;
+	}
+
+	@Override
+	public void stopProcess(ActionContext context, ActionOutput actionOutput)
+			throws Exception {
+		RDFTerm[] output = new RDFTerm[sizeRow];
+		for (int i = 0; i < sizeRow; ++i) {
+			output[i] = new RDFTerm();
+		}
+
+		if (runs.size() == 0) {
+			// Everything fits in memory
+			for (int i : sortBuffer()) {
+				int offset = i * sizeRow;
+				for (int j = 0; j < sizeRow; ++j) {
+					output[j].setValue(buffer[offset + j]);
+				}
+				actionOutput.output(output);
+			}
+		} else {
+			if (nrows > 0) {
+				spill();
+			}
+			buffer = null;
+			keys = null;
+			if (log.isDebugEnabled()) {
+				log.debug("Merging " + runs.size() + " sorted runs");
+			}
+
+			PriorityQueue<Run> queue = new PriorityQueue<Run>(runs.size(),
+					new Comparator<Run>() {
+						@Override
+						public int compare(Run r1, Run r2) {
+							return SortTuples.this.compare(r1.row, r1.keys, 0,
+									r2.row, r2.keys, 0);
+						}
+					});
+			List<Run> open = new ArrayList<Run>();
+			try {
+				for (File file : runs) {
+					Run run = new Run(file, sizeRow, pos.length);
+					open.add(run);
+					if (run.next()) {
+						queue.add(run);
+					}
+				}
+				while (!queue.isEmpty()) {
+					Run run = queue.poll();
+					for (int j = 0; j < sizeRow; ++j) {
+						output[j].setValue(run.row[j]);
+					}
+					actionOutput.output(output);
+					if (run.next()) {
+						queue.add(run);
+					}
+				}
+			} finally {
+				for (Run run : open) {
+					run.close();
+				}
+			}
+		}
+
+		buffer = null;
+		keys = null;
+		runs = null;
+		storage = null;
+	}
+}
@@ -0,0 +1,225 @@
+package nl.vu.cs.querypie.sparql;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.vu.cs.ajira.actions.Action;
+import nl.vu.cs.ajira.actions.ActionConf;
+import nl.vu.cs.ajira.actions.ActionFactory;
+import nl.vu.cs.ajira.actions.ActionOutput;
+import nl.vu.cs.ajira.actions.ActionSequence;
+import nl.vu.cs.ajira.data.types.SimpleData;
+import nl.vu.cs.ajira.data.types.Tuple;
+import nl.vu.cs.ajira.data.types.TupleFactory;
+import nl.vu.cs.querypie.storage.RDFTerm;
+
+/**
+ * Checks DISTINCT and ORDER BY on the selected variables. The query is parsed
+ * and serialized by SPARQLParser, the table of variables is built as
+ * SPARQLQueryExecutor does for the first pattern, and the rows go through the
+ * Project and RemoveDuplicates actions. With ORDER BY, the rows are sorted
+ * first with the comparison of SortTuples on the text of the terms.
+ */
+public class TestDistinctProjection {
+
+	private static final String XSD = "http://www.w3.org/2001/XMLSchema#";
+
+	// Text of the terms, as the dictionary returns it
+	private static final Map<Long, String> TEXT = new HashMap<Long, String>();
+
+	static {
+		TEXT.put(1L, "<http://example.org/b>");
+		TEXT.put(2L, "<http://example.org/p>");
+		TEXT.put(3L, "\"9\"^^<" + XSD + "integer>");
+		TEXT.put(4L, "<http://example.org/q>");
+		TEXT.put(5L, "\"10\"^^<" + XSD + "integer>");
+		TEXT.put(6L, "\"abc\"");
+		TEXT.put(7L, "<http://example.org/a>");
+		TEXT.put(8L, "_:b0");
+	}
+
+	/**
+	 * Runs the actions one after the other in the same thread, and returns
+	 * the values of the rows that come out of the last one.
+	 */
+	private static List<long[]> run(List<ActionConf> confs, List<long[]> rows)
+			throws Exception {
+		ActionFactory factory = new ActionFactory();
+		for (ActionConf conf : confs) {
+			if (conf.validateParameters() != -1) {
+				throw new Exception("Missing parameter in " + conf);
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			conf.writeTo(new DataOutputStream(bytes));
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					bytes.toByteArray()));
+			Action action = factory.getAction(conf.getClassName(), in);
+
+			final List<long[]> output = new ArrayList<long[]>();
+			ActionOutput collector = new ActionOutput() {
+				@Override
+				public void output(SimpleData... data) throws Exception {
+					long[] row = new long[data.length];
+					for (int i = 0; i < row.length; ++i) {
+						row[i] = ((RDFTerm) data[i]).getValue();
+					}
+					output.add(row);
+				}
+
+				@Override
+				public void output(Tuple tuple) throws Exception {
+					SimpleData[] data = new SimpleData[tuple.getNElements()];
+					for (int i = 0; i < data.length; ++i) {
+						data[i] = tuple.get(i);
+					}
+					output(data);
+				}
+
+				@Override
+				public void branch(ActionSequence actions) throws Exception {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public ActionOutput split(int reconnectAt,
+						ActionSequence actions) throws Exception {
+					throw new UnsupportedOperationException();
+				}
+			};
+
+			action.startProcess(null);
+			for (long[] row : rows) {
+				RDFTerm[] terms = new RDFTerm[row.length];
+				for (int i = 0; i < row.length; ++i) {
+					terms[i] = new RDFTerm(row[i]);
+				}
+				action.process(TupleFactory.newTuple(terms), null, collector);
+			}
+			action.stopProcess(null, collector);
+			rows = output;
+		}
+		return rows;
+	}
+
+	private static List<long[]> evaluate(String query, long[][] rows)
+			throws Exception {
+		QueryVisitor visitor = SPARQLParser.parse(query);
+		Map<String, Long> vars = new HashMap<String, Long>();
+		long[] serializedJoin = SPARQLParser.serialize(visitor.list,
+				new HashMap<String, Long>(), vars);
+		if (serializedJoin.length != 3) {
+			throw new Exception("Only queries with one pattern are tested");
+		}
+
+		// The rows of the first pattern contain its variables
+		int[] posVariables = SPARQLQueryExecutor
+				.calculatePosVariables(serializedJoin);
+		final long[] table = new long[posVariables.length];
+		for (int i = 0; i < table.length; ++i) {
+			table[i] = serializedJoin[posVariables[i]];
+		}
+
+		SolutionModifiers modifiers = SPARQLParser.getModifiers(visitor,
+				vars, new HashMap<String, Long>(), null);
+		if (!modifiers.distinct) {
+			throw new Exception("DISTINCT was not parsed: " + query);
+		}
+
+		List<long[]> sorted = new ArrayList<long[]>(Arrays.asList(rows));
+		final long[] order = modifiers.order;
+		if (order.length > 0) {
+			Collections.sort(sorted, new Comparator<long[]>() {
+				@Override
+				public int compare(long[] r1, long[] r2) {
+					for (int i = 0; i < order.length; i += 2) {
+						int p = 0;
+						while (table[p] != order[i]) {
+							p++;
+						}
+						int c = SortTuples.compareTerms(TEXT.get(r1[p]),
+								TEXT.get(r2[p]));
+						if (c != 0) {
+							return order[i + 1] == 1 ? c : -c;
+						}
+					}
+					return 0;
+				}
+			});
+		}
+
+		List<ActionConf> chain = new ArrayList<ActionConf>();
+		int sizeRow = table.length;
+		int[] pos = SPARQLQueryExecutor.getProjectedPositions(table,
+				modifiers.projection);
+		if (pos != null) {
+			ActionConf c = ActionFactory.getActionConf(Project.class);
+			c.setParamIntArray(Project.IA_POS, pos);
+			chain.add(c);
+			sizeRow = pos.length;
+		}
+		ActionConf c = ActionFactory.getActionConf(RemoveDuplicates.class);
+		c.setParamInt(RemoveDuplicates.I_SIZEROW, sizeRow);
+		chain.add(c);
+		return run(chain, sorted);
+	}
+
+	private static boolean check(String query, long[][] rows,
+			long[][] expected) throws Exception {
+		List<long[]> output = evaluate(query, rows);
+		boolean ok = output.size() == expected.length;
+		for (int i = 0; ok && i < expected.length; ++i) {
+			ok = Arrays.equals(output.get(i), expected[i]);
+		}
+		StringBuilder b = new StringBuilder();
+		for (long[] row : output) {
+			b.append(Arrays.toString(row));
+		}
+		System.out.println((ok ? "OK " : "FAILED ") + query + ": " + b);
+		return ok;
+	}
+
+	private static boolean checkOrder(String t1, String t2) {
+		boolean ok = SortTuples.compareTerms(t1, t2) < 0
+				&& SortTuples.compareTerms(t2, t1) > 0;
+		System.out.println((ok ? "OK " : "FAILED ") + t1 + " < " + t2);
+		return ok;
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean ok = checkOrder(TEXT.get(8L), TEXT.get(7L));
+		ok &= checkOrder(TEXT.get(7L), TEXT.get(1L));
+		ok &= checkOrder(TEXT.get(1L), TEXT.get(3L));
+		ok &= checkOrder(TEXT.get(3L), TEXT.get(5L));
+		ok &= checkOrder(null, TEXT.get(8L));
+
+		// Rows of ?x ?p ?y
+		long[][] rows = { { 1, 2, 3 }, { 1, 4, 5 }, { 7, 2, 3 }, { 7, 2, 6 },
+				{ 7, 4, 3 } };
+		ok &= check("SELECT DISTINCT ?x WHERE {?x ?p ?y}", rows,
+				new long[][] { { 1 }, { 7 } });
+		ok &= check("SELECT DISTINCT ?y ?x WHERE {?x ?p ?y}", rows,
+				new long[][] { { 3, 1 }, { 5, 1 }, { 3, 7 }, { 6, 7 } });
+		ok &= check("SELECT DISTINCT ?p WHERE {?x ?p ?y}", rows,
+				new long[][] { { 2 }, { 4 } });
+		ok &= check("SELECT DISTINCT * WHERE {?x ?p ?y}", rows, rows);
+		ok &= check("SELECT DISTINCT ?x WHERE {?x ?p ?y} ORDER BY ?x", rows,
+				new long[][] { { 7 }, { 1 } });
+		// Order on a variable that is not selected
+		ok &= check("SELECT DISTINCT ?x WHERE {?x ?p ?y} ORDER BY DESC(?y)",
+				rows, new long[][] { { 7 }, { 1 } });
+		ok &= check("SELECT DISTINCT ?y WHERE {?x ?p ?y} ORDER BY DESC(?y)",
+				rows, new long[][] { { 6 }, { 5 }, { 3 } });
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+}
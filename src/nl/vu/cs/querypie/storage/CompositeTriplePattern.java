@@ -17,7 +17,7 @@ public class CompositeTriplePattern extends TupleIterator implements
 	public TupleIterator third = null;
 	boolean f = true;
 	boolean s = true;
-	private boolean stop = false;
+	private volatile boolean stop = false;
 
 	public CompositeTriplePattern(TupleIterator first, TupleIterator second) {
 		this.currentItr = first;
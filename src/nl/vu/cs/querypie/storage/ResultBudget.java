@@ -0,0 +1,73 @@
+package nl.vu.cs.querypie.storage;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Number of rows requested by a query (SPARQL LIMIT and OFFSET). The budget is
+ * stored in the cache of the submission. The storage registers all the
+ * iterators it opens for the submission, and once the budget is satisfied all
+ * of them are stopped, since their results are no longer needed.
+ */
+public class ResultBudget {
+
+	public static final String ID = "resultBudget";
+
+	private final long offset;
+	private final long limit;
+	private long rows = 0;
+	private boolean exhausted = false;
+
+	private final Set<TripleIterator> iterators = Collections
+			.newSetFromMap(new IdentityHashMap<TripleIterator, Boolean>());
+
+	public ResultBudget(long offset, long limit) {
+		this.offset = offset;
+		this.limit = limit;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	public synchronized boolean isExhausted() {
+		return exhausted;
+	}
+
+	public synchronized void register(TripleIterator itr) {
+		if (exhausted) {
+			itr.stopReading();
+		} else {
+			iterators.add(itr);
+		}
+	}
+
+	public synchronized void unregister(TripleIterator itr) {
+		iterators.remove(itr);
+	}
+
+	/**
+	 * Counts a result row.
+	 *
+	 * @return true if the row is within the requested window.
+	 */
+	public synchronized boolean accept() {
+		if (exhausted) {
+			return false;
+		}
+		long row = rows++;
+		if (limit >= 0 && rows >= offset + limit) {
+			exhausted = true;
+			for (TripleIterator itr : iterators) {
+				itr.stopReading();
+			}
+			iterators.clear();
+		}
+		return row >= offset && (limit < 0 || row < offset + limit);
+	}
+}
@@ -1,10 +1,19 @@
 package nl.vu.cs.querypie.storage;
 
+import ibis.util.ThreadPool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -12,6 +21,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 
 import nl.vu.cs.ajira.Context;
@@ -20,8 +30,8 @@ import nl.vu.cs.ajira.utils.Configuration;
 import nl.vu.cs.querypie.reasoner.Pattern;
 import nl.vu.cs.querypie.storage.disk.FilesInterface;
 import nl.vu.cs.querypie.storage.disk.TripleFile;
+import nl.vu.cs.querypie.storage.memory.ListStore;
 import nl.vu.cs.querypie.storage.memory.SortedCollectionTuples;
-import nl.vu.cs.querypie.storage.memory.Triple;
 import nl.vu.cs.querypie.storage.memory.TupleSet;
 
 import org.slf4j.Logger;
@@ -38,6 +48,11 @@ public class Schema {
     public static final int SET_THRESHOLD = -4;
     public static final int CLOSURE_BROADCASTFLAG = -5;
 
+    public static final String LISTS_FILE = "list.csr";
+    // Whether the triples of the precomputed patterns are cached on disk
+    public static final String PATTERNS_SNAPSHOT = "schema.patterns.snapshot";
+    private static final long SNAPSHOT_MAGIC = 0x5155455259504945L;
+
     String closureDir = null;
     FilesInterface fi = null;
     Configuration conf = null;
@@ -45,13 +60,14 @@ public class Schema {
     Map<String, TupleSet> cachePrecomputedJoins = new HashMap<String, TupleSet>();
     Map<String, long[]> cacheSinglePatterns = new HashMap<String, long[]>();
     Map<String, SortedCollectionTuples> cacheVarsSinglePatterns = new HashMap<String, SortedCollectionTuples>();
-    Map<String, Map<Long, List<Long>>> cacheLists = new HashMap<String, Map<Long, List<Long>>>();
+    Map<String, ListStore> cacheLists = new HashMap<String, ListStore>();
     // Pointers to set of values
     Map<Long, Collection<Long>> cacheSubsets = new HashMap<Long, Collection<Long>>();
     Map<String, Boolean> cacheIntersectionSets = new HashMap<String, Boolean>();
 
     Map<String, Integer> existingIDs = new HashMap<String, Integer>();
     int counter = SET_THRESHOLD;
+    private final AtomicInteger snapshotsRead = new AtomicInteger();
 
     private Schema() {
     }
@@ -66,96 +82,298 @@ public class Schema {
 	this.conf = conf;
     }
 
+    /**
+     * Returns the triples of the closure that match the pattern, sorted and
+     * without duplicates, or null if the location of the pattern is empty.
+     */
     public long[] readTriples(Pattern p) {
-
 	String p_signature = p.getSignature();
-	if (cacheSinglePatterns.containsKey(p_signature)) {
-	    return cacheSinglePatterns.get(p_signature);
+	synchronized (cacheSinglePatterns) {
+	    if (cacheSinglePatterns.containsKey(p_signature)) {
+		return cacheSinglePatterns.get(p_signature);
+	    }
 	}
 
-	// Determine positions to filter
-	int[] pos_to_check = null;
-	String patternLocation = p.getLocation();
+	long[] triples = null;
+	try {
+	    triples = loadTriples(p);
+	} catch (IOException e) {
+	    log.error("Error reading the pattern " + p, e);
+	}
 
-	if (p.isFilter()) {
-	    List<Integer> ps = new ArrayList<Integer>();
-	    int i = 0;
-	    for (RDFTerm t : p.p) {
-		if (t.getValue() >= 0) {
-		    ps.add(i);
-		}
-		i++;
+	synchronized (cacheSinglePatterns) {
+	    // Another thread could have read it in the meantime
+	    if (cacheSinglePatterns.containsKey(p_signature)) {
+		return cacheSinglePatterns.get(p_signature);
 	    }
-	    pos_to_check = new int[ps.size()];
-	    i = 0;
-	    for (Integer pos : ps) {
-		pos_to_check[i++] = pos;
+	    cacheSinglePatterns.put(p_signature, triples);
+	}
+	return triples;
+    }
+
+    /**
+     * Reads the triples of the patterns in parallel, one location per
+     * thread.
+     */
+    public void loadPatterns(Collection<Pattern> patterns) {
+	final List<Pattern> toLoad = new ArrayList<Pattern>();
+	Set<String> signatures = new HashSet<String>();
+	synchronized (cacheSinglePatterns) {
+	    for (Pattern p : patterns) {
+		if (p.getLocation() != null
+			&& !cacheSinglePatterns.containsKey(p.getSignature())
+			&& signatures.add(p.getSignature())) {
+		    toLoad.add(p);
+		}
 	    }
 	}
+	if (toLoad.size() == 0) {
+	    return;
+	}
 
-	TripleFile[] files = fi.getListFiles(conf, closureDir + "/"
-		+ patternLocation, false);
-	if (files != null && files.length > 0) {
-	    Set<Triple> l = new HashSet<Triple>();
-	    if (p.isFilter()) {
-		for (TripleFile file : files) {
-		    file.open();
-		    while (file.next()) {
-			Triple t = new Triple();
-			t.subject = file.getFirstTerm();
-			t.predicate = file.getSecondTerm();
-			t.object = file.getThirdTerm();
-			boolean ok = true;
-			for (int pos : pos_to_check) {
-			    if (pos == 0 && t.subject != p.p[pos].getValue()) {
-				ok = false;
-				break;
-			    } else if (pos == 1
-				    && t.predicate != p.p[pos].getValue()) {
-				ok = false;
-				break;
-			    } else if (pos == 2
-				    && t.object != p.p[pos].getValue()) {
-				ok = false;
-				break;
+	long time = System.currentTimeMillis();
+	int nThreads = Math.min(toLoad.size(), Runtime.getRuntime()
+		.availableProcessors());
+	final int[] next = new int[1];
+	final int[] running = new int[] { nThreads };
+	for (int i = 0; i < nThreads; ++i) {
+	    ThreadPool.createNew(new Runnable() {
+		@Override
+		public void run() {
+		    try {
+			while (true) {
+			    Pattern p;
+			    synchronized (next) {
+				if (next[0] == toLoad.size()) {
+				    break;
+				}
+				p = toLoad.get(next[0]++);
 			    }
+			    readTriples(p);
+			}
+		    } finally {
+			synchronized (running) {
+			    running[0]--;
+			    running.notify();
 			}
-			if (ok)
-			    l.add(t);
 		    }
-		    file.close();
 		}
-	    } else {
-		for (TripleFile file : files) {
-		    file.open();
-		    while (file.next()) {
-			Triple t = new Triple();
-			t.subject = file.getFirstTerm();
-			t.predicate = file.getSecondTerm();
-			t.object = file.getThirdTerm();
-			l.add(t);
+	    }, "Schema loader " + i);
+	}
+
+	synchronized (running) {
+	    while (running[0] > 0) {
+		try {
+		    running.wait();
+		} catch (InterruptedException e) {
+		}
+	    }
+	}
+	log.info("Loaded " + toLoad.size() + " precomputed patterns ("
+		+ snapshotsRead.getAndSet(0) + " from snapshots) in "
+		+ (System.currentTimeMillis() - time) + " ms");
+    }
+
+    private long[] loadTriples(Pattern p) throws IOException {
+	TripleFile[] files = fi.getListFiles(conf, closureDir + "/"
+		+ p.getLocation(), false);
+	if (files == null || files.length == 0) {
+	    return null;
+	}
+
+	// The snapshots are mapped, so they are only kept on local files
+	boolean useSnapshot = fi.getClass() == FilesInterface.class
+		&& (conf == null || conf.getBoolean(PATTERNS_SNAPSHOT, true));
+	long fingerprint = getFingerprint(files);
+	File snapshot = getSnapshotFile(p);
+	if (useSnapshot) {
+	    long[] triples = readSnapshot(snapshot, fingerprint);
+	    if (triples != null) {
+		snapshotsRead.incrementAndGet();
+		return triples;
+	    }
+	}
+
+	// Values to filter (-1 if the position is not checked)
+	long v0 = -1, v1 = -1, v2 = -1;
+	if (p.isFilter()) {
+	    v0 = Math.max(-1, p.p[0].getValue());
+	    v1 = Math.max(-1, p.p[1].getValue());
+	    v2 = Math.max(-1, p.p[2].getValue());
+	}
+
+	long[] triples = new long[3 * 1024];
+	int size = 0;
+	for (TripleFile file : files) {
+	    file.open();
+	    while (file.next()) {
+		long s = file.getFirstTerm();
+		long pr = file.getSecondTerm();
+		long o = file.getThirdTerm();
+		if ((v0 == -1 || s == v0) && (v1 == -1 || pr == v1)
+			&& (v2 == -1 || o == v2)) {
+		    if (size == triples.length) {
+			triples = Arrays.copyOf(triples, size * 2);
 		    }
-		    file.close();
+		    triples[size++] = s;
+		    triples[size++] = pr;
+		    triples[size++] = o;
 		}
 	    }
+	    file.close();
+	}
 
-	    long[] raw_list = new long[l.size() * 3];
-	    int i = 0;
+	// Filter eventual duplicates
+	size = sortUnique(triples, size / 3) * 3;
+	triples = Arrays.copyOf(triples, size);
 
-	    // Filter eventual duplicates
+	if (useSnapshot) {
+	    try {
+		writeSnapshot(snapshot, fingerprint, triples);
+	    } catch (Exception e) {
+		log.warn("Cannot write the snapshot " + snapshot, e);
+	    }
+	}
+	return triples;
+    }
 
-	    for (Triple triple : l) {
-		raw_list[i++] = triple.subject;
-		raw_list[i++] = triple.predicate;
-		raw_list[i++] = triple.object;
+    private static int compareTriples(long[] t, int a, int b) {
+	for (int i = 0; i < 3; ++i) {
+	    long x = t[a * 3 + i];
+	    long y = t[b * 3 + i];
+	    if (x != y) {
+		return x < y ? -1 : 1;
 	    }
+	}
+	return 0;
+    }
 
-	    cacheSinglePatterns.put(p_signature, raw_list);
-	    return raw_list;
+    private static void swapTriples(long[] t, int a, int b) {
+	for (int i = 0; i < 3; ++i) {
+	    long x = t[a * 3 + i];
+	    t[a * 3 + i] = t[b * 3 + i];
+	    t[b * 3 + i] = x;
 	}
+    }
 
-	cacheSinglePatterns.put(p_signature, null);
-	return null;
+    private static void sortTriples(long[] t, int lo, int hi) {
+	while (hi - lo > 0) {
+	    // Middle element as pivot, moved to lo
+	    swapTriples(t, lo, (lo + hi) >>> 1);
+	    int i = lo + 1, j = hi;
+	    while (i <= j) {
+		while (i <= j && compareTriples(t, i, lo) < 0) {
+		    i++;
+		}
+		while (i <= j && compareTriples(t, j, lo) > 0) {
+		    j--;
+		}
+		if (i <= j) {
+		    swapTriples(t, i++, j--);
+		}
+	    }
+	    swapTriples(t, lo, j);
+	    // Recurse on the smaller part
+	    if (j - lo < hi - j) {
+		sortTriples(t, lo, j - 1);
+		lo = j + 1;
+	    } else {
+		sortTriples(t, j + 1, hi);
+		hi = j - 1;
+	    }
+	}
+    }
+
+    /**
+     * Sorts the n triples in t and removes the duplicates. Returns the number
+     * of distinct triples, which are at the beginning of the array.
+     */
+    static int sortUnique(long[] t, int n) {
+	if (n < 2) {
+	    return n;
+	}
+	sortTriples(t, 0, n - 1);
+	int unique = 1;
+	for (int i = 1; i < n; ++i) {
+	    if (compareTriples(t, i, unique - 1) != 0) {
+		if (i != unique) {
+		    System.arraycopy(t, i * 3, t, unique * 3, 3);
+		}
+		unique++;
+	    }
+	}
+	return unique;
+    }
+
+    /**
+     * The snapshots are invalidated when the files of the location change.
+     */
+    private static long getFingerprint(TripleFile[] files) {
+	long fingerprint = files.length;
+	for (TripleFile f : files) {
+	    File file = new File(f.getPath());
+	    long h = f.getName().hashCode();
+	    h = h * 1000003 + file.length();
+	    h = h * 1000003 + file.lastModified();
+	    fingerprint += h * 0x9E3779B97F4A7C15L;
+	}
+	return fingerprint;
+    }
+
+    private File getSnapshotFile(Pattern p) {
+	// The files that start with "_" are not read as triple files
+	String name = "_pattern" + (p.isFilter() ? "_filter_" : "_")
+		+ p.getSignature().replace(' ', '_').replace('*', 'x');
+	return new File(closureDir + fi.getFilesSeparator() + p.getLocation(),
+		name);
+    }
+
+    private static long[] readSnapshot(File file, long fingerprint) {
+	if (!file.exists()) {
+	    return null;
+	}
+	try {
+	    RandomAccessFile raf = new RandomAccessFile(file, "r");
+	    try {
+		FileChannel channel = raf.getChannel();
+		LongBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+			0, channel.size()).asLongBuffer();
+		if (buffer.remaining() < 3 || buffer.get(0) != SNAPSHOT_MAGIC
+			|| buffer.get(1) != fingerprint
+			|| buffer.get(2) != buffer.remaining() - 3) {
+		    return null;
+		}
+		long[] triples = new long[(int) buffer.get(2)];
+		buffer.position(3);
+		buffer.get(triples);
+		return triples;
+	    } finally {
+		raf.close();
+	    }
+	} catch (IOException e) {
+	    log.warn("Cannot read the snapshot " + file, e);
+	    return null;
+	}
+    }
+
+    private void writeSnapshot(File file, long fingerprint, long[] triples)
+	    throws Exception {
+	File tmp = new File(file.getPath() + ".tmp");
+	DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+		fi.createOutputStream(tmp)));
+	try {
+	    os.writeLong(SNAPSHOT_MAGIC);
+	    os.writeLong(fingerprint);
+	    os.writeLong(triples.length);
+	    for (long v : triples) {
+		os.writeLong(v);
+	    }
+	} finally {
+	    os.close();
+	}
+	if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+	    throw new IOException("Cannot replace " + file);
+	}
     }
 
     private synchronized long getUniqueID(Pattern[] patterns, int pos)
@@ -352,16 +570,30 @@ public class Schema {
 	return cacheVarsSinglePatterns.get(signature);
     }
 
-    private Map<Long, List<Long>> readList(String location) throws IOException,
+    private ListStore readList(String location) throws IOException,
 	    Exception {
-	Map<Long, List<Long>> map = new HashMap<Long, List<Long>>();
+	File dir = new File(closureDir + fi.getFilesSeparator() + location);
+
+	// Compact format written after the closure
+	File file = new File(dir, LISTS_FILE);
+	if (file.exists()) {
+	    DataInputStream is = new DataInputStream(new BufferedInputStream(
+		    fi.createInputStream(file)));
+	    try {
+		return ListStore.read(is);
+	    } catch (Exception e) {
+		log.warn("Cannot read " + file + ". Reading the lists again", e);
+	    } finally {
+		is.close();
+	    }
+	}
 
-	File file = new File(closureDir + fi.getFilesSeparator() + location
-		+ "/list");
+	file = new File(dir, "list");
 	if (!file.exists()) {
-	    return map;
+	    return ListStore.EMPTY;
 	}
 
+	ListStore.Builder builder = new ListStore.Builder();
 	DataInputStream is = new DataInputStream(new GZIPInputStream(
 		fi.createInputStream(file)));
 	try {
@@ -370,12 +602,10 @@ public class Schema {
 		int nlists = is.readInt();
 		while (nlists-- > 0) {
 		    int sizeList = is.readInt();
-		    List<Long> l = new ArrayList<Long>(sizeList);
+		    builder.startList(head);
 		    while (sizeList-- > 0) {
-			long value = is.readLong();
-			l.add(value);
+			builder.add(is.readLong());
 		    }
-		    map.put(head, l);
 		}
 	    }
 	} catch (EOFException e) {
@@ -384,17 +614,39 @@ public class Schema {
 	}
 	is.close();
 
-	return map;
+	return builder.build();
+    }
+
+    /**
+     * Writes the lists in the compact format, next to the closure.
+     */
+    public void writeList(String location, ListStore lists) throws Exception {
+	File dir = new File(closureDir + fi.getFilesSeparator() + location);
+	if (!dir.exists() && !dir.mkdirs()) {
+	    throw new IOException("Cannot create " + dir);
+	}
+	File tmp = new File(dir, LISTS_FILE + ".tmp");
+	DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+		fi.createOutputStream(tmp)));
+	try {
+	    lists.write(os);
+	} finally {
+	    os.close();
+	}
+	File file = new File(dir, LISTS_FILE);
+	if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+	    throw new IOException("Cannot replace " + file);
+	}
     }
 
-    public Map<Long, List<Long>> getAllList(String list_loc)
-	    throws IOException, Exception {
-	Map<Long, List<Long>> map = cacheLists.get(list_loc);
-	if (map == null) {
-	    map = readList(list_loc);
-	    cacheLists.put(list_loc, map);
+    public ListStore getAllList(String list_loc) throws IOException,
+	    Exception {
+	ListStore lists = cacheLists.get(list_loc);
+	if (lists == null) {
+	    lists = readList(list_loc);
+	    cacheLists.put(list_loc, lists);
 	}
-	return map;
+	return lists;
     }
 
     public void clear(boolean all) {
@@ -417,11 +669,11 @@ public class Schema {
 	this.cacheSinglePatterns = cacheSinglePatterns;
     }
 
-    public Map<String, Map<Long, List<Long>>> getCacheLists() {
+    public Map<String, ListStore> getCacheLists() {
 	return cacheLists;
     }
 
-    public void setCacheLists(Map<String, Map<Long, List<Long>>> cacheLists) {
+    public void setCacheLists(Map<String, ListStore> cacheLists) {
 	this.cacheLists = cacheLists;
     }
 
@@ -429,7 +681,7 @@ public class Schema {
 	cacheSinglePatterns.put(key, newSize);
     }
 
-    public void updateCacheLists(String loc, Map<Long, List<Long>> values) {
+    public void updateCacheLists(String loc, ListStore values) {
 	cacheLists.put(loc, values);
     }
 }
@@ -0,0 +1,454 @@
+package nl.vu.cs.querypie.storage.disk;
+
+import ibis.util.ThreadPool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local tier of the cache files that are stored on a remote file system (see
+ * JavaGATFilesInterface). The files are copied to the local disk by a pool of
+ * fetchers, and a file requested by several threads is copied once. The local
+ * copies take at most a given number of bytes: when the limit is reached, the
+ * least recently used copies are deleted and fetched again if they are needed.
+ * If a file cannot be copied, the remote file is returned.
+ *
+ * The copies are recorded with their length and CRC32 in a log in the local
+ * directory, so that they are reused after a restart. A copy is verified the
+ * first time it is used after a restart. The local files that are not in the
+ * log (for example the blocks that were changed locally) are never evicted.
+ */
+public class BlockCache {
+
+    static final Logger log = LoggerFactory.getLogger(BlockCache.class);
+
+    public static final String SIZE = "storage.cache.local.size";
+    public static final String FETCHERS = "storage.cache.local.fetchers";
+
+    private static final String LOG_FILE = "_blocks.log";
+    private static final int MAX_PREFETCHES = 64;
+
+    private static BlockCache instance = null;
+
+    private static class Entry {
+	final String path;
+	long length;
+	long crc;
+	boolean verified;
+	int pins = 0;
+
+	Entry(String path, long length, long crc, boolean verified) {
+	    this.path = path;
+	    this.length = length;
+	    this.crc = crc;
+	    this.verified = verified;
+	}
+    }
+
+    /**
+     * Error while writing the local copy, as opposed to reading the remote
+     * file.
+     */
+    private static class LocalWriteException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	LocalWriteException(IOException cause) {
+	    super(cause);
+	}
+    }
+
+    private static class Fetch {
+	final FilesInterface fi;
+	final String remote;
+	final String local;
+	int waiters = 0;
+	boolean started = false;
+	boolean done = false;
+	boolean succeeded = false;
+
+	Fetch(FilesInterface fi, String remote, String local) {
+	    this.fi = fi;
+	    this.remote = remote;
+	    this.local = local;
+	}
+    }
+
+    private final File root;
+    private long maxBytes;
+    private long bytes = 0;
+
+    // In access order, the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+	    16, 0.75f, true);
+    private final Map<String, Fetch> inFlight = new HashMap<String, Fetch>();
+    private final LinkedList<Fetch> queue = new LinkedList<Fetch>();
+    private PrintWriter journal;
+
+    private long hits = 0, misses = 0, evictions = 0;
+
+    /**
+     * Creates the local tier in the directory, if it was not created yet. If
+     * maxBytes is not positive, the local tier uses up to 90% of the disk
+     * space that is available.
+     */
+    public static synchronized BlockCache configure(String root,
+	    long maxBytes, int fetchers) throws IOException {
+	if (instance == null) {
+	    instance = new BlockCache(new File(root), maxBytes, fetchers);
+	}
+	return instance;
+    }
+
+    /**
+     * Returns the local tier, or null if it was not configured.
+     */
+    public static synchronized BlockCache getInstance() {
+	return instance;
+    }
+
+    private BlockCache(File root, long maxBytes, int fetchers)
+	    throws IOException {
+	this.root = root;
+	root.mkdirs();
+	readJournal();
+	if (maxBytes <= 0) {
+	    maxBytes = (long) ((root.getUsableSpace() + bytes) * 0.9);
+	}
+	this.maxBytes = maxBytes;
+	log.info("Local cache in " + root + ": " + entries.size()
+		+ " files, " + bytes + " bytes of " + maxBytes);
+
+	for (int i = 0; i < fetchers; ++i) {
+	    ThreadPool.createNew(new Runnable() {
+		@Override
+		public void run() {
+		    fetchLoop();
+		}
+	    }, "BlockCache fetcher " + i);
+	}
+    }
+
+    private void readJournal() throws IOException {
+	File file = new File(root, LOG_FILE);
+	if (file.exists()) {
+	    BufferedReader reader = new BufferedReader(new FileReader(file));
+	    try {
+		String line;
+		while ((line = reader.readLine()) != null) {
+		    String[] fields = line.split(" ", 4);
+		    if (fields[0].equals("+") && fields.length == 4) {
+			entries.put(fields[3], new Entry(fields[3],
+				Long.valueOf(fields[1]), Long.valueOf(fields[2]),
+				false));
+		    } else if (fields[0].equals("-") && fields.length == 2) {
+			entries.remove(fields[1]);
+		    }
+		}
+	    } catch (NumberFormatException e) {
+		// The last line was not written completely
+	    } finally {
+		reader.close();
+	    }
+	}
+
+	// Drop the copies that are missing or incomplete
+	for (Iterator<Entry> itr = entries.values().iterator(); itr.hasNext();) {
+	    Entry e = itr.next();
+	    if (new File(e.path).length() != e.length) {
+		new File(e.path).delete();
+		itr.remove();
+	    } else {
+		bytes += e.length;
+	    }
+	}
+
+	// Rewrite the log with the valid entries only
+	File tmp = new File(root, LOG_FILE + ".tmp");
+	PrintWriter writer = new PrintWriter(new FileWriter(tmp));
+	for (Entry e : entries.values()) {
+	    writer.println("+ " + e.length + " " + e.crc + " " + e.path);
+	}
+	writer.close();
+	if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+	    throw new IOException("Cannot replace " + file);
+	}
+	journal = new PrintWriter(new FileWriter(file, true), true);
+    }
+
+    private static long crc(File file) throws IOException {
+	CRC32 crc = new CRC32();
+	byte[] buffer = new byte[64 * 1024];
+	InputStream in = new FileInputStream(file);
+	try {
+	    int n;
+	    while ((n = in.read(buffer)) != -1) {
+		crc.update(buffer, 0, n);
+	    }
+	} finally {
+	    in.close();
+	}
+	return crc.getValue();
+    }
+
+    /**
+     * Returns the local copy of the remote file, fetching it if needed. The
+     * copy is not evicted until it is released.
+     */
+    public File get(FilesInterface fi, String remote, String local)
+	    throws Exception {
+	Fetch fetch;
+	Entry entry;
+	synchronized (this) {
+	    entry = entries.get(local);
+	    if (entry != null) {
+		entry.pins++;
+		hits++;
+	    } else if (!inFlight.containsKey(local)
+		    && new File(local).exists()) {
+		// Written locally
+		return fi.createFile(local);
+	    }
+	}
+
+	if (entry != null) {
+	    if (verify(entry)) {
+		return fi.createFile(local);
+	    }
+	    release(local);
+	    synchronized (this) {
+		if (entries.get(local) == entry) {
+		    remove(entry);
+		}
+	    }
+	}
+
+	synchronized (this) {
+	    fetch = inFlight.get(local);
+	    if (fetch == null) {
+		fetch = new Fetch(fi, remote, local);
+		inFlight.put(local, fetch);
+		misses++;
+		queue.addFirst(fetch);
+		notifyAll();
+	    } else if (!fetch.started) {
+		// Requested now: move it before the prefetches
+		queue.remove(fetch);
+		queue.addFirst(fetch);
+	    }
+	    // The copy is pinned for the waiters when it is added
+	    fetch.waiters++;
+	    while (!fetch.done) {
+		wait();
+	    }
+	    if (fetch.succeeded) {
+		return fi.createFile(local);
+	    }
+	}
+	log.warn("Reading " + remote + " from the remote storage");
+	return fi.createFile(remote);
+    }
+
+    /**
+     * Fetches the remote file in background, unless it is already local.
+     */
+    public synchronized void prefetch(FilesInterface fi, String remote,
+	    String local) {
+	if (entries.containsKey(local) || inFlight.containsKey(local)
+		|| queue.size() >= MAX_PREFETCHES || new File(local).exists()) {
+	    return;
+	}
+	Fetch fetch = new Fetch(fi, remote, local);
+	inFlight.put(local, fetch);
+	queue.addLast(fetch);
+	notifyAll();
+    }
+
+    /**
+     * Allows the eviction of a file returned by get.
+     */
+    public synchronized void release(String local) {
+	Entry entry = entries.get(local);
+	if (entry != null && entry.pins > 0) {
+	    entry.pins--;
+	}
+    }
+
+    /**
+     * The local file is about to be written: it is not a copy of the remote
+     * file anymore and it must not be evicted.
+     */
+    public synchronized void untrack(String local) {
+	Entry entry = entries.remove(local);
+	if (entry != null) {
+	    bytes -= entry.length;
+	    journal.println("- " + local);
+	}
+    }
+
+    private boolean verify(Entry entry) {
+	if (entry.verified) {
+	    return true;
+	}
+	try {
+	    if (crc(new File(entry.path)) == entry.crc) {
+		entry.verified = true;
+		return true;
+	    }
+	} catch (IOException e) {
+	    // Treated as corrupted
+	}
+	log.warn("The local copy " + entry.path + " is corrupted");
+	return false;
+    }
+
+    private void remove(Entry entry) {
+	entries.remove(entry.path);
+	bytes -= entry.length;
+	new File(entry.path).delete();
+	journal.println("- " + entry.path);
+    }
+
+    /**
+     * Deletes the least recently used copies that are not in use, until the
+     * local tier takes at most target bytes.
+     */
+    private void evict(long target) {
+	for (Iterator<Entry> itr = entries.values().iterator(); itr.hasNext()
+		&& bytes > target;) {
+	    Entry e = itr.next();
+	    if (e.pins == 0) {
+		itr.remove();
+		bytes -= e.length;
+		new File(e.path).delete();
+		journal.println("- " + e.path);
+		evictions++;
+	    }
+	}
+    }
+
+    private void fetchLoop() {
+	while (true) {
+	    Fetch fetch;
+	    synchronized (this) {
+		while (queue.isEmpty()) {
+		    try {
+			wait();
+		    } catch (InterruptedException e) {
+			// ignore
+		    }
+		}
+		fetch = queue.removeFirst();
+		fetch.started = true;
+	    }
+
+	    boolean succeeded = false;
+	    try {
+		succeeded = copy(fetch);
+	    } catch (LocalWriteException e) {
+		// The local disk may be full: make space and retry once. The
+		// errors of the remote file system do not evict anything.
+		synchronized (this) {
+		    evict(bytes / 2);
+		}
+		try {
+		    succeeded = copy(fetch);
+		} catch (Exception e1) {
+		    log.warn("Cannot copy " + fetch.remote, e1);
+		}
+	    } catch (Exception e) {
+		log.warn("Cannot copy " + fetch.remote, e);
+	    }
+
+	    synchronized (this) {
+		fetch.done = true;
+		fetch.succeeded = succeeded;
+		inFlight.remove(fetch.local);
+		notifyAll();
+	    }
+	}
+    }
+
+    private boolean copy(Fetch fetch) throws Exception {
+	File remote = fetch.fi.createFile(fetch.remote);
+	if (!remote.exists()) {
+	    return false;
+	}
+	File local = new File(fetch.local);
+	local.getParentFile().mkdirs();
+
+	// Copy to a temporary file first, so that a copy that is interrupted
+	// is never used
+	File tmp = new File(fetch.local + "_XXX");
+	CRC32 crc = new CRC32();
+	long length = 0;
+	InputStream in = fetch.fi.createInputStream(remote);
+	try {
+	    OutputStream out;
+	    try {
+		out = new FileOutputStream(tmp);
+	    } catch (IOException e) {
+		throw new LocalWriteException(e);
+	    }
+	    try {
+		byte[] buffer = new byte[64 * 1024];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+		    try {
+			out.write(buffer, 0, n);
+		    } catch (IOException e) {
+			throw new LocalWriteException(e);
+		    }
+		    crc.update(buffer, 0, n);
+		    length += n;
+		}
+	    } finally {
+		try {
+		    out.close();
+		} catch (IOException e) {
+		    throw new LocalWriteException(e);
+		}
+	    }
+	} catch (IOException e) {
+	    tmp.delete();
+	    throw e;
+	} finally {
+	    in.close();
+	}
+
+	synchronized (this) {
+	    evict(maxBytes - length);
+	    if (!tmp.renameTo(local)) {
+		tmp.delete();
+		return false;
+	    }
+	    Entry entry = new Entry(fetch.local, length, crc.getValue(), true);
+	    entry.pins = fetch.waiters;
+	    entries.put(fetch.local, entry);
+	    bytes += length;
+	    journal.println("+ " + length + " " + entry.crc + " " + entry.path);
+	    if (log.isDebugEnabled()) {
+		log.debug("Fetched " + fetch.remote + " (" + length
+			+ " bytes): hits=" + hits + " misses=" + misses
+			+ " evictions=" + evictions + " bytes=" + bytes);
+	    }
+	}
+	return true;
+    }
+}
@@ -0,0 +1,366 @@
+package nl.vu.cs.querypie.storage.disk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+
+import nl.vu.cs.querypie.utils.Utils;
+
+import org.iq80.snappy.Snappy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Triple file stored in independent blocks compressed with Snappy. Within a
+ * block every triple is encoded against the previous one: a byte with the
+ * number of leading terms that did not change, the difference of the first
+ * term that changed and then the other terms, all as zig-zag varints. Since
+ * the files are sorted, most triples take a few bytes before the compression.
+ * A block is decompressed and decoded at once when it is reached.
+ *
+ * Every block starts with the number of triples, the length of the encoded
+ * triples and the length of the stored bytes (equal to the previous if the
+ * block is not compressed).
+ */
+public class BlockTripleFile extends TripleFile {
+
+	static final Logger log = LoggerFactory.getLogger(BlockTripleFile.class);
+
+	public static final int BLOCK_SIZE = 64 * 1024;
+	// Largest encoding of a triple: one byte and three varints
+	private static final int MAX_TRIPLE_SIZE = 1 + 3 * 10;
+
+	protected File file = null;
+	FilesInterface fi;
+
+	final byte[] triple = new byte[24];
+	boolean tripleEncoded = false;
+
+	// Reading
+	DataInputStream din = null;
+	byte[] compressed = new byte[Snappy.maxCompressedLength(BLOCK_SIZE
+			+ MAX_TRIPLE_SIZE)];
+	byte[] block = new byte[BLOCK_SIZE + MAX_TRIPLE_SIZE];
+	long[] terms = new long[0];
+	int nTerms = 0;
+	int current = -3;
+	int decodePos = 0;
+
+	// Writing
+	DataOutputStream dout = null;
+	int blockLength = 0;
+	int blockTriples = 0;
+	long prev0, prev1, prev2;
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+	public BlockTripleFile(String pathFile, FilesInterface fi) {
+		super(pathFile);
+		try {
+			this.fi = fi;
+			this.file = fi.createFile(pathFile);
+		} catch (Exception e) {
+			log.error("Failed creating the file", e);
+		}
+	}
+
+	public BlockTripleFile(String pathFile) {
+		this(pathFile, new FilesInterface());
+	}
+
+	@Override
+	public String getPath() {
+		return file.getAbsolutePath();
+	}
+
+	@Override
+	public String getName() {
+		return file.getName();
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private int putVarLong(long v, int pos) {
+		while ((v & ~0x7FL) != 0) {
+			block[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		block[pos++] = (byte) v;
+		return pos;
+	}
+
+	private long getVarLong() {
+		long x = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = block[decodePos++];
+			x |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return x;
+	}
+
+	/**
+	 * Decodes the whole block in terms.
+	 */
+	private void decodeBlock(int n, int length) throws IOException {
+		if (terms.length < n * 3) {
+			terms = new long[n * 3];
+		}
+		decodePos = 0;
+		long t0 = 0, t1 = 0, t2 = 0;
+		for (int i = 0; i < n * 3; i += 3) {
+			switch (block[decodePos++]) {
+			case 0:
+				t0 += unzigzag(getVarLong());
+				t1 = unzigzag(getVarLong());
+				t2 = unzigzag(getVarLong());
+				break;
+			case 1:
+				t1 += unzigzag(getVarLong());
+				t2 = unzigzag(getVarLong());
+				break;
+			case 2:
+				t2 += unzigzag(getVarLong());
+				break;
+			case 3:
+				break;
+			default:
+				throw new IOException("Corrupted block in " + pathFile);
+			}
+			terms[i] = t0;
+			terms[i + 1] = t1;
+			terms[i + 2] = t2;
+		}
+		if (decodePos != length) {
+			throw new IOException("Corrupted block in " + pathFile);
+		}
+		nTerms = n * 3;
+		current = 0;
+	}
+
+	private boolean readBlock() throws IOException {
+		int n;
+		try {
+			n = din.readInt();
+		} catch (EOFException e) {
+			return false;
+		}
+		int length = din.readInt();
+		int stored = din.readInt();
+		if (length > block.length) {
+			block = new byte[length];
+		}
+		if (stored == length) {
+			din.readFully(block, 0, length);
+		} else {
+			if (stored > compressed.length) {
+				compressed = new byte[stored];
+			}
+			din.readFully(compressed, 0, stored);
+			Snappy.uncompress(compressed, 0, stored, block, 0);
+		}
+		decodeBlock(n, length);
+		return true;
+	}
+
+	@Override
+	public boolean next() {
+		try {
+			current += 3;
+			while (current >= nTerms) {
+				if (!readBlock()) {
+					return false;
+				}
+			}
+			tripleEncoded = false;
+			return true;
+		} catch (Exception e) {
+			log.error("Error accessing file " + pathFile, e);
+		}
+		return false;
+	}
+
+	@Override
+	public byte[] getTriple() {
+		if (!tripleEncoded) {
+			Utils.encodeLong(triple, 0, terms[current]);
+			Utils.encodeLong(triple, 8, terms[current + 1]);
+			Utils.encodeLong(triple, 16, terms[current + 2]);
+			tripleEncoded = true;
+		}
+		return triple;
+	}
+
+	@Override
+	public long getFirstTerm() {
+		return terms[current];
+	}
+
+	@Override
+	public long getSecondTerm() {
+		return terms[current + 1];
+	}
+
+	@Override
+	public long getThirdTerm() {
+		return terms[current + 2];
+	}
+
+	@Override
+	public void open() {
+		try {
+			din = new DataInputStream(new BufferedInputStream(
+					fi.createInputStream(file), 64 * 1024));
+			nTerms = 0;
+			current = -3;
+		} catch (Exception e) {
+			log.error("Error", e);
+		}
+	}
+
+	@Override
+	public void openToWrite() {
+		try {
+			file.createNewFile();
+			dout = new DataOutputStream(new BufferedOutputStream(
+					fi.createOutputStream(file), 64 * 1024));
+			blockLength = 0;
+			blockTriples = 0;
+		} catch (Exception e) {
+			log.error("Error", e);
+		}
+	}
+
+	private void flushBlock() throws IOException {
+		if (blockTriples == 0) {
+			return;
+		}
+		int stored = Snappy.compress(block, 0, blockLength, compressed, 0);
+		dout.writeInt(blockTriples);
+		dout.writeInt(blockLength);
+		if (stored < blockLength) {
+			dout.writeInt(stored);
+			dout.write(compressed, 0, stored);
+		} else {
+			dout.writeInt(blockLength);
+			dout.write(block, 0, blockLength);
+		}
+		blockLength = 0;
+		blockTriples = 0;
+	}
+
+	@Override
+	public void write(long firstTerm, long secondTerm, long thirdTerm) {
+		try {
+			int pos = blockLength;
+			if (blockTriples == 0) {
+				block[pos++] = 0;
+				pos = putVarLong(zigzag(firstTerm), pos);
+				pos = putVarLong(zigzag(secondTerm), pos);
+				pos = putVarLong(zigzag(thirdTerm), pos);
+			} else if (firstTerm != prev0) {
+				block[pos++] = 0;
+				pos = putVarLong(zigzag(firstTerm - prev0), pos);
+				pos = putVarLong(zigzag(secondTerm), pos);
+				pos = putVarLong(zigzag(thirdTerm), pos);
+			} else if (secondTerm != prev1) {
+				block[pos++] = 1;
+				pos = putVarLong(zigzag(secondTerm - prev1), pos);
+				pos = putVarLong(zigzag(thirdTerm), pos);
+			} else if (thirdTerm != prev2) {
+				block[pos++] = 2;
+				pos = putVarLong(zigzag(thirdTerm - prev2), pos);
+			} else {
+				block[pos++] = 3;
+			}
+			prev0 = firstTerm;
+			prev1 = secondTerm;
+			prev2 = thirdTerm;
+			blockLength = pos;
+			blockTriples++;
+
+			if (blockLength >= BLOCK_SIZE) {
+				flushBlock();
+			}
+		} catch (Exception e) {
+			log.error("Error", e);
+		}
+	}
+
+	@Override
+	public void writeTriple(byte[] triple, int length) {
+		for (int i = 0; i + 24 <= length; i += 24) {
+			write(Utils.decodeLong(triple, i), Utils.decodeLong(triple, i + 8),
+					Utils.decodeLong(triple, i + 16));
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (din != null) {
+				din.close();
+			}
+
+			if (dout != null) {
+				flushBlock();
+				dout.close();
+			}
+
+			din = null;
+			dout = null;
+		} catch (Exception e) {
+			log.error("Error", e);
+		}
+	}
+
+	@Override
+	public void renameTo(String newFilename) {
+		try {
+			String orig = newFilename;
+			int i = 1;
+			while (new File(orig).exists()) {
+				orig = newFilename + "." + i++;
+			}
+
+			file.renameTo(fi.createFile(orig));
+			pathFile = orig;
+			file = fi.createFile(pathFile);
+		} catch (Exception e) {
+			log.error("Error renaming files", e);
+		}
+	}
+
+	@Override
+	public void delete() {
+		file.delete();
+	}
+
+	@Override
+	public boolean exists() {
+		return file.exists();
+	}
+
+	@Override
+	public void copyTo(TripleFile newFile) {
+		// Copy the triples that were not read yet
+		while (next()) {
+			newFile.write(getFirstTerm(), getSecondTerm(), getThirdTerm());
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package nl.vu.cs.querypie.storage.disk;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import nl.vu.cs.querypie.storage.memory.CompressedInMemoryIndex;
+import nl.vu.cs.querypie.storage.memory.InMemoryTripleContainer;
+import nl.vu.cs.querypie.storage.memory.ListStore;
+import nl.vu.cs.querypie.storage.memory.Triple;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Snapshot of the state that is computed by the closure: the triples of the
+ * precomputed patterns, the lists and the derived triples. It is written at
+ * the end of the closure and loaded at startup, instead of computing the
+ * closure again.
+ *
+ * The file starts with a version and a checksum of the files in the index and
+ * closure directories (names, sizes and modification times) and of the
+ * content of the rulesets, and ends with the CRC32 of its content. A snapshot that does not match the directories or
+ * is corrupted is ignored. The file is memory mapped when it is loaded and
+ * the arrays are copied in bulk.
+ */
+public class ClosureSnapshot {
+
+    static final Logger log = LoggerFactory.getLogger(ClosureSnapshot.class);
+
+    // The files that start with "_" are not read as triple files
+    public static final String FILE = "_closure.snapshot";
+
+    private static final long MAGIC = 0x5150434c4f535552L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8 + 4 + 8 + 8;
+
+    public Map<String, long[]> patterns = new HashMap<String, long[]>();
+    public Map<String, ListStore> lists = new HashMap<String, ListStore>();
+    public long[] triples = new long[0];
+
+    private static long checksum(File file, String path, long checksum) {
+	if (file.getName().startsWith("_") || file.getName().startsWith(".")) {
+	    return checksum;
+	}
+	if (file.isDirectory()) {
+	    File[] children = file.listFiles();
+	    if (children != null) {
+		Arrays.sort(children);
+		for (File child : children) {
+		    checksum = checksum(child, path + "/" + child.getName(),
+			    checksum);
+		}
+	    }
+	    return checksum;
+	}
+	long h = path.hashCode();
+	h = h * 1000003 + file.length();
+	h = h * 1000003 + file.lastModified();
+	return checksum * 31 + h;
+    }
+
+    private static long crc(File file) throws IOException {
+	CRC32 crc = new CRC32();
+	byte[] buffer = new byte[64 * 1024];
+	InputStream in = new FileInputStream(file);
+	try {
+	    int n;
+	    while ((n = in.read(buffer)) != -1) {
+		crc.update(buffer, 0, n);
+	    }
+	} finally {
+	    in.close();
+	}
+	return crc.getValue();
+    }
+
+    /**
+     * Checksum of the files in the index and closure directories, and of the
+     * content of the rules files (the file names can be null). A closure
+     * computed with other rules is not valid.
+     */
+    public static long checksum(String indexDir, String closureDir,
+	    String... rulesFiles) throws IOException {
+	long checksum = checksum(new File(indexDir), "index", VERSION);
+	checksum = checksum(new File(closureDir), "closure", checksum);
+	for (String name : rulesFiles) {
+	    long h = -1;
+	    if (name != null && new File(name).isFile()) {
+		h = crc(new File(name));
+	    }
+	    checksum = checksum * 31 + h;
+	}
+	return checksum;
+    }
+
+    public void setTriples(InMemoryTripleContainer container) {
+	// A compressed container keeps only the triples added after index()
+	Collection<Triple> set = container.getTripleSet();
+	Map<Long, Collection<Triple>> index = container
+		.getTriplesIndexedBySubject();
+	if (index instanceof CompressedInMemoryIndex
+		&& ((CompressedInMemoryIndex) index).getTriples() != null) {
+	    List<Triple> all = new ArrayList<Triple>(set);
+	    all.addAll(Arrays.asList(((CompressedInMemoryIndex) index)
+		    .getTriples()));
+	    set = all;
+	}
+	long[] triples = new long[set.size() * 3];
+	int i = 0;
+	for (Triple t : set) {
+	    triples[i++] = t.subject;
+	    triples[i++] = t.predicate;
+	    triples[i++] = t.object;
+	}
+	this.triples = triples;
+    }
+
+    public InMemoryTripleContainer getTriples() {
+	InMemoryTripleContainer container = new InMemoryTripleContainer(true);
+	for (int i = 0; i < triples.length; i += 3) {
+	    Triple t = new Triple();
+	    t.subject = triples[i];
+	    t.predicate = triples[i + 1];
+	    t.object = triples[i + 2];
+	    container.addTriple(t, null);
+	}
+	container.index();
+	return container;
+    }
+
+    /**
+     * Writes the snapshot. The file is memory mapped when it is read, so a
+     * snapshot larger than 2GB is rejected.
+     */
+    public void write(File file, long checksum) throws IOException {
+	long size = HEADER_SIZE + 8 + triples.length * 8L;
+	for (long[] t : patterns.values()) {
+	    size += t == null ? 0 : t.length * 8L;
+	}
+	if (size > Integer.MAX_VALUE) {
+	    throw new IOException("The snapshot would take " + size
+		    + " bytes, more than 2GB");
+	}
+
+	File tmp = new File(file.getPath() + ".tmp");
+	FileOutputStream fout = new FileOutputStream(tmp);
+	DataOutputStream header = new DataOutputStream(fout);
+	CRC32 crc = new CRC32();
+	DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+		new BufferedOutputStream(fout, 1 << 20), crc));
+	try {
+	    header.writeLong(MAGIC);
+	    header.writeInt(VERSION);
+	    header.writeLong(checksum);
+	    header.writeLong(0); // Length of the content, written at the end
+
+	    out.writeInt(patterns.size());
+	    for (Map.Entry<String, long[]> e : patterns.entrySet()) {
+		out.writeUTF(e.getKey());
+		long[] t = e.getValue();
+		out.writeInt(t == null ? -1 : t.length);
+		if (t != null) {
+		    for (long v : t) {
+			out.writeLong(v);
+		    }
+		}
+	    }
+	    out.writeInt(lists.size());
+	    for (Map.Entry<String, ListStore> e : lists.entrySet()) {
+		out.writeUTF(e.getKey());
+		e.getValue().write(out);
+	    }
+	    out.writeInt(triples.length);
+	    for (long v : triples) {
+		out.writeLong(v);
+	    }
+	    out.flush();
+	    // DataOutputStream.size() stops counting at 2GB
+	    long length = fout.getChannel().position() - HEADER_SIZE;
+	    if (HEADER_SIZE + length + 8 > Integer.MAX_VALUE) {
+		throw new IOException("The snapshot takes more than 2GB");
+	    }
+	    header.writeLong(crc.getValue());
+	    header.flush();
+
+	    RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+	    try {
+		raf.seek(HEADER_SIZE - 8);
+		raf.writeLong(length);
+	    } finally {
+		raf.close();
+	    }
+	} catch (IOException e) {
+	    out.close();
+	    tmp.delete();
+	    throw e;
+	} finally {
+	    out.close();
+	}
+	if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+	    throw new IOException("Cannot replace " + file);
+	}
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+	final ByteBuffer buffer;
+
+	ByteBufferInputStream(ByteBuffer buffer) {
+	    this.buffer = buffer;
+	}
+
+	@Override
+	public int read() {
+	    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+	    if (!buffer.hasRemaining()) {
+		return -1;
+	    }
+	    len = Math.min(len, buffer.remaining());
+	    buffer.get(b, off, len);
+	    return len;
+	}
+    }
+
+    private static long[] readLongs(ByteBuffer buffer, int n) {
+	long[] values = new long[n];
+	buffer.asLongBuffer().get(values);
+	buffer.position(buffer.position() + n * 8);
+	return values;
+    }
+
+    /**
+     * Returns the snapshot in the file, or null if it does not exist, does
+     * not match the checksum or is corrupted.
+     */
+    public static ClosureSnapshot read(File file, long checksum) {
+	if (!file.exists()) {
+	    return null;
+	}
+	try {
+	    RandomAccessFile raf = new RandomAccessFile(file, "r");
+	    ByteBuffer buffer;
+	    try {
+		FileChannel channel = raf.getChannel();
+		if (channel.size() > Integer.MAX_VALUE
+			|| channel.size() < HEADER_SIZE + 8) {
+		    log.warn("Invalid size of the snapshot " + file);
+		    return null;
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+			channel.size());
+	    } finally {
+		raf.close();
+	    }
+
+	    if (buffer.getLong() != MAGIC || buffer.getInt() != VERSION) {
+		log.warn("The snapshot " + file + " has another version");
+		return null;
+	    }
+	    if (buffer.getLong() != checksum) {
+		log.info("The snapshot " + file
+			+ " does not match the index and the closure");
+		return null;
+	    }
+	    long length = buffer.getLong();
+	    if (length != buffer.capacity() - HEADER_SIZE - 8) {
+		log.warn("The snapshot " + file + " is truncated");
+		return null;
+	    }
+
+	    // Verify the content
+	    CRC32 crc = new CRC32();
+	    byte[] chunk = new byte[1 << 16];
+	    ByteBuffer content = buffer.duplicate();
+	    content.limit(HEADER_SIZE + (int) length);
+	    while (content.hasRemaining()) {
+		int n = Math.min(chunk.length, content.remaining());
+		content.get(chunk, 0, n);
+		crc.update(chunk, 0, n);
+	    }
+	    if (buffer.getLong(HEADER_SIZE + (int) length) != crc.getValue()) {
+		log.warn("The snapshot " + file + " is corrupted");
+		return null;
+	    }
+
+	    ClosureSnapshot snapshot = new ClosureSnapshot();
+	    DataInputStream in = new DataInputStream(new ByteBufferInputStream(
+		    buffer));
+	    int n = in.readInt();
+	    while (n-- > 0) {
+		String key = in.readUTF();
+		int len = in.readInt();
+		snapshot.patterns.put(key, len == -1 ? null : readLongs(buffer,
+			len));
+	    }
+	    n = in.readInt();
+	    while (n-- > 0) {
+		String key = in.readUTF();
+		snapshot.lists.put(key, ListStore.read(in));
+	    }
+	    snapshot.triples = readLongs(buffer, in.readInt());
+	    return snapshot;
+	} catch (Exception e) {
+	    log.warn("Cannot read the snapshot " + file, e);
+	    return null;
+	}
+    }
+}
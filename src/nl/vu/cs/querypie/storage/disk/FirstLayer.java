@@ -333,8 +333,8 @@ public class FirstLayer {
 
 	int[] readBlock(String name, int blockNo, ActionContext context)
 			throws Exception {
-		getIOLock();
 		File f = index.getCacheFile(name + "/" + blockNo);
+		getIOLock();
 		int[] result = null;
 		try {
 			if (log.isDebugEnabled()) {
@@ -388,6 +388,7 @@ public class FirstLayer {
 			log.error("Could not read block " + f.getAbsolutePath(), e);
 		} finally {
 			releaseIOLock();
+			index.releaseCacheFile(name + "/" + blockNo);
 		}
 		return result;
 	}
@@ -396,6 +397,8 @@ public class FirstLayer {
 		String directory = index.cacheDir;
 		File f = index.getFilesInterface().createFile(
 				directory + File.separator + name + File.separator + blockNo);
+		index.writingCacheFile(directory + File.separator + name
+				+ File.separator + blockNo);
 		if (f.exists()) {
 			File savedDir = index.getFilesInterface().createFile(
 					directory + File.separator + "saved-" + name);
@@ -543,8 +546,8 @@ public class FirstLayer {
 		if (!listBlockNameSet.contains(name)) {
 			return null;
 		}
-		getIOLock();
 		File file = index.getCacheFile(name + "/index");
+		getIOLock();
 		try {
 			InputStream reader = index.getFilesInterface().createInputStream(
 					file);
@@ -564,6 +567,7 @@ public class FirstLayer {
 			throw e;
 		} finally {
 			releaseIOLock();
+			index.releaseCacheFile(name + "/index");
 		}
 	}
 
@@ -585,6 +589,8 @@ public class FirstLayer {
 		}
 		file = index.getFilesInterface().createFile(
 				index.cacheDir + "/" + name + "/index");
+		index.writingCacheFile(index.cacheDir + File.separator + name
+				+ "/index");
 		if (log.isDebugEnabled()) {
 			log.debug("write index of ListBlock " + index.cacheDir + "/" + name);
 		}
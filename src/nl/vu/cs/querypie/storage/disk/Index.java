@@ -309,6 +309,8 @@ public class Index {
 			File f = fi.createFile(cacheDir + "/" + (index / 1000));
 			f.mkdirs();
 			f = fi.createFile(cacheDir + "/" + (index / 1000) + "/" + index);
+			writingCacheFile(cacheDir + File.separator + (index / 1000) + "/"
+					+ index);
 			if (f.exists()) {
 				File savedDir = fi.createFile(cacheDir + "/saved_"
 						+ (index / 1000));
@@ -389,11 +391,20 @@ public class Index {
 		synchronized (blocksCache) {
 			Block block = blocksCache.get(myId + i);
 			if (block == null) {
-				FirstLayer.getIOLock();
+				String name = "" + (i / 1000) + "/" + i;
 				File f = null;
+				try {
+					// Copy from the global cache without the IO lock
+					f = getCacheFile(name);
+				} catch (Exception e) {
+					throw new Error("Failed fetching cache file " + name, e);
+				}
+				if (i < lastBlockNo) {
+					prefetchCacheFile("" + ((i + 1) / 1000) + "/" + (i + 1));
+				}
+				FirstLayer.getIOLock();
 				try {
 					long time = System.currentTimeMillis();
-					f = getCacheFile("" + (i / 1000) + "/" + i);
 					if (log.isDebugEnabled()) {
 						log.debug("Reading block " + f.getPath());
 					}
@@ -430,6 +441,7 @@ public class Index {
 							e);
 				} finally {
 					FirstLayer.releaseIOLock();
+					releaseCacheFile(name);
 				}
 
 				if (removeOldest
@@ -571,44 +583,47 @@ public class Index {
 		}
 	}
 
+	private boolean isTiered() {
+		return globalCacheDir != null && !globalCacheDir.equals(cacheDir)
+				&& BlockCache.getInstance() != null;
+	}
+
+	/**
+	 * Returns the file of the cache, copied from the global cache if needed.
+	 * The file must be released with releaseCacheFile.
+	 */
 	protected File getCacheFile(String name) throws Exception {
-		File f = fi.createFile(cacheDir + File.separator + name);
-		if (!f.exists()) {
-			if (globalCacheDir != null && !globalCacheDir.equals(cacheDir)) {
-				if (log.isDebugEnabled()) {
-					log.debug("Copying " + globalCacheDir + "/" + name + " to "
-							+ cacheDir);
-				}
+		if (isTiered()) {
+			return BlockCache.getInstance().get(fi,
+					globalCacheDir + "/" + name,
+					cacheDir + File.separator + name);
+		}
+		return fi.createFile(cacheDir + File.separator + name);
+	}
 
-				if (!f.getParentFile().exists())
-					f.getParentFile().mkdirs();
+	protected void releaseCacheFile(String name) {
+		if (isTiered()) {
+			BlockCache.getInstance().release(cacheDir + File.separator + name);
+		}
+	}
 
-                                /*
-				try {
-					Thread.sleep(200); // Slow down ...
-				} catch (InterruptedException e1) {
-					// ignore
-				}
-                                */
-				try {
-					File gatFile = fi.createFile(globalCacheDir + "/" + name);
-					File f1 = fi.createFile(cacheDir + File.separator + name
-							+ "_XXX");
-					// First copy to a file with a different name, and then
-					// rename,
-					// because otherwise, when the program crashes for some
-					// reason,
-					// during copying, the local cache may be inconsistent.
-					fi.copyTo(gatFile, f1);
-					f1.renameTo(f);
-				} catch (Throwable e) {
-					if (log.isDebugEnabled()) {
-						log.debug("Got ignored exception ", e);
-					}
-				}
-			}
+	/**
+	 * Starts copying the file from the global cache, if it is not local.
+	 */
+	protected void prefetchCacheFile(String name) {
+		if (isTiered()) {
+			BlockCache.getInstance().prefetch(fi, globalCacheDir + "/" + name,
+					cacheDir + File.separator + name);
+		}
+	}
+
+	/**
+	 * Must be called before a file of the local cache is written.
+	 */
+	protected void writingCacheFile(String path) {
+		if (isTiered()) {
+			BlockCache.getInstance().untrack(path);
 		}
-		return f;
 	}
 
 	public void checkPosition(int currentBlockIndex, int currentOffset) {
@@ -0,0 +1,437 @@
+package nl.vu.cs.querypie.storage.disk;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cardinality statistics of one partition of an index. They are collected
+ * while the triples are written to the index cache (which happens in sorted
+ * order) and contain an equi-depth histogram over the first entry, the most
+ * frequent first entries and, for the indexes that start with the predicate,
+ * a detailed summary of every first entry.
+ */
+public class IndexStatistics {
+
+	public static final int MAX_BUCKETS = 1024;
+	public static final int TOP_K = 100;
+
+	/**
+	 * Keeps the k values with the highest counts, sorted on decreasing count
+	 * once finish() is called.
+	 */
+	public static class TopK {
+		long[] values;
+		long[] counts;
+		int size;
+		private int posMin = -1;
+
+		public TopK(int k) {
+			values = new long[k];
+			counts = new long[k];
+		}
+
+		public void offer(long value, long count) {
+			if (size < values.length) {
+				values[size] = value;
+				counts[size] = count;
+				size++;
+				posMin = -1;
+				return;
+			}
+			if (posMin == -1) {
+				posMin = 0;
+				for (int i = 1; i < size; ++i) {
+					if (counts[i] < counts[posMin]) {
+						posMin = i;
+					}
+				}
+			}
+			if (count > counts[posMin]) {
+				values[posMin] = value;
+				counts[posMin] = count;
+				posMin = -1;
+			}
+		}
+
+		public long get(long value) {
+			for (int i = 0; i < size; ++i) {
+				if (values[i] == value) {
+					return counts[i];
+				}
+			}
+			return -1;
+		}
+
+		public long sum() {
+			long sum = 0;
+			for (int i = 0; i < size; ++i) {
+				sum += counts[i];
+			}
+			return sum;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		void finish() {
+			// Insertion sort: k is small
+			for (int i = 1; i < size; ++i) {
+				long v = values[i];
+				long c = counts[i];
+				int j = i - 1;
+				while (j >= 0 && counts[j] < c) {
+					values[j + 1] = values[j];
+					counts[j + 1] = counts[j];
+					j--;
+				}
+				values[j + 1] = v;
+				counts[j + 1] = c;
+			}
+			posMin = -1;
+		}
+
+		static TopK merge(List<TopK> list, int k) {
+			Map<Long, Long> sums = new HashMap<Long, Long>();
+			for (TopK t : list) {
+				for (int i = 0; i < t.size; ++i) {
+					Long c = sums.get(t.values[i]);
+					sums.put(t.values[i], c == null ? t.counts[i] : c
+							+ t.counts[i]);
+				}
+			}
+			TopK output = new TopK(k);
+			for (Map.Entry<Long, Long> e : sums.entrySet()) {
+				output.offer(e.getKey(), e.getValue());
+			}
+			output.finish();
+			return output;
+		}
+
+		void writeTo(DataOutputStream out) throws IOException {
+			out.writeInt(size);
+			for (int i = 0; i < size; ++i) {
+				out.writeLong(values[i]);
+				out.writeLong(counts[i]);
+			}
+		}
+
+		static TopK readFrom(DataInputStream in, int k) throws IOException {
+			int size = in.readInt();
+			TopK t = new TopK(Math.max(k, size));
+			for (int i = 0; i < size; ++i) {
+				t.values[i] = in.readLong();
+				t.counts[i] = in.readLong();
+			}
+			t.size = size;
+			return t;
+		}
+	}
+
+	/**
+	 * Summary of all the triples that share the same first entry.
+	 */
+	public static class EntryStatistics {
+		public long count;
+		public long distinct;
+		public TopK top;
+
+		/**
+		 * Returns the estimated number of triples that also have the given
+		 * second entry.
+		 */
+		public long estimate(long entry2) {
+			long c = top.get(entry2);
+			if (c != -1) {
+				return c;
+			}
+			long remainingDistinct = distinct - top.size();
+			if (remainingDistinct <= 0) {
+				return 0;
+			}
+			return Math.max(1, (count - top.sum()) / remainingDistinct);
+		}
+	}
+
+	private final boolean detailed;
+
+	// Histogram
+	private long[] bucketUpper = new long[2 * MAX_BUCKETS];
+	private long[] bucketCount = new long[2 * MAX_BUCKETS];
+	private long[] bucketDistinct = new long[2 * MAX_BUCKETS];
+	private int nBuckets = 0;
+	private long depth = 1;
+
+	private long total = 0;
+	private long distinctEntries = 0;
+	private TopK topEntries = new TopK(TOP_K);
+	private Map<Long, EntryStatistics> entries;
+
+	// State used while the statistics are collected
+	private boolean first = true;
+	private long currentEntry1;
+	private long currentEntry2;
+	private long countEntry1;
+	private long countEntry2;
+	private long distinctEntry2;
+	private TopK currentTop;
+	private long countBucket;
+	private long distinctBucket;
+
+	/**
+	 * @param detailed
+	 *            whether a summary of every first entry should be kept. Only
+	 *            useful for indexes with few distinct first entries (i.e. the
+	 *            ones that start with the predicate).
+	 */
+	public IndexStatistics(boolean detailed) {
+		this.detailed = detailed;
+		if (detailed) {
+			entries = new HashMap<Long, EntryStatistics>();
+		}
+	}
+
+	public void add(long entry1, long entry2, long entry3) {
+		if (first || entry1 != currentEntry1) {
+			if (!first) {
+				closeEntry1();
+			}
+			first = false;
+			currentEntry1 = entry1;
+			countEntry1 = 0;
+			distinctEntry2 = 1;
+			currentEntry2 = entry2;
+			countEntry2 = 0;
+			if (detailed) {
+				currentTop = new TopK(TOP_K);
+			}
+		} else if (entry2 != currentEntry2) {
+			closeEntry2();
+			currentEntry2 = entry2;
+			countEntry2 = 0;
+			distinctEntry2++;
+		}
+		countEntry2++;
+		countEntry1++;
+		total++;
+	}
+
+	private void closeEntry2() {
+		if (detailed) {
+			currentTop.offer(currentEntry2, countEntry2);
+		}
+	}
+
+	private void closeEntry1() {
+		closeEntry2();
+		topEntries.offer(currentEntry1, countEntry1);
+		distinctEntries++;
+		if (detailed) {
+			EntryStatistics e = new EntryStatistics();
+			e.count = countEntry1;
+			e.distinct = distinctEntry2;
+			currentTop.finish();
+			e.top = currentTop;
+			entries.put(currentEntry1, e);
+			currentTop = null;
+		}
+
+		countBucket += countEntry1;
+		distinctBucket++;
+		if (countBucket >= depth) {
+			closeBucket(currentEntry1);
+		}
+	}
+
+	private void closeBucket(long upper) {
+		bucketUpper[nBuckets] = upper;
+		bucketCount[nBuckets] = countBucket;
+		bucketDistinct[nBuckets] = distinctBucket;
+		nBuckets++;
+		countBucket = 0;
+		distinctBucket = 0;
+
+		if (nBuckets == bucketUpper.length) {
+			// Merge the buckets pairwise and double the depth
+			for (int i = 0; i < nBuckets / 2; ++i) {
+				bucketUpper[i] = bucketUpper[2 * i + 1];
+				bucketCount[i] = bucketCount[2 * i] + bucketCount[2 * i + 1];
+				bucketDistinct[i] = bucketDistinct[2 * i]
+						+ bucketDistinct[2 * i + 1];
+			}
+			nBuckets /= 2;
+			depth *= 2;
+		}
+	}
+
+	/**
+	 * Must be called after the last triple was added.
+	 */
+	public void finish() {
+		if (!first) {
+			closeEntry1();
+			first = true;
+		}
+		if (countBucket > 0) {
+			closeBucket(currentEntry1);
+		}
+		topEntries.finish();
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	public long getDistinctEntries() {
+		return distinctEntries;
+	}
+
+	public boolean isDetailed() {
+		return detailed;
+	}
+
+	public EntryStatistics getEntry(long entry1) {
+		return entries == null ? null : entries.get(entry1);
+	}
+
+	/**
+	 * Returns the estimated number of triples with the given first entry.
+	 */
+	public long estimate(long entry1) {
+		if (entries != null) {
+			EntryStatistics e = entries.get(entry1);
+			return e == null ? 0 : e.count;
+		}
+
+		long c = topEntries.get(entry1);
+		if (c != -1) {
+			return c;
+		}
+
+		int pos = Arrays.binarySearch(bucketUpper, 0, nBuckets, entry1);
+		if (pos < 0) {
+			pos = -pos - 1;
+		}
+		if (pos >= nBuckets || bucketDistinct[pos] == 0) {
+			return 0;
+		}
+		return Math.max(1, bucketCount[pos] / bucketDistinct[pos]);
+	}
+
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeBoolean(detailed);
+		out.writeLong(total);
+		out.writeLong(distinctEntries);
+		out.writeLong(depth);
+		out.writeInt(nBuckets);
+		for (int i = 0; i < nBuckets; ++i) {
+			out.writeLong(bucketUpper[i]);
+			out.writeLong(bucketCount[i]);
+			out.writeLong(bucketDistinct[i]);
+		}
+		topEntries.writeTo(out);
+		if (detailed) {
+			out.writeInt(entries.size());
+			for (Map.Entry<Long, EntryStatistics> e : entries.entrySet()) {
+				out.writeLong(e.getKey());
+				out.writeLong(e.getValue().count);
+				out.writeLong(e.getValue().distinct);
+				e.getValue().top.writeTo(out);
+			}
+		}
+	}
+
+	public static IndexStatistics readFrom(DataInputStream in)
+			throws IOException {
+		IndexStatistics s = new IndexStatistics(in.readBoolean());
+		s.total = in.readLong();
+		s.distinctEntries = in.readLong();
+		s.depth = in.readLong();
+		s.nBuckets = in.readInt();
+		s.bucketUpper = new long[Math.max(s.nBuckets, 2 * MAX_BUCKETS)];
+		s.bucketCount = new long[s.bucketUpper.length];
+		s.bucketDistinct = new long[s.bucketUpper.length];
+		for (int i = 0; i < s.nBuckets; ++i) {
+			s.bucketUpper[i] = in.readLong();
+			s.bucketCount[i] = in.readLong();
+			s.bucketDistinct[i] = in.readLong();
+		}
+		s.topEntries = TopK.readFrom(in, TOP_K);
+		if (s.detailed) {
+			int n = in.readInt();
+			for (int i = 0; i < n; ++i) {
+				EntryStatistics e = new EntryStatistics();
+				long key = in.readLong();
+				e.count = in.readLong();
+				e.distinct = in.readLong();
+				e.top = TopK.readFrom(in, TOP_K);
+				s.entries.put(key, e);
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Merges the statistics of the partitions of an index. The partitions
+	 * must be given in the order of their ranges.
+	 */
+	public static IndexStatistics merge(List<IndexStatistics> partitions) {
+		IndexStatistics first = partitions.get(0);
+		IndexStatistics s = new IndexStatistics(first.detailed);
+
+		int totalBuckets = 0;
+		for (IndexStatistics p : partitions) {
+			totalBuckets += p.nBuckets;
+		}
+		s.bucketUpper = new long[Math.max(totalBuckets, 2 * MAX_BUCKETS)];
+		s.bucketCount = new long[s.bucketUpper.length];
+		s.bucketDistinct = new long[s.bucketUpper.length];
+
+		List<TopK> tops = new ArrayList<TopK>();
+		for (IndexStatistics p : partitions) {
+			s.total += p.total;
+			s.distinctEntries += p.distinctEntries;
+			s.depth = Math.max(s.depth, p.depth);
+			for (int i = 0; i < p.nBuckets; ++i) {
+				long upper = p.bucketUpper[i];
+				if (s.nBuckets > 0 && s.bucketUpper[s.nBuckets - 1] >= upper) {
+					// The first entry was split between two partitions
+					s.bucketCount[s.nBuckets - 1] += p.bucketCount[i];
+					s.bucketDistinct[s.nBuckets - 1] += p.bucketDistinct[i];
+				} else {
+					s.bucketUpper[s.nBuckets] = upper;
+					s.bucketCount[s.nBuckets] = p.bucketCount[i];
+					s.bucketDistinct[s.nBuckets] = p.bucketDistinct[i];
+					s.nBuckets++;
+				}
+			}
+			tops.add(p.topEntries);
+
+			if (s.detailed) {
+				for (Map.Entry<Long, EntryStatistics> e : p.entries
+						.entrySet()) {
+					EntryStatistics existing = s.entries.get(e.getKey());
+					if (existing == null) {
+						s.entries.put(e.getKey(), e.getValue());
+					} else {
+						EntryStatistics m = new EntryStatistics();
+						m.count = existing.count + e.getValue().count;
+						m.distinct = existing.distinct + e.getValue().distinct;
+						m.top = TopK.merge(
+								Arrays.asList(existing.top, e.getValue().top),
+								TOP_K);
+						s.entries.put(e.getKey(), m);
+					}
+				}
+			}
+		}
+		s.topEntries = TopK.merge(tops, TOP_K);
+		return s;
+	}
+}
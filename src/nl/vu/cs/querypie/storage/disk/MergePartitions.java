@@ -1,18 +1,26 @@
 package nl.vu.cs.querypie.storage.disk;
 
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.TreeSet;
+
+import nl.vu.cs.querypie.utils.LoserTree;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Merges the sorted files of the partitions of this node. Every partition is a
+ * stream of files, read in batches of triples, and the heads of the streams
+ * are merged with a loser tree.
+ */
 public class MergePartitions implements Iterator<long[]> {
 
     static final Logger log = LoggerFactory.getLogger(MergePartitions.class);
 
+    // Triples read at once from the files of a stream
+    public static final int BATCH = 128;
+
     long[][] partitionTable;
 
     public long[][] returnPartitionTable() {
@@ -70,123 +78,171 @@ public class MergePartitions implements Iterator<long[]> {
 	partitionTable[pIndex - 1][2] = min[2];
 
 	if (!cacheExists) {
-	    sortedList.clear();
-	    for (List<TripleFile> list : lists) {
+	    List<SortedStream> list = new ArrayList<SortedStream>();
+	    for (List<TripleFile> l : lists) {
 		SortedStream el = new SortedStream();
-		el.list = list;
+		el.list = l == null ? new ArrayList<TripleFile>() : l;
 		// Open them
-		for (TripleFile file : list) {
+		for (TripleFile file : el.list) {
 		    file.open();
 		}
-		if (readNextElement(el)) {
-		    sortedList.add(el);
+		if (el.fill()) {
+		    list.add(el);
 		} else {
 		    log.warn("The current stream does not contain any element");
 		}
 	    }
-	    minimumValue = null;
+	    streams = list.toArray(new SortedStream[list.size()]);
+	    tree = new StreamsTree(streams);
+	    tree.init();
+	    started = false;
 	}
     }
 
+    private static boolean less(long a0, long a1, long a2, long b0, long b1,
+	    long b2) {
+	if (a0 != b0) {
+	    return a0 < b0;
+	}
+	if (a1 != b1) {
+	    return a1 < b1;
+	}
+	return a2 < b2;
+    }
+
     private long[] getMinimum(List<Integer> indices, TripleFile[] files,
 	    long[][] firstIndices) {
-	sortedList.clear();
+	long[] min = null;
 	for (int i : indices) {
+	    long s, p, o;
 	    if (firstIndices != null) {
-		SortedStream ss = new SortedStream();
-		ss.minimum[0] = firstIndices[i][0];
-		ss.minimum[1] = firstIndices[i][1];
-		ss.minimum[2] = firstIndices[i][2];
-		sortedList.add(ss);
+		s = firstIndices[i][0];
+		p = firstIndices[i][1];
+		o = firstIndices[i][2];
 	    } else {
 		TripleFile f = files[i];
 		f.open();
-		if (f.next()) {
-		    SortedStream ss = new SortedStream();
-		    ss.minimum[0] = f.getFirstTerm();
-		    ss.minimum[1] = f.getSecondTerm();
-		    ss.minimum[2] = f.getThirdTerm();
-		    sortedList.add(ss);
-		}
+		boolean found = f.next();
+		s = found ? f.getFirstTerm() : 0;
+		p = found ? f.getSecondTerm() : 0;
+		o = found ? f.getThirdTerm() : 0;
 		f.close();
+		if (!found) {
+		    continue;
+		}
+	    }
+	    if (min == null) {
+		min = new long[] { s, p, o };
+	    } else if (less(s, p, o, min[0], min[1], min[2])) {
+		min[0] = s;
+		min[1] = p;
+		min[2] = o;
 	    }
 	}
-
-	SortedStream ss = sortedList.pollFirst();
-	return ss.minimum;
+	return min;
     }
 
-    class SortedStream {
-	long[] minimum = new long[3];
+    static class SortedStream {
 	List<TripleFile> list;
-    }
-
-    TreeSet<SortedStream> sortedList = new TreeSet<MergePartitions.SortedStream>(
-	    new Comparator<SortedStream>() {
-		@Override
-		public int compare(SortedStream o1, SortedStream o2) {
-		    if (o1.minimum[0] == o2.minimum[0]) {
-			if (o1.minimum[1] == o2.minimum[1]) {
-			    if (o1.minimum[2] == o2.minimum[2]) {
-				return 0;
-			    } else if (o1.minimum[2] < o2.minimum[2]) {
-				return -1;
-			    } else {
-				return 1;
-			    }
-			} else if (o1.minimum[1] < o2.minimum[1]) {
-			    return -1;
-			} else {
-			    return 1;
-			}
-		    } else if (o1.minimum[0] < o2.minimum[0]) {
-			return -1;
-		    } else {
-			return 1;
-		    }
+	final long[] buffer = new long[BATCH * 3];
+	int size = 0;
+	int pos = 0;
+
+	/**
+	 * Reads the next batch of triples from the files of the stream.
+	 * Returns false if the stream is finished.
+	 */
+	boolean fill() {
+	    size = 0;
+	    pos = 0;
+	    while (size < buffer.length && list.size() > 0) {
+		TripleFile file = list.get(0);
+		if (file.next()) {
+		    buffer[size++] = file.getFirstTerm();
+		    buffer[size++] = file.getSecondTerm();
+		    buffer[size++] = file.getThirdTerm();
+		} else {
+		    file.close();
+		    list.remove(0);
 		}
-	    });
-    SortedStream minimumValue = null;
-
-    @Override
-    public boolean hasNext() {
-	if (minimumValue != null) {
-	    if (readNextElement(minimumValue)) {
-		sortedList.add(minimumValue);
 	    }
+	    return size > 0;
 	}
 
-	if (sortedList.size() > 0) {
-	    minimumValue = sortedList.pollFirst();
-	    return true;
-	} else {
-	    return false;
+	/**
+	 * Moves to the next triple. Returns false if the stream is finished.
+	 */
+	boolean advance() {
+	    pos += 3;
+	    return pos < size || fill();
 	}
-
     }
 
-    private boolean readNextElement(SortedStream stream) {
+    private static final class StreamsTree extends LoserTree {
+	final SortedStream[] streams;
+
+	StreamsTree(SortedStream[] streams) {
+	    super(streams.length);
+	    this.streams = streams;
+	}
 
-	if (stream.list.size() > 0) {
-	    TripleFile file = stream.list.get(0);
-	    if (file.next()) {
-		stream.minimum[0] = file.getFirstTerm();
-		stream.minimum[1] = file.getSecondTerm();
-		stream.minimum[2] = file.getThirdTerm();
+	@Override
+	protected boolean less(int a, int b) {
+	    SortedStream sa = streams[a];
+	    SortedStream sb = streams[b];
+	    if (sa.size == 0) {
+		return false;
+	    }
+	    if (sb.size == 0) {
 		return true;
-	    } else {
-		file.close();
-		stream.list.remove(0);
-		return readNextElement(stream);
+	    }
+	    long[] x = sa.buffer;
+	    long[] y = sb.buffer;
+	    int i = sa.pos, j = sb.pos;
+	    if (x[i] != y[j]) {
+		return x[i] < y[j];
+	    }
+	    if (x[i + 1] != y[j + 1]) {
+		return x[i + 1] < y[j + 1];
+	    }
+	    if (x[i + 2] != y[j + 2]) {
+		return x[i + 2] < y[j + 2];
+	    }
+	    return a < b;
+	}
+    }
+
+    SortedStream[] streams = new SortedStream[0];
+    StreamsTree tree = new StreamsTree(streams);
+    boolean started = false;
+    final long[] minimumValue = new long[3];
+
+    @Override
+    public boolean hasNext() {
+	int top = tree.top();
+	if (top == -1 || streams[top].size == 0) {
+	    return false;
+	}
+	if (started) {
+	    streams[top].advance();
+	    tree.replay();
+	    top = tree.top();
+	    if (streams[top].size == 0) {
+		return false;
 	    }
 	}
+	started = true;
 
-	return false;
+	SortedStream s = streams[top];
+	minimumValue[0] = s.buffer[s.pos];
+	minimumValue[1] = s.buffer[s.pos + 1];
+	minimumValue[2] = s.buffer[s.pos + 2];
+	return true;
     }
 
     @Override
     public long[] next() {
-	return minimumValue.minimum;
+	return minimumValue;
     }
 
     @Override
@@ -54,7 +54,7 @@ public class PatternIterator extends TupleIterator implements TripleIterator {
 	Iterator<Long> customItr = null;
 	Schema schema;
 
-	private boolean stop;
+	private volatile boolean stop;
 
 	// We also create a cache that, for each entry1, maintains all info
 	// about it.
@@ -15,6 +15,7 @@ import java.util.Random;
 import nl.vu.cs.ajira.Context;
 import nl.vu.cs.ajira.actions.ActionContext;
 import nl.vu.cs.ajira.chains.Location;
+import nl.vu.cs.ajira.data.types.TBoolean;
 import nl.vu.cs.ajira.data.types.Tuple;
 import nl.vu.cs.ajira.datalayer.InputLayer;
 import nl.vu.cs.ajira.datalayer.TupleIterator;
@@ -22,13 +23,19 @@ import nl.vu.cs.ajira.storage.Factory;
 import nl.vu.cs.ajira.utils.Configuration;
 import nl.vu.cs.querypie.QueryPIE;
 import nl.vu.cs.querypie.dictionary.OnDiskDictionary;
+import nl.vu.cs.querypie.dictionary.TermIndex;
+import nl.vu.cs.querypie.dictionary.TermMap;
+import nl.vu.cs.querypie.reasoner.RuleBCAlgo;
 import nl.vu.cs.querypie.reasoner.Ruleset;
 import nl.vu.cs.querypie.storage.CompositeTriplePattern;
 import nl.vu.cs.querypie.storage.RDFTerm;
+import nl.vu.cs.querypie.storage.ResultBudget;
 import nl.vu.cs.querypie.storage.Schema;
 import nl.vu.cs.querypie.storage.SchemaTerms;
+import nl.vu.cs.querypie.storage.TripleIterator;
 import nl.vu.cs.querypie.storage.memory.InMemoryIterator;
 import nl.vu.cs.querypie.storage.memory.InMemoryTripleContainer;
+import nl.vu.cs.querypie.storage.memory.ListStore;
 import nl.vu.cs.querypie.utils.Utils;
 
 import org.slf4j.Logger;
@@ -44,6 +51,8 @@ public class RDFStorage extends InputLayer {
 	public static final String FILES_INTERFACE = "storage.files.interface";
 	public static final String ITERATOR_CLASS = "storage.pattern.iterator";
 	public static final String DICT_DIR = "dictionary.dir";
+	public static final String BUILD_STATISTICS = "storage.statistics.build";
+	public static final String CLOSURE_SNAPSHOT = "closure.snapshot";
 
 	static final Logger log = LoggerFactory.getLogger(RDFStorage.class);
 
@@ -55,6 +64,10 @@ public class RDFStorage extends InputLayer {
 	public Schema schema2;
 
 	protected Map<String, Long> cacheURLs = new HashMap<String, Long>();
+	// Terms that are not in cacheURLs are looked up in the index, if present
+	protected Map<String, Long> terms = null;
+
+	protected StatisticsCatalog statistics = new StatisticsCatalog();
 
 	FilesInterface fi;
 
@@ -87,6 +100,9 @@ public class RDFStorage extends InputLayer {
 	final int[] pos_osp = { 2, 0, 1 };
 
 	InMemoryTripleContainer closureTriples = null;
+	File closureSnapshot = null;
+	long closureChecksum;
+	String indexDirectory;
 
 	protected void loadIndex(Configuration conf, String dirIndexes,
 			Index index, String indexType, int myPartition, int nNodes,
@@ -97,7 +113,18 @@ public class RDFStorage extends InputLayer {
 		TripleFile firstElementsList = Utils.getFirstElementsFile(conf,
 				dirIndexes + File.separator + indexType, fi);
 		long firstElements[][] = null;
-		if (firstElementsList.exists()) {
+		String dir = dirIndexes + File.separator + indexType;
+		if (fi.createFile(dir + "/" + SparseIndex.FILE).exists()) {
+			// Reads only the files that were added since it was built
+			try {
+				firstElements = SparseIndex.refresh(conf, dir, fi,
+						Runtime.getRuntime().availableProcessors())
+						.getFirstElements(files);
+			} catch (Exception e) {
+				log.warn("Cannot refresh the sparse index of " + dir, e);
+			}
+		}
+		if (firstElements == null && firstElementsList.exists()) {
 			firstElements = new long[files.length][3];
 			firstElementsList.open();
 			for (int i = 0; i < files.length; i++) {
@@ -126,6 +153,10 @@ public class RDFStorage extends InputLayer {
 
 		String localCache = conf.get(LOCAL_CACHE_LOCATION, null);
 		if (localCache != null) {
+			// Size of the local tier in MB, by default the free space
+			BlockCache.configure(localCache,
+					(long) conf.getInt(BlockCache.SIZE, 0) * 1024 * 1024,
+					conf.getInt(BlockCache.FETCHERS, 4));
 			localCache = localCache + subPath;
 		}
 
@@ -139,6 +170,27 @@ public class RDFStorage extends InputLayer {
 
 		cacheExists = cachedir.exists();
 
+		/* Collect the statistics together with the cache */
+		String statsDir = p + "/" + indexType + "/"
+				+ StatisticsCatalog.STATS_DIR;
+		String statsFile = StatisticsCatalog.getStatisticsFile(statsDir,
+				myPartition, nPartitionsPerNode);
+		IndexStatistics stats = null;
+		if (!cacheExists) {
+			stats = new IndexStatistics(indexType.charAt(0) == 'p');
+		} else {
+			IndexStatistics existingStats = statistics.load(statsFile);
+			if (existingStats == null
+					&& conf.getBoolean(BUILD_STATISTICS, true)) {
+				log.info("Statistics for index " + indexType
+						+ " are missing: they will be collected now");
+				stats = new IndexStatistics(indexType.charAt(0) == 'p');
+			} else {
+				statistics.register(indexType, statsDir, myPartition, nNodes,
+						nPartitionsPerNode, existingStats);
+			}
+		}
+
 		if (cacheExists) {
 			log.debug("Load index from " + cachePath);
 			index.loadIndexFromCache(localCache, cachePath);
@@ -184,7 +236,7 @@ public class RDFStorage extends InputLayer {
 					currentPartition += nPartitionsPerNode;
 				}
 
-				if (!cacheExists) {
+				if (!cacheExists || stats != null) {
 					if (partition >= myPartition * nPartitionsPerNode
 							&& (partition < ((myPartition + 1) * nPartitionsPerNode) || myPartition == nNodes - 1)) {
 						file.open();
@@ -193,7 +245,12 @@ public class RDFStorage extends InputLayer {
 							long entry1 = file.getFirstTerm();
 							long entry2 = file.getSecondTerm();
 							long entry3 = file.getThirdTerm();
-							index.writeElement(entry1, entry2, entry3);
+							if (!cacheExists) {
+								index.writeElement(entry1, entry2, entry3);
+							}
+							if (stats != null) {
+								stats.add(entry1, entry2, entry3);
+							}
 						}
 						file.close();
 					}
@@ -206,12 +263,17 @@ public class RDFStorage extends InputLayer {
 			// The partitions are not globally sorted
 			MergePartitions merge = new MergePartitions();
 			merge.init(myPartition, nPartitionsPerNode, nNodes, files,
-					cacheExists, firstElements);
-			if (!cacheExists) {
+					cacheExists && stats == null, firstElements);
+			if (!cacheExists || stats != null) {
 				while (merge.hasNext()) {
 					count++;
 					long[] triple = merge.next();
-					index.writeElement(triple[0], triple[1], triple[2]);
+					if (!cacheExists) {
+						index.writeElement(triple[0], triple[1], triple[2]);
+					}
+					if (stats != null) {
+						stats.add(triple[0], triple[1], triple[2]);
+					}
 				}
 			}
 			synchronized (indexPartitions) {
@@ -223,6 +285,17 @@ public class RDFStorage extends InputLayer {
 			index.closeWritingCache();
 			log.debug("Loaded triples: " + count);
 		}
+
+		if (stats != null) {
+			stats.finish();
+			try {
+				statistics.store(statsFile, stats);
+			} catch (Exception e) {
+				log.warn("Failed writing statistics " + statsFile, e);
+			}
+			statistics.register(indexType, statsDir, myPartition, nNodes,
+					nPartitionsPerNode, stats);
+		}
 	}
 
 	int counter;
@@ -247,6 +320,7 @@ public class RDFStorage extends InputLayer {
 		fi = (FilesInterface) Class.forName(
 				context.getConfiguration().get(FILES_INTERFACE,
 						FilesInterface.class.getName())).newInstance();
+		statistics.setFilesInterface(fi);
 		spo.setFilesInterface(fi);
 		sop.setFilesInterface(fi);
 		pos.setFilesInterface(fi);
@@ -393,6 +467,15 @@ public class RDFStorage extends InputLayer {
 
 		Ruleset.getInstance();
 
+		/********* LOAD THE STATE OF THE LAST CLOSURE *********/
+		indexDirectory = indexDir;
+		if (conf.getBoolean(CLOSURE_SNAPSHOT, true)
+				&& fi.getClass() == FilesInterface.class) {
+			closureSnapshot = new File(conf.get("input.schemaDir", ""),
+					ClosureSnapshot.FILE);
+			loadClosureSnapshot();
+		}
+
 		/*********
 		 * LOAD URL-number conversion (to answer SPARQL queries
 		 *********/
@@ -423,9 +506,16 @@ public class RDFStorage extends InputLayer {
 			dictionary = new OnDiskDictionary();
 			dictionary.load(dict_dir + "/index_sorted.data", dict_dir
 					+ "/text.data");
+			if (TermIndex.exists(dict_dir)) {
+				terms = new TermMap(cacheURLs, new TermIndex(dict_dir));
+			}
 		}
 	}
 
+	public boolean hasDictionary() {
+		return dictionary != null;
+	}
+
 	public String[] getText(long... resources) {
 		if (dictionary != null) {
 			return dictionary.getText(resources);
@@ -576,6 +666,13 @@ public class RDFStorage extends InputLayer {
 		if (myPartition < part.length - 1)
 			maxValue = part[myPartition + 1][0];
 		itr.init(index, schema2, t, context, minValue, maxValue, input);
+
+		// Stop reading as soon as the query has enough results
+		ResultBudget budget = (ResultBudget) context
+				.getObjectFromCache(ResultBudget.ID);
+		if (budget != null) {
+			budget.register(itr);
+		}
 		return itr;
 	}
 
@@ -598,6 +695,21 @@ public class RDFStorage extends InputLayer {
 				t[1] = token2.getValue();
 				t[2] = token3.getValue();
 
+				if (tuple.getNElements() > 3
+						&& tuple.get(3) instanceof TBoolean
+						&& ((TBoolean) tuple.get(3)).getValue()) {
+					// Only the triples inferred in the last round
+					InMemoryTripleContainer delta = (InMemoryTripleContainer) context
+							.getObjectFromCache(RuleBCAlgo.DELTA);
+					if (delta == null) {
+						return new EmptyIterator();
+					}
+					TupleIterator deltaItr = InMemoryIterator.getIterator(
+							context, delta, t[0], t[1], t[2]);
+					deltaItr.init(context, "INMEMORY_ITR");
+					return deltaItr;
+				}
+
 				InMemoryTripleContainer input = (InMemoryTripleContainer) context
 						.getObjectFromCache("inputIntermediateTuples");
 				if (input != null) {
@@ -650,6 +762,67 @@ public class RDFStorage extends InputLayer {
 		return null;
 	}
 
+	private long getClosureChecksum() throws IOException {
+		return ClosureSnapshot.checksum(indexDirectory,
+				closureSnapshot.getParent(),
+				System.getProperty(Ruleset.RULES_FILE),
+				System.getProperty(Ruleset.RULES_FILE_AFTER_CLOSURE));
+	}
+
+	private void loadClosureSnapshot() throws Exception {
+		long time = System.currentTimeMillis();
+		// The indexes are written before the closure is computed
+		closureChecksum = getClosureChecksum();
+		ClosureSnapshot snapshot = ClosureSnapshot.read(closureSnapshot,
+				closureChecksum);
+		if (snapshot == null) {
+			return;
+		}
+
+		for (Map.Entry<String, long[]> e : snapshot.patterns.entrySet()) {
+			schema2.updateCacheSinglePatterns(e.getKey(), e.getValue());
+		}
+		for (Map.Entry<String, ListStore> e : snapshot.lists.entrySet()) {
+			schema2.updateCacheLists(e.getKey(), e.getValue());
+		}
+		closureTriples = snapshot.getTriples();
+
+		// Same as at the end of the closure
+		String newList = System.getProperty(Ruleset.RULES_FILE_AFTER_CLOSURE);
+		if (newList != null) {
+			Ruleset.getInstance().parseRulesetFile(newList);
+		}
+		Ruleset.getInstance().loadRules(false);
+		log.info("Loaded the closure from " + closureSnapshot + " in "
+				+ (System.currentTimeMillis() - time) + " ms");
+	}
+
+	/**
+	 * Writes the state of the closure, so that it can be loaded at the next
+	 * startup.
+	 */
+	public void writeClosureSnapshot() {
+		if (closureSnapshot == null) {
+			return;
+		}
+		long time = System.currentTimeMillis();
+		ClosureSnapshot snapshot = new ClosureSnapshot();
+		snapshot.patterns.putAll(schema2.getCacheSinglePatterns());
+		snapshot.lists.putAll(schema2.getCacheLists());
+		if (closureTriples != null) {
+			snapshot.setTriples(closureTriples);
+		}
+		try {
+			// The closure could have written new files
+			closureChecksum = getClosureChecksum();
+			snapshot.write(closureSnapshot, closureChecksum);
+			log.info("Written the closure in " + closureSnapshot + " in "
+					+ (System.currentTimeMillis() - time) + " ms");
+		} catch (IOException e) {
+			log.warn("Cannot write the snapshot of the closure", e);
+		}
+	}
+
 	public InMemoryTripleContainer getClosureTriples() {
 		return closureTriples;
 	}
@@ -739,13 +912,29 @@ public class RDFStorage extends InputLayer {
 	}
 
 	public Map<String, Long> getCacheURLs() {
-		return cacheURLs;
+		return terms != null ? terms : cacheURLs;
+	}
+
+	public StatisticsCatalog getStatistics() {
+		return statistics;
 	}
 
 	long chainId = -1;
 
 	@Override
 	public void releaseIterator(TupleIterator itr, ActionContext context) {
+		ResultBudget budget = (ResultBudget) context
+				.getObjectFromCache(ResultBudget.ID);
+		if (budget != null) {
+			if (itr instanceof CompositeTriplePattern) {
+				CompositeTriplePattern itr2 = (CompositeTriplePattern) itr;
+				budget.unregister((TripleIterator) (itr2.third != null ? itr2.third
+						: itr2.second));
+			} else if (itr instanceof TripleIterator) {
+				budget.unregister((TripleIterator) itr);
+			}
+		}
+
 		if (itr instanceof PatternIterator) {
 			factory.release((PatternIterator) itr);
 		} else if (itr instanceof CompositeTriplePattern) {
@@ -0,0 +1,275 @@
+package nl.vu.cs.querypie.storage.disk;
+
+import ibis.util.ThreadPool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.vu.cs.ajira.utils.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sparse index of the triple files of a directory: the first triple of every
+ * file, from which the partitions are routed. It replaces the list of the
+ * first elements.
+ *
+ * Every file is recorded with its length and modification time, so that only
+ * the files that are new or changed are read when the index is refreshed. The
+ * files are read in parallel.
+ */
+public class SparseIndex {
+
+    static final Logger log = LoggerFactory.getLogger(SparseIndex.class);
+
+    public static final String FILE = "_SparseIndex";
+
+    private static final int MAGIC = 0x53504958;
+    private static final int VERSION = 2;
+
+    private static final long[] EMPTY = { Long.MAX_VALUE, Long.MAX_VALUE,
+	    Long.MAX_VALUE };
+
+    public static class FileEntry {
+	final String name;
+	final long length;
+	final long lastModified;
+	// Null if the file is empty
+	long[] first = null;
+
+	FileEntry(String name, long length, long lastModified) {
+	    this.name = name;
+	    this.length = length;
+	    this.lastModified = lastModified;
+	}
+
+	/**
+	 * Returns the first triple, or Long.MAX_VALUE three times if the file
+	 * is empty.
+	 */
+	public long[] getFirst() {
+	    return first == null ? EMPTY.clone() : first.clone();
+	}
+    }
+
+    private final String directory;
+    private final FilesInterface fi;
+    private final Map<String, FileEntry> entries = new HashMap<String, FileEntry>();
+
+    private SparseIndex(String directory, FilesInterface fi) {
+	this.directory = directory;
+	this.fi = fi;
+    }
+
+    /**
+     * Reads the index of the directory, or returns null if it does not
+     * exist or cannot be read.
+     */
+    public static SparseIndex load(String directory, FilesInterface fi) {
+	try {
+	    File file = fi.createFile(directory + "/" + FILE);
+	    if (!file.exists()) {
+		return null;
+	    }
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(
+		    fi.createInputStream(file), 64 * 1024));
+	    try {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+		    log.warn(file + " has another version");
+		    return null;
+		}
+		SparseIndex index = new SparseIndex(directory, fi);
+		int n = in.readInt();
+		while (n-- > 0) {
+		    FileEntry e = new FileEntry(in.readUTF(), in.readLong(),
+			    in.readLong());
+		    if (in.readBoolean()) {
+			e.first = new long[] { in.readLong(), in.readLong(),
+				in.readLong() };
+		    }
+		    index.entries.put(e.name, e);
+		}
+		return index;
+	    } finally {
+		in.close();
+	    }
+	} catch (Exception e) {
+	    log.warn("Cannot read the sparse index of " + directory, e);
+	    return null;
+	}
+    }
+
+    private void write() throws Exception {
+	File tmp = fi.createFile(directory + "/" + FILE + ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+		fi.createOutputStream(tmp), 64 * 1024));
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeInt(entries.size());
+	    for (FileEntry e : entries.values()) {
+		out.writeUTF(e.name);
+		out.writeLong(e.length);
+		out.writeLong(e.lastModified);
+		out.writeBoolean(e.first != null);
+		if (e.first != null) {
+		    for (int i = 0; i < 3; ++i) {
+			out.writeLong(e.first[i]);
+		    }
+		}
+	    }
+	} finally {
+	    out.close();
+	}
+	File file = fi.createFile(directory + "/" + FILE);
+	if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+	    throw new IOException("Cannot replace " + file);
+	}
+    }
+
+    private File getFile(TripleFile file) throws Exception {
+	return fi.createFile(directory + "/" + file.getName());
+    }
+
+    /**
+     * Returns the entry of the file, or null if the file is not in the index
+     * or has changed.
+     */
+    public FileEntry get(TripleFile file) {
+	FileEntry e = entries.get(file.getName());
+	try {
+	    File f = getFile(file);
+	    if (e == null || e.length != f.length()
+		    || e.lastModified != f.lastModified()) {
+		return null;
+	    }
+	} catch (Exception ex) {
+	    return null;
+	}
+	return e;
+    }
+
+    /**
+     * Returns the first triple of every file, or null if the index is not up
+     * to date.
+     */
+    public long[][] getFirstElements(TripleFile[] files) {
+	long[][] firstElements = new long[files.length][];
+	for (int i = 0; i < files.length; ++i) {
+	    FileEntry e = get(files[i]);
+	    if (e == null) {
+		return null;
+	    }
+	    firstElements[i] = e.getFirst();
+	}
+	return firstElements;
+    }
+
+    private FileEntry build(TripleFile file) throws Exception {
+	File f = getFile(file);
+	FileEntry e = new FileEntry(file.getName(), f.length(),
+		f.lastModified());
+	file.open();
+	try {
+	    if (file.next()) {
+		e.first = new long[] { file.getFirstTerm(),
+			file.getSecondTerm(), file.getThirdTerm() };
+	    }
+	} finally {
+	    file.close();
+	}
+	return e;
+    }
+
+    /**
+     * Updates the index of the directory with the files that are new or have
+     * changed, and removes the files that do not exist anymore. The files are
+     * read by the given number of threads.
+     */
+    public static SparseIndex refresh(Configuration conf, String directory,
+	    FilesInterface fi, int nThreads) throws Exception {
+	SparseIndex index = load(directory, fi);
+	if (index == null) {
+	    index = new SparseIndex(directory, fi);
+	}
+	TripleFile[] files = fi.getListFiles(conf, directory, true);
+
+	final List<TripleFile> toRead = new ArrayList<TripleFile>();
+	Map<String, FileEntry> entries = new HashMap<String, FileEntry>();
+	for (TripleFile file : files) {
+	    FileEntry e = index.get(file);
+	    if (e == null) {
+		toRead.add(file);
+	    } else {
+		entries.put(e.name, e);
+	    }
+	}
+	boolean changed = !toRead.isEmpty()
+		|| entries.size() != index.entries.size();
+	index.entries.clear();
+	index.entries.putAll(entries);
+	if (!changed) {
+	    return index;
+	}
+
+	long time = System.currentTimeMillis();
+	final SparseIndex idx = index;
+	final int[] next = { 0 };
+	final int[] running = { Math.max(1, Math.min(nThreads, toRead.size())) };
+	final Exception[] error = { null };
+	for (int i = running[0]; i > 0; --i) {
+	    ThreadPool.createNew(new Runnable() {
+		@Override
+		public void run() {
+		    try {
+			while (true) {
+			    TripleFile file;
+			    synchronized (next) {
+				if (next[0] == toRead.size() || error[0] != null) {
+				    break;
+				}
+				file = toRead.get(next[0]++);
+			    }
+			    FileEntry e = idx.build(file);
+			    synchronized (idx) {
+				idx.entries.put(e.name, e);
+			    }
+			}
+		    } catch (Exception e) {
+			synchronized (next) {
+			    error[0] = e;
+			}
+		    } finally {
+			synchronized (running) {
+			    running[0]--;
+			    running.notify();
+			}
+		    }
+		}
+	    }, "SparseIndex builder");
+	}
+	synchronized (running) {
+	    while (running[0] > 0) {
+		running.wait();
+	    }
+	}
+	if (error[0] != null) {
+	    throw error[0];
+	}
+
+	index.write();
+	log.info("Sparse index of " + directory + ": read " + toRead.size()
+		+ " of " + files.length + " files in "
+		+ (System.currentTimeMillis() - time) + " ms");
+	return index;
+    }
+}
@@ -0,0 +1,212 @@
+package nl.vu.cs.querypie.storage.disk;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.vu.cs.querypie.storage.RDFTerm;
+import nl.vu.cs.querypie.storage.Schema;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the statistics of all the partitions of the indexes and uses them
+ * to estimate the cardinality of triple patterns without reading the index.
+ * Every node stores the statistics of its partitions in the directory
+ * <i>_stats</i> next to the <i>_cache</i> of the index. The statistics of the
+ * other nodes are read the first time they are needed.
+ */
+public class StatisticsCatalog {
+
+	static final Logger log = LoggerFactory.getLogger(StatisticsCatalog.class);
+
+	public static final String STATS_DIR = "_stats";
+
+	private static class IndexEntry {
+		String dir;
+		int nPartitionsPerNode;
+		IndexStatistics[] partitions;
+		IndexStatistics merged;
+	}
+
+	private final Map<String, IndexEntry> indexes = new HashMap<String, IndexEntry>();
+	private FilesInterface fi;
+	private int version = 0;
+
+	public void setFilesInterface(FilesInterface fi) {
+		this.fi = fi;
+	}
+
+	/**
+	 * Returns a number that changes every time new statistics become
+	 * available.
+	 */
+	public synchronized int getVersion() {
+		return version;
+	}
+
+	public static String getStatisticsFile(String dir, int partition,
+			int nPartitionsPerNode) {
+		return dir + "/" + partition + "_" + nPartitionsPerNode;
+	}
+
+	public synchronized void register(String indexType, String dir,
+			int myPartition, int nNodes, int nPartitionsPerNode,
+			IndexStatistics stats) {
+		IndexEntry e = new IndexEntry();
+		e.dir = dir;
+		e.nPartitionsPerNode = nPartitionsPerNode;
+		e.partitions = new IndexStatistics[nNodes];
+		e.partitions[myPartition] = stats;
+		indexes.put(indexType, e);
+		version++;
+	}
+
+	public IndexStatistics load(String file) {
+		try {
+			File f = fi.createFile(file);
+			if (!f.exists()) {
+				return null;
+			}
+			DataInputStream in = new DataInputStream(fi.createInputStream(f));
+			try {
+				return IndexStatistics.readFrom(in);
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			log.warn("Failed reading statistics " + file, e);
+		}
+		return null;
+	}
+
+	public void store(String file, IndexStatistics stats) throws Exception {
+		File f = fi.createFile(file);
+		f.getParentFile().mkdirs();
+		File tmp = fi.createFile(file + "_tmp");
+		DataOutputStream out = new DataOutputStream(fi.createOutputStream(tmp));
+		stats.writeTo(out);
+		out.close();
+		tmp.renameTo(f);
+	}
+
+	/**
+	 * Returns the statistics of the entire index, or null if the statistics
+	 * of some partitions are not (yet) available.
+	 */
+	public synchronized IndexStatistics getStatistics(String indexType) {
+		IndexEntry e = indexes.get(indexType);
+		if (e == null) {
+			return null;
+		}
+		if (e.merged == null) {
+			List<IndexStatistics> list = new ArrayList<IndexStatistics>();
+			for (int i = 0; i < e.partitions.length; ++i) {
+				if (e.partitions[i] == null) {
+					e.partitions[i] = load(getStatisticsFile(e.dir, i,
+							e.nPartitionsPerNode));
+					if (e.partitions[i] == null) {
+						return null;
+					}
+				}
+				list.add(e.partitions[i]);
+			}
+			e.merged = IndexStatistics.merge(list);
+			version++;
+			if (log.isDebugEnabled()) {
+				log.debug("Statistics of index " + indexType + ": "
+						+ e.merged.getTotal() + " triples, "
+						+ e.merged.getDistinctEntries() + " distinct entries");
+			}
+		}
+		return e.merged;
+	}
+
+	/**
+	 * Estimates the number of triples that match the pattern. Variables are
+	 * ALL_RESOURCES; the sets that are precomputed in the schema are expanded.
+	 *
+	 * @return the estimation or -1 if it cannot be calculated with the
+	 *         statistics.
+	 */
+	public long estimate(long s, long p, long o) {
+		long[] t = { s, p, o };
+		for (int i = 0; i < 3; ++i) {
+			if (t[i] <= RDFTerm.THRESHOLD_VARIABLE) {
+				return -1;
+			}
+			if (t[i] <= Schema.SET_THRESHOLD) {
+				Collection<Long> set = Schema.getInstance().getSubset(t[i]);
+				if (set == null) {
+					return -1;
+				}
+				long sum = 0;
+				for (long v : set) {
+					t[i] = v;
+					long est = estimate(t[0], t[1], t[2]);
+					if (est == -1) {
+						return -1;
+					}
+					sum += est;
+				}
+				return Math.min(sum, Integer.MAX_VALUE);
+			} else if (t[i] < 0 && t[i] != Schema.ALL_RESOURCES) {
+				return -1;
+			}
+		}
+
+		long output;
+		if (p >= 0) {
+			if (s >= 0 && o >= 0) {
+				output = 1;
+			} else {
+				IndexStatistics stats = getStatistics(s >= 0 ? "pso" : "pos");
+				if (stats == null) {
+					return -1;
+				}
+				IndexStatistics.EntryStatistics e = stats.getEntry(p);
+				if (e == null) {
+					output = 0;
+				} else if (s >= 0) {
+					output = e.estimate(s);
+				} else if (o >= 0) {
+					output = e.estimate(o);
+				} else {
+					output = e.count;
+				}
+			}
+		} else if (s >= 0) {
+			IndexStatistics stats = getStatistics("spo");
+			if (stats == null) {
+				return -1;
+			}
+			output = stats.estimate(s);
+			if (o >= 0) {
+				stats = getStatistics("ops");
+				if (stats == null) {
+					return -1;
+				}
+				output = Math.min(output, stats.estimate(o));
+			}
+		} else if (o >= 0) {
+			IndexStatistics stats = getStatistics("ops");
+			if (stats == null) {
+				return -1;
+			}
+			output = stats.estimate(o);
+		} else {
+			IndexStatistics stats = getStatistics("spo");
+			if (stats == null) {
+				return -1;
+			}
+			output = stats.getTotal();
+		}
+		return Math.min(output, Integer.MAX_VALUE);
+	}
+}
@@ -0,0 +1,177 @@
+package nl.vu.cs.querypie.storage.memory;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Set of triples that several threads can fill at the same time. The triples
+ * are stored as longs, without boxing, in a number of stripes that are locked
+ * independently. A stripe copies the triples one after the other in a single
+ * array, and an open addressing table with linear probing stores their index.
+ */
+public class ConcurrentTripleSet {
+
+	private static final int STRIPES = 64;
+
+	private static final class Stripe {
+		long[] triples = new long[3 * 16];
+		int size = 0;
+		int[] table = new int[32];
+		int mask = 31;
+
+		Stripe() {
+			Arrays.fill(table, -1);
+		}
+
+		private boolean equals(int idx, long s, long p, long o) {
+			int offset = idx * 3;
+			return triples[offset] == s && triples[offset + 1] == p
+					&& triples[offset + 2] == o;
+		}
+
+		private void rehash() {
+			table = new int[table.length * 2];
+			Arrays.fill(table, -1);
+			mask = table.length - 1;
+			for (int idx = 0; idx < size; ++idx) {
+				int slot = hash(triples[idx * 3], triples[idx * 3 + 1],
+						triples[idx * 3 + 2]) & mask;
+				while (table[slot] != -1) {
+					slot = (slot + 1) & mask;
+				}
+				table[slot] = idx;
+			}
+		}
+
+		synchronized boolean contains(int h, long s, long p, long o) {
+			int slot = h & mask;
+			while (table[slot] != -1) {
+				if (equals(table[slot], s, p, o)) {
+					return true;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return false;
+		}
+
+		synchronized boolean add(int h, long s, long p, long o) {
+			int slot = h & mask;
+			while (table[slot] != -1) {
+				if (equals(table[slot], s, p, o)) {
+					return false;
+				}
+				slot = (slot + 1) & mask;
+			}
+
+			if ((size + 1) * 3 > triples.length) {
+				triples = Arrays.copyOf(triples, triples.length * 2);
+			}
+			triples[size * 3] = s;
+			triples[size * 3 + 1] = p;
+			triples[size * 3 + 2] = o;
+			table[slot] = size++;
+
+			// Keep the load factor below 0.5
+			if (size * 2 > table.length) {
+				rehash();
+			}
+			return true;
+		}
+
+		synchronized int copyTo(long[] output, int offset) {
+			System.arraycopy(triples, 0, output, offset, size * 3);
+			return offset + size * 3;
+		}
+	}
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	public ConcurrentTripleSet() {
+		for (int i = 0; i < STRIPES; ++i) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	private static int hash(long s, long p, long o) {
+		long h = ((s * 31) + p) * 31 + o;
+		h *= 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private Stripe getStripe(int h) {
+		// The low bits choose the slot inside the stripe
+		return stripes[(h >>> 26) & (STRIPES - 1)];
+	}
+
+	/**
+	 * Adds the triple to the set.
+	 *
+	 * @return false if the triple was already in the set.
+	 */
+	public boolean add(long s, long p, long o) {
+		int h = hash(s, p, o);
+		return getStripe(h).add(h, s, p, o);
+	}
+
+	public boolean contains(long s, long p, long o) {
+		int h = hash(s, p, o);
+		return getStripe(h).contains(h, s, p, o);
+	}
+
+	public void addAll(ConcurrentTripleSet set) {
+		long[] triples = set.toArray();
+		for (int i = 0; i < triples.length; i += 3) {
+			add(triples[i], triples[i + 1], triples[i + 2]);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the subject, predicate and object of all the triples, one
+	 * triple after the other. The triples that are added while the array is
+	 * being filled might be missing.
+	 */
+	public long[] toArray() {
+		long[] output = new long[size() * 3];
+		int offset = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				if (offset + stripe.size * 3 > output.length) {
+					output = Arrays.copyOf(output, offset + stripe.size * 3);
+				}
+				offset = stripe.copyTo(output, offset);
+			}
+		}
+		return offset == output.length ? output : Arrays.copyOf(output,
+				offset);
+	}
+
+	/**
+	 * Copies the triples in the collection.
+	 *
+	 * @return the number of triples that were not in the collection yet.
+	 */
+	public int addTo(Collection<Triple> collection) {
+		long[] triples = toArray();
+		int added = 0;
+		for (int i = 0; i < triples.length; i += 3) {
+			Triple t = new Triple();
+			t.subject = triples[i];
+			t.predicate = triples[i + 1];
+			t.object = triples[i + 2];
+			if (collection.add(t)) {
+				added++;
+			}
+		}
+		return added;
+	}
+}
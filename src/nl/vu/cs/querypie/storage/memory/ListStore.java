@@ -0,0 +1,301 @@
+package nl.vu.cs.querypie.storage.memory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import nl.vu.cs.querypie.storage.SchemaTerms;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RDF lists stored in compressed sparse row format. The heads are sorted, and
+ * the members of all the lists are stored in one array: the list at index i
+ * is members[offsets[i]] ... members[offsets[i + 1] - 1].
+ */
+public class ListStore implements Serializable {
+
+    private static final long serialVersionUID = 2467180143957268115L;
+
+    static final Logger log = LoggerFactory.getLogger(ListStore.class);
+
+    public static final ListStore EMPTY = new ListStore(new long[0],
+	    new int[1], new long[0]);
+
+    private final long[] heads;
+    private final int[] offsets;
+    private final long[] members;
+
+    public ListStore(long[] heads, int[] offsets, long[] members) {
+	this.heads = heads;
+	this.offsets = offsets;
+	this.members = members;
+    }
+
+    /**
+     * Number of lists.
+     */
+    public int size() {
+	return heads.length;
+    }
+
+    /**
+     * Returns the index of the list with this head, or -1.
+     */
+    public int indexOf(long head) {
+	int index = Arrays.binarySearch(heads, head);
+	return index >= 0 ? index : -1;
+    }
+
+    public boolean containsHead(long head) {
+	return Arrays.binarySearch(heads, head) >= 0;
+    }
+
+    public long getHead(int index) {
+	return heads[index];
+    }
+
+    public int getLength(int index) {
+	return offsets[index + 1] - offsets[index];
+    }
+
+    public long getElement(int index, int pos) {
+	return members[offsets[index] + pos];
+    }
+
+    /**
+     * View of the heads of the lists. It does not copy them.
+     */
+    public Collection<Long> getHeads() {
+	return new AbstractCollection<Long>() {
+	    @Override
+	    public boolean contains(Object o) {
+		return o instanceof Long && containsHead((Long) o);
+	    }
+
+	    @Override
+	    public Iterator<Long> iterator() {
+		return new Iterator<Long>() {
+		    int i = 0;
+
+		    @Override
+		    public boolean hasNext() {
+			return i < heads.length;
+		    }
+
+		    @Override
+		    public Long next() {
+			if (i >= heads.length) {
+			    throw new NoSuchElementException();
+			}
+			return heads[i++];
+		    }
+
+		    @Override
+		    public void remove() {
+			throw new UnsupportedOperationException();
+		    }
+		};
+	    }
+
+	    @Override
+	    public int size() {
+		return heads.length;
+	    }
+	};
+    }
+
+    public void write(DataOutput out) throws IOException {
+	out.writeInt(heads.length);
+	out.writeInt(members.length);
+	for (int i = 0; i < heads.length; ++i) {
+	    out.writeLong(heads[i]);
+	    out.writeInt(offsets[i + 1] - offsets[i]);
+	}
+	for (long member : members) {
+	    out.writeLong(member);
+	}
+    }
+
+    public static ListStore read(DataInput in) throws IOException {
+	int nlists = in.readInt();
+	int nmembers = in.readInt();
+	long[] heads = new long[nlists];
+	int[] offsets = new int[nlists + 1];
+	for (int i = 0; i < nlists; ++i) {
+	    heads[i] = in.readLong();
+	    offsets[i + 1] = offsets[i] + in.readInt();
+	}
+	if (offsets[nlists] != nmembers) {
+	    throw new IOException("Corrupted list file");
+	}
+	long[] members = new long[nmembers];
+	for (int i = 0; i < nmembers; ++i) {
+	    members[i] = in.readLong();
+	}
+	return new ListStore(heads, offsets, members);
+    }
+
+    /**
+     * The rdf:first and rdf:rest triples indexed by subject, so that the lists
+     * can be followed without boxing the values.
+     */
+    public static class Links {
+	private final long[] firstS, firstO, restS, restO;
+
+	public Links(Collection<Triple> firstTriples,
+		Collection<Triple> restTriples) {
+	    Triple[] first = firstTriples.toArray(new Triple[firstTriples
+		    .size()]);
+	    Arrays.sort(first);
+	    firstS = new long[first.length];
+	    firstO = new long[first.length];
+	    for (int i = 0; i < first.length; ++i) {
+		firstS[i] = first[i].subject;
+		firstO[i] = first[i].object;
+	    }
+
+	    Triple[] rest = restTriples.toArray(new Triple[restTriples
+		    .size()]);
+	    Arrays.sort(rest);
+	    restS = new long[rest.length];
+	    restO = new long[rest.length];
+	    for (int i = 0; i < rest.length; ++i) {
+		restS[i] = rest[i].subject;
+		restO[i] = rest[i].object;
+	    }
+	}
+
+	private static int find(long[] subjects, long node) throws Exception {
+	    int i = Arrays.binarySearch(subjects, node);
+	    if (i < 0) {
+		return -1;
+	    }
+	    if ((i > 0 && subjects[i - 1] == node)
+		    || (i < subjects.length - 1 && subjects[i + 1] == node)) {
+		throw new Exception("Not supported: the node " + node
+			+ " has more than one first or rest element");
+	    }
+	    return i;
+	}
+    }
+
+    /**
+     * Collects the lists in any order. If a head is added twice, the last list
+     * is kept.
+     */
+    public static class Builder {
+	private long[] heads = new long[16];
+	private int[] starts = new int[16];
+	private int[] lengths = new int[16];
+	private long[] members = new long[64];
+	private int nlists = 0;
+	private int nmembers = 0;
+
+	public void startList(long head) {
+	    if (nlists == heads.length) {
+		heads = Arrays.copyOf(heads, nlists * 2);
+		starts = Arrays.copyOf(starts, nlists * 2);
+		lengths = Arrays.copyOf(lengths, nlists * 2);
+	    }
+	    heads[nlists] = head;
+	    starts[nlists] = nmembers;
+	    lengths[nlists] = 0;
+	    nlists++;
+	}
+
+	public void add(long member) {
+	    if (nmembers == members.length) {
+		members = Arrays.copyOf(members, nmembers * 2);
+	    }
+	    members[nmembers++] = member;
+	    lengths[nlists - 1]++;
+	}
+
+	public void discardList() {
+	    nmembers = starts[--nlists];
+	}
+
+	/**
+	 * Follows the list that starts at head. Returns false (and adds
+	 * nothing) if head is not the head of a complete list.
+	 */
+	public boolean addList(long head, Links links) throws Exception {
+	    if (head == SchemaTerms.RDF_NIL) {
+		return false;
+	    }
+	    startList(head);
+	    long node = head;
+	    int length = 0;
+	    while (node != SchemaTerms.RDF_NIL) {
+		int f = Links.find(links.firstS, node);
+		if (f == -1) {
+		    if (length > 0) {
+			log.warn("No firstTriple found for " + node);
+		    }
+		    discardList();
+		    return false;
+		}
+		int r = Links.find(links.restS, node);
+		if (r == -1) {
+		    log.warn("No rest value found");
+		    discardList();
+		    return false;
+		}
+		add(links.firstO[f]);
+		node = links.restO[r];
+		if (++length > links.firstS.length) {
+		    log.warn("The list " + head + " contains a cycle");
+		    discardList();
+		    return false;
+		}
+	    }
+	    return true;
+	}
+
+	public ListStore build() {
+	    // Sort the lists on the head, keeping the last one of every head
+	    Integer[] order = new Integer[nlists];
+	    for (int i = 0; i < nlists; ++i) {
+		order[i] = i;
+	    }
+	    Arrays.sort(order, new Comparator<Integer>() {
+		@Override
+		public int compare(Integer o1, Integer o2) {
+		    long h1 = heads[o1];
+		    long h2 = heads[o2];
+		    return h1 < h2 ? -1 : (h1 > h2 ? 1 : o1 - o2);
+		}
+	    });
+
+	    int n = 0;
+	    int size = 0;
+	    for (int i = 0; i < nlists; ++i) {
+		if (i == nlists - 1
+			|| heads[order[i + 1]] != heads[order[i]]) {
+		    order[n++] = order[i];
+		    size += lengths[order[i]];
+		}
+	    }
+
+	    long[] h = new long[n];
+	    int[] o = new int[n + 1];
+	    long[] m = new long[size];
+	    for (int i = 0; i < n; ++i) {
+		int list = order[i];
+		h[i] = heads[list];
+		System.arraycopy(members, starts[list], m, o[i], lengths[list]);
+		o[i + 1] = o[i] + lengths[list];
+	    }
+	    return new ListStore(h, o, m);
+	}
+    }
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import nl.vu.cs.ajira.utils.Configuration;
 import nl.vu.cs.querypie.storage.disk.FilesInterface;
 import nl.vu.cs.querypie.storage.disk.PlainTripleFile;
+import nl.vu.cs.querypie.storage.disk.SparseIndex;
 import nl.vu.cs.querypie.storage.disk.TripleFile;
 
 import org.slf4j.Logger;
@@ -25,28 +26,44 @@ public class FirstElementsListCreator {
 
 	// Read index in args[0].
 
-	if (args.length != 1) {
-	    log.error("FirstElementsListCreator needs an argument: the database, which should have an index/spo and index/sop directory");
+	// The sparse index is updated only for the files that were added.
+
+	if (args.length < 1 || args.length > 3) {
+	    log.error("FirstElementsListCreator needs an argument: the database, which should have an index/spo and index/sop directory. Optional: the number of threads and the triple file implementation");
 	    System.exit(1);
 	}
+	final int nThreads = args.length > 1 ? Integer.valueOf(args[1])
+		: Runtime.getRuntime().availableProcessors();
 	Configuration conf = new Configuration();
 	// conf.set(Consts.STORAGE_IMPL, RDFStorage.class.getName());
-	conf.set("indexFileImpl", PlainTripleFile.class.getName());
+	conf.set("indexFileImpl",
+		args.length > 2 ? args[2] : PlainTripleFile.class.getName());
 	runOnIndex(conf, args[0] + File.separator + "index" + File.separator
-		+ "spo");
+		+ "spo", nThreads);
 	runOnIndex(conf, args[0] + File.separator + "index" + File.separator
-		+ "sop");
+		+ "sop", nThreads);
 	runOnIndex(conf, args[0] + File.separator + "index" + File.separator
-		+ "pos");
+		+ "pos", nThreads);
 	runOnIndex(conf, args[0] + File.separator + "index" + File.separator
-		+ "pso");
+		+ "pso", nThreads);
 	runOnIndex(conf, args[0] + File.separator + "index" + File.separator
-		+ "osp");
+		+ "osp", nThreads);
 	runOnIndex(conf, args[0] + File.separator + "index" + File.separator
-		+ "ops");
+		+ "ops", nThreads);
     }
 
     public static void runOnIndex(Configuration conf, String directory) {
+	runOnIndex(conf, directory, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Refreshes the sparse index of the directory, reading in parallel only
+     * the files that are new or have changed, and writes the list of the
+     * first elements from it.
+     */
+    public static void runOnIndex(Configuration conf, String directory,
+	    int nThreads) {
+	FilesInterface fi = new FilesInterface();
 	TripleFile[] files = Utils.getListFiles(conf, directory, true);
 
 	File dir = new File(directory);
@@ -60,24 +77,30 @@ public class FirstElementsListCreator {
 	    System.exit(1);
 	}
 
-	TripleFile newFile = Utils.getFirstElementsFile(conf, directory,
-		new FilesInterface());
+	long[][] firstElements = null;
+	try {
+	    firstElements = SparseIndex.refresh(conf, directory, fi, nThreads)
+		    .getFirstElements(files);
+	} catch (Exception e) {
+	    log.error("Could not build the sparse index of " + directory, e);
+	}
+	if (firstElements == null) {
+	    log.error("The sparse index of " + directory + " is not complete");
+	    System.exit(1);
+	}
+
+	TripleFile newFile = Utils.getFirstElementsFile(conf, directory, fi);
 	if (newFile == null) {
 	    log.error("Could not create TripleFile object for FirstElementsFile");
 	    System.exit(1);
 	}
 	newFile.openToWrite();
-	for (TripleFile file : files) {
-	    log.info("Process file " + file.getName());
-	    file.open();
-	    if (file.next()) {
-		byte[] triple = file.getTriple();
-		newFile.writeTriple(triple, triple.length);
-	    } else {
-		log.warn(file.getName() + " does not contain any elements!");
-		newFile.write(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+	for (int i = 0; i < files.length; ++i) {
+	    if (firstElements[i][0] == Long.MAX_VALUE) {
+		log.warn(files[i].getName() + " does not contain any elements!");
 	    }
-	    file.close();
+	    newFile.write(firstElements[i][0], firstElements[i][1],
+		    firstElements[i][2]);
 	}
 	newFile.close();
     }
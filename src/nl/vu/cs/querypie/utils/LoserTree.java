@@ -0,0 +1,77 @@
+package nl.vu.cs.querypie.utils;
+
+/**
+ * Tournament (loser) tree to merge k sorted sources. Every internal node keeps
+ * the source that lost the match played there, and the winner of the whole
+ * tree is the source with the smallest head. After the head of the winner is
+ * advanced, only the log(k) matches on its path to the root are replayed,
+ * with one comparison each.
+ *
+ * The subclasses keep the heads of the sources and compare them in less().
+ * An exhausted source must compare after all the others.
+ */
+public abstract class LoserTree {
+
+    private final int k;
+    private final int[] tree;
+    private int winner;
+
+    public LoserTree(int k) {
+	this.k = k;
+	this.tree = new int[Math.max(k, 1)];
+    }
+
+    /**
+     * Returns true if the head of source a comes before the head of source b.
+     */
+    protected abstract boolean less(int a, int b);
+
+    /**
+     * Plays the whole tournament. To be called once the first heads of all
+     * the sources are set.
+     */
+    public void init() {
+	if (k == 0) {
+	    winner = -1;
+	    return;
+	}
+	winner = init(1);
+    }
+
+    // Returns the winner of the subtree rooted at node
+    private int init(int node) {
+	if (node >= k) {
+	    return node - k;
+	}
+	int left = init(2 * node);
+	int right = init(2 * node + 1);
+	if (less(right, left)) {
+	    tree[node] = left;
+	    return right;
+	}
+	tree[node] = right;
+	return left;
+    }
+
+    /**
+     * Returns the source with the smallest head.
+     */
+    public int top() {
+	return winner;
+    }
+
+    /**
+     * Replays the matches of the winner, after its head has changed.
+     */
+    public void replay() {
+	int w = winner;
+	for (int node = (w + k) >>> 1; node > 0; node >>>= 1) {
+	    if (less(tree[node], w)) {
+		int t = tree[node];
+		tree[node] = w;
+		w = t;
+	    }
+	}
+	winner = w;
+    }
+}
@@ -0,0 +1,104 @@
+package nl.vu.cs.querypie.utils;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import nl.vu.cs.querypie.storage.Schema;
+import nl.vu.cs.querypie.storage.disk.BlockTripleFile;
+import nl.vu.cs.querypie.storage.disk.PlainTripleFile;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts the triple files of a database (index and closure) from
+ * PlainTripleFile to BlockTripleFile. The directory tree is copied to the
+ * output directory: the gzip files are converted, except the lists, and the
+ * others are copied as they are. The converted database is used with
+ * indexFileImpl set to BlockTripleFile.
+ */
+public class TripleFileConverter {
+
+    static final Logger log = LoggerFactory
+	    .getLogger(TripleFileConverter.class);
+
+    private long files = 0;
+    private long triples = 0;
+    private long inputBytes = 0;
+    private long outputBytes = 0;
+
+    private static boolean isGzip(File file) throws IOException {
+	DataInputStream in = new DataInputStream(new FileInputStream(file));
+	try {
+	    return file.length() >= 2 && in.readUnsignedShort() == 0x1f8b;
+	} finally {
+	    in.close();
+	}
+    }
+
+    private void convertFile(File input, File output) throws IOException {
+	PlainTripleFile in = new PlainTripleFile(input.getPath());
+	BlockTripleFile out = new BlockTripleFile(output.getPath());
+	in.open();
+	out.openToWrite();
+	long n = 0;
+	while (in.next()) {
+	    out.write(in.getFirstTerm(), in.getSecondTerm(), in.getThirdTerm());
+	    n++;
+	}
+	in.close();
+	out.close();
+
+	files++;
+	triples += n;
+	inputBytes += input.length();
+	outputBytes += output.length();
+    }
+
+    private static void copyFile(File input, File output) throws IOException {
+	InputStream in = new FileInputStream(input);
+	OutputStream out = new FileOutputStream(output);
+	try {
+	    IOUtils.copy(in, out);
+	} finally {
+	    in.close();
+	    out.close();
+	}
+    }
+
+    public void convert(File input, File output) throws IOException {
+	if (input.isDirectory()) {
+	    output.mkdirs();
+	    for (File child : input.listFiles()) {
+		convert(child, new File(output, child.getName()));
+	    }
+	} else if (!input.getName().equals("list")
+		&& !input.getName().equals(Schema.LISTS_FILE) && isGzip(input)) {
+	    convertFile(input, output);
+	} else {
+	    copyFile(input, output);
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	if (args.length != 2) {
+	    System.out
+		    .println("Usage: TripleFileConverter <input dir> <output dir>");
+	    return;
+	}
+	long time = System.currentTimeMillis();
+	TripleFileConverter converter = new TripleFileConverter();
+	converter.convert(new File(args[0]), new File(args[1]));
+	log.info("Converted " + converter.files + " files with "
+		+ converter.triples + " triples in "
+		+ (System.currentTimeMillis() - time) + " ms: "
+		+ converter.inputBytes + " -> " + converter.outputBytes
+		+ " bytes");
+    }
+}